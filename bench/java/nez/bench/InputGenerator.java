@@ -0,0 +1,111 @@
+package nez.bench;
+
+/**
+ * InputGenerator builds synthetic inputs of a given size for the grammars in
+ * tool/nez/lib. Each input repeats a small record until the size is reached,
+ * so the text stays valid for its grammar.
+ */
+
+public class InputGenerator {
+
+	public final static String generate(String grammar, int size) {
+		StringBuilder sb = new StringBuilder(size + 256);
+		switch (grammar) {
+		case "json":
+			sb.append("[\n");
+			for (int i = 0; sb.length() < size; i++) {
+				if (i > 0) {
+					sb.append(",\n");
+				}
+				sb.append("{\"id\": ").append(i).append(", \"name\": \"item ").append(i);
+				sb.append("\", \"tags\": [\"a\", \"b\", \"c\"], \"value\": ").append(i).append(".25, \"ok\": true, \"next\": null}");
+			}
+			sb.append("\n]\n");
+			break;
+		case "xml":
+			sb.append("<?xml version=\"1.0\"?>\n<root>\n");
+			for (int i = 0; sb.length() < size; i++) {
+				sb.append("<item id=\"").append(i).append("\" kind=\"record\"><name>item ").append(i);
+				sb.append("</name><value>").append(i).append(".25</value><empty/></item>\n");
+			}
+			sb.append("</root>\n");
+			break;
+		case "csv":
+			sb.append("Id,Name,Description,Price\n");
+			for (int i = 0; sb.length() < size; i++) {
+				sb.append(i).append(",item ").append(i).append(",\"quoted, text\",").append(i).append(".25\n");
+			}
+			break;
+		case "js":
+			for (int i = 0; sb.length() < size; i++) {
+				sb.append("function f").append(i).append("(a, b) {\n");
+				sb.append("  var x = a + b * ").append(i).append(";\n");
+				sb.append("  if (x > 10) { return [x, \"s\", null]; }\n");
+				sb.append("  return { key: x, name: 'f").append(i).append("' };\n}\n");
+			}
+			break;
+		case "java":
+			sb.append("public class Generated {\n");
+			for (int i = 0; sb.length() < size; i++) {
+				sb.append("  int m").append(i).append("(int a, String s) {\n");
+				sb.append("    int x = a + ").append(i).append(" * s.length();\n");
+				sb.append("    if (x > 10) { return x; }\n");
+				sb.append("    for (int i = 0; i < a; i++) { x += i; }\n");
+				sb.append("    return a * 2;\n  }\n");
+			}
+			sb.append("}\n");
+			break;
+		default:
+			throw new IllegalArgumentException("unknown grammar: " + grammar);
+		}
+		return sb.toString();
+	}
+
+	/* inputs with a keyword in most statements */
+
+	public final static String generateKeywords(String grammar, int size) {
+		StringBuilder sb = new StringBuilder(size + 256);
+		switch (grammar) {
+		case "js":
+			for (int i = 0; sb.length() < size; i++) {
+				sb.append("function f").append(i).append("(a) {\n");
+				sb.append("  var x = typeof a; var y = new Object();\n");
+				sb.append("  if (a instanceof Object) { return this.x; } else { while (false) { continue; } }\n");
+				sb.append("  for (var i = 0; i < a; i++) { if (i in y) { break; } }\n");
+				sb.append("  return null;\n}\n");
+			}
+			break;
+		case "java":
+			sb.append("public class Generated {\n");
+			for (int i = 0; sb.length() < size; i++) {
+				sb.append("  public static final int m").append(i).append("(final int a) throws Exception {\n");
+				sb.append("    if (a > ").append(i).append(") { return this.value; } else { while (true) { break; } }\n");
+				sb.append("    for (int i = 0; i < a; i++) { if (i instanceof Object) { continue; } }\n");
+				sb.append("    synchronized (this) { return new Integer(a).intValue(); }\n  }\n");
+			}
+			sb.append("}\n");
+			break;
+		default:
+			throw new IllegalArgumentException("unknown grammar: " + grammar);
+		}
+		return sb.toString();
+	}
+
+	/* log lines for JitBenchmark.LogGrammar */
+
+	public final static String generateLog(int size) {
+		StringBuilder sb = new StringBuilder(size + 256);
+		String[] levels = { "INFO", "WARN", "ERROR", "DEBUG" };
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("2016-03-").append(10 + i % 18).append(' ');
+			sb.append(10 + i % 13).append(':').append(10 + i % 49).append(':').append(10 + i % 47).append('.').append(100 + i % 900).append(' ');
+			sb.append(levels[i % levels.length]).append(" worker-").append(i % 16);
+			sb.append(" request=/api/items/").append(i).append(" status=200 bytes=").append(i * 7 % 65536).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] a) {
+		System.out.print(generate(a[0], Integer.parseInt(a[1])));
+	}
+}
@@ -0,0 +1,74 @@
+package nez.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matches log lines with a lexical grammar on the Moz86 interpreter and the
+ * Moz86 JIT. Its productions are not recursive and consist of long runs of
+ * byte, set and string matches, which the JIT compiles into straight-line
+ * bytecode on a local position; see ParserBenchmark for the recursive
+ * grammars.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xss16m" })
+public class JitBenchmark {
+	final static String LogGrammar = "" //
+			+ "File = (Line '\\n')*\n" //
+			+ "Line = Date ' ' Time ' ' Level (' ' Word)*\n" //
+			+ "Date = [0-9][0-9][0-9][0-9] '-' [0-9][0-9] '-' [0-9][0-9]\n" //
+			+ "Time = [0-9][0-9] ':' [0-9][0-9] ':' [0-9][0-9] '.' [0-9]+\n" //
+			+ "Level = 'INFO' / 'WARN' / 'ERROR' / 'DEBUG'\n" //
+			+ "Word = [a-zA-Z0-9=/_.-]+\n";
+
+	@Param({ "262144", "4194304" })
+	public int size;
+
+	@Param({ "Moz86", "JIT" })
+	public String backend;
+
+	private Parser parser;
+	private Source input;
+
+	@Setup
+	public void setup() throws Exception {
+		ParserStrategy strategy = new ParserStrategy();
+		strategy.JIT = backend.equals("JIT");
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(LogGrammar), "nez");
+		this.parser = strategy.newParser(g);
+		this.parser.compile();
+		this.input = CommonSource.newStringSource(InputGenerator.generateLog(size));
+		if (!this.parser.match(input)) {
+			this.parser.showErrors();
+			throw new IllegalStateException("failed to match generated log lines");
+		}
+	}
+
+	@Benchmark
+	public boolean match() {
+		return parser.match(input);
+	}
+}
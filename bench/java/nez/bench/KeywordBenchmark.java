@@ -0,0 +1,68 @@
+package nez.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nez.ast.Source;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matches keyword-heavy inputs with the choices of literals compiled into
+ * keyword tries (ParserStrategy.Okeyword) or into the usual alternatives.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xss16m" })
+public class KeywordBenchmark {
+
+	@Param({ "js", "java" })
+	public String grammar;
+
+	@Param({ "262144" })
+	public int size;
+
+	@Param({ "Moz86", "JIT", "IntCode" })
+	public String backend;
+
+	@Param({ "true", "false" })
+	public boolean keyword;
+
+	private Parser parser;
+	private Source input;
+
+	@Setup
+	public void setup() throws Exception {
+		ParserStrategy strategy = new ParserStrategy();
+		strategy.JIT = backend.equals("JIT");
+		strategy.IntCode = backend.equals("IntCode");
+		strategy.Okeyword = keyword;
+		this.parser = ParserBenchmark.newParser(grammar, strategy);
+		this.input = CommonSource.newStringSource(InputGenerator.generateKeywords(grammar, size));
+		if (!this.parser.match(input)) {
+			this.parser.showErrors();
+			throw new IllegalStateException("failed to match generated " + grammar);
+		}
+	}
+
+	@Benchmark
+	public boolean match() {
+		return parser.match(input);
+	}
+}
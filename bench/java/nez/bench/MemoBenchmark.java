@@ -0,0 +1,72 @@
+package nez.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nez.ast.Source;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares memo tables. On MozMachine, MemoTable.newTable picks NullTable,
+ * ElasticTable or PackratHashTable from SlidingWindow; on Moz86 packrat
+ * parsing is switched on and off.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xss16m" })
+public class MemoBenchmark {
+
+	@Param({ "json", "js", "java" })
+	public String grammar;
+
+	@Param({ "262144" })
+	public int size;
+
+	@Param({ "MozMachine:NullTable", "MozMachine:ElasticTable", "MozMachine:PackratHashTable", "Moz86:none", "Moz86:memo" })
+	public String memo;
+
+	private Parser parser;
+	private Source input;
+
+	@Setup
+	public void setup() throws Exception {
+		ParserStrategy strategy = new ParserStrategy();
+		strategy.Moz = memo.startsWith("MozMachine");
+		switch (memo.substring(memo.indexOf(':') + 1)) {
+		case "NullTable":
+		case "none":
+			strategy.PackratParsing = false;
+			strategy.SlidingWindow = 0;
+			break;
+		case "PackratHashTable":
+			strategy.SlidingWindow = -2;
+			break;
+		default:
+			break;
+		}
+		this.parser = ParserBenchmark.newParser(grammar, strategy);
+		this.input = CommonSource.newStringSource(InputGenerator.generate(grammar, size));
+	}
+
+	@Benchmark
+	public Object parse() {
+		return parser.parse(input);
+	}
+}
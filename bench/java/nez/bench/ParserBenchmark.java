@@ -0,0 +1,81 @@
+package nez.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses generated inputs with each grammar on the Moz86 interpreter, the
+ * Moz86 JIT, the int[] code interpreter and the classic MozMachine, with and
+ * without tree construction.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xss16m" })
+public class ParserBenchmark {
+
+	@Param({ "json", "xml", "csv", "js", "java" })
+	public String grammar;
+
+	@Param({ "4096", "262144", "4194304" })
+	public int size;
+
+	@Param({ "Moz86", "JIT", "IntCode", "MozMachine" })
+	public String backend;
+
+	@Param({ "true", "false" })
+	public boolean tree;
+
+	private Parser parser;
+	private Source input;
+
+	@Setup
+	public void setup() throws Exception {
+		ParserStrategy strategy = new ParserStrategy();
+		strategy.Moz = backend.equals("MozMachine");
+		strategy.JIT = backend.equals("JIT");
+		strategy.IntCode = backend.equals("IntCode");
+		strategy.TreeConstruction = tree;
+		this.parser = newParser(grammar, strategy);
+		this.input = CommonSource.newStringSource(InputGenerator.generate(grammar, size));
+		Object result = this.parse(); // the call that is timed
+		if (result == null || Boolean.FALSE.equals(result) || this.parser.hasErrors()) {
+			this.parser.showErrors();
+			throw new IllegalStateException("failed to parse generated " + grammar + " with " + backend + (tree ? "" : " without trees"));
+		}
+	}
+
+	@Benchmark
+	public Object parse() {
+		return tree ? parser.parse(input) : (Object) parser.match(input);
+	}
+
+	static Parser newParser(String grammar, ParserStrategy strategy) throws Exception {
+		Grammar g = new ParserGenerator().loadGrammar(grammar + ".nez");
+		Parser parser = strategy.newParser(g);
+		parser.setDisabledUnconsumed(true);
+		parser.compile();
+		return parser;
+	}
+}
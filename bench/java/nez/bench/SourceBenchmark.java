@@ -0,0 +1,85 @@
+package nez.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nez.ast.Source;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.FileSource;
+import nez.parser.io.MappedFileSource;
+import nez.parser.io.StringSource;
+import nez.util.StringUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses the same generated text through StringSource, FileSource and
+ * MappedFileSource. Opening the source is part of each operation.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SourceBenchmark {
+
+	@Param({ "json", "xml" })
+	public String grammar;
+
+	@Param({ "262144", "4194304" })
+	public int size;
+
+	@Param({ "StringSource", "FileSource", "MappedFileSource" })
+	public String source;
+
+	private Parser parser;
+	private String text;
+	private File file;
+
+	@Setup
+	public void setup() throws Exception {
+		this.parser = ParserBenchmark.newParser(grammar, new ParserStrategy());
+		this.text = InputGenerator.generate(grammar, size);
+		this.file = File.createTempFile("nez-bench", "." + grammar);
+		FileOutputStream out = new FileOutputStream(this.file);
+		out.write(StringUtils.toUtf8(this.text));
+		out.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	@Benchmark
+	public Object parse() throws IOException {
+		return parser.parse(newSource());
+	}
+
+	private Source newSource() throws IOException {
+		switch (source) {
+		case "FileSource":
+			return new FileSource(file.getPath());
+		case "MappedFileSource":
+			return new MappedFileSource(file.getPath());
+		default:
+			return new StringSource(file.getPath(), 1, text);
+		}
+	}
+}
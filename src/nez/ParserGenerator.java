@@ -9,6 +9,7 @@ import nez.lang.Grammar;
 import nez.lang.ast.GrammarLoader;
 import nez.lang.ast.NezGrammarCombinator;
 import nez.parser.Parser;
+import nez.parser.ParserCache;
 import nez.parser.ParserException;
 import nez.parser.ParserStrategy;
 import nez.parser.io.CommonSource;
@@ -195,6 +196,55 @@ public class ParserGenerator {
 		return newParser(fileName, ParserStrategy.newDefaultStrategy());
 	}
 
+	/**
+	 * Returns a parser of the grammar files, reusing the code compiled by an
+	 * earlier call with the same grammar text and strategy. The grammar is
+	 * loaded only when the cache has no code for it.
+	 */
+
+	public final Parser newParser(ParserCache cache, ParserStrategy strategy, String fileName, String... auxFileNames) throws IOException {
+		strategy = ParserStrategy.nullCheck(strategy);
+		if (cache == null || !ParserCache.isCacheable(strategy)) {
+			return strategy.newParser(loadGrammar(fileName, auxFileNames));
+		}
+		String key = newKey(strategy, fileName, auxFileNames);
+		Parser parser = cache.load(key, strategy);
+		if (parser == null) {
+			parser = strategy.newParser(loadGrammar(fileName, auxFileNames));
+			cache.store(key, parser);
+		}
+		return parser;
+	}
+
+	/**
+	 * Returns the ParserCache key of the grammar files, which changes with
+	 * their text.
+	 */
+
+	public final String newKey(ParserStrategy strategy, String fileName, String... auxFileNames) throws IOException {
+		String[] texts = new String[(auxFileNames.length + 1) * 2];
+		texts[0] = FileBuilder.extractFileExtension(fileName);
+		texts[1] = loadText(fileName);
+		for (int i = 0; i < auxFileNames.length; i++) {
+			texts[i * 2 + 2] = FileBuilder.extractFileExtension(auxFileNames[i]);
+			texts[i * 2 + 3] = loadText(auxFileNames[i]);
+		}
+		return ParserCache.newKey(strategy, texts);
+	}
+
+	private Grammar loadGrammar(String fileName, String... auxFileNames) throws IOException {
+		Grammar grammar = loadGrammar(fileName);
+		for (String f : auxFileNames) {
+			updateGrammar(grammar, f);
+		}
+		return grammar;
+	}
+
+	private String loadText(String fileName) throws IOException {
+		CommonSource source = StringSource.loadClassPath(fileName, classPath);
+		return source.subString(0, source.length());
+	}
+
 	/* Regex */
 
 	static {
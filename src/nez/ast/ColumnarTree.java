@@ -0,0 +1,451 @@
+package nez.ast;
+
+import java.util.Arrays;
+
+/**
+ * ColumnarTree is a tree prototype that keeps the nodes of a parse in a
+ * Table of primitive columns, one array per field, rather than in objects
+ * with arrays of labels and children. A ColumnarTree is a view of one node
+ * of a table; get(int) makes views of the children on demand, so that the
+ * views made while parsing are dropped with the parse. The children of a
+ * node are a list of siblings, kept in the order of their index.
+ *
+ * A prototype makes a table for each parse. A child linked to a second
+ * parent, or to a parent in another table, is copied; so is a child given
+ * to set. The views change the table through link, set, setLabel, setTag,
+ * setValue and setPosition. A missing child has no row, and so no label.
+ */
+
+public class ColumnarTree extends Tree<ColumnarTree> {
+	private final Table table;
+	private final int id;
+	private int cursorIndex = -1; // the last child found by index
+	private int cursorNode = -1;
+
+	private final static int PageShift = 12; // 4096 rows per page
+	private final static int PageMask = (1 << PageShift) - 1;
+
+	public ColumnarTree() {
+		super();
+		this.table = null;
+		this.id = -1;
+	}
+
+	private ColumnarTree(Table table) {
+		super();
+		this.table = table;
+		this.id = -1;
+	}
+
+	private ColumnarTree(Table table, int id) {
+		super(table.tag(id), table.source, table.pos(id), table.length(id), null, table.value(id));
+		this.table = table;
+		this.id = id;
+	}
+
+	public final Table getTable() {
+		return this.table;
+	}
+
+	public final int getId() {
+		return this.id;
+	}
+
+	@Override
+	public ColumnarTree newInstance(Symbol tag, Source source, long pos, int len, int size, Object value) {
+		Table t = this.table == null ? new Table(source) : this.table.forSource(source);
+		return new ColumnarTree(t, t.add(tag.id, pos, len, size, value));
+	}
+
+	/* the trees of a parse are made in one table */
+
+	@Override
+	public Tree<?> newPrototype(Source source) {
+		return new ColumnarTree(new Table(source));
+	}
+
+	@Override
+	public ColumnarTree newInstance(Symbol tag, int size, Object value) {
+		return newInstance(tag, this.getSource(), this.getSourcePosition(), 0, size, value);
+	}
+
+	@Override
+	protected ColumnarTree dupImpl() {
+		return newInstance(this.getTag(), this.getSource(), this.getSourcePosition(), this.getLength(), this.size(), this.getValue());
+	}
+
+	@Override
+	public void link(int n, Symbol label, Object child) {
+		ColumnarTree c = (ColumnarTree) child;
+		int node = c.id;
+		if (c.table != this.table || this.table.parent(node) != -1) {
+			node = this.table.copy(c.table, node);
+		}
+		this.table.link(this.id, n, label, node);
+		this.cursorIndex = -1;
+	}
+
+	/* the child at index, or -1 */
+
+	private int child(int index) {
+		Table t = this.table;
+		int c = t.firstChild(this.id);
+		if (this.cursorIndex != -1 && this.cursorIndex <= index && t.parent(this.cursorNode) == this.id && t.index(this.cursorNode) == this.cursorIndex) {
+			c = this.cursorNode;
+		}
+		while (c != -1 && t.index(c) < index) {
+			c = t.nextSibling(c);
+		}
+		if (c != -1 && t.index(c) == index) {
+			this.cursorIndex = index;
+			this.cursorNode = c;
+			return c;
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return this.id == -1 ? 0 : this.table.objectSize(this.id);
+	}
+
+	@Override
+	public ColumnarTree get(int index) {
+		int c = this.child(index);
+		if (c == -1) {
+			return null;
+		}
+		ColumnarTree t = new ColumnarTree(this.table, c);
+		t.layout = this.layout;
+		return t;
+	}
+
+	@Override
+	public Symbol getLabel(int index) {
+		int c = this.child(index);
+		return c == -1 ? null : this.table.label(c);
+	}
+
+	@Override
+	public ColumnarTree set(int index, ColumnarTree node) {
+		ColumnarTree old = this.get(index);
+		this.set(index, old == null ? null : this.table.label(old.id), node);
+		return old;
+	}
+
+	@Override
+	public void set(int index, Symbol label, Tree<?> node) {
+		if (index < 0 || index >= this.size()) {
+			throw new IndexOutOfBoundsException("index " + index + " of " + this.size() + " children");
+		}
+		if (node == null) {
+			this.table.unlink(this.id, index);
+			this.cursorIndex = -1;
+		} else {
+			this.link(index, label, node);
+		}
+	}
+
+	@Override
+	protected void setLabel(int index, Symbol label) {
+		int c = this.child(index);
+		if (c != -1) {
+			set(this.table.labels, c, label == null ? -1 : label.id);
+		}
+	}
+
+	@Override
+	public void setTag(Symbol tag) {
+		super.setTag(tag);
+		if (this.id != -1) {
+			set(this.table.tags, this.id, tag.id);
+		}
+	}
+
+	@Override
+	public void setValue(Object value) {
+		super.setValue(value);
+		if (this.id != -1) {
+			this.table.setValue(this.id, value);
+		}
+	}
+
+	@Override
+	public void setPosition(long pos, int len) {
+		super.setPosition(pos, len);
+		if (this.id != -1) {
+			this.table.positions[this.id >>> PageShift][this.id & PageMask] = pos;
+			set(this.table.lengths, this.id, len);
+		}
+	}
+
+	/* sends the subtree over the columns, without making views */
+
+	public final void sendTree(TreeListener listener) {
+		if (this.id != -1) {
+			this.table.sendTree(listener, this.id);
+		}
+	}
+
+	/**
+	 * Table is the columns of the nodes made from one source. A node is
+	 * identified by its row; a missing parent, child, sibling or label is
+	 * -1. The columns are allocated in pages, so that they are neither
+	 * copied nor left half empty as the table grows, and the values only
+	 * in the pages of nodes that have one.
+	 */
+
+	public final static class Table {
+		private final Source source;
+		private Table moved = null; // the table of a relocated tree
+		private int count = 0;
+		private int[][] tags = new int[4][];
+		private long[][] positions = new long[4][];
+		private int[][] lengths = new int[4][];
+		private int[][] sizes = new int[4][];
+		private int[][] parents = new int[4][];
+		private int[][] firstChildren = new int[4][];
+		private int[][] nextSiblings = new int[4][];
+		private int[][] labels = new int[4][];
+		private int[][] indexes = new int[4][];
+		private Object[][] values = new Object[4][];
+		private int lastParent = -1; // the parent being linked and its last child
+		private int lastChild = -1;
+
+		Table(Source source) {
+			this.source = source;
+		}
+
+		final Table forSource(Source source) {
+			if (this.source == source) {
+				return this;
+			}
+			if (this.moved == null || this.moved.source != source) {
+				this.moved = new Table(source);
+			}
+			return this.moved;
+		}
+
+		final int add(int tag, long pos, int len, int size, Object value) {
+			int id = this.count;
+			int p = id >>> PageShift;
+			int o = id & PageMask;
+			if (o == 0) {
+				this.newPage(p);
+			}
+			this.tags[p][o] = tag;
+			this.positions[p][o] = pos;
+			this.lengths[p][o] = len;
+			this.sizes[p][o] = size;
+			this.parents[p][o] = -1;
+			this.firstChildren[p][o] = -1;
+			this.nextSiblings[p][o] = -1;
+			this.labels[p][o] = -1;
+			this.indexes[p][o] = -1;
+			this.count++;
+			if (value != null) {
+				this.setValue(id, value);
+			}
+			return id;
+		}
+
+		private void newPage(int p) {
+			if (p == this.tags.length) {
+				int n = p * 2;
+				this.tags = Arrays.copyOf(this.tags, n);
+				this.positions = Arrays.copyOf(this.positions, n);
+				this.lengths = Arrays.copyOf(this.lengths, n);
+				this.sizes = Arrays.copyOf(this.sizes, n);
+				this.parents = Arrays.copyOf(this.parents, n);
+				this.firstChildren = Arrays.copyOf(this.firstChildren, n);
+				this.nextSiblings = Arrays.copyOf(this.nextSiblings, n);
+				this.labels = Arrays.copyOf(this.labels, n);
+				this.indexes = Arrays.copyOf(this.indexes, n);
+				this.values = Arrays.copyOf(this.values, n);
+			}
+			int n = PageMask + 1;
+			this.tags[p] = new int[n];
+			this.positions[p] = new long[n];
+			this.lengths[p] = new int[n];
+			this.sizes[p] = new int[n];
+			this.parents[p] = new int[n];
+			this.firstChildren[p] = new int[n];
+			this.nextSiblings[p] = new int[n];
+			this.labels[p] = new int[n];
+			this.indexes[p] = new int[n];
+		}
+
+		private void setValue(int id, Object value) {
+			Object[] page = this.values[id >>> PageShift];
+			if (page == null) {
+				if (value == null) {
+					return;
+				}
+				page = new Object[PageMask + 1];
+				this.values[id >>> PageShift] = page;
+			}
+			page[id & PageMask] = value;
+		}
+
+		/* inserts node as the child at index n of parent, replacing the child there */
+
+		final void link(int parent, int n, Symbol label, int node) {
+			set(this.parents, node, parent);
+			set(this.labels, node, label == null ? -1 : label.id);
+			set(this.indexes, node, n);
+			int prev = -1;
+			int c = this.firstChild(parent);
+			if (this.lastParent == parent && this.lastChild != -1 && this.parent(this.lastChild) == parent && this.index(this.lastChild) < n) {
+				prev = this.lastChild;
+				c = this.nextSibling(prev);
+			}
+			while (c != -1 && this.index(c) < n) {
+				prev = c;
+				c = this.nextSibling(c);
+			}
+			if (c != -1 && this.index(c) == n) {
+				set(this.parents, c, -1);
+				c = this.nextSibling(c);
+			}
+			set(this.nextSiblings, node, c);
+			if (prev == -1) {
+				set(this.firstChildren, parent, node);
+			} else {
+				set(this.nextSiblings, prev, node);
+			}
+			this.lastParent = parent;
+			this.lastChild = node;
+		}
+
+		/* removes the child at index n of parent, if any */
+
+		final void unlink(int parent, int n) {
+			int prev = -1;
+			int c = this.firstChild(parent);
+			while (c != -1 && this.index(c) < n) {
+				prev = c;
+				c = this.nextSibling(c);
+			}
+			if (c == -1 || this.index(c) != n) {
+				return;
+			}
+			if (prev == -1) {
+				set(this.firstChildren, parent, this.nextSibling(c));
+			} else {
+				set(this.nextSiblings, prev, this.nextSibling(c));
+			}
+			set(this.parents, c, -1);
+			set(this.nextSiblings, c, -1);
+			if (this.lastChild == c) {
+				this.lastChild = prev;
+			}
+		}
+
+		/* copies the subtree of node in table t into this table */
+
+		final int copy(Table t, int node) {
+			int id = this.add(get(t.tags, node), t.pos(node), t.length(node), t.objectSize(node), t.value(node));
+			for (int c = t.firstChild(node); c != -1; c = t.nextSibling(c)) {
+				this.link(id, t.index(c), t.label(c), this.copy(t, c));
+			}
+			return id;
+		}
+
+		/* sends the subtree of root in document order, with no recursion */
+
+		public final void sendTree(TreeListener listener, int root) {
+			int id = root;
+			listener.startNode(this.tag(id), this.pos(id));
+			while (true) {
+				int c = this.firstChild(id);
+				if (c != -1) {
+					listener.label(this.label(c));
+					listener.startNode(this.tag(c), this.pos(c));
+					id = c;
+					continue;
+				}
+				while (true) {
+					listener.endNode(this.tag(id), this.pos(id), this.length(id), this.value(id));
+					if (id == root) {
+						return;
+					}
+					int s = this.nextSibling(id);
+					if (s != -1) {
+						listener.label(this.label(s));
+						listener.startNode(this.tag(s), this.pos(s));
+						id = s;
+						break;
+					}
+					id = this.parent(id);
+				}
+			}
+		}
+
+		public final Source getSource() {
+			return this.source;
+		}
+
+		/* the number of rows, including those of discarded nodes */
+
+		public final int size() {
+			return this.count;
+		}
+
+		public final Symbol tag(int id) {
+			return Symbol.tag(get(this.tags, id));
+		}
+
+		public final Symbol label(int id) {
+			int label = get(this.labels, id);
+			return label == -1 ? null : Symbol.tag(label);
+		}
+
+		public final long pos(int id) {
+			return this.positions[id >>> PageShift][id & PageMask];
+		}
+
+		public final int length(int id) {
+			return get(this.lengths, id);
+		}
+
+		public final Object value(int id) {
+			Object[] page = this.values[id >>> PageShift];
+			return page == null ? null : page[id & PageMask];
+		}
+
+		public final String toText(int id) {
+			Object v = this.value(id);
+			return v != null ? v.toString() : Tree.toText(this.source, this.pos(id), this.length(id));
+		}
+
+		/* the object size of the node; some of its children may be missing */
+
+		public final int objectSize(int id) {
+			return get(this.sizes, id);
+		}
+
+		public final int index(int id) {
+			return get(this.indexes, id);
+		}
+
+		public final int parent(int id) {
+			return get(this.parents, id);
+		}
+
+		public final int firstChild(int id) {
+			return get(this.firstChildren, id);
+		}
+
+		public final int nextSibling(int id) {
+			return get(this.nextSiblings, id);
+		}
+	}
+
+	private static int get(int[][] column, int id) {
+		return column[id >>> PageShift][id & PageMask];
+	}
+
+	private static void set(int[][] column, int id, int value) {
+		column[id >>> PageShift][id & PageMask] = value;
+	}
+}
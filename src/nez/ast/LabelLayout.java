@@ -0,0 +1,84 @@
+package nez.ast;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LabelLayout is where one grammar puts the labeled children of its tags:
+ * for a tag and a label, the index of the child, or -1 if it is unknown or
+ * varies. A layout is filled by nez.lang.TreeLayout, or read from a parser
+ * cache, before the trees of the grammar refer to it; it is not changed
+ * after that.
+ */
+
+public final class LabelLayout {
+	private int[][] slots = new int[0][]; // by tag id, then label id; the index + 1, or -1 if it varies
+	private int size = 0;
+
+	public final int slot(Symbol tag, Symbol label) {
+		if (tag.id < this.slots.length) {
+			int[] s = this.slots[tag.id];
+			if (s != null && label.id < s.length && s[label.id] > 0) {
+				return s[label.id] - 1;
+			}
+		}
+		return -1;
+	}
+
+	/* a label put at two indices under one tag has no slot */
+
+	public final void setSlot(Symbol tag, Symbol label, int index) {
+		if (tag.id >= this.slots.length) {
+			this.slots = Arrays.copyOf(this.slots, Math.max(tag.id + 1, this.slots.length * 2));
+		}
+		int[] s = this.slots[tag.id];
+		if (s == null || label.id >= s.length) {
+			s = s == null ? new int[Math.max(8, label.id + 1)] : Arrays.copyOf(s, Math.max(label.id + 1, s.length * 2));
+			this.slots[tag.id] = s;
+		}
+		if (s[label.id] == 0) {
+			s[label.id] = index + 1;
+			this.size++;
+		} else if (s[label.id] != index + 1) {
+			if (s[label.id] > 0) {
+				this.size--;
+			}
+			s[label.id] = -1;
+		}
+	}
+
+	/* the number of labels that have a slot */
+
+	public final int size() {
+		return this.size;
+	}
+
+	/* the slots are written by name, since symbol ids differ between runs */
+
+	public final void write(DataOutputStream out) throws IOException {
+		out.writeInt(this.size);
+		for (int tag = 0; tag < this.slots.length; tag++) {
+			int[] s = this.slots[tag];
+			for (int label = 0; s != null && label < s.length; label++) {
+				if (s[label] > 0) {
+					out.writeUTF(Symbol.tag(tag).getSymbol());
+					out.writeUTF(Symbol.tag(label).getSymbol());
+					out.writeInt(s[label] - 1);
+				}
+			}
+		}
+	}
+
+	public final static LabelLayout read(DataInputStream in) throws IOException {
+		LabelLayout layout = new LabelLayout();
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			Symbol tag = Symbol.unique(in.readUTF());
+			Symbol label = Symbol.unique(in.readUTF());
+			layout.setSlot(tag, label, in.readInt());
+		}
+		return layout;
+	}
+}
@@ -23,7 +23,7 @@ public class LiteralConstructor extends TreeVisitorMap<nez.ast.LiteralConstructo
 
 	@Override
 	public Object newInstance(Tree<?> node) {
-		return find(node.getTag().getSymbol());
+		return find(node.getTag());
 	}
 
 	public static interface TreeConstructor {
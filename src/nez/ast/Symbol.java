@@ -1,19 +1,27 @@
 package nez.ast;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nez.util.UList;
 
 public class Symbol {
-	private static HashMap<String, Symbol> tagIdMap = new HashMap<String, Symbol>();
+	private static ConcurrentHashMap<String, Symbol> tagIdMap = new ConcurrentHashMap<String, Symbol>();
 	private static UList<Symbol> tagNameList = new UList<Symbol>(new Symbol[64]);
 
 	public final static Symbol unique(String s) {
 		Symbol tag = tagIdMap.get(s);
 		if (tag == null) {
-			tag = new Symbol(tagIdMap.size(), s);
+			tag = newSymbol(s);
+		}
+		return tag;
+	}
+
+	private synchronized static Symbol newSymbol(String s) {
+		Symbol tag = tagIdMap.get(s);
+		if (tag == null) {
+			tag = new Symbol(tagNameList.size(), s);
+			tagNameList.add(tag); // publish before the map entry
 			tagIdMap.put(s, tag);
-			tagNameList.add(tag);
 		}
 		return tag;
 	}
@@ -0,0 +1,99 @@
+package nez.ast;
+
+/**
+ * TokenTable interns the texts of the short tokens of one source, so that
+ * the identifiers and keywords that repeat in a parse share one String. A
+ * text is looked up by hashing and comparing the bytes of the source with
+ * those of its first occurrence, without decoding or copying them.
+ *
+ * The table is shared by all the trees of its source, which may be read from
+ * several threads; intern and the counters hold the table's lock.
+ */
+
+public final class TokenTable {
+	public final static int MaxLength = 32;
+
+	private long[] positions = new long[256];
+	private int[] lengths = new int[256];
+	private int[] hashes = new int[256];
+	private String[] texts = new String[256];
+	private int count = 0;
+	private long lookups = 0;
+	private long hits = 0;
+
+	/* the text of the token, or null if it is not valid UTF-8 */
+
+	final synchronized String intern(Source source, long pos, int length) {
+		int h = 1;
+		for (long i = pos, epos = pos + length; i < epos; i++) {
+			h = h * 31 + source.byteAt(i);
+		}
+		h ^= length;
+		int mask = texts.length - 1;
+		int i = (h ^ (h >>> 16)) & mask;
+		this.lookups++;
+		for (String t; (t = texts[i]) != null; i = (i + 1) & mask) {
+			if (hashes[i] == h && lengths[i] == length && equals(source, positions[i], pos, length)) {
+				this.hits++;
+				return t;
+			}
+		}
+		String t = Tree.decode(source, pos, length);
+		if (t != null) {
+			positions[i] = pos;
+			lengths[i] = length;
+			hashes[i] = h;
+			texts[i] = t;
+			if (++this.count > texts.length >> 1) {
+				this.rehash();
+			}
+		}
+		return t;
+	}
+
+	private static boolean equals(Source source, long pos, long pos2, int length) {
+		for (int i = 0; i < length; i++) {
+			if (source.byteAt(pos + i) != source.byteAt(pos2 + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		long[] positions = this.positions;
+		int[] lengths = this.lengths;
+		int[] hashes = this.hashes;
+		String[] texts = this.texts;
+		int size = texts.length * 2;
+		this.positions = new long[size];
+		this.lengths = new int[size];
+		this.hashes = new int[size];
+		this.texts = new String[size];
+		for (int j = 0; j < texts.length; j++) {
+			if (texts[j] != null) {
+				int h = hashes[j];
+				int i = (h ^ (h >>> 16)) & (size - 1);
+				while (this.texts[i] != null) {
+					i = (i + 1) & (size - 1);
+				}
+				this.positions[i] = positions[j];
+				this.lengths[i] = lengths[j];
+				this.hashes[i] = h;
+				this.texts[i] = texts[j];
+			}
+		}
+	}
+
+	public final synchronized int size() {
+		return this.count;
+	}
+
+	public final synchronized long getLookups() {
+		return this.lookups;
+	}
+
+	public final synchronized long getHits() {
+		return this.hits;
+	}
+}
@@ -1,8 +1,6 @@
 package nez.ast;
 
-import java.io.UnsupportedEncodingException;
 import java.util.AbstractList;
-import java.util.Arrays;
 
 import nez.parser.io.CommonSource;
 import nez.util.StringUtils;
@@ -12,11 +10,14 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 
 	protected Symbol tag;
 	protected Source source;
-	protected int pos;
-	protected int length;
+	protected long pos;
+	protected int length; // at most 2 GiB; the parser rejects longer nodes
 	protected Object value;
 	protected Symbol[] labels;
 	protected E[] subTree;
+	protected LabelLayout layout = null; // of the grammar that made this tree
+	private Source movedSource = null; // the children are yet to be relocated to it
+	private long movedShift;
 
 	protected Tree() {
 		this.tag = Symbol.unique("prototype");
@@ -31,7 +32,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	protected Tree(Symbol tag, Source source, long pos, int len, E[] subTree, Object value) {
 		this.tag = tag;
 		this.source = source;
-		this.pos = (int) pos;
+		this.pos = pos;
 		this.length = len;
 		this.subTree = subTree;
 		this.value = value;
@@ -44,21 +45,61 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 
 	public abstract E newInstance(Symbol tag, int objectsize, Object value);
 
+	/* the prototype of a parse of source; it may keep the trees of the parse together */
+
+	public Tree<?> newPrototype(Source source) {
+		return this;
+	}
+
 	protected abstract E dupImpl();
 
 	public final E dup() {
 		E t = dupImpl();
-		if (this.subTree != null) {
-			for (int i = 0; i < subTree.length; i++) {
-				if (this.subTree[i] != null) {
-					t.subTree[i] = this.subTree[i].dup();
-					t.labels[i] = this.labels[i];
-				}
+		t.layout = this.layout;
+		for (int i = 0; i < this.size(); i++) {
+			E sub = this.get(i);
+			if (sub != null) {
+				t.link(i, this.getLabel(i), sub.dup());
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Returns a copy of this tree over the given source, with every position
+	 * moved by shift bytes. The children of a copy are relocated when they
+	 * are first read, so that a copy takes the time of its root alone.
+	 */
+
+	public final E relocate(Source source, long shift) {
+		E t = this.newInstance(this.tag, source, this.pos + shift, this.length, this.size(), this.value);
+		t.layout = this.layout;
+		if (this.subTree != null && t.subTree != null) {
+			System.arraycopy(this.subTree, 0, t.subTree, 0, this.subTree.length);
+			System.arraycopy(this.labels, 0, t.labels, 0, this.labels.length);
+			Tree<?> moved = t;
+			moved.movedSource = source;
+			moved.movedShift = this.movedSource == null ? shift : this.movedShift + shift;
+			return t;
+		}
+		for (int i = 0; i < this.size(); i++) {
+			E sub = this.get(i);
+			if (sub != null) {
+				t.link(i, this.getLabel(i), sub.relocate(source, shift));
 			}
 		}
 		return t;
 	}
 
+	private void moveChildren() {
+		for (int i = 0; i < this.subTree.length; i++) {
+			if (this.subTree[i] != null) {
+				this.subTree[i] = this.subTree[i].relocate(this.movedSource, this.movedShift);
+			}
+		}
+		this.movedSource = null;
+	}
+
 	/* Source */
 
 	@Override
@@ -71,7 +112,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return this.pos;
 	}
 
-	public final void setPosition(int pos, int len) {
+	public void setPosition(long pos, int len) {
 		this.pos = pos;
 		this.length = len;
 	}
@@ -96,7 +137,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return this.tag;
 	}
 
-	public final void setTag(Symbol tag) {
+	public void setTag(Symbol tag) {
 		this.tag = tag;
 	}
 
@@ -114,13 +155,13 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return this.size() == 0;
 	}
 
-	public final Symbol getLabel(int index) {
+	public Symbol getLabel(int index) {
 		return this.labels[index];
 	}
 
 	public final boolean isAllLabeled() {
-		for (int i = 0; i < this.labels.length; i++) {
-			if (labels[i] == null) {
+		for (int i = 0; i < this.size(); i++) {
+			if (this.getLabel(i) == null) {
 				return false;
 			}
 		}
@@ -139,18 +180,24 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 
 	@Override
 	public E get(int index) {
+		if (this.movedSource != null) {
+			this.moveChildren();
+		}
 		return this.subTree[index];
 	}
 
 	public final E get(int index, E defaultValue) {
 		if (index < this.size()) {
-			return this.subTree[index];
+			return this.get(index);
 		}
 		return defaultValue;
 	}
 
 	@Override
-	public final E set(int index, E node) {
+	public E set(int index, E node) {
+		if (this.movedSource != null) {
+			this.moveChildren();
+		}
 		E oldValue = null;
 		oldValue = this.subTree[index];
 		this.subTree[index] = node;
@@ -159,14 +206,38 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	@SuppressWarnings("unchecked")
-	public final void set(int index, Symbol label, Tree<?> node) {
+	public void set(int index, Symbol label, Tree<?> node) {
+		if (this.movedSource != null) {
+			this.moveChildren();
+		}
 		this.labels[index] = label;
 		this.subTree[index] = (E) node;
 	}
 
+	protected void setLabel(int index, Symbol label) {
+		this.labels[index] = label;
+	}
+
+	public final LabelLayout getLayout() {
+		return this.layout;
+	}
+
+	public final void setLayout(LabelLayout layout) {
+		this.layout = layout;
+	}
+
+	/*
+	 * A labeled child is first looked up at its slot in the layout, which is
+	 * where the grammar puts it; the labels are scanned if it is not there.
+	 */
+
 	public final int indexOf(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
+		int i = this.layout == null || this.tag == null ? -1 : this.layout.slot(this.tag, label);
+		if (i != -1 && i < this.size() && this.getLabel(i) == label) {
+			return i;
+		}
+		for (i = 0; i < this.size(); i++) {
+			if (this.getLabel(i) == label) {
 				return i;
 			}
 		}
@@ -174,19 +245,13 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final boolean has(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return true;
-			}
-		}
-		return false;
+		return this.indexOf(label) != -1;
 	}
 
 	public final E get(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return this.subTree[i];
-			}
+		int i = this.indexOf(label);
+		if (i != -1) {
+			return this.get(i);
 		}
 		throw newNoSuchLabel(label);
 	}
@@ -196,30 +261,24 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final E get(Symbol label, E defval) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return this.subTree[i];
-			}
-		}
-		return defval;
+		int i = this.indexOf(label);
+		return i == -1 ? defval : this.get(i);
 	}
 
 	public final void set(Symbol label, E defval) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				this.subTree[i] = defval;
-				return;
-			}
+		int i = this.indexOf(label);
+		if (i != -1) {
+			this.set(i, defval);
 		}
 	}
 
 	public final void rename(Symbol oldlabel, Symbol newlabel) {
 		if (tag == oldlabel) {
-			this.tag = newlabel;
+			this.setTag(newlabel);
 		}
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == oldlabel) {
-				labels[i] = newlabel;
+		for (int i = 0; i < this.size(); i++) {
+			if (this.getLabel(i) == oldlabel) {
+				this.setLabel(i, newlabel);
 			}
 		}
 	}
@@ -246,18 +305,19 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 			sb.append(this.getTag().getSymbol());
 		}
 		sb.append("[");
-		if (this.subTree == null) {
+		if (this.size() == 0) {
 			// sb.append(" ");
 			StringUtils.formatQuoteString(sb, '\'', this.toText(), '\'');
 		} else {
 			String nindent = "   " + indent;
 			for (int i = 0; i < this.size(); i++) {
-				if (this.subTree[i] == null) {
+				E sub = this.get(i);
+				if (sub == null) {
 					sb.append("\n");
 					sb.append(nindent);
 					sb.append("null");
 				} else {
-					this.subTree[i].stringfy(nindent, this.labels[i], sb);
+					sub.stringfy(nindent, this.getLabel(i), sb);
 				}
 			}
 			sb.append("\n");
@@ -270,7 +330,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return this.value;
 	}
 
-	public final void setValue(Object value) {
+	public void setValue(Object value) {
 		assert (!(value instanceof Tree<?>));
 		this.value = value;
 	}
@@ -282,37 +342,97 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 			}
 		}
 		if (this.source != null) {
-			long pos = this.getSourcePosition();
-			long epos = pos + this.length;
-			String s = this.source.subString(pos, epos);
-			/* Binary */
-			byte[] tmp = this.source.subByte(pos, epos);
-			try {
-				if (Arrays.equals(tmp, s.getBytes("UTF8"))) {
-					this.value = s;
-				}
-			} catch (UnsupportedEncodingException e) {
+			return toText(this.source, this.getSourcePosition(), this.length);
+		}
+		return "";
+	}
+
+	/*
+	 * The text is decoded from the source at each call, rather than kept in
+	 * the tree; short tokens are shared if the source has a TokenTable.
+	 * Bytes that are not valid UTF-8 are written in hex, as 0x...
+	 */
+
+	public final static String toText(Source source, long pos, int length) {
+		String s;
+		TokenTable tokens = source instanceof CommonSource ? ((CommonSource) source).getTokenTable() : null;
+		if (tokens != null && length <= TokenTable.MaxLength) {
+			s = tokens.intern(source, pos, length);
+		} else {
+			s = decode(source, pos, length);
+		}
+		if (s != null) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(2 + length * 2);
+		sb.append("0x");
+		for (long i = pos; i < pos + length; i++) {
+			sb.append(String.format("%02x", source.byteAt(i)));
+		}
+		return sb.toString();
+	}
+
+	private final static ThreadLocal<char[]> DecodeBuffer = ThreadLocal.withInitial(() -> new char[256]);
+
+	/* decodes well-formed UTF-8 in one pass, or returns null */
+
+	final static String decode(Source source, long pos, int length) {
+		char[] buf = length <= 256 ? DecodeBuffer.get() : new char[length];
+		int n = 0;
+		long epos = pos + length;
+		while (pos < epos) {
+			int c = source.byteAt(pos++);
+			if (c < 0x80) {
+				buf[n++] = (char) c;
+				continue;
 			}
-			if (this.value == null) {
-				StringBuilder sb = new StringBuilder();
-				sb.append("0x");
-				for (byte c : tmp) {
-					sb.append(String.format("%02x", c & 0xff));
+			int trail;
+			int lo = 0x80;
+			int hi = 0xbf;
+			if (c >= 0xc2 && c <= 0xdf) {
+				trail = 1;
+				c &= 0x1f;
+			} else if (c >= 0xe0 && c <= 0xef) {
+				trail = 2;
+				lo = c == 0xe0 ? 0xa0 : 0x80; // overlong
+				hi = c == 0xed ? 0x9f : 0xbf; // surrogates
+				c &= 0x0f;
+			} else if (c >= 0xf0 && c <= 0xf4) {
+				trail = 3;
+				lo = c == 0xf0 ? 0x90 : 0x80; // overlong
+				hi = c == 0xf4 ? 0x8f : 0xbf; // beyond U+10FFFF
+				c &= 0x07;
+			} else {
+				return null;
+			}
+			if (pos + trail > epos) {
+				return null;
+			}
+			int b = source.byteAt(pos++);
+			if (b < lo || b > hi) {
+				return null;
+			}
+			c = (c << 6) | (b & 0x3f);
+			while (--trail > 0) {
+				b = source.byteAt(pos++);
+				if ((b & 0xc0) != 0x80) {
+					return null;
 				}
-				this.value = sb.toString();
+				c = (c << 6) | (b & 0x3f);
+			}
+			if (c >= 0x10000) {
+				buf[n++] = Character.highSurrogate(c);
+				buf[n++] = Character.lowSurrogate(c);
+			} else {
+				buf[n++] = (char) c;
 			}
-			return this.value.toString();
 		}
-		return "";
+		return new String(buf, 0, n);
 	}
 
 	public final boolean is(Symbol label, Symbol tag) {
-		for (int i = 0; i < labels.length; i++) {
-			if (labels[i] == label) {
-				return this.subTree[i].is(tag);
-			}
-		}
-		return false;
+		int i = this.indexOf(label);
+		return i != -1 && this.get(i).is(tag);
 	}
 
 	public final String getText(int index, String defval) {
@@ -323,12 +443,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final String getText(Symbol label, String defval) {
-		for (int i = 0; i < this.labels.length; i++) {
-			if (labels[i] == label) {
-				return getText(i, defval);
-			}
-		}
-		return defval;
+		int i = this.indexOf(label);
+		return i == -1 ? defval : getText(i, defval);
 	}
 
 	public final int toInt(int defvalue) {
@@ -355,12 +471,8 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final int getInt(Symbol label, int defvalue) {
-		for (int i = 0; i < this.labels.length; i++) {
-			if (labels[i] == label) {
-				return getInt(i, defvalue);
-			}
-		}
-		return defvalue;
+		int i = this.indexOf(label);
+		return i == -1 ? defvalue : getInt(i, defvalue);
 	}
 
 	@Override
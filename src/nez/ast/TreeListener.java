@@ -0,0 +1,15 @@
+package nez.ast;
+
+/**
+ * TreeListener receives a parsed tree as events in document order. For each
+ * node, startNode is followed by label and the events of each child, then by
+ * endNode. Both pass the final tag of the node.
+ */
+
+public interface TreeListener {
+	public void startNode(Symbol tag, long pos);
+
+	public void label(Symbol label);
+
+	public void endNode(Symbol tag, long pos, int len, Object value);
+}
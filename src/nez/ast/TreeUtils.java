@@ -7,6 +7,19 @@ import nez.util.StringUtils;
 
 public class TreeUtils {
 
+	public final static void sendTree(TreeListener listener, Tree<?> node) {
+		if (node instanceof ColumnarTree) {
+			((ColumnarTree) node).sendTree(listener);
+			return;
+		}
+		listener.startNode(node.getTag(), node.getSourcePosition());
+		for (int i = 0; i < node.size(); i++) {
+			listener.label(node.getLabel(i));
+			sendTree(listener, node.get(i));
+		}
+		listener.endNode(node.getTag(), node.getSourcePosition(), node.getLength(), node.getValue());
+	}
+
 	public final static String digestString(Tree<?> node) {
 		StringBuilder sb = new StringBuilder();
 		byte[] hash = digest(node);
@@ -2,6 +2,7 @@ package nez.ast;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import nez.util.Verbose;
@@ -11,11 +12,13 @@ public class TreeVisitorMap<V> {
 
 	protected V defaultAcceptor;
 	protected HashMap<String, V> visitors;
+	private Object[] dispatch = new Object[0]; // visitors found by Symbol.id()
 
 	protected void init(Class<?> baseClass, V defualtAccepter) {
 		this.defaultAcceptor = defualtAccepter;
 		this.visitors = new HashMap<>();
-		visitors.put(defualtAccepter.getClass().getSimpleName(), defaultAcceptor);
+		this.dispatch = new Object[0];
+		put(defualtAccepter.getClass().getSimpleName(), defaultAcceptor);
 		if (OnWhenDebugging) {
 			System.out.println("base: " + baseClass);
 		}
@@ -37,7 +40,7 @@ public class TreeVisitorMap<V> {
 				if (OnWhenDebugging) {
 					System.out.println(" #" + n);
 				}
-				visitors.put(n, (V) v);
+				put(n, (V) v);
 			}
 		} catch (NoSuchMethodException | SecurityException | InvocationTargetException | IllegalAccessException | InstantiationException | IllegalArgumentException e) {
 			Verbose.println("TreeVisitorMap.load(%s, %s): %s", baseClass.getName(), c.getName(), e.toString());
@@ -50,7 +53,12 @@ public class TreeVisitorMap<V> {
 	}
 
 	public final void add(String name, V visitor) {
+		put(name, visitor);
+	}
+
+	private void put(String name, V visitor) {
 		visitors.put(name, visitor);
+		this.dispatch = new Object[0];
 	}
 
 	protected final V find(String name) {
@@ -58,6 +66,27 @@ public class TreeVisitorMap<V> {
 		return v == null ? defaultAcceptor : v;
 	}
 
+	/*
+	 * finds the visitor of a tag by its id, without hashing its name after
+	 * the first time; the names of the visitors are not made symbols
+	 */
+
+	@SuppressWarnings("unchecked")
+	protected final V find(Symbol tag) {
+		int id = tag.id();
+		Object[] dispatch = this.dispatch;
+		if (id < dispatch.length && dispatch[id] != null) {
+			return (V) dispatch[id];
+		}
+		V v = find(tag.getSymbol());
+		if (id >= dispatch.length) {
+			dispatch = Arrays.copyOf(dispatch, Math.max(id + 1, dispatch.length * 2));
+			this.dispatch = dispatch;
+		}
+		dispatch[id] = v;
+		return v;
+	}
+
 	protected final void undefined(Tree<?> node) {
 		if (OnWhenDebugging) {
 			System.out.println("undefined: " + node);
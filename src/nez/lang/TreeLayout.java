@@ -0,0 +1,325 @@
+package nez.lang;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import nez.ast.LabelLayout;
+import nez.ast.Symbol;
+import nez.lang.Typestate.TypestateAnalyzer;
+import nez.util.Verbose;
+
+/**
+ * TreeLayout finds the index at which a grammar puts each labeled child of
+ * a tag, and sets it as a slot in the LabelLayout of the grammar, so that
+ * Tree.get(Symbol) finds the child without scanning the labels. A node is
+ * followed from its BeginTree or FoldTree to its EndTree, counting the
+ * links; a link whose index depends on a choice or a repetition before it
+ * has no slot. Productions that mutate the tree (Typestate.TreeMutation)
+ * are followed into; those that make a new tree are analyzed on their own.
+ * A label put at different indices under a tag has no slot.
+ */
+
+public final class TreeLayout {
+
+	public final static LabelLayout analyze(Grammar grammar) {
+		Analyzer a = new Analyzer();
+		for (Production p : grammar) {
+			a.analyze(p);
+		}
+		Verbose.println("tree layout: %d slots", a.layout.size());
+		return a.layout;
+	}
+
+	/* a node being constructed */
+
+	private static class Node {
+		final Node outer;
+		int links; // -1 if unknown
+		HashSet<Symbol> tags = new HashSet<>();
+		final ArrayList<Symbol> labels = new ArrayList<>();
+		final ArrayList<Integer> indexes = new ArrayList<>();
+
+		Node(Node outer, int links) {
+			this.outer = outer;
+			this.links = links;
+		}
+
+		void link(Symbol label) {
+			if (this.links != -1 && label != null) {
+				this.labels.add(label);
+				this.indexes.add(this.links);
+			}
+			if (this.links != -1) {
+				this.links++;
+			}
+		}
+	}
+
+	final static class Analyzer extends Expression.Visitor {
+		private final TypestateAnalyzer typestate = Typestate.newAnalyzer();
+		private final HashSet<String> following = new HashSet<>();
+		final LabelLayout layout = new LabelLayout();
+
+		void analyze(Production p) {
+			this.following.add(p.getUniqueName());
+			p.getExpression().visit(this, new Node(null, -1));
+			this.following.remove(p.getUniqueName());
+		}
+
+		private Node visit(Expression e, Node n) {
+			return (Node) e.visit(this, n);
+		}
+
+		private void end(Node n, Symbol tag) {
+			if (tag != null) {
+				n.tags.clear();
+				n.tags.add(tag);
+			}
+			if (n.tags.isEmpty()) {
+				n.tags.add(Symbol.treeTag);
+			}
+			for (Symbol t : n.tags) {
+				for (int i = 0; i < n.labels.size(); i++) {
+					this.layout.setSlot(t, n.labels.get(i), n.indexes.get(i));
+				}
+			}
+		}
+
+		/* follows an optional or repeated expression; its links move later ones */
+
+		private Node visitOptional(Expression e, Node n) {
+			int links = n.links;
+			HashSet<Symbol> tags = new HashSet<>(n.tags);
+			if (this.visit(e, n) != n || n.links != links) {
+				n.links = -1;
+			}
+			n.tags.addAll(tags);
+			return n;
+		}
+
+		@Override
+		public Object visitNonTerminal(NonTerminal e, Object a) {
+			Node n = (Node) a;
+			Production p = e.getProduction();
+			if (p == null || this.typestate.inferTypestate(p) != Typestate.TreeMutation) {
+				return n;
+			}
+			String uname = p.getUniqueName();
+			if (!this.following.add(uname)) {
+				n.links = -1;
+				return n;
+			}
+			Node r = this.visit(p.getExpression(), n);
+			this.following.remove(uname);
+			if (r != n) {
+				n.links = -1;
+			}
+			return n;
+		}
+
+		@Override
+		public Object visitEmpty(Nez.Empty e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitFail(Nez.Fail e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitByte(Nez.Byte e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitByteSet(Nez.ByteSet e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitAny(Nez.Any e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitMultiByte(Nez.MultiByte e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitPair(Nez.Pair e, Object a) {
+			Node n = (Node) a;
+			for (Expression sub : e) {
+				n = this.visit(sub, n);
+			}
+			return n;
+		}
+
+		@Override
+		public Object visitSequence(Nez.Sequence e, Object a) {
+			Node n = (Node) a;
+			for (Expression sub : e) {
+				n = this.visit(sub, n);
+			}
+			return n;
+		}
+
+		@Override
+		public Object visitChoice(Nez.Choice e, Object a) {
+			Node n = (Node) a;
+			int links = n.links;
+			HashSet<Symbol> tags = n.tags;
+			HashSet<Symbol> merged = new HashSet<>();
+			int mergedLinks = -2;
+			for (Expression sub : e) {
+				n.links = links;
+				n.tags = new HashSet<>(tags);
+				if (this.visit(sub, n) != n) {
+					mergedLinks = -1;
+					continue;
+				}
+				mergedLinks = mergedLinks == -2 || mergedLinks == n.links ? n.links : -1;
+				merged.addAll(n.tags);
+			}
+			n.links = mergedLinks == -2 ? links : mergedLinks;
+			n.tags = merged;
+			return n;
+		}
+
+		@Override
+		public Object visitOption(Nez.Option e, Object a) {
+			return this.visitOptional(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitZeroMore(Nez.ZeroMore e, Object a) {
+			return this.visitOptional(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitOneMore(Nez.OneMore e, Object a) {
+			Node n = (Node) a;
+			int links = n.links;
+			if (this.visit(e.get(0), n) != n || n.links != links) {
+				n.links = -1;
+			}
+			return n;
+		}
+
+		@Override
+		public Object visitAnd(Nez.And e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitNot(Nez.Not e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitBeginTree(Nez.BeginTree e, Object a) {
+			return new Node((Node) a, 0);
+		}
+
+		@Override
+		public Object visitFoldTree(Nez.FoldTree e, Object a) {
+			Node n = new Node((Node) a, 0);
+			n.link(e.label);
+			return n;
+		}
+
+		@Override
+		public Object visitLinkTree(Nez.LinkTree e, Object a) {
+			Node n = (Node) a;
+			if (this.visit(e.get(0), n) != n) {
+				n.links = -1;
+			}
+			n.link(e.label);
+			return n;
+		}
+
+		@Override
+		public Object visitTag(Nez.Tag e, Object a) {
+			Node n = (Node) a;
+			n.tags.clear();
+			n.tags.add(e.tag);
+			return n;
+		}
+
+		@Override
+		public Object visitReplace(Nez.Replace e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitEndTree(Nez.EndTree e, Object a) {
+			Node n = (Node) a;
+			if (n.outer == null) {
+				return n;
+			}
+			this.end(n, e.tag);
+			return n.outer;
+		}
+
+		@Override
+		public Object visitDetree(Nez.Detree e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitBlockScope(Nez.BlockScope e, Object a) {
+			return this.visit(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitLocalScope(Nez.LocalScope e, Object a) {
+			return this.visit(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitSymbolAction(Nez.SymbolAction e, Object a) {
+			return this.visit(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitSymbolPredicate(Nez.SymbolPredicate e, Object a) {
+			return this.visit(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitSymbolMatch(Nez.SymbolMatch e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitSymbolExists(Nez.SymbolExists e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitIf(Nez.IfCondition e, Object a) {
+			return a;
+		}
+
+		@Override
+		public Object visitOn(Nez.OnCondition e, Object a) {
+			return this.visit(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitScan(Nez.Scan e, Object a) {
+			return this.visit(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitRepeat(Nez.Repeat e, Object a) {
+			return this.visitOptional(e.get(0), (Node) a);
+		}
+
+		@Override
+		public Object visitLabel(Nez.Label e, Object a) {
+			return a;
+		}
+	}
+}
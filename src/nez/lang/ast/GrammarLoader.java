@@ -17,7 +17,7 @@ public final class GrammarLoader extends GrammarVisitorMap<GrammarLoaderVisitor>
 
 	public void load(Tree<?> node) {
 		try {
-			find(node.getTag().getSymbol()).accept(node);
+			find(node.getTag()).accept(node);
 		} catch (nez.ast.TreeVisitorMap.UndefinedException e) {
 			Verbose.traceException(e);
 		}
@@ -21,11 +21,11 @@ public class NezExpressionConstructor extends GrammarVisitorMap<ExpressionTransd
 
 	@Override
 	public Expression newInstance(Tree<?> node) {
-		return this.find(key(node)).accept(node, null);
+		return this.find(node.getTag()).accept(node, null);
 	}
 
 	public Expression newInstance(Tree<?> node, Expression next) {
-		return this.find(key(node)).accept(node, next);
+		return this.find(node.getTag()).accept(node, next);
 	}
 
 	public class TreeVisitor implements ExpressionTransducer {
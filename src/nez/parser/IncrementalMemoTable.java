@@ -0,0 +1,206 @@
+package nez.parser;
+
+import nez.ast.Source;
+import nez.ast.Tree;
+
+/**
+ * IncrementalMemoTable keeps every memo entry of one parse, with the furthest
+ * position each entry has read. After an edit, a new table is chained to the
+ * previous one; a lookup that misses is mapped back through the edit, and
+ * the older entry is reused if the bytes it read are outside the edit.
+ * Trees of entries behind the edit are relocated on their first use; a
+ * relocated tree moves its children when they are read, so that reusing an
+ * entry takes the same time whatever the size of its tree.
+ */
+
+final class IncrementalMemoTable extends ParserContext.ContextMemoTable {
+
+	/* bytes a failed literal match may read beyond the head position */
+	static int LookaheadMargin = 256;
+	static int MaxGenerations = 8;
+
+	private static final class Entry {
+		final long key;
+		final long consumed;
+		final long head;
+		final int result;
+		Tree<?> memoTree;
+		long treeShift;
+		boolean moved;
+		Entry next;
+
+		Entry(long key, long consumed, long head, int result, Tree<?> memoTree) {
+			this.key = key;
+			this.consumed = consumed;
+			this.head = head;
+			this.result = result;
+			this.memoTree = memoTree;
+		}
+	}
+
+	private final Source source;
+	private final int shift;
+	private IncrementalMemoTable prev;
+	private final long offset;
+	private final long deleted;
+	private final long inserted;
+	private Entry[] entries;
+	private int count;
+
+	IncrementalMemoTable(Source source, int memoPointSize, IncrementalMemoTable prev, long offset, long deleted, long inserted) {
+		this.source = source;
+		this.shift = ParserContext.memoShift(memoPointSize);
+		this.prev = prev;
+		this.offset = offset;
+		this.deleted = deleted;
+		this.inserted = inserted;
+		for (int depth = 1; prev != null; depth++, prev = prev.prev) {
+			if (depth == MaxGenerations) {
+				prev.prev = null;
+			}
+		}
+		this.init(1024);
+	}
+
+	@Override
+	void init(int size) {
+		this.entries = new Entry[Integer.highestOneBit(Math.max(size - 1, 1)) << 1];
+		this.count = 0;
+		this.CountStored = 0;
+		this.CountUsed = 0;
+	}
+
+	/* a snapshot keeps its trees for the next reparse */
+
+	@Override
+	void release() {
+	}
+
+	@Override
+	int size() {
+		return this.count;
+	}
+
+	@Override
+	int lookup(ParserContext ctx, long key, boolean tree, boolean state) {
+		if (state) {
+			return ParserContext.NotFound;
+		}
+		Entry e = this.find(key, key >>> shift);
+		if (e == null) {
+			return ParserContext.NotFound;
+		}
+		ctx.pos += e.consumed;
+		if (tree && e.memoTree != null) {
+			if (e.moved) {
+				e.memoTree = e.memoTree.relocate(this.source, e.treeShift);
+				e.treeShift = 0;
+				e.moved = false;
+			}
+			ctx.left = e.memoTree;
+		}
+		ctx.extendHeadPosition(e.head);
+		this.CountUsed++;
+		return e.result;
+	}
+
+	@Override
+	void store(ParserContext ctx, long key, long consumed, Tree<?> memoTree, int result, int stateValue) {
+		if (stateValue != -1) {
+			return;
+		}
+		if (result == ParserContext.FailFound && memoTree != null && memoTree.getSourcePosition() + memoTree.getLength() <= (key >>> shift)) {
+			memoTree = null; // left from the caller, not built here
+		}
+		if (ctx.budget != null && this.count >= ctx.budget.maxMemoEntries) {
+			ctx.budget.dropMemo();
+			return;
+		}
+		this.put(new Entry(key, consumed, ctx.getHeadPosition(), result, memoTree));
+		this.CountStored++;
+	}
+
+	@Override
+	boolean evicts(long key) {
+		return false; // every entry is kept
+	}
+
+	private Entry find(long key, long pos) {
+		for (Entry e = this.entries[index(key)]; e != null; e = e.next) {
+			if (e.key == key) {
+				return e;
+			}
+		}
+		if (this.prev == null) {
+			return null;
+		}
+		long ppos;
+		if (pos < this.offset) {
+			ppos = pos;
+		} else if (pos >= this.offset + this.inserted) {
+			ppos = pos - this.inserted + this.deleted;
+		} else {
+			return null;
+		}
+		long mask = (1L << shift) - 1;
+		Entry pe = this.prev.find((ppos << shift) | (key & mask), ppos);
+		if (pe == null) {
+			return null;
+		}
+		Entry e;
+		if (ppos >= this.offset + this.deleted) {
+			long delta = this.inserted - this.deleted;
+			e = new Entry(key, pe.consumed, pe.head + delta, pe.result, pe.memoTree);
+			e.treeShift = pe.treeShift + delta;
+			e.moved = true;
+		} else if (pe.head + 1 + LookaheadMargin <= this.offset) {
+			e = new Entry(key, pe.consumed, pe.head, pe.result, pe.memoTree);
+			e.treeShift = pe.treeShift;
+			e.moved = pe.moved;
+		} else {
+			return null;
+		}
+		this.put(e);
+		return e;
+	}
+
+	private int index(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (this.entries.length - 1);
+	}
+
+	private void put(Entry e) {
+		int index = index(e.key);
+		for (Entry p = this.entries[index], q = null; p != null; q = p, p = p.next) {
+			if (p.key == e.key) {
+				e.next = p.next;
+				if (q == null) {
+					this.entries[index] = e;
+				} else {
+					q.next = e;
+				}
+				return;
+			}
+		}
+		e.next = this.entries[index];
+		this.entries[index] = e;
+		this.count++;
+		if (this.count > this.entries.length - (this.entries.length >> 2)) {
+			this.rehash();
+		}
+	}
+
+	private void rehash() {
+		Entry[] old = this.entries;
+		this.entries = new Entry[old.length * 2];
+		for (Entry e : old) {
+			while (e != null) {
+				Entry next = e.next;
+				int index = index(e.key);
+				e.next = this.entries[index];
+				this.entries[index] = e;
+				e = next;
+			}
+		}
+	}
+}
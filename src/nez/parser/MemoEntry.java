@@ -11,8 +11,3 @@ public class MemoEntry {
 class MemoEntryKey extends MemoEntry {
 	long key = -1;
 }
-
-class MemoEntryList extends MemoEntry {
-	int memoPoint;
-	MemoEntryList next;
-}
\ No newline at end of file
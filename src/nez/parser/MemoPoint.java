@@ -92,6 +92,14 @@ public final class MemoPoint {
 		return false;
 	}
 
+	/* Adaptive memoization; the trials are kept by ParserContext */
+
+	boolean adaptive = false;
+
+	public final boolean isAdaptive() {
+		return this.adaptive;
+	}
+
 	@Override
 	public String toString() {
 		return this.label + "[id=" + this.id + "]";
@@ -1,7 +1,5 @@
 package nez.parser;
 
-import java.util.HashMap;
-
 public abstract class MemoTable {
 
 	public abstract void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue);
@@ -21,11 +19,17 @@ public abstract class MemoTable {
 	}
 
 	public static MemoTable newTable(int windowSize, int memoPointSize) {
+		return newTable(windowSize, memoPointSize, 0, false);
+	}
+
+	/* windowSize < -1 is full packrat parsing, within packratWindow if > 0 */
+
+	public static MemoTable newTable(int windowSize, int memoPointSize, int packratWindow, boolean offHeap) {
 		if (memoPointSize == 0 || windowSize == 0) {
 			return new NullTable(windowSize, memoPointSize);
 		}
 		if (windowSize < -1) {
-			return new PackratHashTable(windowSize, memoPointSize);
+			return new PackratHashTable(memoPointSize, packratWindow, offHeap);
 		}
 		return new ElasticTable(windowSize, memoPointSize);
 	}
@@ -120,75 +124,3 @@ class ElasticTable extends MemoTable {
 	}
 
 }
-
-class PackratHashTable extends MemoTable {
-	HashMap<Long, MemoEntryList> memoMap;
-	private MemoEntryList UnusedMemo = null;
-
-	PackratHashTable(int w, int n) {
-		this.memoMap = new HashMap<Long, MemoEntryList>(w * n);
-	}
-
-	private final MemoEntryList newMemo() {
-		if (UnusedMemo != null) {
-			MemoEntryList m = this.UnusedMemo;
-			this.UnusedMemo = m.next;
-			return m;
-		} else {
-			return new MemoEntryList();
-		}
-	}
-
-	protected final void unusedMemo(MemoEntryList m) {
-		MemoEntryList s = m;
-		while (m.next != null) {
-			m = m.next;
-		}
-		m.next = this.UnusedMemo;
-		UnusedMemo = s;
-	}
-
-	@Override
-	public MemoEntry getMemo(long pos, int memoPoint) {
-		MemoEntryList m = this.memoMap.get(pos);
-		while (m != null) {
-			if (m.memoPoint == memoPoint) {
-				this.CountUsed += 1;
-				return m;
-			}
-			m = m.next;
-		}
-		return m;
-	}
-
-	@Override
-	public MemoEntry getStateMemo(long pos, int memoPoint, int stateValue) {
-		MemoEntryList m = this.memoMap.get(pos);
-		while (m != null) {
-			if (m.memoPoint == memoPoint) {
-				if (m.stateValue == stateValue) {
-					this.CountUsed += 1;
-					return m;
-				}
-				this.CountInvalidated += 1;
-			}
-			m = m.next;
-		}
-		return m;
-	}
-
-	@Override
-	public void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue) {
-		MemoEntryList m = newMemo();
-		m.failed = failed;
-		m.memoPoint = memoPoint;
-		m.stateValue = stateValue;
-		m.result = result;
-		m.consumed = consumed;
-		Long key = pos;
-		m.next = this.memoMap.get(key);
-		this.memoMap.put(key, m);
-		this.CountStored += 1;
-	}
-
-}
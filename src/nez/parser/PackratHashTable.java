@@ -0,0 +1,339 @@
+package nez.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PackratHashTable keeps every memo entry of a parse (full packrat parsing).
+ * It is an open-addressing table of long keys with linear probing; the
+ * consumed length, the result and the state value of a slot are kept in an
+ * int[] or, with offHeap, in pages of direct ByteBuffers, and the trees in a
+ * side Object[]. A slot is identified by its key and its state value, so
+ * that the entries of a memo point stored under different states are kept
+ * together, as in a list.
+ *
+ * With a window, each store also sweeps a few slots, and drops the entries
+ * more than window bytes behind the furthest position stored; the sweep goes
+ * round the table as the parse front advances. Entries are removed by
+ * shifting the following ones back, so that no tombstone is left. The pages
+ * of a table that grows are kept for the next growth rather than left to the
+ * garbage collector, which does not see the direct memory.
+ */
+
+final class PackratHashTable extends MemoTable {
+	private final static int InitialCapacity = 1 << 10;
+	private final static int SlotBytes = 12; // consumed, result, stateValue
+	private final static int PageShift = 10; // 1024 slots per page
+	private final static int PageMask = (1 << PageShift) - 1;
+	private final static int SweepSteps = 2; // slots swept by a store
+
+	private final int shift;
+	private final long window;
+	private final boolean offHeap;
+	private long[] keys;
+	private int[] data;
+	private ByteBuffer[] pages;
+	private final ArrayList<ByteBuffer> freePages = new ArrayList<ByteBuffer>();
+	private Object[] trees;
+	private int mask;
+	private int count;
+	private long front;
+	private int sweep;
+	int CountEvicted;
+	int CountPages; // the direct pages allocated
+	private final MemoEntry entry = new MemoEntry(); // returned by getMemo
+
+	PackratHashTable(int n, long window, boolean offHeap) {
+		this.shift = ParserContext.memoShift(n);
+		this.window = window;
+		this.offHeap = offHeap;
+		this.allocate(InitialCapacity);
+		this.initStat();
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		Arrays.fill(this.keys, -1);
+		if (this.offHeap) {
+			this.pages = new ByteBuffer[capacity >>> PageShift];
+			for (int i = 0; i < this.pages.length; i++) {
+				if (this.freePages.isEmpty()) {
+					this.pages[i] = ByteBuffer.allocateDirect((PageMask + 1) * SlotBytes).order(ByteOrder.nativeOrder());
+					this.CountPages++;
+				} else {
+					this.pages[i] = this.freePages.remove(this.freePages.size() - 1);
+				}
+			}
+		} else {
+			this.data = new int[capacity * 3];
+		}
+		this.trees = new Object[capacity];
+		this.mask = capacity - 1;
+		this.count = 0;
+		this.sweep = 0;
+	}
+
+	/* clears the entries, keeping the capacity of the previous parse */
+
+	final void clear() {
+		if (this.count > 0) {
+			Arrays.fill(this.keys, -1);
+			Arrays.fill(this.trees, null);
+			this.count = 0;
+		}
+		this.front = 0;
+		this.sweep = 0;
+		this.CountEvicted = 0;
+		this.initStat();
+	}
+
+	/* drops the trees of the entries; clear removes the entries */
+
+	final void releaseTrees() {
+		if (this.count > 0) {
+			Arrays.fill(this.trees, null);
+		}
+	}
+
+	final int size() {
+		return this.count;
+	}
+
+	final int capacity() {
+		return this.keys.length;
+	}
+
+	final boolean isCompatible(long window, boolean offHeap) {
+		return this.window == window && this.offHeap == offHeap;
+	}
+
+	final long key(long pos, int memoPoint) {
+		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
+	}
+
+	private static int hash(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/* the first slot of the key, whatever its state value, or -1 */
+
+	final int find(long key) {
+		int i = hash(key) & mask;
+		long k;
+		while ((k = keys[i]) != -1) {
+			if (k == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/* the slot of the key stored with stateValue, or -1 */
+
+	final int find(long key, int stateValue) {
+		int i = hash(key) & mask;
+		long k;
+		while ((k = keys[i]) != -1) {
+			if (k == key && stateValue(i) == stateValue) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	final int consumed(int slot) {
+		return offHeap ? pages[slot >>> PageShift].getInt((slot & PageMask) * SlotBytes) : data[slot * 3];
+	}
+
+	final int result(int slot) {
+		return offHeap ? pages[slot >>> PageShift].getInt((slot & PageMask) * SlotBytes + 4) : data[slot * 3 + 1];
+	}
+
+	final int stateValue(int slot) {
+		return offHeap ? pages[slot >>> PageShift].getInt((slot & PageMask) * SlotBytes + 8) : data[slot * 3 + 2];
+	}
+
+	final Object tree(int slot) {
+		return trees[slot];
+	}
+
+	private void set(int slot, int consumed, int result, int stateValue) {
+		if (offHeap) {
+			ByteBuffer page = pages[slot >>> PageShift];
+			int offset = (slot & PageMask) * SlotBytes;
+			page.putInt(offset, consumed);
+			page.putInt(offset + 4, result);
+			page.putInt(offset + 8, stateValue);
+		} else {
+			data[slot * 3] = consumed;
+			data[slot * 3 + 1] = result;
+			data[slot * 3 + 2] = stateValue;
+		}
+	}
+
+	private void move(int from, int to) {
+		keys[to] = keys[from];
+		set(to, consumed(from), result(from), stateValue(from));
+		trees[to] = trees[from];
+	}
+
+	final void put(long key, int consumed, int result, int stateValue, Object tree) {
+		int i = hash(key) & mask;
+		long k;
+		while ((k = keys[i]) != -1 && (k != key || stateValue(i) != stateValue)) {
+			i = (i + 1) & mask;
+		}
+		if (k == -1) {
+			if (this.count + 1 > this.keys.length - (this.keys.length >> 2)) {
+				this.rehash();
+				this.put(key, consumed, result, stateValue, tree);
+				return;
+			}
+			this.count++;
+			keys[i] = key;
+		}
+		set(i, consumed, result, stateValue);
+		trees[i] = tree;
+		long pos = key >>> shift;
+		if (pos > this.front) {
+			this.front = pos;
+		}
+		if (this.window > 0) {
+			this.sweep(SweepSteps);
+		}
+	}
+
+	/* drops the entries behind the window among the next slots of the sweep */
+
+	private void sweep(int steps) {
+		long min = this.front - this.window;
+		int i = this.sweep;
+		for (int n = 0; n < steps; n++) {
+			long k = keys[i];
+			if (k != -1 && (k >>> shift) < min) {
+				this.remove(i); // the slot may be refilled; it is swept again
+				this.CountEvicted++;
+			} else {
+				i = (i + 1) & mask;
+			}
+		}
+		this.sweep = i;
+	}
+
+	/* removes the slot, shifting back the entries that probed past it */
+
+	private void remove(int hole) {
+		int j = hole;
+		while (true) {
+			j = (j + 1) & mask;
+			long k = keys[j];
+			if (k == -1) {
+				break;
+			}
+			int home = hash(k) & mask;
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				move(j, hole);
+				hole = j;
+			}
+		}
+		keys[hole] = -1;
+		trees[hole] = null;
+		this.count--;
+	}
+
+	/* drops the entries behind the window, and doubles unless half is free */
+
+	private void rehash() {
+		long[] oldKeys = this.keys;
+		int[] oldData = this.data;
+		ByteBuffer[] oldPages = this.pages;
+		Object[] oldTrees = this.trees;
+		long min = this.window > 0 ? this.front - this.window : -1;
+		int live = 0;
+		for (long k : oldKeys) {
+			if (k != -1 && (k >>> shift) >= min) {
+				live++;
+			}
+		}
+		this.allocate(live * 2 > oldKeys.length ? oldKeys.length * 2 : oldKeys.length);
+		for (int j = 0; j < oldKeys.length; j++) {
+			long key = oldKeys[j];
+			if (key == -1) {
+				continue;
+			}
+			if ((key >>> shift) < min) {
+				this.CountEvicted++;
+				continue;
+			}
+			int i = hash(key) & mask;
+			while (keys[i] != -1) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			if (offHeap) {
+				ByteBuffer from = oldPages[j >>> PageShift];
+				ByteBuffer to = pages[i >>> PageShift];
+				for (int b = 0; b < SlotBytes; b += 4) {
+					to.putInt((i & PageMask) * SlotBytes + b, from.getInt((j & PageMask) * SlotBytes + b));
+				}
+			} else {
+				System.arraycopy(oldData, j * 3, data, i * 3, 3);
+			}
+			trees[i] = oldTrees[j];
+			this.count++;
+		}
+		if (oldPages != null) {
+			this.freePages.addAll(Arrays.asList(oldPages));
+		}
+	}
+
+	private MemoEntry entry(int slot) {
+		this.entry.failed = result(slot) == ParserContext.FailFound;
+		this.entry.consumed = consumed(slot);
+		this.entry.result = tree(slot);
+		this.entry.stateValue = stateValue(slot);
+		return this.entry;
+	}
+
+	@Override
+	public MemoEntry getMemo(long pos, int memoPoint) {
+		int slot = find(key(pos, memoPoint));
+		if (slot == -1) {
+			return null;
+		}
+		this.CountUsed += 1;
+		return entry(slot);
+	}
+
+	@Override
+	public MemoEntry getStateMemo(long pos, int memoPoint, int stateValue) {
+		long key = key(pos, memoPoint);
+		int slot = find(key, stateValue);
+		if (slot == -1) {
+			if (find(key) != -1) {
+				this.CountInvalidated += 1;
+			}
+			return null;
+		}
+		this.CountUsed += 1;
+		return entry(slot);
+	}
+
+	@Override
+	public void setMemo(long pos, int memoPoint, boolean failed, Object result, int consumed, int stateValue) {
+		put(key(pos, memoPoint), consumed, failed ? ParserContext.FailFound : ParserContext.SuccFound, stateValue, result);
+		this.CountStored += 1;
+	}
+
+	@Override
+	public void record(ParserProfiler rec) {
+		super.record(rec);
+		rec.setCount("M.MemoSize", this.count);
+		rec.setCount("M.Evicted", this.CountEvicted);
+	}
+}
@@ -1,26 +1,62 @@
 package nez.parser;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.ast.SourceError;
+import nez.ast.TokenTable;
 import nez.ast.Tree;
+import nez.ast.TreeListener;
+import nez.ast.TreeUtils;
 import nez.lang.Grammar;
 import nez.parser.io.CommonSource;
+import nez.parser.io.PieceTableSource;
+import nez.parser.vm.BacktrackProfiler;
 import nez.parser.vm.ParserMachineContext;
+import nez.parser.vm.ParserMachineProfiler;
 import nez.util.ConsoleUtils;
 import nez.util.UList;
 
 public final class Parser {
 	private ParserStrategy strategy;
 	private Grammar grammar;
-	private ParserCode<?> pcode = null;
+	private volatile ParserCode<?> pcode = null;
+	private final ThreadLocal<ParserMachineContext> contextPool = new ThreadLocal<ParserMachineContext>();
+	private final SlidingWindowTuner windowTuner;
 
 	public Parser(Grammar grammar, ParserStrategy strategy) {
 		this.grammar = grammar;
 		this.strategy = strategy;
+		this.windowTuner = newWindowTuner(strategy);
+	}
+
+	/* a parser of the code loaded from a ParserCache, without its grammar */
+
+	public Parser(ParserCode<?> pcode, ParserStrategy strategy) {
+		this.grammar = null;
+		this.strategy = strategy;
+		this.pcode = pcode;
+		this.windowTuner = newWindowTuner(strategy);
+	}
+
+	private static SlidingWindowTuner newWindowTuner(ParserStrategy strategy) {
+		return strategy.AdaptiveWindow && strategy.SlidingWindow > 0 ? new SlidingWindowTuner(strategy.SlidingWindow) : null;
+	}
+
+	/* the size of the sliding memo window, tuned with AdaptiveWindow */
+
+	public final int getSlidingWindow() {
+		return this.windowTuner != null ? this.windowTuner.getWindow() : this.strategy.SlidingWindow;
 	}
 
 	public final Grammar getGrammar() {
@@ -35,14 +71,24 @@ public final class Parser {
 		return this.strategy;
 	}
 
-	public final ParserCode<?> compile() {
+	public final synchronized ParserCode<?> compile() {
+		if (this.grammar == null) {
+			return this.pcode;
+		}
 		this.pcode = this.strategy.newParserCode(grammar);
 		return pcode;
 	}
 
 	public final ParserCode<?> getParserCode() {
-		if (this.pcode == null) {
-			pcode = this.strategy.newParserCode(grammar);
+		ParserCode<?> pcode = this.pcode;
+		if (pcode == null) {
+			synchronized (this) {
+				pcode = this.pcode;
+				if (pcode == null) {
+					pcode = this.strategy.newParserCode(grammar);
+					this.pcode = pcode;
+				}
+			}
 		}
 		return pcode;
 	}
@@ -55,6 +101,10 @@ public final class Parser {
 	/* -------------------------------------------------------------------- */
 
 	public final Object perform(ParserInstance context) {
+		return perform(context, null);
+	}
+
+	private Object perform(ParserInstance context, ParserResult r) {
 		ParserCode<?> code = this.getParserCode();
 		// context.init(newMemoTable(context), prototype);
 		if (prof != null) {
@@ -65,41 +115,174 @@ public final class Parser {
 			context.doneProfiling(prof);
 		}
 		if (matched == null) {
-			perror(context.getSource(), context.getMaximumPosition(), "syntax error");
+			perror(r, context.getSource(), context.getMaximumPosition(), "syntax error");
 			return null;
 		}
 		if (this.disabledUncosumed && context.hasUnconsumed()) {
-			perror(context.getSource(), context.getPosition(), "unconsumed");
+			perror(r, context.getSource(), context.getPosition(), "unconsumed");
 		}
 		return matched;
 	}
 
 	public final Object perform(Source s, Tree<?> proto) {
+		return perform(s, proto, null);
+	}
+
+	private Object perform(Source s, Tree<?> proto, ParserResult r) {
+		return perform(s, proto, r, null, null);
+	}
+
+	/*
+	 * a parse out of the budget of the strategy is reported as an error; the
+	 * profiler records the usage of an unlimited budget
+	 */
+
+	private Object perform(Source s, Tree<?> proto, ParserResult r, IncrementalMemoTable memo, TreeListener listener) {
+		ParserBudget budget = ParserBudget.newBudget(strategy);
+		if (budget == null && prof != null && !strategy.Moz) {
+			budget = new ParserBudget();
+		}
+		try {
+			return perform(s, proto, r, memo, listener, budget);
+		} catch (ParserBudgetException e) {
+			perror(r, s, e.getPosition(), ParserBudgetException.newMessage(e.getLimit(), e.getProductionStack()));
+			return null;
+		}
+	}
+
+	private Object perform(Source s, Tree<?> proto, ParserResult r, IncrementalMemoTable memo, TreeListener listener, ParserBudget budget) throws ParserBudgetException {
+		if (strategy.InternTokens && s instanceof CommonSource && ((CommonSource) s).getTokenTable() == null) {
+			((CommonSource) s).setTokenTable(new TokenTable());
+		}
 		if (strategy.Moz) {
 			// Verbose.println("ClassicMoz");
-			return perform(this.newParserContext(s, proto));
+			// without a prototype, MozMachine builds no tree and returns none on a match
+			Object matched = perform(this.newParserContext(s, proto != null ? proto : new CommonTree()), r);
+			if (matched != null && listener != null) {
+				TreeUtils.sendTree(listener, (Tree<?>) matched);
+			}
+			return matched;
 		}
 		// Verbose.println("FT86");
-		ParserMachineContext ctx = new ParserMachineContext(s, proto);
+		if (budget != null) {
+			budget.start();
+		}
+		ParserMachineContext ctx = this.acquireContext(s, proto, budget);
+		try {
+			return perform(ctx, s, r, memo, listener, budget);
+		} finally {
+			((ParserContext) ctx).release();
+			((ParserContext) ctx).inUse = false;
+		}
+	}
+
+	private Object perform(ParserMachineContext ctx, Source s, ParserResult r, IncrementalMemoTable memo, TreeListener listener, ParserBudget budget) throws ParserBudgetException {
 		ParserCode<?> code = this.getParserCode();
-		ctx.initMemoTable(strategy.SlidingWindow, code.getMemoPointSize());
+		if (memo != null) {
+			((ParserContext) ctx).initMemoTable(memo, code.getMemoPointSize());
+		}
+		ctx.setTreeListener(listener);
 		// if (prof != null) {
 		// context.startProfiling(prof);
 		// }
-		Tree<?> matched = code.exec(ctx);
-		// if (prof != null) {
-		// context.doneProfiling(prof);
-		// }
+		long[] distances = null;
+		if (this.windowTuner != null) {
+			distances = new long[65];
+			ctx.setBacktrackDistances(distances);
+		}
+		Tree<?> matched;
+		try {
+			matched = code.exec(ctx);
+		} catch (ParserBudget.Exhausted e) {
+			throw new ParserBudgetException(e.limit, s, ctx.getPosition(), ctx.getProductionStack());
+		} finally {
+			if (budget != null) {
+				((ParserContext) ctx).finishBudget();
+				ctx.setBudget(null);
+			}
+			if (distances != null) {
+				ctx.setBacktrackDistances(null);
+				((ParserContext) ctx).updateWindow(this.windowTuner, distances);
+			}
+			if (strategy.Profiling || strategy.BacktrackProfiling) {
+				((ParserMachineProfiler) ctx).flush(strategy.getMachineProfile());
+			}
+		}
+		if (prof != null) {
+			ctx.recordMemo(prof);
+			if (budget != null) {
+				budget.record(prof);
+			}
+			if (this.windowTuner != null) {
+				this.windowTuner.record(prof);
+			}
+		}
 		if (matched == null) {
-			perror(s, ctx.getMaximumPosition(), "syntax error");
+			perror(r, s, ctx.getMaximumPosition(), "syntax error");
 			return null;
 		}
 		if (this.disabledUncosumed && !ctx.eof()) {
-			perror(s, ctx.getPosition(), "unconsumed");
+			perror(r, s, ctx.getPosition(), "unconsumed");
+		}
+		if (listener != null) {
+			ctx.endStream(matched);
+			ctx.setTreeListener(null);
 		}
 		return matched;
 	}
 
+	/**
+	 * Returns a new context for the given source, which the caller keeps;
+	 * it is not the context that the parse methods pool.
+	 */
+
+	public final ParserMachineContext newParserMachineContext(Source s, Tree<?> proto) {
+		return this.initContext(this.newContext(s, proto), null);
+	}
+
+	/**
+	 * Returns the context pooled for the current thread, reset for the given
+	 * source. A Parser can be shared by threads; each thread reuses its own
+	 * stacks, AST log and memo table. A parse started while the pooled
+	 * context is in use, from a listener or a visitor of the same thread,
+	 * gets a new context.
+	 */
+
+	private ParserMachineContext acquireContext(Source s, Tree<?> proto, ParserBudget budget) {
+		ParserMachineContext ctx = this.contextPool.get();
+		if (ctx == null || ((ParserContext) ctx).inUse) {
+			ParserMachineContext pooled = ctx;
+			ctx = this.newContext(s, proto);
+			if (pooled == null) {
+				this.contextPool.set(ctx);
+			}
+		} else {
+			ctx.reset(s, proto);
+			if (strategy.Profiling || strategy.BacktrackProfiling) {
+				((ParserMachineProfiler) ctx).begin();
+			}
+		}
+		((ParserContext) ctx).inUse = true;
+		return this.initContext(ctx, budget);
+	}
+
+	private ParserMachineContext newContext(Source s, Tree<?> proto) {
+		if (strategy.BacktrackProfiling) {
+			return BacktrackProfiler.newContext(s, proto, this.getParserCode().getMemoPoints(), strategy.getBacktrackReport());
+		}
+		if (strategy.Profiling) {
+			return ParserMachineProfiler.newContext(s, proto, this.getParserCode().getMemoPoints());
+		}
+		return new ParserMachineContext(s, proto);
+	}
+
+	private ParserMachineContext initContext(ParserMachineContext ctx, ParserBudget budget) {
+		ctx.setBudget(budget);
+		ctx.setLayout(this.getParserCode().getLayout());
+		ctx.initMemoTable(this.getSlidingWindow(), this.getParserCode().getMemoPointSize(), strategy.PrimitiveMemo, strategy.PackratWindow, strategy.OffHeapMemo);
+		return ctx;
+	}
+
 	protected ParserProfiler prof = null;
 
 	public void setProfiler(ParserProfiler prof) {
@@ -107,7 +290,9 @@ public final class Parser {
 		if (prof != null) {
 			this.compile();
 			// prof.setFile("G.File", this.start.getGrammarFile().getURN());
-			prof.setCount("G.Production", this.grammar.size());
+			if (this.grammar != null) {
+				prof.setCount("G.Production", this.grammar.size());
+			}
 			prof.setCount("G.Instruction", this.pcode.getInstructionSize());
 			prof.setCount("G.MemoPoint", this.pcode.getMemoPointSize());
 		}
@@ -126,7 +311,7 @@ public final class Parser {
 	/* --------------------------------------------------------------------- */
 
 	public final boolean match(Source s) {
-		return perform(this.newParserContext(s, null)) != null;
+		return perform(s, null) != null;
 	}
 
 	public final boolean match(String str) {
@@ -134,10 +319,18 @@ public final class Parser {
 	}
 
 	public Tree<?> parse(Source source, Tree<?> proto) {
-		ParserInstance context = this.newParserContext(source, proto);
 		return (Tree<?>) this.perform(source, proto);
 	}
 
+	/**
+	 * Parses the source within the budget, which may be cancelled from
+	 * another thread. Returns null on a syntax error.
+	 */
+
+	public final Tree<?> parse(Source s, Tree<?> proto, ParserBudget budget) throws ParserBudgetException {
+		return (Tree<?>) perform(s, proto, null, null, null, budget);
+	}
+
 	public final CommonTree parse(Source sc) {
 		return (CommonTree) this.parse(sc, new CommonTree());
 	}
@@ -147,6 +340,143 @@ public final class Parser {
 		return (CommonTree) this.parse(sc, new CommonTree());
 	}
 
+	/* Streaming */
+
+	/**
+	 * Parses the source and sends the tree to the listener while parsing,
+	 * so that the children of the outermost node need not be kept. Returns
+	 * false on a syntax error, after the events that were already sent.
+	 * +IntCode does not stream trees.
+	 */
+
+	public final boolean parse(Source s, TreeListener listener) {
+		if (this.strategy.IntCode) {
+			throw new IllegalArgumentException("+IntCode cannot stream trees");
+		}
+		return perform(s, new CommonTree(), null, null, listener) != null;
+	}
+
+	/* Incremental */
+
+	/**
+	 * Parses the source and keeps all its memo entries in the returned
+	 * snapshot, which reparse takes after each edit.
+	 */
+
+	public final ParserSnapshot parseIncremental(Source s) {
+		return reparse(s, new IncrementalMemoTable(s, this.getParserCode().getMemoPointSize(), null, 0, 0, 0));
+	}
+
+	/**
+	 * Replaces deleted bytes at offset with inserted bytes and parses the
+	 * edited text. Memo entries of earlier snapshots are reused where the
+	 * bytes they read are outside the edit; their trees are relocated.
+	 *
+	 * The edited text is a PieceTableSource over the previous one, and a
+	 * relocated tree moves its children only when they are read, so that
+	 * neither the text nor the reused trees are copied by an edit.
+	 */
+
+	public final ParserSnapshot reparse(ParserSnapshot prev, long offset, int deleted, byte[] inserted) {
+		Source s = PieceTableSource.edit(prev.getSource(), offset, deleted, inserted);
+		return reparse(s, new IncrementalMemoTable(s, this.getParserCode().getMemoPointSize(), prev.memo, offset, deleted, inserted.length));
+	}
+
+	private ParserSnapshot reparse(Source s, IncrementalMemoTable memo) {
+		ParserSnapshot r = new ParserSnapshot(s, memo);
+		r.setTree((Tree<?>) perform(s, new CommonTree(), r, memo, null));
+		return r;
+	}
+
+	/* Batch */
+
+	public static int BatchWindowSize = 256;
+
+	/**
+	 * Parses the source, keeping the errors in the result instead of the
+	 * parser, so that threads sharing this parser do not see each other's
+	 * errors.
+	 */
+
+	public final ParserResult parseResult(Source s, Tree<?> proto) {
+		ParserResult r = new ParserResult(s);
+		r.setTree((Tree<?>) perform(s, proto, r));
+		return r;
+	}
+
+	/**
+	 * Parses inputs on the given executor and hands each ParserResult to the
+	 * handler on the calling thread, either in input order or as soon as
+	 * each one completes. At most BatchWindowSize inputs are in flight. If a
+	 * parse or the handler throws, the inputs still in flight are cancelled
+	 * before the exception is passed on.
+	 */
+
+	public final void parseAll(Iterable<Source> inputs, Executor executor, boolean ordered, final Tree<?> proto, ParserResult.Handler handler) {
+		this.getParserCode();
+		CompletionService<ParserResult> completion = new ExecutorCompletionService<ParserResult>(executor);
+		ArrayDeque<Future<ParserResult>> window = new ArrayDeque<Future<ParserResult>>();
+		try {
+			for (final Source input : inputs) {
+				Callable<ParserResult> task = new Callable<ParserResult>() {
+					@Override
+					public ParserResult call() {
+						return parseResult(input, proto);
+					}
+				};
+				if (ordered) {
+					FutureTask<ParserResult> f = new FutureTask<ParserResult>(task);
+					executor.execute(f);
+					window.add(f);
+				} else {
+					window.add(completion.submit(task));
+				}
+				if (window.size() >= BatchWindowSize) {
+					handler.handle(take(ordered, completion, window));
+				}
+			}
+			while (!window.isEmpty()) {
+				handler.handle(take(ordered, completion, window));
+			}
+		} finally {
+			for (Future<ParserResult> f : window) {
+				f.cancel(true);
+			}
+		}
+	}
+
+	public final List<ParserResult> parseAll(Iterable<Source> inputs, Executor executor) {
+		final List<ParserResult> results = new ArrayList<ParserResult>();
+		this.parseAll(inputs, executor, true, new CommonTree(), new ParserResult.Handler() {
+			@Override
+			public void handle(ParserResult result) {
+				results.add(result);
+			}
+		});
+		return results;
+	}
+
+	private static ParserResult take(boolean ordered, CompletionService<ParserResult> completion, ArrayDeque<Future<ParserResult>> window) {
+		try {
+			Future<ParserResult> f;
+			if (ordered) {
+				f = window.poll();
+			} else {
+				f = completion.take();
+				window.remove(f);
+			}
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
 	/* Errors */
 
 	private boolean disabledUncosumed = false;
@@ -156,26 +486,34 @@ public final class Parser {
 		this.disabledUncosumed = disabled;
 	}
 
-	private void perror(Source source, long pos, String message) {
+	private void perror(ParserResult r, Source source, long pos, String message) {
+		if (r != null) {
+			r.addError(new SourceError(source, pos, message));
+		} else {
+			perror(source, pos, message);
+		}
+	}
+
+	private synchronized void perror(Source source, long pos, String message) {
 		if (this.errors == null) {
 			this.errors = new UList<SourceError>(new SourceError[4]);
 		}
 		errors.add(new SourceError(source, pos, message));
 	}
 
-	public final boolean hasErrors() {
+	public final synchronized boolean hasErrors() {
 		return errors != null;
 	}
 
-	public final void clearErrors() {
+	public final synchronized void clearErrors() {
 		errors = null;
 	}
 
-	public final List<SourceError> getErrors() {
+	public final synchronized List<SourceError> getErrors() {
 		return errors == null ? new ArrayList<SourceError>() : this.errors;
 	}
 
-	public final boolean showErrors() {
+	public final synchronized boolean showErrors() {
 		if (errors != null) {
 			for (SourceError e : errors) {
 				ConsoleUtils.println(e.toString());
@@ -186,7 +524,7 @@ public final class Parser {
 		return false;
 	}
 
-	public final void ensureNoErrors() throws ParserException {
+	public final synchronized void ensureNoErrors() throws ParserException {
 		if (errors != null) {
 			throw new ParserException(errors.ArrayValues[0].toString());
 		}
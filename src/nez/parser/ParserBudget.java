@@ -0,0 +1,185 @@
+package nez.parser;
+
+/**
+ * ParserBudget bounds one parse by the number of steps (calls and choices),
+ * backtracks and wall-clock time, and can be cancelled from another thread.
+ * The parser counts steps on Call and Alt, and looks at the clock and the
+ * cancellation once every 1024 steps. A limit of 0 is no limit. A parse
+ * that runs out of its budget is aborted with a ParserBudgetException.
+ * 
+ * The budget also bounds the memory of a parse. The memo table is kept
+ * within maxMemoEntries, as a smaller sliding window, or by dropping the
+ * entries over the limit if the table grows; trees and symbol table entries
+ * over their limits abort the parse. The usage is counted for any budget.
+ * 
+ * A tree node is limited to 2 GiB of input, since Tree keeps its length in
+ * an int. A longer node aborts the parse with Limit.Length, with or without
+ * a budget.
+ */
+
+public final class ParserBudget {
+	public enum Limit {
+		Steps, Backtracks, Time, Cancelled, Trees, Symbols, Length
+	}
+
+	private final long maxSteps;
+	private final long maxBacktracks;
+	private final long timeLimit;
+	final int maxMemoEntries;
+	private final long maxTrees;
+	private final int maxSymbols;
+	private long steps;
+	private long backtracks;
+	private long deadline;
+	private long trees;
+	private int peakSymbols;
+	private long memoEntries;
+	private long droppedMemoEntries;
+	private long logEntries;
+	private volatile boolean cancelled = false;
+
+	public ParserBudget(long maxSteps, long maxBacktracks, long timeLimitMillis, int maxMemoEntries, long maxTrees, int maxSymbols) {
+		this.maxSteps = maxSteps > 0 ? maxSteps : Long.MAX_VALUE;
+		this.maxBacktracks = maxBacktracks > 0 ? maxBacktracks : Long.MAX_VALUE;
+		this.timeLimit = timeLimitMillis > 0 ? timeLimitMillis * 1000000L : Long.MAX_VALUE;
+		this.maxMemoEntries = maxMemoEntries > 0 ? maxMemoEntries : Integer.MAX_VALUE;
+		this.maxTrees = maxTrees > 0 ? maxTrees : Long.MAX_VALUE;
+		this.maxSymbols = maxSymbols > 0 ? maxSymbols : Integer.MAX_VALUE;
+	}
+
+	public ParserBudget(long maxSteps, long maxBacktracks, long timeLimitMillis) {
+		this(maxSteps, maxBacktracks, timeLimitMillis, 0, 0, 0);
+	}
+
+	/* a budget that is only cancelled */
+
+	public ParserBudget() {
+		this(0, 0, 0);
+	}
+
+	public final static ParserBudget newBudget(ParserStrategy strategy) {
+		if (strategy.StepLimit > 0 || strategy.BacktrackLimit > 0 || strategy.TimeLimit > 0 || strategy.MemoEntryLimit > 0 || strategy.TreeLimit > 0 || strategy.SymbolLimit > 0) {
+			return new ParserBudget(strategy.StepLimit, strategy.BacktrackLimit, strategy.TimeLimit, strategy.MemoEntryLimit, strategy.TreeLimit, strategy.SymbolLimit);
+		}
+		return null;
+	}
+
+	public final void cancel() {
+		this.cancelled = true;
+	}
+
+	public final boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	public final long getSteps() {
+		return this.steps;
+	}
+
+	public final long getBacktracks() {
+		return this.backtracks;
+	}
+
+	/* trees built, including those discarded by backtracking */
+
+	public final long getTrees() {
+		return this.trees;
+	}
+
+	public final int getPeakSymbols() {
+		return this.peakSymbols;
+	}
+
+	/* the size of the memo table, and the entries it could not keep */
+
+	public final long getMemoEntries() {
+		return this.memoEntries;
+	}
+
+	public final long getDroppedMemoEntries() {
+		return this.droppedMemoEntries;
+	}
+
+	/* the length of the AST log the context keeps for reuse */
+
+	public final long getLogEntries() {
+		return this.logEntries;
+	}
+
+	public final void record(ParserProfiler rec) {
+		rec.setCount("B.Trees", this.trees);
+		rec.setCount("B.PeakSymbols", this.peakSymbols);
+		rec.setCount("B.MemoEntries", this.memoEntries);
+		rec.setCount("B.DroppedMemoEntries", this.droppedMemoEntries);
+		rec.setCount("B.LogEntries", this.logEntries);
+	}
+
+	final void start() {
+		this.steps = 0;
+		this.backtracks = 0;
+		this.trees = 0;
+		this.peakSymbols = 0;
+		this.memoEntries = 0;
+		this.droppedMemoEntries = 0;
+		this.logEntries = 0;
+		long now = System.nanoTime();
+		this.deadline = this.timeLimit == Long.MAX_VALUE || now + this.timeLimit < now ? Long.MAX_VALUE : now + this.timeLimit;
+	}
+
+	public final void step() {
+		if (++steps > maxSteps) {
+			throw new Exhausted(Limit.Steps);
+		}
+		if ((steps & 0x3ff) == 0) {
+			if (cancelled) {
+				throw new Exhausted(Limit.Cancelled);
+			}
+			if (backtracks > maxBacktracks) {
+				throw new Exhausted(Limit.Backtracks);
+			}
+			if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline) {
+				throw new Exhausted(Limit.Time);
+			}
+		}
+	}
+
+	public final void backtrack() {
+		backtracks++;
+	}
+
+	final void tree() {
+		if (++trees > maxTrees) {
+			throw new Exhausted(Limit.Trees);
+		}
+	}
+
+	final void symbol(int size) {
+		if (size > peakSymbols) {
+			if (size > maxSymbols) {
+				throw new Exhausted(Limit.Symbols);
+			}
+			peakSymbols = size;
+		}
+	}
+
+	final void dropMemo() {
+		droppedMemoEntries++;
+	}
+
+	final void finish(long memoEntries, long logEntries) {
+		this.memoEntries = memoEntries;
+		this.logEntries = logEntries;
+	}
+
+	/* unwinds the parser; Parser turns it into a ParserBudgetException */
+
+	@SuppressWarnings("serial")
+	static final class Exhausted extends RuntimeException {
+		final Limit limit;
+
+		Exhausted(Limit limit) {
+			super(limit.toString(), null, false, false);
+			this.limit = limit;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package nez.parser;
+
+import nez.ast.Source;
+
+/**
+ * ParserBudgetException is thrown when a parse runs out of its ParserBudget.
+ * It keeps the position the parser had reached and the productions that
+ * were active, from the outermost.
+ */
+
+@SuppressWarnings("serial")
+public class ParserBudgetException extends ParserException {
+	private final ParserBudget.Limit limit;
+	private final long position;
+	private final String[] productions;
+
+	public ParserBudgetException(ParserBudget.Limit limit, Source source, long position, String[] productions) {
+		super(source.getResourceName() + ":" + source.linenum(position) + ": " + newMessage(limit, productions));
+		this.limit = limit;
+		this.position = position;
+		this.productions = productions;
+	}
+
+	static String newMessage(ParserBudget.Limit limit, String[] productions) {
+		StringBuilder sb = new StringBuilder();
+		if (limit == ParserBudget.Limit.Cancelled) {
+			sb.append("cancelled");
+		} else if (limit == ParserBudget.Limit.Length) {
+			sb.append("tree node longer than 2 GiB");
+		} else {
+			sb.append(limit.toString().toLowerCase() + " budget exceeded");
+		}
+		if (productions.length > 0) {
+			sb.append(" in ");
+			for (int i = 0; i < productions.length; i++) {
+				if (i > 0) {
+					sb.append(" > ");
+				}
+				sb.append(productions[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	public final ParserBudget.Limit getLimit() {
+		return this.limit;
+	}
+
+	public final long getPosition() {
+		return this.position;
+	}
+
+	public final String[] getProductionStack() {
+		return this.productions;
+	}
+}
@@ -0,0 +1,152 @@
+package nez.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import nez.ast.LabelLayout;
+import nez.lang.Typestate;
+import nez.parser.vm.MozCode;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * ParserCache keeps compiled parser code on disk, keyed by a hash of the
+ * grammar text and the strategy. A cached file is the .moz bytecode of the
+ * code, preceded by the memo points that the bytecode refers to by id and
+ * followed by the layout of the trees, which needs the grammar to compute.
+ * A file that cannot be read is ignored and compiled again.
+ */
+
+public final class ParserCache {
+	private final static String Magic = "NEZC";
+	private final static int FormatVersion = 3;
+
+	public final static String DefaultDirectory = System.getProperty("user.home") + File.separator + ".nez" + File.separator + "cache";
+
+	private final File dir;
+
+	public ParserCache(String dir) {
+		this.dir = new File(dir);
+	}
+
+	public ParserCache() {
+		this(System.getProperty("nez.cache", DefaultDirectory));
+	}
+
+	/* the Coverage profiler is bound to the grammar */
+
+	public final static boolean isCacheable(ParserStrategy strategy) {
+		return !strategy.Coverage;
+	}
+
+	public final static String newKey(ParserStrategy strategy, String... texts) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(StringUtils.toUtf8(nez.Version.Version));
+			md.update(StringUtils.toUtf8(strategy.toString()));
+			for (String text : texts) {
+				md.update((byte) 0);
+				md.update(StringUtils.toUtf8(text));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private File file(String key) {
+		return new File(this.dir, key + ".moz");
+	}
+
+	public final Parser load(String key, ParserStrategy strategy) {
+		File f = file(key);
+		if (!f.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(f.toPath())));
+			if (!in.readUTF().equals(Magic) || in.readInt() != FormatVersion || !in.readUTF().equals(key)) {
+				return null;
+			}
+			boolean recognitionMode = in.readBoolean();
+			MemoPoint[] memoPoints = new MemoPoint[in.readInt()];
+			for (int i = 0; i < memoPoints.length; i++) {
+				String label = in.readUTF();
+				Typestate ts = Typestate.valueOf(in.readUTF());
+				memoPoints[i] = new MemoPoint(i, label, null, ts, in.readBoolean());
+				memoPoints[i].adaptive = in.readBoolean();
+			}
+			byte[] bytecode = new byte[in.readInt()];
+			in.readFully(bytecode);
+			long t = System.nanoTime();
+			MozCode code = MozCode.load(bytecode, strategy, recognitionMode, memoPoints);
+			if (in.readBoolean()) {
+				code.setLayout(LabelLayout.read(in));
+			}
+			Verbose.printElapsedTime("LoadingCachedCode", t, System.nanoTime());
+			return new Parser(code, strategy);
+		} catch (IOException | RuntimeException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+	}
+
+	public final void store(String key, Parser parser) {
+		ParserCode<?> pcode = parser.getParserCode();
+		if (!(pcode instanceof MozCode)) {
+			return;
+		}
+		MozCode code = (MozCode) pcode;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(Magic);
+			out.writeInt(FormatVersion);
+			out.writeUTF(key);
+			out.writeBoolean(code.isRecognitionMode());
+			MemoPoint[] memoPoints = code.getMemoPoints();
+			out.writeInt(memoPoints.length);
+			for (MemoPoint m : memoPoints) {
+				out.writeUTF(m.label);
+				out.writeUTF(m.typeState.name());
+				out.writeBoolean(m.contextSensitive);
+				out.writeBoolean(m.adaptive);
+			}
+			byte[] bytecode = code.encode();
+			out.writeInt(bytecode.length);
+			out.write(bytecode);
+			LabelLayout layout = code.getLayout();
+			out.writeBoolean(layout != null);
+			if (layout != null) {
+				layout.write(out);
+			}
+			out.close();
+			/* written aside and renamed, so that a reader never sees a partial file */
+			this.dir.mkdirs();
+			File tmp = File.createTempFile(key, ".tmp", this.dir);
+			try {
+				try (FileOutputStream fout = new FileOutputStream(tmp)) {
+					fout.write(bytes.toByteArray());
+				}
+				Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException | RuntimeException e) {
+			Verbose.traceException(e);
+		}
+	}
+}
@@ -5,11 +5,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import nez.ast.LabelLayout;
 import nez.ast.Tree;
 import nez.lang.Grammar;
 import nez.lang.Production;
 import nez.lang.Productions;
 import nez.lang.Productions.NonterminalReference;
+import nez.lang.TreeLayout;
 import nez.lang.Typestate;
 import nez.lang.Typestate.TypestateAnalyzer;
 import nez.parser.vm.MozInst;
@@ -29,32 +31,65 @@ public abstract class ParserCode<T extends Instruction> {
 		this.codeList = initArray != null ? new UList<>(initArray) : null;
 		TypestateAnalyzer typestate = Typestate.newAnalyzer();
 		this.RecognitionMode = typestate.inferTypestate(grammar.getStartProduction()) == Typestate.Unit;
+		if (!this.RecognitionMode) {
+			this.layout = TreeLayout.analyze(grammar);
+		}
+	}
+
+	/* code loaded without its grammar */
+
+	protected ParserCode(boolean recognitionMode, T[] initArray) {
+		this.grammar = null;
+		this.funcMap = new HashMap<>();
+		this.codeList = initArray != null ? new UList<>(initArray) : null;
+		this.RecognitionMode = recognitionMode;
+	}
+
+	public final boolean isRecognitionMode() {
+		return this.RecognitionMode;
 	}
 
 	public final Grammar getCompiledGrammar() {
 		return this.grammar;
 	}
 
+	/* where the trees put labeled children; null in recognition mode */
+
+	private LabelLayout layout = null;
+
+	public final LabelLayout getLayout() {
+		return this.layout;
+	}
+
+	/* code loaded without its grammar takes a layout that was kept with it */
+
+	public final void setLayout(LabelLayout layout) {
+		this.layout = layout;
+	}
+
 	public abstract void layoutCode(T inst);
 
 	public final T getStartInstruction() {
 		return codeList.get(0);
 	}
 
-	public final int getInstructionSize() {
+	public int getInstructionSize() {
 		return codeList.size();
 	}
 
 	public final Tree<?> exec(ParserMachineContext ctx) {
-		int ppos = (int) ctx.getPosition();
-		MozInst code = (MozInst) this.getStartInstruction();
-		boolean result = exec(ctx, code);
+		long ppos = ctx.getPosition();
+		boolean result = this.run(ctx);
 		if (RecognitionMode && result) {
-			ctx.left = ctx.newTree(null, ppos, (int) ctx.getPosition(), 0, null);
+			ctx.left = ctx.newTree(null, ppos, ctx.getPosition(), 0, null);
 		}
 		return result ? ctx.left : null;
 	}
 
+	protected boolean run(ParserMachineContext ctx) {
+		return exec(ctx, (MozInst) this.getStartInstruction());
+	}
+
 	private boolean exec(ParserMachineContext ctx, MozInst inst) {
 		MozInst cur = inst;
 		try {
@@ -137,10 +172,12 @@ public abstract class ParserCode<T extends Instruction> {
 		Collections.sort(l, (s, s2) -> (int) (s2.score - s.score));
 		for (Score s : l) {
 			c++;
-			if (c < limits && s.score >= 3 * strategy.TreeFactor) {
+			boolean selected = strategy.AdaptiveMemo ? s.score >= 2 : (c < limits && s.score >= 3 * strategy.TreeFactor);
+			if (selected) {
 				Production p = s.p;
 				String uname = p.getUniqueName();
 				MemoPoint memoPoint = new MemoPoint(this.memoPointMap.size(), uname, p.getExpression(), s.ts, false);
+				memoPoint.adaptive = strategy.AdaptiveMemo;
 				this.memoPointMap.put(uname, memoPoint);
 				Verbose.println("MomoPoint(%d): %s score=%f", memoPoint.id, uname, s.score);
 			}
@@ -148,6 +185,23 @@ public abstract class ParserCode<T extends Instruction> {
 
 	}
 
+	protected final void addMemoPoint(MemoPoint memoPoint) {
+		if (memoPointMap == null) {
+			memoPointMap = new HashMap<>();
+		}
+		this.memoPointMap.put(memoPoint.label, memoPoint);
+	}
+
+	public final MemoPoint[] getMemoPoints() {
+		MemoPoint[] memoPoints = new MemoPoint[this.getMemoPointSize()];
+		if (this.memoPointMap != null) {
+			for (MemoPoint m : this.memoPointMap.values()) {
+				memoPoints[m.id] = m;
+			}
+		}
+		return memoPoints;
+	}
+
 	public final MemoPoint getMemoPoint(String uname) {
 		if (memoPointMap != null) {
 			return this.memoPointMap.get(uname);
@@ -1,14 +1,19 @@
 package nez.parser;
 
+import java.util.Arrays;
+
 import nez.ast.CommonTree;
+import nez.ast.LabelLayout;
 import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
+import nez.ast.TreeListener;
+import nez.ast.TreeUtils;
 import nez.parser.io.StringSource;
 import nez.util.StringUtils;
 
 public class ParserContext {
-	public int pos = 0;
+	public long pos = 0;
 	public Tree<?> left;
 
 	public ParserContext(String s) {
@@ -32,33 +37,99 @@ public class ParserContext {
 	private byte[] inputs;
 	private int length;
 
+	protected void reset(Source s, Tree<?> proto) {
+		this.source = s;
+		this.pos = 0;
+		this.left = proto != null ? proto.newPrototype(s) : new CommonTree();
+		this.logTop = 0;
+		this.listener = null;
+		this.streamRoot = -1;
+		this.streamedTree = null;
+		this.countLinks = 0;
+		this.countStreamed = 0;
+		this.tableSize = 0;
+		this.stateValue = 0;
+		this.stateCount = 0;
+		this.count = 0;
+	}
+
+	/*
+	 * Drops the references to the source and its trees when a parse is over,
+	 * so that a pooled context keeps only its arrays until the next parse.
+	 * The log is cleared up to the highest entry used, not to its capacity.
+	 */
+
+	protected void release() {
+		this.source = null;
+		this.left = null;
+		this.listener = null;
+		this.streamedTree = null;
+		Arrays.fill(this.logLabels, 0, this.maxLogTop + 1, null);
+		Arrays.fill(this.logValues, 0, this.maxLogTop + 1, null);
+		this.maxLogTop = 0;
+		if (this.memoTable instanceof IncrementalMemoTable) {
+			this.memoTable = null; // the snapshot belongs to the caller
+		} else if (this.memoTable != null) {
+			this.memoTable.release();
+		}
+	}
+
+	boolean inUse = false; // by a parse of the pooling Parser
+
+	// Budget
+
+	protected ParserBudget budget = null;
+
+	/* set before initMemoTable, which keeps the table within the budget */
+
+	public final void setBudget(ParserBudget budget) {
+		this.budget = budget;
+	}
+
+	public final ParserBudget getBudget() {
+		return this.budget;
+	}
+
+	final void finishBudget() {
+		this.budget.finish(this.memoTable == null ? 0 : this.memoTable.size(), this.logOps.length);
+	}
+
 	public boolean eof() {
 		return !(pos < length);
 	}
 
 	public int read() {
-		return inputs[pos++] & 0xff;
+		return inputs[(int) (pos++)] & 0xff;
 	}
 
 	public int prefetch() {
-		return inputs[pos] & 0xff;
+		return inputs[(int) pos] & 0xff;
 	}
 
 	public final void move(int shift) {
 		pos += shift;
 	}
 
-	public void back(int pos) {
+	public void back(long pos) {
 		this.pos = pos;
 	}
 
+	/* the furthest position that has been read so far */
+
+	protected long getHeadPosition() {
+		return this.pos;
+	}
+
+	protected void extendHeadPosition(long pos) {
+	}
+
 	public boolean match(byte[] text) {
 		int len = text.length;
 		if (pos + len > this.length) {
 			return false;
 		}
 		for (int i = 0; i < len; i++) {
-			if (text[i] != this.inputs[pos + i]) {
+			if (text[i] != this.inputs[(int) pos + i]) {
 				return false;
 			}
 		}
@@ -66,132 +137,277 @@ public class ParserContext {
 		return true;
 	}
 
-	public byte[] subByte(int startIndex, int endIndex) {
-		byte[] b = new byte[endIndex - startIndex];
-		System.arraycopy(this.inputs, (startIndex), b, 0, b.length);
+	public byte[] subByte(long startIndex, long endIndex) {
+		byte[] b = new byte[(int) (endIndex - startIndex)];
+		System.arraycopy(this.inputs, (int) (startIndex), b, 0, b.length);
 		return b;
 	}
 
-	protected byte byteAt(int n) {
-		return inputs[n];
+	protected byte byteAt(long n) {
+		return inputs[(int) n];
 	}
 
 	// AST
 
-	private enum Operation {
-		Link, Tag, Replace, New;
-	}
-
-	static class AstLog {
-		Operation op;
-		// int debugId;
-		int pos;
-		Symbol label;
-		Object value;
-		AstLog prev;
-		AstLog next;
-	}
-
-	private AstLog last = new AstLog();
-	private AstLog unused = null;
-
-	private void log(Operation op, int pos, Symbol label, Object value) {
-		AstLog l;
-		if (this.unused == null) {
-			l = new AstLog();
-		} else {
-			l = this.unused;
-			this.unused = l.next;
+	/*
+	 * The AST log is kept in parallel arrays, with the head at index 0. A log
+	 * point is the index of the last entry, so that a rollback only moves
+	 * logTop; the entries above it are reused by the next operations.
+	 */
+
+	private final static int Link = 0;
+	private final static int Tag = 1;
+	private final static int Replace = 2;
+	private final static int New = 3;
+
+	private int[] logOps = new int[256];
+	private long[] logPos = new long[256];
+	private Symbol[] logLabels = new Symbol[256];
+	private Object[] logValues = new Object[256];
+	private int logTop = 0;
+	private int maxLogTop = 0;
+
+	private void log(int op, long pos, Symbol label, Object value) {
+		int i = ++this.logTop;
+		if (i > this.maxLogTop) {
+			if (i == this.logOps.length) {
+				this.logOps = Arrays.copyOf(this.logOps, i * 2);
+				this.logPos = Arrays.copyOf(this.logPos, i * 2);
+				this.logLabels = Arrays.copyOf(this.logLabels, i * 2);
+				this.logValues = Arrays.copyOf(this.logValues, i * 2);
+			}
+			this.maxLogTop = i;
 		}
-		// l.debugId = last.debugId + 1;
-		l.op = op;
-		l.pos = pos;
-		l.label = label;
-		l.value = value;
-		l.prev = last;
-		l.next = null;
-		last.next = l;
-		last = l;
+		this.logOps[i] = op;
+		this.logPos[i] = pos;
+		this.logLabels[i] = label;
+		this.logValues[i] = value;
 	}
 
 	public final void beginTree(int shift) {
-		log(Operation.New, pos + shift, null, null);
+		log(New, pos + shift, null, null);
+	}
+
+	public final void beginTree(int shift, Symbol tag) {
+		log(New, pos + shift, null, tag);
 	}
 
 	public final void linkTree(Tree<?> parent, Symbol label) {
-		log(Operation.Link, 0, label, left);
+		log(Link, 0, label, left);
+		this.countLinks++;
 	}
 
 	public final void tagTree(Symbol tag) {
-		log(Operation.Tag, 0, null, tag);
+		log(Tag, 0, null, tag);
 	}
 
 	public final void valueTree(String value) {
-		log(Operation.Replace, 0, null, value);
+		log(Replace, 0, null, value);
 	}
 
 	public final void foldTree(int shift, Symbol label) {
-		log(Operation.New, pos + shift, null, null);
-		log(Operation.Link, 0, label, left);
+		log(New, pos + shift, null, null);
+		log(Link, 0, label, left);
 	}
 
 	public final void endTree(Symbol tag, String value, int shift) {
 		int objectSize = 0;
-		AstLog start;
-		for (start = last; start.op != Operation.New; start = start.prev) {
-			switch (start.op) {
+		int start;
+		for (start = this.logTop; this.logOps[start] != New; start--) {
+			switch (this.logOps[start]) {
 			case Link:
 				objectSize++;
 				break;
 			case Tag:
 				if (tag == null) {
-					tag = (Symbol) start.value;
+					tag = (Symbol) this.logValues[start];
 				}
 				break;
 			case Replace:
 				if (value == null) {
-					value = (String) start.value;
+					value = (String) this.logValues[start];
 				}
 				break;
-			case New:
+			default:
 				break;
 			}
 		}
 
-		left = newTree(tag, start.pos, (pos + shift), objectSize, value);
+		left = newTree(tag, this.logPos[start], (pos + shift), objectSize, value);
 		if (objectSize > 0) {
 			int n = 0;
-			for (AstLog cur = start; cur != null; cur = cur.next) {
-				if (cur.op == Operation.Link) {
-					left.link(n++, cur.label, cur.value);
-					cur.value = null;
+			for (int i = start; i <= this.logTop; i++) {
+				if (this.logOps[i] == Link) {
+					left.link(n++, this.logLabels[i], this.logValues[i]);
+					this.logValues[i] = null;
 				}
 			}
 		}
-		this.backLog(start.prev);
+		if (start == this.streamRoot) {
+			for (int i = 0; i < left.size(); i++) {
+				this.listener.label(left.getLabel(i));
+				this.sendTree(left.get(i));
+			}
+			this.listener.endNode(left.getTag(), this.logPos[start], left.getLength(), left.getValue());
+			this.streamRoot = -1;
+			this.streamedTree = left;
+		}
+		this.logTop = start - 1;
 	}
 
-	public final Tree<?> newTree(Symbol tag, int start, int end, int n, String value) {
+	/*
+	 * a node longer than a Tree can hold aborts the parse, which Parser
+	 * reports as a ParserBudgetException with Limit.Length
+	 */
+
+	public Tree<?> newTree(Symbol tag, long start, long end, int n, String value) {
+		if (this.budget != null) {
+			this.budget.tree();
+		}
 		if (tag == null) {
 			tag = n == 0 ? Symbol.tokenTag : Symbol.treeTag;
 		}
-		return left.newInstance(tag, source, start, (end - start), n, value);
+		if (end - start > Integer.MAX_VALUE) {
+			throw new ParserBudget.Exhausted(ParserBudget.Limit.Length);
+		}
+		Tree<?> t = left.newInstance(tag, source, start, (int) (end - start), n, value);
+		t.setLayout(this.layout);
+		return t;
+	}
+
+	/* the layout of the code that runs on this context, given to its trees */
+
+	private LabelLayout layout = null;
+
+	public final void setLayout(LabelLayout layout) {
+		this.layout = layout;
+	}
+
+	// Streaming ------------------------------------------------------------
+
+	/**
+	 * With a TreeListener, the children of the outermost open node are sent
+	 * as soon as no backtracking can remove them, and are then dropped from
+	 * the AST log. The node itself is sent when it is closed; it stays in the
+	 * result without the children that have been sent.
+	 *
+	 * A node is started only if its tag is given when it begins, that is, by
+	 * the end of the constructor as in { ... #Tag }. Otherwise a later #Tag
+	 * may still change it, and the node is sent as a whole when it is closed.
+	 */
+
+	public static int StreamBatchSize = 64;
+
+	private TreeListener listener = null;
+	private int streamRoot = -1;
+	private Tree<?> streamedTree = null;
+	private int countLinks = 0;
+	private int countStreamed = 0;
+
+	public final void setTreeListener(TreeListener listener) {
+		this.listener = listener;
+	}
+
+	public final TreeListener getTreeListener() {
+		return this.listener;
+	}
+
+	/* the closed tree that has been sent to the listener, if any */
+
+	public final Tree<?> getStreamedTree() {
+		return this.streamedTree;
+	}
+
+	protected final boolean isStreamPending() {
+		return this.listener != null && this.countLinks - this.countStreamed >= StreamBatchSize;
+	}
+
+	/**
+	 * Sends the committed children of the outermost open node. The AST log
+	 * up to commitPoint, a value of saveLog(), can no longer be rolled back.
+	 * The children sent are removed from the log; returns their number, by
+	 * which the log points from commitPoint on are to be lowered.
+	 */
+
+	protected final int streamTree(int commitPoint) {
+		this.countStreamed = this.countLinks;
+		int root = this.streamRoot;
+		if (root == -1) {
+			for (int i = 1; i <= commitPoint; i++) {
+				if (this.logOps[i] == New) {
+					root = i;
+					break;
+				}
+			}
+			if (root == -1 || this.logValues[root] == null) {
+				return 0;
+			}
+		}
+		Symbol tag = (Symbol) this.logValues[root];
+		int i = root + 1;
+		int w = i;
+		for (; i <= commitPoint; i++) {
+			int op = this.logOps[i];
+			if (op == New) {
+				break;
+			}
+			if (op == Link) {
+				if (this.streamRoot == -1) {
+					this.streamRoot = root;
+					this.listener.startNode(tag, this.logPos[root]);
+				}
+				this.listener.label(this.logLabels[i]);
+				this.sendTree((Tree<?>) this.logValues[i]);
+				this.logValues[i] = null;
+				continue;
+			}
+			this.moveLog(i, w++);
+		}
+		int removed = i - w;
+		if (removed > 0) {
+			for (; i <= this.logTop; i++) {
+				this.moveLog(i, w++);
+			}
+			for (i = w; i <= this.logTop; i++) {
+				this.logValues[i] = null;
+			}
+			this.logTop = w - 1;
+		}
+		return removed;
 	}
 
-	public final Object saveLog() {
-		return last;
+	private void moveLog(int from, int to) {
+		if (from != to) {
+			this.logOps[to] = this.logOps[from];
+			this.logPos[to] = this.logPos[from];
+			this.logLabels[to] = this.logLabels[from];
+			this.logValues[to] = this.logValues[from];
+		}
 	}
 
-	public final void backLog(Object ref) {
-		AstLog save = (AstLog) ref;
-		if (save != last) {
-			last.next = this.unused;
-			this.unused = save.next;
-			save.next = null;
-			this.last = save;
+	private void sendTree(Tree<?> t) {
+		TreeUtils.sendTree(this.listener, t);
+	}
+
+	/* sends the result unless it has already been streamed */
+
+	public final void endStream(Tree<?> result) {
+		if (this.streamedTree != result) {
+			if (this.streamedTree != null || this.streamRoot != -1) {
+				throw new IllegalStateException("the streamed tree is not the result");
+			}
+			this.sendTree(result);
 		}
 	}
 
+	public final int saveLog() {
+		return this.logTop;
+	}
+
+	public final void backLog(int savePoint) {
+		this.logTop = savePoint;
+	}
+
 	// Symbol Table ---------------------------------------------------------
 
 	private final static byte[] NullSymbol = { 0, 0, 0, 0 }; // to distinguish
@@ -243,15 +459,15 @@ public class ParserContext {
 		return false;
 	}
 
-	private final long hashInputs(int ppos, int pos) {
+	private final long hashInputs(long ppos, long pos) {
 		long hashCode = 1;
-		for (int i = ppos; i < pos; i++) {
+		for (long i = ppos; i < pos; i++) {
 			hashCode = hashCode * 31 + (byteAt(i) & 0xff);
 		}
 		return hashCode;
 	}
 
-	private final boolean equalsInputs(int ppos, int pos, byte[] b2) {
+	private final boolean equalsInputs(long ppos, long pos, byte[] b2) {
 		if ((pos - ppos) == b2.length) {
 			for (int i = 0; i < b2.length; i++) {
 				if (byteAt(ppos + i) != b2[i]) {
@@ -285,6 +501,9 @@ public class ParserContext {
 		}
 		SymbolTableEntry entry = tables[tableSize];
 		tableSize++;
+		if (this.budget != null) {
+			this.budget.symbol(tableSize);
+		}
 		if (entry.table == table && equalsBytes(entry.symbol, utf8)) {
 			// reuse state value
 			entry.code = code;
@@ -314,7 +533,7 @@ public class ParserContext {
 		}
 	}
 
-	public final void addSymbol(Symbol table, int ppos) {
+	public final void addSymbol(Symbol table, long ppos) {
 		byte[] b = this.subByte(ppos, pos);
 		push(table, hash(b, 0, b.length), b);
 	}
@@ -362,7 +581,7 @@ public class ParserContext {
 		return false;
 	}
 
-	public final boolean equals(Symbol table, int ppos) {
+	public final boolean equals(Symbol table, long ppos) {
 		for (int i = tableSize - 1; i >= 0; i--) {
 			SymbolTableEntry entry = tables[i];
 			if (entry.table == table) {
@@ -375,7 +594,7 @@ public class ParserContext {
 		return false;
 	}
 
-	public boolean contains(Symbol table, int ppos) {
+	public boolean contains(Symbol table, long ppos) {
 		long code = hashInputs(ppos, pos);
 		for (int i = tableSize - 1; i >= 0; i--) {
 			SymbolTableEntry entry = tables[i];
@@ -395,14 +614,14 @@ public class ParserContext {
 
 	private int count = 0;
 
-	public final void scanCount(int ppos, long mask, int shift) {
+	public final void scanCount(long ppos, long mask, int shift) {
 		if (mask == 0) {
 			String num = StringUtils.newString(subByte(ppos, pos));
 			count = (int) Long.parseLong(num);
 		} else {
 			StringBuilder sb = new StringBuilder();
-			for (int i = ppos; i < pos; i++) {
-				sb.append(Integer.toBinaryString(inputs[i] & 0xff));
+			for (long i = ppos; i < pos; i++) {
+				sb.append(Integer.toBinaryString(byteAt(i) & 0xff));
 			}
 			long v = Long.parseUnsignedLong(sb.toString(), 2);
 			count = (int) ((v & mask) >> shift);
@@ -419,148 +638,445 @@ public class ParserContext {
 	public final static int SuccFound = 1;
 	public final static int FailFound = 2;
 
+	/**
+	 * ContextMemoTable is the memo table of a parser context. EntryMemoTable
+	 * keeps one MemoEntry object per slot; PrimitiveMemoTable keeps the same
+	 * fields in parallel arrays indexed by a power-of-two mask.
+	 */
+
+	static abstract class ContextMemoTable {
+		int CountStored;
+		int CountUsed;
+		int CountCollided; // entries overwritten within the window
+		long span; // the window, in keys
+
+		abstract void init(int size);
+
+		/* drops the trees of the entries; init clears the rest */
+		abstract void release();
+
+		abstract int size();
+
+		abstract int lookup(ParserContext ctx, long key, boolean tree, boolean state);
+
+		abstract void store(ParserContext ctx, long key, long consumed, Tree<?> memoTree, int result, int stateValue);
+
+		/* true if storing the key overwrites the entry of another key */
+		abstract boolean evicts(long key);
+	}
+
 	private static class MemoEntry {
 		long key = -1;
-		public int consumed;
+		public long consumed;
 		public Tree<?> memoTree;
 		public int result;
 		public int stateValue = 0;
 	}
 
-	private MemoEntry[] memoArray = null;
+	static final class EntryMemoTable extends ContextMemoTable {
+		private MemoEntry[] memoArray = null;
+
+		@Override
+		void init(int size) {
+			if (this.memoArray != null && this.memoArray.length == size) {
+				for (MemoEntry m : this.memoArray) {
+					m.key = -1;
+					m.memoTree = null;
+					m.result = NotFound;
+				}
+			} else {
+				this.memoArray = new MemoEntry[size];
+				for (int i = 0; i < this.memoArray.length; i++) {
+					this.memoArray[i] = new MemoEntry();
+					this.memoArray[i].key = -1;
+					this.memoArray[i].result = NotFound;
+				}
+			}
+			this.CountStored = 0;
+			this.CountUsed = 0;
+		}
+
+		@Override
+		void release() {
+			for (MemoEntry m : this.memoArray) {
+				m.memoTree = null;
+			}
+		}
+
+		@Override
+		int size() {
+			return this.memoArray.length;
+		}
+
+		@Override
+		int lookup(ParserContext ctx, long key, boolean tree, boolean state) {
+			int hash = (int) (key % memoArray.length);
+			MemoEntry m = this.memoArray[hash];
+			if (m.key == key && (!state || m.stateValue == ctx.stateValue)) {
+				ctx.pos += m.consumed;
+				if (tree) {
+					ctx.left = m.memoTree;
+				}
+				this.CountUsed++;
+				return m.result;
+			}
+			return NotFound;
+		}
+
+		@Override
+		void store(ParserContext ctx, long key, long consumed, Tree<?> memoTree, int result, int stateValue) {
+			int hash = (int) (key % memoArray.length);
+			MemoEntry m = this.memoArray[hash];
+			if (m.key != -1 && m.key != key && Math.abs(key - m.key) < span) {
+				this.CountCollided++;
+			}
+			m.key = key;
+			m.memoTree = memoTree;
+			m.consumed = consumed;
+			m.result = result;
+			m.stateValue = stateValue;
+			this.CountStored++;
+		}
+
+		@Override
+		boolean evicts(long key) {
+			long k = this.memoArray[(int) (key % memoArray.length)].key;
+			return k != -1 && k != key;
+		}
+	}
+
+	static final class PrimitiveMemoTable extends ContextMemoTable {
+		private long[] keys = null;
+		private int[] consumed;
+		private int[] results;
+		private int[] stateValues;
+		private Object[] memoTrees;
+		private int mask;
+		private boolean dirty = false;
+
+		@Override
+		void init(int size) {
+			int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+			if (this.keys == null || this.keys.length != capacity) {
+				this.keys = new long[capacity];
+				this.consumed = new int[capacity];
+				this.results = new int[capacity];
+				this.stateValues = new int[capacity];
+				this.memoTrees = new Object[capacity];
+				this.mask = capacity - 1;
+				Arrays.fill(this.keys, -1);
+			} else if (this.dirty) {
+				Arrays.fill(this.keys, -1);
+				Arrays.fill(this.memoTrees, null);
+			}
+			this.dirty = false;
+			this.CountStored = 0;
+			this.CountUsed = 0;
+		}
+
+		@Override
+		void release() {
+			if (this.dirty) {
+				Arrays.fill(this.memoTrees, null);
+			}
+		}
+
+		@Override
+		int size() {
+			return this.keys.length;
+		}
+
+		@Override
+		int lookup(ParserContext ctx, long key, boolean tree, boolean state) {
+			int hash = (int) key & mask;
+			if (keys[hash] == key && (!state || stateValues[hash] == ctx.stateValue)) {
+				ctx.pos += consumed[hash];
+				if (tree) {
+					ctx.left = (Tree<?>) memoTrees[hash];
+				}
+				this.CountUsed++;
+				return results[hash];
+			}
+			return NotFound;
+		}
+
+		@Override
+		void store(ParserContext ctx, long key, long consumed, Tree<?> memoTree, int result, int stateValue) {
+			if (consumed > Integer.MAX_VALUE) {
+				return;
+			}
+			int hash = (int) key & mask;
+			long k = this.keys[hash];
+			if (k != -1 && k != key && Math.abs(key - k) < span) {
+				this.CountCollided++;
+			}
+			this.keys[hash] = key;
+			this.consumed[hash] = (int) consumed;
+			this.results[hash] = result;
+			this.stateValues[hash] = stateValue;
+			this.memoTrees[hash] = memoTree;
+			this.dirty = true;
+			this.CountStored++;
+		}
+
+		@Override
+		boolean evicts(long key) {
+			long k = this.keys[(int) key & mask];
+			return k != -1 && k != key;
+		}
+	}
+
+	/* PackratMemoTable keeps every entry of a parse in a PackratHashTable */
+
+	static final class PackratMemoTable extends ContextMemoTable {
+		private final PackratHashTable table;
+		private final int maxEntries;
+
+		PackratMemoTable(int n, int window, boolean offHeap, int maxEntries) {
+			this.table = new PackratHashTable(n, window, offHeap);
+			this.maxEntries = maxEntries;
+		}
+
+		final boolean isCompatible(int window, boolean offHeap, int maxEntries) {
+			return this.table.isCompatible(window, offHeap) && this.maxEntries == maxEntries;
+		}
+
+		@Override
+		void init(int size) {
+			this.table.clear();
+			this.CountStored = 0;
+			this.CountUsed = 0;
+		}
+
+		@Override
+		void release() {
+			this.table.releaseTrees();
+		}
+
+		@Override
+		int size() {
+			return this.table.size();
+		}
+
+		@Override
+		int lookup(ParserContext ctx, long key, boolean tree, boolean state) {
+			int slot = state ? this.table.find(key, ctx.stateValue) : this.table.find(key);
+			if (slot != -1) {
+				ctx.pos += this.table.consumed(slot);
+				if (tree) {
+					ctx.left = (Tree<?>) this.table.tree(slot);
+				}
+				this.CountUsed++;
+				return this.table.result(slot);
+			}
+			return NotFound;
+		}
+
+		@Override
+		void store(ParserContext ctx, long key, long consumed, Tree<?> memoTree, int result, int stateValue) {
+			if (consumed > Integer.MAX_VALUE) {
+				return;
+			}
+			if (this.table.size() >= this.maxEntries && this.table.find(key, stateValue) == -1) {
+				ctx.budget.dropMemo();
+				return;
+			}
+			this.table.put(key, (int) consumed, result, stateValue, memoTree);
+			this.CountStored++;
+		}
+
+		@Override
+		boolean evicts(long key) {
+			return false; // overwritten only by the same key
+		}
+	}
+
+	private ContextMemoTable memoTable = null;
 	private int shift = 0;
 
 	public void initMemoTable(int w, int n) {
-		this.memoArray = new MemoEntry[w * n + 1];
-		for (int i = 0; i < this.memoArray.length; i++) {
-			this.memoArray[i] = new MemoEntry();
-			this.memoArray[i].key = -1;
-			this.memoArray[i].result = NotFound;
+		this.initMemoTable(w, n, false);
+	}
+
+	/**
+	 * Full packrat parsing (w < -1) keeps every entry, or those within
+	 * packratWindow bytes behind the furthest position stored if it is
+	 * positive; offHeap keeps the entries in a direct buffer.
+	 */
+
+	public void initMemoTable(int w, int n, boolean primitive, int packratWindow, boolean offHeap) {
+		if (w < -1) {
+			int maxEntries = this.budget != null ? this.budget.maxMemoEntries : Integer.MAX_VALUE;
+			if (!(this.memoTable instanceof PackratMemoTable) || !((PackratMemoTable) this.memoTable).isCompatible(packratWindow, offHeap, maxEntries)) {
+				this.memoTable = new PackratMemoTable(n, packratWindow, offHeap, maxEntries);
+			}
+			this.memoTable.init(0);
+			this.shift = memoShift(n);
+			this.initAdaptiveMemo(n);
+			return;
 		}
-		this.shift = (int) (Math.log(n) / Math.log(2.0)) + 1;
-		// this.initStat();
+		this.initMemoTable(w, n, primitive);
 	}
 
-	final long longkey(long pos, int memoPoint, int shift) {
-		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
+	public void initMemoTable(int w, int n, boolean primitive) {
+		if (primitive) {
+			if (!(this.memoTable instanceof PrimitiveMemoTable)) {
+				this.memoTable = new PrimitiveMemoTable();
+			}
+		} else {
+			if (!(this.memoTable instanceof EntryMemoTable)) {
+				this.memoTable = new EntryMemoTable();
+			}
+		}
+		int size = w * n + 1;
+		if (this.budget != null && size > this.budget.maxMemoEntries) {
+			size = primitive ? Integer.highestOneBit(this.budget.maxMemoEntries) : this.budget.maxMemoEntries;
+		}
+		this.memoTable.init(size);
+		this.shift = memoShift(n);
+		this.memoTable.span = (long) w << this.shift;
+		this.memoTable.CountCollided = 0;
+		this.initAdaptiveMemo(n);
 	}
 
-	public final int lookupMemo(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		if (m.key == key) {
-			this.pos += m.consumed;
-			return m.result;
+	final void initMemoTable(ContextMemoTable memoTable, int n) {
+		this.memoTable = memoTable;
+		this.shift = memoShift(n);
+		this.initAdaptiveMemo(n);
+	}
+
+	/*
+	 * Adaptive memoization. The trials of each memo point are kept here, by
+	 * memo id, since the memo points are shared by the threads that run one
+	 * parser. A pooled context keeps them from one parse to the next.
+	 */
+
+	private final static int AdaptiveWindow = 256;
+	private final static int MaxBypassWindow = 1 << 20;
+	private boolean[] bypassed = new boolean[0];
+	private int[] trialCounts;
+	private int[] trialHits;
+	private int[] bypassCounts;
+	private int[] bypassWindows;
+
+	private void initAdaptiveMemo(int n) {
+		if (this.bypassed.length != n) {
+			this.bypassed = new boolean[n];
+			this.trialCounts = new int[n];
+			this.trialHits = new int[n];
+			this.bypassCounts = new int[n];
+			this.bypassWindows = new int[n];
+			Arrays.fill(this.bypassWindows, AdaptiveWindow * 16);
 		}
-		return NotFound;
 	}
 
-	public final int lookupTreeMemo(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		if (m.key == key) {
-			this.pos += m.consumed;
-			this.left = m.memoTree;
-			return m.result;
+	public final boolean isMemoBypassed(int memoPoint) {
+		return this.bypassed[memoPoint];
+	}
+
+	/**
+	 * Returns true while the memo point is bypassed. After its bypass window
+	 * the point is put on trial again, and the window doubles for the next
+	 * time.
+	 */
+
+	public final boolean bypassMemo(int memoPoint) {
+		if (this.bypassed[memoPoint]) {
+			if (++this.bypassCounts[memoPoint] < this.bypassWindows[memoPoint]) {
+				return true;
+			}
+			this.bypassed[memoPoint] = false;
+			if (this.bypassWindows[memoPoint] < MaxBypassWindow) {
+				this.bypassWindows[memoPoint] *= 2;
+			}
 		}
-		return NotFound;
+		return false;
 	}
 
-	public void memoSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = -1;
-		// this.CountStored += 1;
+	/**
+	 * Records a lookup on trial. A memo point that hits less than once in 16
+	 * lookups over AdaptiveWindow lookups is bypassed.
+	 */
+
+	public final void trialMemo(int memoPoint, boolean hit) {
+		if (hit) {
+			this.trialHits[memoPoint]++;
+		}
+		if (++this.trialCounts[memoPoint] == AdaptiveWindow) {
+			if (this.trialHits[memoPoint] * 16 < AdaptiveWindow) {
+				this.bypassed[memoPoint] = true;
+				this.bypassCounts[memoPoint] = 0;
+			} else {
+				this.bypassWindows[memoPoint] = AdaptiveWindow * 16;
+			}
+			this.trialCounts[memoPoint] = 0;
+			this.trialHits[memoPoint] = 0;
+		}
+	}
+
+	static int memoShift(int n) {
+		return (int) (Math.log(n) / Math.log(2.0)) + 1;
+	}
+
+	final void updateWindow(SlidingWindowTuner tuner, long[] distances) {
+		tuner.update(distances, this.memoTable.CountStored, this.memoTable.CountCollided);
+	}
+
+	public void recordMemo(ParserProfiler rec) {
+		rec.setText("M.TableType", this.memoTable.getClass().getSimpleName());
+		rec.setCount("M.MemoSize", this.memoTable.size());
+		rec.setCount("M.MemoStored", this.memoTable.CountStored);
+		rec.setRatio("M.MemoHit", this.memoTable.CountUsed, this.memoTable.CountStored);
+	}
+
+	final long longkey(long pos, int memoPoint, int shift) {
+		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
 	}
 
-	public void memoTreeSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = -1;
-		// this.CountStored += 1;
+	public int lookupMemo(int memoPoint) {
+		return memoTable.lookup(this, longkey(pos, memoPoint, shift), false, false);
+	}
+
+	public int lookupTreeMemo(int memoPoint) {
+		return memoTable.lookup(this, longkey(pos, memoPoint, shift), true, false);
+	}
+
+	protected final boolean isMemoEvicted(int memoPoint, long ppos) {
+		return memoTable.evicts(longkey(ppos, memoPoint, shift));
+	}
+
+	public void memoSucc(int memoPoint, long ppos) {
+		memoTable.store(this, longkey(ppos, memoPoint, shift), pos - ppos, left, SuccFound, -1);
+	}
+
+	public void memoTreeSucc(int memoPoint, long ppos) {
+		memoTable.store(this, longkey(ppos, memoPoint, shift), pos - ppos, left, SuccFound, -1);
 	}
 
 	public void memoFail(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = 0;
-		m.result = FailFound;
-		m.stateValue = -1;
+		memoTable.store(this, longkey(pos, memoPoint, shift), 0, left, FailFound, -1);
 	}
 
 	/* State Version */
 
 	public final int lookupStateMemo(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		if (m.key == key) {
-			this.pos += m.consumed;
-			return m.result;
-		}
-		return NotFound;
+		return memoTable.lookup(this, longkey(pos, memoPoint, shift), false, false);
 	}
 
 	public final int lookupStateTreeMemo(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		if (m.key == key && m.stateValue == this.stateValue) {
-			this.pos += m.consumed;
-			this.left = m.memoTree;
-			return m.result;
-		}
-		return NotFound;
-	}
-
-	public void memoStateSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = this.stateValue;
-		// this.CountStored += 1;
-	}
-
-	public void memoStateTreeSucc(int memoPoint, int ppos) {
-		long key = longkey(ppos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = pos - ppos;
-		m.result = SuccFound;
-		m.stateValue = this.stateValue;
-		// this.CountStored += 1;
+		return memoTable.lookup(this, longkey(pos, memoPoint, shift), true, true);
+	}
+
+	public void memoStateSucc(int memoPoint, long ppos) {
+		memoTable.store(this, longkey(ppos, memoPoint, shift), pos - ppos, left, SuccFound, this.stateValue);
+	}
+
+	public void memoStateTreeSucc(int memoPoint, long ppos) {
+		memoTable.store(this, longkey(ppos, memoPoint, shift), pos - ppos, left, SuccFound, this.stateValue);
 	}
 
 	public void memoStateFail(int memoPoint) {
-		long key = longkey(pos, memoPoint, shift);
-		int hash = (int) (key % memoArray.length);
-		MemoEntry m = this.memoArray[hash];
-		m.key = key;
-		m.memoTree = left;
-		m.consumed = 0;
-		m.result = FailFound;
-		m.stateValue = this.stateValue;
+		memoTable.store(this, longkey(pos, memoPoint, shift), 0, left, FailFound, this.stateValue);
 	}
 
 }
@@ -2,6 +2,7 @@ package nez.parser;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -596,7 +597,31 @@ public class ParserOptimizer {
 	// used to test inlining
 	public final static boolean isSingleInstruction(Expression e) {
 		if (e instanceof Nez.Not || e instanceof Nez.ZeroMore || e instanceof Nez.Option || e instanceof Nez.OneMore) {
-			return isSingleCharacter(e.get(0)) || isMultiChar(e.get(0));
+			if (isSingleCharacter(e.get(0)) || isMultiChar(e.get(0))) {
+				return true;
+			}
+			return e instanceof Nez.ZeroMore && isScanUntil(e.get(0));
+		}
+		return false;
+	}
+
+	// a choice of literals, matched in a keyword trie
+	public final static boolean isKeywordSet(Nez.Choice e) {
+		if (e.size() < 4) {
+			return false;
+		}
+		for (Expression sub : e) {
+			if (!isMultiChar(sub)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// (!'text' .), repeated into a scan to text
+	public final static boolean isScanUntil(Expression e) {
+		if (e instanceof Nez.Pair && e.get(0) instanceof Nez.Not && e.get(1) instanceof Nez.Any) {
+			return isMultiChar(e.get(0).get(0));
 		}
 		return false;
 	}
@@ -634,6 +659,7 @@ public class ParserOptimizer {
 		}
 
 		private NonterminalReference refc = null;
+		private final HashSet<String> optimizing = new HashSet<>(); // the productions being optimized
 
 		void optimize() {
 			long t1 = System.nanoTime();
@@ -668,7 +694,9 @@ public class ParserOptimizer {
 			String uname = p.getUniqueName();
 			if (!this.isVisited(uname)) {
 				this.visited(uname);
+				this.optimizing.add(uname);
 				Expression optimized = this.visitInner(p.getExpression(), null);
+				this.optimizing.remove(uname);
 				p.setExpression(optimized);
 				if (strategy.Oalias) {
 					performAliasAnalysis(p);
@@ -915,8 +943,10 @@ public class ParserOptimizer {
 				if (InliningSubchoice && strategy.Oinline) {
 					while (e instanceof NonTerminal) {
 						NonTerminal n = (NonTerminal) e;
-						Production p = n.getProduction();
-						e = optimizeProduction(p);
+						if (this.optimizing.contains(n.getUniqueName())) {
+							return e; // a recursive call is kept, or the body would contain itself
+						}
+						e = optimizeProduction(n.getProduction());
 					}
 					return e;
 				}
@@ -937,7 +967,7 @@ public class ParserOptimizer {
 
 		private void optimizeChoicePrediction(Expression e) {
 			if (e instanceof Nez.Choice) {
-				if (((Nez.Choice) e).predicted == null) {
+				if (((Nez.Choice) e).predicted == null && !(strategy.Okeyword && isKeywordSet((Nez.Choice) e))) {
 					optimizeChoicePrediction((Nez.Choice) e);
 					for (Expression sub : e) {
 						if (!(sub instanceof Nez.Choice)) {
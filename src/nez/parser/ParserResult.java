@@ -0,0 +1,70 @@
+package nez.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nez.ast.Source;
+import nez.ast.SourceError;
+import nez.ast.Tree;
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+
+/**
+ * ParserResult holds the outcome of parsing one input in a batch; errors are
+ * kept per input instead of in the shared Parser.
+ */
+
+public class ParserResult {
+	private final Source source;
+	private Tree<?> tree = null;
+	private UList<SourceError> errors = null;
+
+	public ParserResult(Source source) {
+		this.source = source;
+	}
+
+	public final Source getSource() {
+		return this.source;
+	}
+
+	public final Tree<?> getTree() {
+		return this.tree;
+	}
+
+	final void setTree(Tree<?> tree) {
+		this.tree = tree;
+	}
+
+	public final boolean isSucceeded() {
+		return this.tree != null;
+	}
+
+	final void addError(SourceError e) {
+		if (this.errors == null) {
+			this.errors = new UList<SourceError>(new SourceError[2]);
+		}
+		this.errors.add(e);
+	}
+
+	public final boolean hasErrors() {
+		return this.errors != null;
+	}
+
+	public final List<SourceError> getErrors() {
+		return errors == null ? new ArrayList<SourceError>() : this.errors;
+	}
+
+	public final boolean showErrors() {
+		if (errors != null) {
+			for (SourceError e : errors) {
+				ConsoleUtils.println(e.toString());
+			}
+			return true;
+		}
+		return false;
+	}
+
+	public static interface Handler {
+		public void handle(ParserResult result);
+	}
+}
@@ -0,0 +1,17 @@
+package nez.parser;
+
+import nez.ast.Source;
+
+/**
+ * ParserSnapshot is the result of an incremental parse. Besides the tree and
+ * errors, it keeps the memo entries that Parser.reparse reuses after an edit.
+ */
+
+public class ParserSnapshot extends ParserResult {
+	final IncrementalMemoTable memo;
+
+	ParserSnapshot(Source source, IncrementalMemoTable memo) {
+		super(source);
+		this.memo = memo;
+	}
+}
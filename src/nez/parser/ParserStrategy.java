@@ -5,12 +5,16 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashSet;
 
+import nez.ast.ColumnarTree;
+import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.ast.SourceLocation;
 import nez.ast.Tree;
 import nez.lang.Grammar;
+import nez.parser.vm.BacktrackProfiler;
 import nez.parser.vm.MozMachine;
 import nez.parser.vm.ParserMachineCompiler;
+import nez.parser.vm.ParserMachineProfiler;
 import nez.util.ConsoleUtils;
 import nez.util.Verbose;
 
@@ -32,11 +36,15 @@ public class ParserStrategy {
 	public boolean Ostring = true;
 	public int ChoicePrediction = 2;
 	public boolean Odfa = false;
+	public boolean Okeyword = false; // literal choices in a KeywordTrie
 
 	public boolean Oorder = true;
 	public boolean Detree = false;
 	/* Classic */
 	public boolean Moz = false;
+	/* Backend */
+	public boolean JIT = false;
+	public boolean IntCode = false;
 
 	/* PackratParsing */
 	public boolean PackratParsing = true;
@@ -44,10 +52,28 @@ public class ParserStrategy {
 	public double TreeFactor = 3.00;
 	public double MemoLimit = 0.5;
 	public boolean StatefulPackratParsing = false;
+	public boolean PrimitiveMemo = false;
+	public int PackratWindow = 0; // with SlidingWindow < -1; 0 keeps all
+	public boolean InternTokens = false; // Tree.toText shares token texts
+	public boolean OffHeapMemo = false;
+	public boolean AdaptiveMemo = false;
+	public boolean AdaptiveWindow = false; // SlidingWindow is the initial size
+
+	/* Tree */
+	public boolean Columnar = false; // trees in a ColumnarTree table
+
+	/* Budget (0 is unlimited; TimeLimit is in milliseconds) */
+	public int StepLimit = 0;
+	public int BacktrackLimit = 0;
+	public int TimeLimit = 0;
+	public int MemoEntryLimit = 0;
+	public int TreeLimit = 0;
+	public int SymbolLimit = 0;
 
 	/* Profiling */
 	public boolean Coverage = false;
 	public boolean Profiling = false;
+	public boolean BacktrackProfiling = false;
 	public boolean Wnone = false;
 	public boolean Wall = false;
 
@@ -163,6 +189,29 @@ public class ParserStrategy {
 		return s;
 	}
 
+	/**
+	 * Returns the option that +IntCode cannot run with, or null. These
+	 * options need the instructions, which the int code replaces.
+	 */
+
+	public final String getIntCodeConflict() {
+		if (IntCode) {
+			if (Moz) {
+				return "+Moz";
+			}
+			if (Coverage) {
+				return "+Coverage";
+			}
+			if (Profiling) {
+				return "+Profiling";
+			}
+			if (BacktrackProfiling) {
+				return "+BacktrackProfiling";
+			}
+		}
+		return null;
+	}
+
 	// ----------------------------------------------------------------------
 	// reporter
 
@@ -245,8 +294,14 @@ public class ParserStrategy {
 		return bc.compile(pgrammar);
 	}
 
+	/* the tree prototype of the command line tools */
+
+	public final Tree<?> newTree() {
+		return this.Columnar ? new ColumnarTree() : new CommonTree();
+	}
+
 	public ParserInstance newParserContext(Source source, int memoPointSize, Tree<?> prototype) {
-		MemoTable table = MemoTable.newTable(this.SlidingWindow, memoPointSize);
+		MemoTable table = MemoTable.newTable(this.SlidingWindow, memoPointSize, this.PackratWindow, this.OffHeapMemo);
 		MozMachine machine = new MozMachine(source);
 		machine.init(table, prototype);
 		return new ParserInstance(source, machine);
@@ -266,4 +321,28 @@ public class ParserStrategy {
 		return null;
 	}
 
+	private ParserMachineProfiler.Profile profile;
+
+	public final synchronized ParserMachineProfiler.Profile getMachineProfile() {
+		if (Profiling) {
+			if (profile == null) {
+				profile = new ParserMachineProfiler.Profile();
+			}
+			return profile;
+		}
+		return null;
+	}
+
+	private BacktrackProfiler.Report backtrackReport;
+
+	public final synchronized BacktrackProfiler.Report getBacktrackReport() {
+		if (BacktrackProfiling) {
+			if (backtrackReport == null) {
+				backtrackReport = new BacktrackProfiler.Report();
+			}
+			return backtrackReport;
+		}
+		return null;
+	}
+
 }
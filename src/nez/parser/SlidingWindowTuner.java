@@ -0,0 +1,92 @@
+package nez.parser;
+
+import nez.util.Verbose;
+
+/**
+ * SlidingWindowTuner sizes the sliding memo window of a parser from the
+ * parses it has done (ParserStrategy.AdaptiveWindow). A memo entry is
+ * reused when the parser backtracks to the position it was stored at, so
+ * the window is the smallest power of two that covers Coverage of the
+ * backtrack distances observed. The window doubles when the memo table
+ * evicts too many entries that are still within the window, and shrinks
+ * at most by half after each parse. The distances of earlier parses are
+ * halved as more are added, so that the window follows the corpus.
+ */
+
+public final class SlidingWindowTuner {
+	final static double Coverage = 0.99;
+	final static double CollisionRatio = 0.1;
+	final static int MinWindow = 4;
+	final static int MaxWindow = 1 << 14;
+	private final static long DecayCount = 1L << 24;
+
+	private final long[] distances = new long[65]; // by powers of two
+	private long total;
+	private long stored;
+	private long collided;
+	private long parses;
+	private volatile int window;
+
+	SlidingWindowTuner(int window) {
+		this.window = Math.max(MinWindow, Math.min(MaxWindow, window));
+	}
+
+	public final int getWindow() {
+		return this.window;
+	}
+
+	/* adds the backtrack distances and memo counts of a parse */
+
+	synchronized void update(long[] d, long stored, long collided) {
+		for (int i = 0; i < d.length; i++) {
+			this.distances[i] += d[i];
+			this.total += d[i];
+		}
+		this.stored += stored;
+		this.collided += collided;
+		this.parses++;
+		if (this.total > DecayCount) {
+			this.total = 0;
+			for (int i = 0; i < this.distances.length; i++) {
+				this.distances[i] >>= 1;
+				this.total += this.distances[i];
+			}
+			this.stored >>= 1;
+			this.collided >>= 1;
+		}
+		int w = this.window;
+		int target = w;
+		if (this.stored > 0 && this.collided > this.stored * CollisionRatio) {
+			target = w * 2;
+			this.stored = 0;
+			this.collided = 0;
+		} else if (this.total > 0) {
+			long rank = (long) Math.ceil(this.total * Coverage);
+			long n = 0;
+			for (int i = 0; i < this.distances.length; i++) {
+				n += this.distances[i];
+				if (n >= rank) {
+					target = i >= 31 ? MaxWindow : 1 << i;
+					break;
+				}
+			}
+			if (target < w / 2) {
+				target = w / 2;
+			}
+		}
+		target = Math.max(MinWindow, Math.min(MaxWindow, target));
+		if (target != w) {
+			this.window = target;
+			Verbose.println("sliding window " + w + " -> " + target + " after " + this.parses + " parses");
+		}
+	}
+
+	public final void record(ParserProfiler rec) {
+		rec.setCount("M.SlidingWindow", this.window);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "window=" + this.window + " parses=" + this.parses + " collisions=" + this.collided + "/" + this.stored;
+	}
+}
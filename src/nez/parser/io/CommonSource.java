@@ -7,7 +7,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 
 import nez.ast.Source;
+import nez.ast.TokenTable;
 import nez.util.FileBuilder;
+import nez.util.Verbose;
 
 public abstract class CommonSource implements Source {
 
@@ -19,6 +21,18 @@ public abstract class CommonSource implements Source {
 		this.startLineNum = linenum;
 	}
 
+	/* the table that Tree.toText shares the texts of tokens with, if any */
+
+	private TokenTable tokens = null;
+
+	public final TokenTable getTokenTable() {
+		return this.tokens;
+	}
+
+	public final void setTokenTable(TokenTable tokens) {
+		this.tokens = tokens;
+	}
+
 	@Override
 	public final String getResourceName() {
 		return resourceName;
@@ -184,6 +198,8 @@ public abstract class CommonSource implements Source {
 		return new StringSource(resource, linenum, str);
 	}
 
+	public static long MappedFileSize = 1L << 20;
+
 	public final static Source newFileSource(String fileName) throws IOException {
 		File f = new File(fileName);
 		if (!f.isFile()) {
@@ -204,6 +220,13 @@ public abstract class CommonSource implements Source {
 				return new StringSource(fileName, 1, builder.toString());
 			}
 		}
+		if (f.isFile() && f.length() >= MappedFileSize) {
+			try {
+				return new MappedFileSource(fileName);
+			} catch (IOException e) {
+				Verbose.traceException(e);
+			}
+		}
 		return new FileSource(fileName);
 	}
 }
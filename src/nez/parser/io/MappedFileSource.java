@@ -0,0 +1,169 @@
+package nez.parser.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * MappedFileSource reads a file through memory-mapped segments. Each segment
+ * covers SegmentSize bytes and is mapped with an Overlap tail so that
+ * matching a short text never crosses a segment.
+ */
+
+public class MappedFileSource extends CommonSource {
+	public final static int SegmentShift = 30;
+	public final static long SegmentSize = 1L << SegmentShift;
+	public final static long SegmentMask = SegmentSize - 1;
+	public final static int Overlap = 4096;
+	public final static int LineBlockShift = 16;
+
+	private final long fileLength;
+	private final MappedByteBuffer[] segments;
+	private final MappedByteBuffer first;
+	private final long[] lines;
+	private volatile int linesComputed; // lines[0..linesComputed] are final
+
+	public MappedFileSource(String fileName) throws IOException {
+		super(fileName, 1);
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(fileName, "r");
+			FileChannel channel = file.getChannel();
+			this.fileLength = channel.size();
+			int size = (int) ((this.fileLength + SegmentMask) >>> SegmentShift);
+			this.segments = new MappedByteBuffer[size];
+			for (int i = 0; i < size; i++) {
+				long offset = (long) i << SegmentShift;
+				long len = Math.min(SegmentSize + Overlap, this.fileLength - offset);
+				this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+			}
+			this.first = size > 0 ? this.segments[0] : null;
+		} finally {
+			if (file != null) {
+				file.close(); // mappings stay valid after close
+			}
+		}
+		this.lines = new long[(int) (this.fileLength >>> LineBlockShift) + 1];
+		this.lines[0] = this.startLineNum;
+		this.linesComputed = 0;
+	}
+
+	@Override
+	public final long length() {
+		return this.fileLength;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if (pos < SegmentSize && pos < this.fileLength) {
+			return this.first.get((int) pos) & 0xff;
+		}
+		if (pos >= this.fileLength || pos < 0) {
+			return 0;
+		}
+		return this.segments[(int) (pos >>> SegmentShift)].get((int) (pos & SegmentMask)) & 0xff;
+	}
+
+	@Override
+	public final boolean eof(long pos) {
+		return pos >= this.fileLength;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if (pos + text.length > this.fileLength) {
+			return false;
+		}
+		if (text.length == 0) {
+			return true; // an empty file has no segment
+		}
+		int offset = (int) (pos & SegmentMask);
+		MappedByteBuffer seg = this.segments[(int) (pos >>> SegmentShift)];
+		if (offset + text.length <= seg.limit()) {
+			for (int i = 0; i < text.length; i++) {
+				if (text[i] != seg.get(offset + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (int i = 0; i < text.length; i++) {
+			if ((text[i] & 0xff) != this.byteAt(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final byte[] subByte(long startIndex, long endIndex) {
+		if (endIndex > this.fileLength) {
+			endIndex = this.fileLength;
+		}
+		if (!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int) (endIndex - startIndex)];
+		int copied = 0;
+		long pos = startIndex;
+		while (copied < b.length) {
+			MappedByteBuffer seg = this.segments[(int) (pos >>> SegmentShift)].duplicate();
+			int offset = (int) (pos & SegmentMask);
+			int len = Math.min(b.length - copied, seg.limit() - offset);
+			seg.position(offset);
+			seg.get(b, copied, len);
+			copied += len;
+			pos += len;
+		}
+		return b;
+	}
+
+	@Override
+	public final String subString(long startIndex, long endIndex) {
+		try {
+			return new String(this.subByte(startIndex, endIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+			Verbose.traceException(e);
+		}
+		return "";
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		if (pos > this.fileLength) {
+			pos = this.fileLength;
+		}
+		int index = (int) (pos >>> LineBlockShift);
+		if (this.linesComputed < index) {
+			this.computeLines(index);
+		}
+		return this.countLines(this.lines[index], (long) index << LineBlockShift, pos);
+	}
+
+	/* a source is shared by the workers of parseAll */
+
+	private synchronized void computeLines(int index) {
+		int computed = this.linesComputed;
+		while (computed < index) {
+			long start = (long) computed << LineBlockShift;
+			this.lines[computed + 1] = this.countLines(this.lines[computed], start, start + (1L << LineBlockShift));
+			computed++;
+		}
+		this.linesComputed = computed;
+	}
+
+	private long countLines(long count, long start, long end) {
+		for (long p = start; p < end; p++) {
+			if (this.byteAt(p) == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,211 @@
+package nez.parser.io;
+
+import java.io.UnsupportedEncodingException;
+
+import nez.ast.Source;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * PieceTableSource is a source edited from another one. Its text is a list of
+ * pieces, each a range of the original source or of the bytes an edit
+ * inserted, so that an edit copies the list of pieces rather than the text.
+ * The list grows by at most two pieces by edit.
+ */
+
+public class PieceTableSource extends CommonSource {
+	private final Source base;
+	private final Object[] texts; // the base source or the inserted bytes
+	private final long[] offsets; // where each piece starts in its text
+	private final long[] ends; // where each piece ends in this source
+	private final long length;
+	private int last = 0; // the piece of the last byte read
+
+	private PieceTableSource(Source base, Object[] texts, long[] offsets, long[] ends) {
+		super(base.getResourceName(), base.linenum(0));
+		this.base = base;
+		this.texts = texts;
+		this.offsets = offsets;
+		this.ends = ends;
+		this.length = ends.length == 0 ? 0 : ends[ends.length - 1];
+	}
+
+	/**
+	 * Returns the source with deleted bytes at offset replaced by inserted.
+	 */
+
+	public final static PieceTableSource edit(Source s, long offset, long deleted, byte[] inserted) {
+		if (offset < 0 || deleted < 0 || offset + deleted > s.length()) {
+			throw new IndexOutOfBoundsException("edit " + offset + "+" + deleted + " in " + s.length());
+		}
+		PieceTableSource p = s instanceof PieceTableSource ? (PieceTableSource) s : new PieceTableSource(s, new Object[] { s }, new long[] { 0 }, new long[] { s.length() });
+		int size = p.ends.length + 3;
+		Object[] texts = new Object[size];
+		long[] offsets = new long[size];
+		long[] ends = new long[size];
+		int n = 0;
+		long start = 0;
+		for (int i = 0; i < p.ends.length; i++) {
+			long end = p.ends[i];
+			if (start < offset) { // the head of the piece before the edit
+				n = add(texts, offsets, ends, n, p.texts[i], p.offsets[i], Math.min(end, offset) - start);
+			}
+			if (start <= offset && offset < end || offset == p.length && i == p.ends.length - 1) {
+				n = add(texts, offsets, ends, n, inserted.clone(), 0, inserted.length);
+				inserted = null;
+			}
+			if (end > offset + deleted) { // the tail of the piece after the edit
+				long from = Math.max(start, offset + deleted);
+				n = add(texts, offsets, ends, n, p.texts[i], p.offsets[i] + from - start, end - from);
+			}
+			start = end;
+		}
+		if (inserted != null) { // into an empty source
+			n = add(texts, offsets, ends, n, inserted.clone(), 0, inserted.length);
+		}
+		return new PieceTableSource(p.base, trim(texts, n), trim(offsets, n), trim(ends, n));
+	}
+
+	private static int add(Object[] texts, long[] offsets, long[] ends, int n, Object text, long offset, long length) {
+		if (length > 0) {
+			texts[n] = text;
+			offsets[n] = offset;
+			ends[n] = (n == 0 ? 0 : ends[n - 1]) + length;
+			n++;
+		}
+		return n;
+	}
+
+	private static Object[] trim(Object[] a, int n) {
+		Object[] b = new Object[n];
+		System.arraycopy(a, 0, b, 0, n);
+		return b;
+	}
+
+	private static long[] trim(long[] a, int n) {
+		long[] b = new long[n];
+		System.arraycopy(a, 0, b, 0, n);
+		return b;
+	}
+
+	public final int size() {
+		return this.ends.length;
+	}
+
+	/* the piece at pos, which is in [0, length) */
+
+	private int piece(long pos) {
+		int i = this.last;
+		if (pos < this.ends[i] && (i == 0 || pos >= this.ends[i - 1])) {
+			return i;
+		}
+		int lo = 0;
+		int hi = this.ends.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this.ends[mid] <= pos) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		this.last = lo;
+		return lo;
+	}
+
+	private long begin(int i) {
+		return i == 0 ? 0 : this.ends[i - 1];
+	}
+
+	@Override
+	public final long length() {
+		return this.length;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if (pos < 0 || pos >= this.length) {
+			return 0;
+		}
+		int i = this.piece(pos);
+		long p = this.offsets[i] + pos - this.begin(i);
+		Object text = this.texts[i];
+		return text instanceof byte[] ? ((byte[]) text)[(int) p] & 0xff : ((Source) text).byteAt(p);
+	}
+
+	@Override
+	public final boolean eof(long pos) {
+		return pos >= this.length;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if (pos + text.length > this.length) {
+			return false;
+		}
+		for (int i = 0; i < text.length; i++) {
+			if ((text[i] & 0xff) != this.byteAt(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final byte[] subByte(long startIndex, long endIndex) {
+		if (endIndex > this.length) {
+			endIndex = this.length;
+		}
+		if (!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int) (endIndex - startIndex)];
+		int copied = 0;
+		for (int i = this.piece(startIndex); copied < b.length; i++) {
+			long from = Math.max(startIndex, this.begin(i));
+			long to = Math.min(endIndex, this.ends[i]);
+			long p = this.offsets[i] + from - this.begin(i);
+			Object text = this.texts[i];
+			if (text instanceof byte[]) {
+				System.arraycopy(text, (int) p, b, copied, (int) (to - from));
+			} else {
+				byte[] sub = ((Source) text).subByte(p, p + to - from);
+				System.arraycopy(sub, 0, b, copied, sub.length);
+			}
+			copied += to - from;
+		}
+		return b;
+	}
+
+	@Override
+	public final String subString(long startIndex, long endIndex) {
+		try {
+			return new String(this.subByte(startIndex, endIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+			Verbose.traceException(e);
+		}
+		return "";
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		long count = this.startLineNum;
+		for (int i = 0; i < this.ends.length && this.begin(i) < pos; i++) {
+			long p = this.offsets[i];
+			long len = Math.min(pos, this.ends[i]) - this.begin(i);
+			Object text = this.texts[i];
+			if (text instanceof byte[]) {
+				byte[] b = (byte[]) text;
+				for (int j = (int) p; j < p + len; j++) {
+					if (b[j] == '\n') {
+						count++;
+					}
+				}
+			} else {
+				Source s = (Source) text;
+				count += s.linenum(p + len) - s.linenum(p);
+			}
+		}
+		return count;
+	}
+}
@@ -26,7 +26,7 @@ class ASTMachine {
 
 	public ASTMachine(Source source, Tree<?> prototype) {
 		this.source = source;
-		this.prototype = prototype == null ? new EmptyTree() : prototype;
+		this.prototype = prototype == null ? new EmptyTree() : prototype.newPrototype(source);
 		// this.log(ASTMachine.Nop, 0, null);
 		this.firstLog = new ASTLog();
 		this.lastAppendedLog = this.firstLog;
@@ -0,0 +1,293 @@
+package nez.parser.vm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.parser.MemoPoint;
+import nez.util.ConsoleUtils;
+
+/**
+ * BacktrackProfiler records where backtracking makes the parser read the
+ * input again. A failure that rolls back from fpos to pos adds the bytes of
+ * [pos, fpos) to the regions of 2^RegionShift bytes it overlaps, and
+ * fpos - pos to the choice that failed. A choice is identified by the
+ * instruction of its next alternative and the production it belongs to.
+ * The counts of each input are summarized into the Report of the strategy.
+ *
+ * The counts are kept by region, so that an input takes one int per
+ * 2^RegionShift bytes, and a failure updates one region for each
+ * 2^RegionShift bytes the parser reads again.
+ */
+
+public class BacktrackProfiler extends ParserMachineProfiler {
+	public final static int RegionShift = 6; // regions of 64 bytes
+	private final static int RegionMask = (1 << RegionShift) - 1;
+	public static int WorstRegions = 3;
+	public static double Threshold = 1.0; // re-read bytes per input byte
+
+	private final Report report;
+	private int[] regions; // re-read bytes by region
+	private IdentityHashMap<MozInst, Choice> choices;
+	private HashMap<Long, long[]> regionChoices;
+
+	private BacktrackProfiler(Source source, Tree<?> proto, MemoPoint[] memoPoints, Report report) {
+		super(source, proto, memoPoints);
+		this.report = report;
+		this.clearCounts();
+	}
+
+	public final static ParserMachineContext newContext(Source source, Tree<?> proto, MemoPoint[] memoPoints, Report report) {
+		return new BacktrackProfiler(source, proto, memoPoints, report);
+	}
+
+	private static class Choice {
+		final String name;
+		final int index;
+		long fails;
+		long rereadBytes;
+
+		Choice(String name, int index) {
+			this.name = name;
+			this.index = index;
+		}
+	}
+
+	@Override
+	public void begin() {
+		super.begin();
+		this.clearCounts();
+	}
+
+	private void clearCounts() {
+		long size = (this.source.length() >> RegionShift) + 1;
+		this.regions = size < Integer.MAX_VALUE ? new int[(int) size] : null;
+		this.choices = new IdentityHashMap<>();
+		this.regionChoices = new HashMap<>();
+	}
+
+	@Override
+	public void flush(Profile shared) {
+		if (this.report != null) {
+			this.report.add(this.summarize());
+		}
+		super.flush(shared);
+	}
+
+	@Override
+	public MozInst xFail() {
+		long fpos = this.pos;
+		MozInst next = super.xFail();
+		if (fpos > this.pos) {
+			long distance = fpos - this.pos;
+			Choice c = choices.get(next);
+			if (c == null) {
+				c = new Choice(this.getProductionName() + " L" + next.id, choices.size());
+				choices.put(next, c);
+			}
+			c.fails++;
+			c.rereadBytes += distance;
+			if (regions != null) {
+				this.cover(c.index, this.pos, fpos);
+			}
+		}
+		return next;
+	}
+
+	private void cover(int choice, long start, long end) {
+		int last = (int) ((Math.min(end, this.source.length()) - 1) >> RegionShift);
+		for (int r = (int) (start >> RegionShift); r <= last; r++) {
+			long from = Math.max(start, (long) r << RegionShift);
+			long to = Math.min(end, (long) (r + 1) << RegionShift);
+			regions[r] += (int) (to - from);
+			Long key = ((long) r << 24) | choice;
+			long[] bytes = regionChoices.get(key);
+			if (bytes == null) {
+				bytes = new long[1];
+				regionChoices.put(key, bytes);
+			}
+			bytes[0] += to - from;
+		}
+	}
+
+	private Input summarize() {
+		Input input = new Input(source.getResourceName(), source.length());
+		for (Choice c : choices.values()) {
+			input.choices.put(c.name, new long[] { c.fails, c.rereadBytes });
+			input.reread += c.rereadBytes;
+		}
+		if (this.regions == null) {
+			return input;
+		}
+		long[] regions = new long[this.regions.length];
+		int most = 0;
+		for (int i = 0; i < regions.length; i++) {
+			regions[i] = this.regions[i];
+			if (regions[i] > regions[most]) {
+				most = i;
+			}
+		}
+		input.maxCount = (int) ((regions[most] + RegionMask) >> RegionShift); // per byte, rounded up
+		input.maxPos = (long) most << RegionShift;
+		String[] names = new String[choices.size()];
+		for (Choice c : choices.values()) {
+			names[c.index] = c.name;
+		}
+		for (int n = 0; n < WorstRegions; n++) {
+			int worst = -1;
+			for (int i = 0; i < regions.length; i++) {
+				if (regions[i] > 0 && (worst == -1 || regions[i] > regions[worst])) {
+					worst = i;
+				}
+			}
+			if (worst == -1) {
+				break;
+			}
+			Region r = new Region((long) worst << RegionShift, regions[worst]);
+			r.line = source.linenum(r.pos);
+			long max = 0;
+			for (Map.Entry<Long, long[]> e : regionChoices.entrySet()) {
+				if (e.getKey() >> 24 == worst && e.getValue()[0] > max) {
+					max = e.getValue()[0];
+					r.choice = names[(int) (e.getKey() & 0xffffff)];
+				}
+			}
+			input.regions.add(r);
+			regions[worst] = 0;
+		}
+		return input;
+	}
+
+	/* Report */
+
+	static class Region {
+		final long pos;
+		final long reread;
+		long line;
+		String choice;
+
+		Region(long pos, long reread) {
+			this.pos = pos;
+			this.reread = reread;
+		}
+	}
+
+	static class Input {
+		final String name;
+		final long length;
+		long reread;
+		int maxCount;
+		long maxPos;
+		final HashMap<String, long[]> choices = new HashMap<>();
+		final ArrayList<Region> regions = new ArrayList<>();
+
+		Input(String name, long length) {
+			this.name = name;
+			this.length = length;
+		}
+
+		double ratio() {
+			return length == 0 ? 0 : (double) reread / length;
+		}
+	}
+
+	/**
+	 * Report is the summary of the inputs parsed with BacktrackProfiling,
+	 * shared by the threads of a parser.
+	 */
+
+	public final static class Report {
+		private final ArrayList<Input> inputs = new ArrayList<>();
+		private final LinkedHashMap<String, long[]> choices = new LinkedHashMap<>();
+
+		synchronized void add(Input input) {
+			inputs.add(input);
+			for (Map.Entry<String, long[]> e : input.choices.entrySet()) {
+				long[] c = choices.get(e.getKey());
+				if (c == null) {
+					c = new long[2];
+					choices.put(e.getKey(), c);
+				}
+				c[0] += e.getValue()[0];
+				c[1] += e.getValue()[1];
+			}
+			input.choices.clear();
+		}
+
+		synchronized List<Input> getInputs() {
+			return new ArrayList<>(inputs);
+		}
+
+		/* fails and re-read bytes by choice */
+
+		synchronized Map<String, long[]> getChoices() {
+			Map<String, long[]> copy = new HashMap<>();
+			for (Map.Entry<String, long[]> e : choices.entrySet()) {
+				copy.put(e.getKey(), e.getValue().clone());
+			}
+			return copy;
+		}
+
+		private static String production(String choice) {
+			return choice.substring(0, choice.lastIndexOf(' '));
+		}
+
+		/**
+		 * Prints the inputs, the worst regions of the inputs that re-read
+		 * more than Threshold times their length, and the productions and
+		 * choices by re-read bytes. If parsing time is taken as proportional
+		 * to the bytes read, removing the backtracking of a production
+		 * speeds up the corpus by (N + R) / (N + R - Rp), where N is the
+		 * input bytes, R the re-read bytes and Rp those of the production.
+		 */
+
+		public synchronized void dump(int top) {
+			long length = 0;
+			long reread = 0;
+			ConsoleUtils.println(String.format("%-40s %10s %12s %8s %8s", "input", "bytes", "re-read", "ratio", "max"));
+			for (Input in : inputs) {
+				length += in.length;
+				reread += in.reread;
+				ConsoleUtils.println(String.format("%-40s %10d %12d %8.2f %8d%s", in.name, in.length, in.reread, in.ratio(), in.maxCount, in.ratio() > Threshold ? " !" : ""));
+			}
+			for (Input in : inputs) {
+				if (in.ratio() > Threshold) {
+					ConsoleUtils.println("");
+					ConsoleUtils.println(in.name + ": re-read " + String.format("%.2f", in.ratio()) + " times its length, up to " + in.maxCount + " times in the region at " + in.maxPos);
+					for (Region r : in.regions) {
+						ConsoleUtils.println(String.format("  line %-8d [%d, %d) re-read %d bytes, mostly by %s", r.line, r.pos, r.pos + (1 << RegionShift), r.reread, r.choice));
+					}
+				}
+			}
+			HashMap<String, Long> productions = new HashMap<>();
+			for (Map.Entry<String, long[]> e : choices.entrySet()) {
+				String p = production(e.getKey());
+				Long n = productions.get(p);
+				productions.put(p, (n == null ? 0 : n) + e.getValue()[1]);
+			}
+			List<Map.Entry<String, Long>> plist = new ArrayList<>(productions.entrySet());
+			Collections.sort(plist, (e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+			ConsoleUtils.println("");
+			ConsoleUtils.println(String.format("%-40s %12s %8s %8s", "production", "re-read", "share", "speedup"));
+			for (int i = 0; i < plist.size() && i < top; i++) {
+				long rp = plist.get(i).getValue();
+				double share = reread == 0 ? 0 : 100.0 * rp / reread;
+				double speedup = (double) (length + reread) / (length + reread - rp);
+				ConsoleUtils.println(String.format("%-40s %12d %7.2f%% %7.3fx", plist.get(i).getKey(), rp, share, speedup));
+			}
+			List<Map.Entry<String, long[]>> clist = new ArrayList<>(choices.entrySet());
+			Collections.sort(clist, (e1, e2) -> Long.compare(e2.getValue()[1], e1.getValue()[1]));
+			ConsoleUtils.println("");
+			ConsoleUtils.println(String.format("%-40s %12s %12s", "choice", "failures", "re-read"));
+			for (int i = 0; i < clist.size() && i < top; i++) {
+				ConsoleUtils.println(String.format("%-40s %12d %12d", clist.get(i).getKey(), clist.get(i).getValue()[0], clist.get(i).getValue()[1]));
+			}
+		}
+	}
+}
@@ -67,6 +67,10 @@ public abstract class InstructionVisitor {
 
 	public abstract void visitRSet(Moz86.RSet inst); //
 
+	public abstract void visitScan(Moz86.Scan inst); //
+
+	public abstract void visitKeyword(Moz86.Keyword inst); //
+
 	/* Dispatch */
 
 	public abstract void visitDispatch(Moz86.Dispatch inst); //
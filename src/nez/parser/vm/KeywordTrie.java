@@ -0,0 +1,139 @@
+package nez.parser.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import nez.ast.Source;
+
+/**
+ * KeywordTrie is a byte trie of the literals of an ordered choice, built
+ * at compile time. A match walks the input once, from the root, and keeps
+ * the first literal in the order of the choice that ends on the path; the
+ * walk stops as soon as no literal below the node comes earlier in the
+ * choice. The result is that of trying the literals one after another.
+ *
+ * The root has a table of 256 children; the other nodes keep their
+ * children in a range of the labels and targets, searched linearly.
+ */
+
+public final class KeywordTrie {
+	private final static int Unmatched = Integer.MAX_VALUE;
+
+	final byte[][] keywords;
+	private final int[] roots = new int[256]; // the children of the root; 0 if none
+	private final int[] accepts; // the first keyword that ends at each node
+	private final int[] bounds; // the first keyword below each node
+	private final int[] offsets; // of the children of each node
+	private final byte[] labels;
+	private final int[] targets;
+
+	public KeywordTrie(byte[][] keywords) {
+		this.keywords = keywords;
+		ArrayList<int[]> children = new ArrayList<>(); // by 256 bytes, per node
+		ArrayList<Integer> accepts = new ArrayList<>();
+		children.add(null);
+		accepts.add(Unmatched);
+		for (int k = 0; k < keywords.length; k++) {
+			int node = 0;
+			for (byte b : keywords[k]) {
+				int[] c = children.get(node);
+				if (c == null) {
+					c = new int[256];
+					children.set(node, c);
+				}
+				if (c[b & 0xff] == 0) {
+					c[b & 0xff] = children.size();
+					children.add(null);
+					accepts.add(Unmatched);
+				}
+				node = c[b & 0xff];
+			}
+			if (accepts.get(node) == Unmatched) {
+				accepts.set(node, k);
+			}
+		}
+		int size = children.size();
+		this.accepts = new int[size];
+		this.bounds = new int[size];
+		this.offsets = new int[size + 1];
+		for (int node = 0; node < size; node++) {
+			this.accepts[node] = accepts.get(node);
+			this.offsets[node + 1] = this.offsets[node] + count(children.get(node));
+		}
+		this.labels = new byte[this.offsets[size]];
+		this.targets = new int[this.offsets[size]];
+		for (int node = 0; node < size; node++) {
+			int[] c = children.get(node);
+			int e = this.offsets[node];
+			for (int ch = 0; c != null && ch < 256; ch++) {
+				if (c[ch] != 0) {
+					this.labels[e] = (byte) ch;
+					this.targets[e] = c[ch];
+					e++;
+				}
+			}
+		}
+		if (children.get(0) != null) {
+			System.arraycopy(children.get(0), 0, this.roots, 0, 256);
+		}
+		Arrays.fill(this.bounds, Unmatched);
+		for (int node = size - 1; node >= 0; node--) { // children are added after their parent
+			for (int e = this.offsets[node]; e < this.offsets[node + 1]; e++) {
+				int t = this.targets[e];
+				this.bounds[node] = Math.min(this.bounds[node], Math.min(this.accepts[t], this.bounds[t]));
+			}
+		}
+	}
+
+	private static int count(int[] c) {
+		int n = 0;
+		for (int ch = 0; c != null && ch < 256; ch++) {
+			if (c[ch] != 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	public final int size() {
+		return this.keywords.length;
+	}
+
+	/* the length of the keyword that matches at pos, or -1 */
+
+	public final int match(Source s, long pos) {
+		long length = s.length();
+		int best = Unmatched;
+		int bestLength = -1;
+		int node = 0;
+		for (int depth = 0;; depth++) {
+			if (this.accepts[node] < best) {
+				best = this.accepts[node];
+				bestLength = depth;
+			}
+			if (best <= this.bounds[node] || pos + depth >= length) {
+				break;
+			}
+			int ch = s.byteAt(pos + depth);
+			node = this.next(node, ch);
+			if (node == -1) {
+				break;
+			}
+		}
+		return bestLength;
+	}
+
+	private int next(int node, int ch) {
+		if (node == 0) {
+			int c = this.roots[ch];
+			return c == 0 ? -1 : c;
+		}
+		byte b = (byte) ch;
+		for (int e = this.offsets[node]; e < this.offsets[node + 1]; e++) {
+			if (this.labels[e] == b) {
+				return this.targets[e];
+			}
+		}
+		return -1;
+	}
+}
@@ -55,6 +55,8 @@ public class Moz86 {
 			{ "RByte", "byteChar" }, //
 			{ "RSet", "byteSet" }, //
 			{ "RStr", "utf8" }, //
+			{ "Scan", "utf8" }, //
+			{ "Keyword" }, //
 
 			// DFA instructions
 			{ "Dispatch", "jumpIndex", "jumpTable" }, //
@@ -319,7 +321,7 @@ public class Moz86 {
 		public MozInst jump = null;
 
 		public Jump(MozInst jump) {
-			super(MozSet.Call, null, null);
+			super(MozSet.Jump, null, null);
 			this.jump = jump;
 		}
 
@@ -427,7 +429,7 @@ public class Moz86 {
 	}
 
 	public final static class Alt extends MozInst {
-		public final MozInst jump;
+		public MozInst jump;
 
 		public Alt(Expression e, MozInst failjump, MozInst next) {
 			super(MozSet.Alt, e, next);
@@ -1105,7 +1107,7 @@ public class Moz86 {
 		}
 
 		public NStr(byte[] byteSeq, MozInst next) {
-			super(MozSet.Str, null, byteSeq, next);
+			super(MozSet.NStr, null, byteSeq, next);
 		}
 
 		@Override
@@ -1137,7 +1139,7 @@ public class Moz86 {
 		}
 
 		public OStr(byte[] byteSeq, MozInst next) {
-			super(MozSet.Str, null, byteSeq, next);
+			super(MozSet.OStr, null, byteSeq, next);
 		}
 
 		@Override
@@ -1167,7 +1169,7 @@ public class Moz86 {
 		}
 
 		public RStr(byte[] byteSeq, MozInst next) {
-			super(MozSet.Str, null, byteSeq, next);
+			super(MozSet.RStr, null, byteSeq, next);
 		}
 
 		@Override
@@ -1192,6 +1194,102 @@ public class Moz86 {
 
 	}
 
+	/**
+	 * Scan is (!'utf8' .)*, that moves to the next occurrence of utf8 or to
+	 * the end of the input. The occurrence is searched by Horspool's
+	 * algorithm, with the shifts of the bytes of the input.
+	 */
+
+	public final static class Scan extends AbstStr {
+		final int[] shifts;
+
+		public Scan(byte[] byteSeq, MozInst next) {
+			super(MozSet.Scan, null, byteSeq, next);
+			this.shifts = newShifts(byteSeq);
+		}
+
+		/* the shift of each byte under the last byte of utf8 */
+
+		public static int[] newShifts(byte[] utf8) {
+			int[] shifts = new int[256];
+			Arrays.fill(shifts, utf8.length);
+			for (int i = 0; i < utf8.length - 1; i++) {
+				shifts[utf8[i] & 0xff] = utf8.length - 1 - i;
+			}
+			return shifts;
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitScan(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			while (sc.hasUnconsumed() && !sc.match(this.utf8)) {
+				sc.consume(1);
+			}
+			return this.next;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext sc) throws TerminationException {
+			sc.scan(this.utf8, this.shifts);
+			return this.next;
+		}
+
+	}
+
+	/**
+	 * Keyword is an ordered choice of literals, matched in one walk of a
+	 * KeywordTrie.
+	 */
+
+	public final static class Keyword extends MozInst {
+		final KeywordTrie trie;
+
+		public Keyword(Expression e, byte[][] keywords, MozInst next) {
+			super(MozSet.Keyword, e, next);
+			this.trie = new KeywordTrie(keywords);
+		}
+
+		@Override
+		protected String getOperand() {
+			StringBuilder sb = new StringBuilder();
+			for (byte[] utf8 : trie.keywords) {
+				if (sb.length() > 0) {
+					sb.append(" / ");
+				}
+				sb.append(StringUtils.quoteString('\'', StringUtils.newString(utf8), '\''));
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitKeyword(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			int len = this.trie.match(sc.s, sc.pos);
+			if (len >= 0) {
+				sc.consume(len);
+				return this.next;
+			}
+			return sc.xFail();
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext sc) throws TerminationException {
+			if (sc.match(this.trie)) {
+				return this.next;
+			}
+			return sc.xFail();
+		}
+
+	}
+
 	public static class Dispatch extends MozInst {
 		public byte[] jumpIndex;
 		public MozInst[] jumpTable;
@@ -1309,15 +1407,26 @@ public class Moz86 {
 
 	public final static class TBegin extends MozInst {
 		public final int shift;
+		public final Symbol tag; // of the matching TEnd, for streaming
 
 		public TBegin(Nez.BeginTree e, MozInst next) {
+			this(e, null, next);
+		}
+
+		public TBegin(Nez.BeginTree e, Symbol tag, MozInst next) {
 			super(MozSet.TNew, e, next);
 			this.shift = e.shift;
+			this.tag = tag;
 		}
 
 		public TBegin(int shift, MozInst next) {
+			this(shift, null, next);
+		}
+
+		public TBegin(int shift, Symbol tag, MozInst next) {
 			super(MozSet.TNew, null, next);
 			this.shift = shift;
+			this.tag = tag;
 		}
 
 		@Override
@@ -1334,7 +1443,7 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			sc.beginTree(shift);
+			sc.beginTree(shift, tag);
 			return this.next;
 		}
 	}
@@ -1457,10 +1566,15 @@ public class Moz86 {
 		public final Symbol label;
 
 		public TLink(Nez.LinkTree e, MozInst next) {
-			super(MozSet.TPop, e, next);
+			super(MozSet.TLink, e, next);
 			this.label = e.label;
 		}
 
+		public TLink(Symbol label, MozInst next) {
+			super(MozSet.TLink, null, next);
+			this.label = label;
+		}
+
 		@Override
 		protected String getOperand() {
 			return label.getSymbol();
@@ -1529,6 +1643,11 @@ public class Moz86 {
 			this.label = e.label;
 		}
 
+		public TEmit(Symbol label, MozInst next) {
+			super(MozSet.TCommit, null, next);
+			this.label = label;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitTEmit(this);
@@ -1645,6 +1764,10 @@ public class Moz86 {
 			super(MozSet.SMask, e, e.tableName, next);
 		}
 
+		public SMask(Symbol table, MozInst next) {
+			super(MozSet.SMask, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSMask(this);
@@ -1673,6 +1796,10 @@ public class Moz86 {
 			super(MozSet.SDef, e, e.tableName, next);
 		}
 
+		public SDef(Symbol table, MozInst next) {
+			super(MozSet.SDef, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSDef(this);
@@ -1691,7 +1818,7 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			sc.addSymbol(table, ppos);
 			return this.next;
 		}
@@ -1702,6 +1829,10 @@ public class Moz86 {
 			super(MozSet.SExists, e, e.tableName, next);
 		}
 
+		public SExists(Symbol table, MozInst next) {
+			super(MozSet.SExists, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSExists(this);
@@ -1728,6 +1859,11 @@ public class Moz86 {
 			utf8 = StringUtils.toUtf8(e.symbol);
 		}
 
+		public SIsDef(Symbol table, byte[] utf8, MozInst next) {
+			super(MozSet.SIsDef, null, table, next);
+			this.utf8 = utf8;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIsDef(this);
@@ -1752,6 +1888,10 @@ public class Moz86 {
 			super(MozSet.SMatch, e, e.tableName, next);
 		}
 
+		public SMatch(Symbol table, MozInst next) {
+			super(MozSet.SMatch, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSMatch(this);
@@ -1782,6 +1922,10 @@ public class Moz86 {
 			super(MozSet.SIs, e, e.tableName, next);
 		}
 
+		public SIs(Symbol table, MozInst next) {
+			super(MozSet.SIs, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIs(this);
@@ -1804,7 +1948,7 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			return sc.equals(table, ppos) ? this.next : sc.xFail();
 		}
 
@@ -1815,6 +1959,10 @@ public class Moz86 {
 			super(MozSet.SIsa, e, e.tableName, next);
 		}
 
+		public SIsa(Symbol table, MozInst next) {
+			super(MozSet.SIsa, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIsa(this);
@@ -1834,7 +1982,7 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			return sc.contains(table, ppos) ? this.next : sc.xFail();
 		}
 
@@ -1864,20 +2012,25 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			int ppos = sc.xPPos();
+			long ppos = sc.xPPos();
 			sc.scanCount(ppos, mask, shift);
 			return next;
 		}
 	}
 
 	public final static class NDec extends MozInst {
-		public final MozInst jump;
+		public MozInst jump;
 
 		public NDec(MozInst jump, MozInst next) {
 			super(MozSet.SCount, null, next);
 			this.jump = jump;
 		}
 
+		@Override
+		MozInst branch() {
+			return this.jump;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitNDec(this);
@@ -1900,7 +2053,8 @@ public class Moz86 {
 		final MemoPoint memoPoint;
 		final int uid;
 		final boolean state;
-		final MozInst jump;
+		final boolean adaptive;
+		MozInst jump;
 
 		AbstractMemoizationInstruction(byte opcode, Expression e, MemoPoint m, boolean state, MozInst next, MozInst skip) {
 			super(opcode, e, next);
@@ -1908,6 +2062,7 @@ public class Moz86 {
 			this.uid = m.id;
 			this.jump = joinPoint(skip);
 			this.state = state;
+			this.adaptive = m.isAdaptive();
 		}
 
 		AbstractMemoizationInstruction(byte opcode, Expression e, MemoPoint m, boolean state, MozInst next) {
@@ -1916,6 +2071,11 @@ public class Moz86 {
 			this.uid = m.id;
 			this.state = state;
 			this.jump = null;
+			this.adaptive = m.isAdaptive();
+		}
+
+		final boolean storing(ParserMachineContext sc) {
+			return !this.adaptive || !sc.isMemoBypassed(this.uid);
 		}
 
 		@Override
@@ -1953,7 +2113,14 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			switch (sc.lookupMemo(uid)) {
+			if (adaptive && sc.bypassMemo(uid)) {
+				return this.next;
+			}
+			int result = sc.lookupMemo(uid);
+			if (adaptive) {
+				sc.trialMemo(uid, result != ParserContext.NotFound);
+			}
+			switch (result) {
 			case ParserContext.NotFound:
 				return this.next;
 			case ParserContext.SuccFound:
@@ -1984,8 +2151,10 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			int ppos = sc.xSuccPos();
-			sc.memoSucc(uid, ppos);
+			long ppos = sc.xSuccPos();
+			if (storing(sc)) {
+				sc.memoSucc(uid, ppos);
+			}
 			return this.next;
 		}
 	}
@@ -2008,7 +2177,9 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			sc.memoFail(uid);
+			if (storing(sc)) {
+				sc.memoFail(uid);
+			}
 			return sc.xFail();
 		}
 
@@ -2023,8 +2194,12 @@ public class Moz86 {
 		}
 
 		public TLookup(MemoPoint m, MozInst next, MozInst skip) {
+			this(m, null, next, skip);
+		}
+
+		public TLookup(MemoPoint m, Symbol label, MozInst next, MozInst skip) {
 			super(MozSet.TLookup, null, m, m.isStateful(), next, skip);
-			this.label = null;
+			this.label = label;
 		}
 
 		@Override
@@ -2052,7 +2227,14 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			switch (sc.lookupTreeMemo(uid)) {
+			if (adaptive && sc.bypassMemo(uid)) {
+				return this.next;
+			}
+			int result = sc.lookupTreeMemo(uid);
+			if (adaptive) {
+				sc.trialMemo(uid, result != ParserContext.NotFound);
+			}
+			switch (result) {
 			case ParserContext.NotFound:
 				return this.next;
 			case ParserContext.SuccFound:
@@ -2085,8 +2267,10 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext sc) throws TerminationException {
-			int ppos = sc.xSuccPos();
-			sc.memoTreeSucc(uid, ppos);
+			long ppos = sc.xSuccPos();
+			if (storing(sc)) {
+				sc.memoTreeSucc(uid, ppos);
+			}
 			return this.next;
 		}
 
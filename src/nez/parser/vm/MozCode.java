@@ -1,9 +1,15 @@
 package nez.parser.vm;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
 import nez.lang.Grammar;
+import nez.parser.MemoPoint;
 import nez.parser.Parser;
 import nez.parser.ParserCode;
 import nez.parser.ParserInstance;
+import nez.parser.ParserStrategy;
 import nez.parser.TerminationException;
 import nez.util.ConsoleUtils;
 import nez.util.UList;
@@ -15,10 +21,60 @@ public class MozCode extends ParserCode<MozInst> {
 		super(compiledGrammar, new MozInst[1026]);
 	}
 
+	MozCode(boolean recognitionMode, MemoPoint[] memoPoints) {
+		super(recognitionMode, new MozInst[1026]);
+		for (MemoPoint m : memoPoints) {
+			this.addMemoPoint(m);
+		}
+	}
+
 	UList<MozInst> codeList() {
 		return this.codeList;
 	}
 
+	private MozJIT jit = null;
+
+	void setJIT(MozJIT jit) {
+		this.jit = jit;
+	}
+
+	MozJIT getJIT() {
+		return this.jit;
+	}
+
+	private MozIntCode intCode = null;
+	private byte[] bytecode = null;
+	private int instructionSize = 0;
+
+	/*
+	 * The int code replaces the instructions, which are released; only their
+	 * bytecode is kept for encode().
+	 */
+
+	void loadIntCode(ParserStrategy strategy) {
+		byte[] bytecode = this.encode();
+		this.intCode = MozIntCode.load(bytecode, strategy, this.getMemoPoints());
+		this.bytecode = bytecode;
+		this.instructionSize = codeList.size();
+		this.codeList = null;
+		this.funcMap.clear();
+	}
+
+	public final MozIntCode getIntCode() {
+		return this.intCode;
+	}
+
+	@Override
+	protected boolean run(ParserMachineContext ctx) {
+		if (this.intCode != null) {
+			return this.intCode.exec(ctx);
+		}
+		if (this.jit != null && this.jit.accepts(ctx)) {
+			return this.jit.exec(ctx);
+		}
+		return super.run(ctx);
+	}
+
 	@Override
 	public Object exec(ParserInstance context) {
 		long startPosition = context.getPosition();
@@ -92,13 +148,38 @@ public class MozCode extends ParserCode<MozInst> {
 		}
 	}
 
+	@Override
+	public int getInstructionSize() {
+		return this.codeList != null ? super.getInstructionSize() : this.instructionSize;
+	}
+
+	public final byte[] encode() {
+		if (this.bytecode != null) {
+			return this.bytecode;
+		}
+		MozWriter c = new MozWriter();
+		this.encode(c);
+		return c.toByteArray();
+	}
+
+	/**
+	 * Rebuilds the code from the bytecode of encode(). The memo points are
+	 * given by their id, since the bytecode keeps only the ids.
+	 */
+
+	public final static MozCode load(byte[] bytecode, ParserStrategy strategy, boolean recognitionMode, MemoPoint[] memoPoints) {
+		return new MozLoader(bytecode, strategy, memoPoints).load(recognitionMode);
+	}
+
 	public final static void writeMozCode(Parser parser, String path) {
 		ParserMachineCompiler compile = ParserMachineCompiler.newCompiler(parser.getParserStrategy());
-		MozCode code = compile.compile(parser.getGrammar());
-		MozWriter c = new MozWriter();
-		code.encode(c);
+		byte[] bytecode = compile.compile(parser.getGrammar()).encode();
 		Verbose.println("generating " + path);
-		c.writeTo(path);
+		try (OutputStream out = new FileOutputStream(path)) {
+			out.write(bytecode);
+		} catch (IOException e) {
+			Verbose.traceException(e);
+		}
 	}
 
 }
@@ -0,0 +1,391 @@
+package nez.parser.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import nez.ast.Symbol;
+import nez.parser.MemoPoint;
+import nez.parser.ParserStrategy;
+import nez.util.StringUtils;
+
+/**
+ * MozIntCode is the bytecode written by MozWriter, loaded into one int[]
+ * array. Each instruction is an opcode followed by its operands, and jumps
+ * are offsets in the array. Byte sets, strings and symbols are kept in side
+ * tables. An instruction whose next is not the following one is followed by
+ * a Jump, so that MozIntMachine can fall through to the next offset; Call
+ * and Skip, which mostly jump, keep their next as an operand instead.
+ */
+
+public final class MozIntCode {
+
+	/* marks Byte and Set instructions that also check EOF */
+	static final int Binary = 0x80;
+
+	final int[] code;
+	final int[] sets; // 8 words per set
+	final char[] indexes; // jump table maps
+	final byte[][] strs;
+	final int[][] shifts; // of the strings scanned to
+	final KeywordTrie[] tries;
+	final String[] texts;
+	final Symbol[] tags; // null for the null label
+	final Symbol[] tables;
+	final String[] names; // of the nonterminals called
+	final MemoPoint[] memoPoints;
+	final int memoSize;
+	final int start;
+	final int exitFail;
+	final int exitSucc;
+
+	private MozIntCode(int[] code, int size, int[] sets, char[] indexes, byte[][] strs, int[][] shifts, KeywordTrie[] tries, Symbol[] tags, Symbol[] tables, String[] names, MemoPoint[] memoPoints, int memoSize) {
+		this.code = Arrays.copyOf(code, size + 4);
+		this.sets = sets;
+		this.indexes = indexes;
+		this.strs = strs;
+		this.shifts = shifts;
+		this.tries = tries;
+		this.texts = new String[strs.length];
+		for (int i = 0; i < strs.length; i++) {
+			this.texts[i] = StringUtils.newString(strs[i]);
+		}
+		this.tags = tags;
+		this.tables = tables;
+		this.names = names;
+		this.memoPoints = memoPoints;
+		this.memoSize = memoSize;
+		this.start = 0;
+		this.exitFail = size;
+		this.exitSucc = size + 2;
+		this.code[exitFail] = MozSet.Exit;
+		this.code[exitFail + 1] = 0;
+		this.code[exitSucc] = MozSet.Exit;
+		this.code[exitSucc + 1] = 1;
+	}
+
+	public final int size() {
+		return this.code.length;
+	}
+
+	public final boolean exec(ParserMachineContext ctx) {
+		return ctx.getIntMachine(this).exec();
+	}
+
+	/* Loader */
+
+	/* the options that need the instructions are rejected, not ignored */
+
+	public final static MozIntCode load(byte[] bytecode, ParserStrategy strategy, MemoPoint[] memoPoints) {
+		String option = strategy.getIntCodeConflict();
+		if (option != null) {
+			throw new IllegalArgumentException("+IntCode cannot run with " + option);
+		}
+		return new Loader(bytecode, strategy.BinaryGrammar).load(memoPoints);
+	}
+
+	private static class Loader {
+		final ByteReader r;
+		final boolean binary;
+		int[] code = new int[1024];
+		int size = 0;
+		int[] fixups = new int[256];
+		int fixupSize = 0;
+		int[] sets;
+		byte[][] strs;
+		int[][] shifts;
+		ArrayList<KeywordTrie> tries = new ArrayList<>();
+		char[] indexes = new char[257 * 16];
+		int indexSize = 0;
+		HashMap<String, Integer> indexMap = new HashMap<>();
+
+		Loader(byte[] bytecode, boolean binary) {
+			this.r = new ByteReader(bytecode);
+			this.binary = binary;
+		}
+
+		MozIntCode load(MemoPoint[] memoPoints) {
+			MozWriter.readMagic(r);
+			int instSize = r.read_u16();
+			int memoSize = r.read_u16();
+			r.read_u16(); // jumpTableSize
+			String[] names = new String[r.read_u16()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = StringUtils.newString(readUtf8());
+			}
+			sets = new int[r.read_u16() * 8];
+			for (int i = 0; i < sets.length; i++) {
+				sets[i] = r.read_u32();
+			}
+			strs = new byte[r.read_u16()][];
+			for (int i = 0; i < strs.length; i++) {
+				strs[i] = readUtf8();
+			}
+			shifts = new int[strs.length][];
+			Symbol[] tags = readSymbols();
+			Symbol[] tables = readSymbols();
+			int[] offsets = new int[instSize + 1];
+			for (int id = 0; id < instSize; id++) {
+				offsets[id] = size;
+				decode(id);
+			}
+			offsets[instSize] = size;
+			for (int i = 0; i < fixupSize; i++) {
+				code[fixups[i]] = offsets[code[fixups[i]]];
+			}
+			return new MozIntCode(code, size, sets, Arrays.copyOf(indexes, indexSize), strs, shifts, tries.toArray(new KeywordTrie[tries.size()]), tags, tables, names, memoPoints, memoSize);
+		}
+
+		private byte[] readUtf8() {
+			byte[] b = new byte[r.read_u16()];
+			for (int i = 0; i < b.length; i++) {
+				b[i] = (byte) r.read_u8();
+			}
+			r.read_u8(); // 0
+			return b;
+		}
+
+		private Symbol[] readSymbols() {
+			Symbol[] symbols = new Symbol[r.read_u16()];
+			for (int i = 0; i < symbols.length; i++) {
+				Symbol s = Symbol.unique(StringUtils.newString(readUtf8()));
+				symbols[i] = s == Symbol.NullSymbol ? null : s;
+			}
+			return symbols;
+		}
+
+		private void emit(int n) {
+			if (size == code.length) {
+				code = Arrays.copyOf(code, size * 2);
+			}
+			code[size++] = n;
+		}
+
+		private void emitJump(int id) {
+			if (fixupSize == fixups.length) {
+				fixups = Arrays.copyOf(fixups, fixupSize * 2);
+			}
+			fixups[fixupSize++] = size;
+			emit(id);
+		}
+
+		/*
+		 * A jump table is stored as its distinct targets, indexed by a 257-entry
+		 * map that is shared by the tables with the same layout.
+		 */
+
+		private void decodeJumpTable() {
+			int[] targets = new int[257];
+			char[] index = new char[257];
+			int n = 0;
+			for (int ch = 0; ch < 257; ch++) {
+				int id = r.read_u24();
+				int t = 0;
+				while (t < n && targets[t] != id) {
+					t++;
+				}
+				if (t == n) {
+					targets[n++] = id;
+				}
+				index[ch] = (char) t;
+			}
+			String key = new String(index);
+			Integer base = indexMap.get(key);
+			if (base == null) {
+				base = indexSize;
+				indexMap.put(key, base);
+				if (indexSize + 257 > indexes.length) {
+					indexes = Arrays.copyOf(indexes, indexes.length * 2);
+				}
+				System.arraycopy(index, 0, indexes, indexSize, 257);
+				indexSize += 257;
+			}
+			emit(base);
+			for (int t = 0; t < n; t++) {
+				emitJump(targets[t]);
+			}
+		}
+
+		private boolean hasZero(int set) {
+			return (sets[set] & 1) != 0;
+		}
+
+		private void decode(int id) {
+			int opcode = r.read_u8();
+			boolean jumpNext = (opcode & 128) != 0;
+			opcode &= 127;
+			switch (opcode) {
+			case MozSet.Label:
+				r.read_u16();
+				break;
+			case MozSet.Cov:
+				r.read_u16();
+				r.read_b();
+				break;
+			case MozSet.Exit:
+				emit(opcode);
+				emit(r.read_b() ? 1 : 0);
+				break;
+			case MozSet.Pos:
+			case MozSet.Back:
+			case MozSet.Ret:
+			case MozSet.Succ:
+			case MozSet.Fail:
+			case MozSet.Any:
+			case MozSet.NAny:
+			case MozSet.TPush:
+			case MozSet.TPop:
+			case MozSet.SOpen:
+			case MozSet.SClose:
+				emit(opcode);
+				break;
+			case MozSet.TStart:
+				break;
+			case MozSet.TCommit:
+				r.read_u16();
+				break;
+			case MozSet.Consume:
+				emit(opcode);
+				emit(r.read_i8());
+				break;
+			case MozSet.TNew:
+				emit(opcode);
+				emit(r.read_i8());
+				emit(r.read_u16());
+				break;
+			case MozSet.Jump:
+			case MozSet.Alt:
+			case MozSet.SCount:
+				emit(opcode);
+				emitJump(r.read_u24());
+				break;
+			case MozSet.Call: {
+				emit(opcode);
+				emitJump(r.read_u24());
+				int name = r.read_u16();
+				emitJump(jumpNext ? r.read_u24() : id + 1);
+				emit(name);
+				return;
+			}
+			case MozSet.Skip:
+				emit(opcode);
+				emitJump(jumpNext ? r.read_u24() : id + 1);
+				return;
+			case MozSet.Byte:
+			case MozSet.OByte:
+			case MozSet.RByte: {
+				int ch = r.read_u8();
+				emit(binary && ch == 0 ? opcode | Binary : opcode);
+				emit(ch);
+				break;
+			}
+			case MozSet.NByte: {
+				int ch = r.read_u8();
+				emit(binary && ch != 0 ? opcode | Binary : opcode);
+				emit(ch);
+				break;
+			}
+			case MozSet.Set:
+			case MozSet.OSet:
+			case MozSet.RSet: {
+				int set = r.read_u16() * 8;
+				emit(binary && hasZero(set) ? opcode | Binary : opcode);
+				emit(set);
+				break;
+			}
+			case MozSet.NSet: {
+				int set = r.read_u16() * 8;
+				emit(binary && !hasZero(set) ? opcode | Binary : opcode);
+				emit(set);
+				break;
+			}
+			case MozSet.Str:
+			case MozSet.NStr:
+			case MozSet.OStr:
+			case MozSet.RStr:
+			case MozSet.TTag:
+			case MozSet.TReplace:
+			case MozSet.TLink:
+			case MozSet.SMask:
+			case MozSet.SDef:
+			case MozSet.SExists:
+			case MozSet.SMatch:
+			case MozSet.SIs:
+			case MozSet.SIsa:
+				emit(opcode);
+				emit(r.read_u16());
+				break;
+			case MozSet.Scan: {
+				int str = r.read_u16();
+				if (shifts[str] == null) {
+					shifts[str] = Moz86.Scan.newShifts(strs[str]);
+				}
+				emit(opcode);
+				emit(str);
+				break;
+			}
+			case MozSet.Keyword: {
+				byte[][] keywords = new byte[r.read_u16()][];
+				for (int i = 0; i < keywords.length; i++) {
+					keywords[i] = strs[r.read_u16()];
+				}
+				emit(opcode);
+				emit(tries.size());
+				tries.add(new KeywordTrie(keywords));
+				break;
+			}
+			case MozSet.SIsDef:
+				emit(opcode);
+				emit(r.read_u16());
+				emit(r.read_u16());
+				break;
+			case MozSet.First:
+			case MozSet.DFirst:
+				emit(opcode);
+				decodeJumpTable();
+				break;
+			case MozSet.TCapture:
+				emit(opcode);
+				emit(r.read_i8());
+				emit(r.read_u16());
+				emit(r.read_b() ? r.read_u16() : -1);
+				break;
+			case MozSet.TLeftFold:
+				emit(opcode);
+				emit(r.read_i8());
+				emit(r.read_u16());
+				break;
+			case MozSet.SDefNum:
+				emit(opcode);
+				emit(r.read_u32());
+				emit(r.read_u32());
+				emit(r.read_i8());
+				break;
+			case MozSet.Lookup:
+			case MozSet.TLookup:
+				emit(opcode);
+				r.read_b(); // state
+				emit(r.read_u32());
+				emitJump(r.read_u24());
+				if (opcode == MozSet.TLookup) {
+					r.read_u16(); // label
+				}
+				break;
+			case MozSet.Memo:
+			case MozSet.MemoFail:
+			case MozSet.TMemo:
+				emit(opcode);
+				r.read_b(); // state
+				emit(r.read_u32());
+				break;
+			default:
+				throw new IllegalArgumentException("unknown opcode " + opcode + " at " + id);
+			}
+			if (jumpNext) {
+				emit(MozSet.Jump);
+				emitJump(r.read_u24());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,711 @@
+package nez.parser.vm;
+
+import java.util.Arrays;
+
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.parser.MemoPoint;
+import nez.parser.ParserBudget;
+import nez.parser.ParserContext;
+
+/**
+ * MozIntMachine runs a MozIntCode. The stack is a pair of arrays: values
+ * holds positions, return offsets, AST log points and symbol points, and
+ * refs holds trees. Frames are laid out as in ParserMachineContext; a catch
+ * frame keeps its fail offset in the upper half of the word that links the
+ * previous catch frame, and its log point in the upper half of the word of
+ * its symbol point.
+ *
+ * Each opcode is run by one shared Op, which returns the next offset. A
+ * switch loop, even one that keeps the position and the input bytes in
+ * locals and switches only over the matching and control opcodes, measured
+ * about twice as slow as Moz86; the Ops are slower than Moz86 as well, by
+ * 20-40%, since every operand is read from the code array. The int code
+ * saves memory, not time. A machine is kept by its context and reuses its
+ * stack over parses.
+ */
+
+final class MozIntMachine {
+	final MozIntCode c;
+	private final ParserMachineContext ctx;
+	private final int[] code;
+	private Source source;
+	private long length;
+	private ParserBudget budget;
+	private long[] values = new long[64];
+	private Object[] refs = new Object[64];
+	private int sp;
+	private int catchTop;
+	private int maxRef = 0; // the highest slot that has held a tree
+
+	/* slots and names of the Call frames; kept only with a budget */
+	private int[] calls = new int[32];
+	private int callTop = 0;
+
+	MozIntMachine(MozIntCode c, ParserMachineContext ctx) {
+		this.c = c;
+		this.ctx = ctx;
+		this.code = c.code;
+	}
+
+	private final static int Failed = -1;
+	private final static int Accepted = -2;
+
+	boolean exec() {
+		final ParserMachineContext ctx = this.ctx;
+		final int[] code = this.code;
+		final Op[] ops = MozIntMachine.ops;
+		this.source = ctx.source();
+		this.length = source.length();
+		this.budget = ctx.getBudget();
+		this.values[0] = (long) c.exitFail << 32;
+		this.values[1] = ctx.pos;
+		this.values[2] = logPoint(ctx);
+		this.values[3] = c.exitSucc;
+		this.catchTop = 0;
+		this.sp = 3;
+		this.callTop = 0;
+		int pc = c.start;
+		try {
+			while (pc >= 0) {
+				pc = ops[code[pc]].exec(this, pc);
+			}
+			return pc == Accepted;
+		} finally {
+			Arrays.fill(this.refs, 0, this.maxRef + 1, null);
+			this.maxRef = 0;
+			this.source = null;
+		}
+	}
+
+	private int push(int n) {
+		int i = sp + 1;
+		sp += n;
+		if (sp >= values.length) {
+			this.values = Arrays.copyOf(values, values.length * 2);
+			this.refs = Arrays.copyOf(refs, refs.length * 2);
+		}
+		return i;
+	}
+
+	private int fail() {
+		int f = catchTop;
+		long link = values[f];
+		sp = f - 1;
+		catchTop = (int) link;
+		long back = values[f + 1];
+		if (back < ctx.pos) {
+			if (budget != null) {
+				budget.backtrack();
+			}
+			ctx.back(back);
+		}
+		long point = values[f + 2];
+		ctx.backLog((int) (point >>> 32));
+		ctx.backSymbolPoint((int) point);
+		if (budget != null) {
+			unwindCalls(sp);
+		}
+		return (int) (link >>> 32);
+	}
+
+	private static long logPoint(ParserMachineContext ctx) {
+		return ((long) ctx.saveLog() << 32) | ctx.saveSymbolPoint();
+	}
+
+	private boolean in(int set, int ch) {
+		return (c.sets[set + (ch >> 5)] & (1 << (ch & 31))) != 0;
+	}
+
+	private boolean eof() {
+		return ctx.pos >= length;
+	}
+
+	private boolean storing(int uid) {
+		return !c.memoPoints[uid].isAdaptive() || !ctx.isMemoBypassed(uid);
+	}
+
+	private int lookup(int pc, boolean tree) {
+		int uid = code[pc + 1];
+		MemoPoint m = c.memoPoints[uid];
+		if (m.isAdaptive() && ctx.bypassMemo(uid)) {
+			return pc + 3;
+		}
+		int result = tree ? ctx.lookupTreeMemo(uid) : ctx.lookupMemo(uid);
+		if (m.isAdaptive()) {
+			ctx.trialMemo(uid, result != ParserContext.NotFound);
+		}
+		switch (result) {
+		case ParserContext.NotFound:
+			return pc + 3;
+		case ParserContext.SuccFound:
+			return code[pc + 2];
+		default:
+			return fail();
+		}
+	}
+
+	private int memo(int pc, boolean tree) {
+		int f = catchTop;
+		long ppos = values[f + 1];
+		sp = f - 1;
+		catchTop = (int) values[f];
+		int uid = code[pc + 1];
+		if (storing(uid)) {
+			if (tree) {
+				ctx.memoTreeSucc(uid, ppos);
+			} else {
+				ctx.memoSucc(uid, ppos);
+			}
+		}
+		return pc + 2;
+	}
+
+	// Budget
+
+	private void call(int slot, int name) {
+		if (callTop + 2 > calls.length) {
+			this.calls = Arrays.copyOf(calls, calls.length * 2);
+		}
+		calls[callTop++] = slot;
+		calls[callTop++] = name;
+	}
+
+	private void ret(int slot) {
+		if (callTop > 0 && calls[callTop - 2] == slot) {
+			callTop -= 2;
+		}
+	}
+
+	private void unwindCalls(int sp) {
+		while (callTop > 0 && calls[callTop - 2] > sp) {
+			callTop -= 2;
+		}
+	}
+
+	final String[] getProductionStack() {
+		String[] stack = new String[callTop / 2];
+		for (int i = 0; i < stack.length; i++) {
+			stack[i] = c.names[calls[i * 2 + 1]];
+		}
+		return stack;
+	}
+
+	// Ops
+
+	private static abstract class Op {
+		abstract int exec(MozIntMachine m, int pc);
+	}
+
+	private final static Op[] ops = new Op[256];
+
+	static {
+		Arrays.fill(ops, new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				throw new IllegalStateException("invalid opcode " + m.code[pc] + " at " + pc);
+			}
+		});
+		ops[MozSet.Exit] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.code[pc + 1] != 0 ? Accepted : Failed;
+			}
+		};
+		ops[MozSet.Pos] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int i = m.push(1);
+				m.values[i] = m.ctx.pos;
+				return pc + 1;
+			}
+		};
+		ops[MozSet.Back] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.back(m.values[m.sp--]);
+				return pc + 1;
+			}
+		};
+		ops[MozSet.Consume] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.pos += m.code[pc + 1];
+				return pc + 2;
+			}
+		};
+		ops[MozSet.Jump] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.code[pc + 1];
+			}
+		};
+		ops[MozSet.Call] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int i = m.push(1);
+				m.values[i] = m.code[pc + 1];
+				if (m.budget != null) {
+					m.call(i, m.code[pc + 3]);
+					m.budget.step();
+				}
+				return m.code[pc + 2];
+			}
+		};
+		ops[MozSet.Ret] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (m.budget != null) {
+					m.ret(m.sp);
+				}
+				return (int) m.values[m.sp--];
+			}
+		};
+		ops[MozSet.Alt] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int i = m.push(3);
+				long[] values = m.values;
+				values[i] = ((long) m.code[pc + 1] << 32) | m.catchTop;
+				values[i + 1] = m.ctx.pos;
+				values[i + 2] = logPoint(m.ctx);
+				m.catchTop = i;
+				if (m.budget != null) {
+					m.budget.step();
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.Succ] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.sp = m.catchTop - 1;
+				m.catchTop = (int) m.values[m.catchTop];
+				return pc + 1;
+			}
+		};
+		ops[MozSet.Fail] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.fail();
+			}
+		};
+		ops[MozSet.Skip] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int f = m.catchTop;
+				if (m.values[f + 1] == m.ctx.pos) {
+					return m.fail();
+				}
+				m.values[f + 1] = m.ctx.pos;
+				m.values[f + 2] = logPoint(m.ctx);
+				return m.code[pc + 1];
+			}
+		};
+
+		/* Matching */
+
+		ops[MozSet.Byte] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				/* EOF must be checked at the next instruction */
+				return m.source.byteAt(m.ctx.pos++) == m.code[pc + 1] ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.Byte | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (m.source.byteAt(m.ctx.pos) == 0 && !m.eof()) {
+					m.ctx.pos++;
+					return pc + 2;
+				}
+				return m.fail();
+			}
+		};
+		ops[MozSet.NByte] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.source.byteAt(m.ctx.pos) != m.code[pc + 1] ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.NByte | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.source.byteAt(m.ctx.pos) != m.code[pc + 1] && !m.eof() ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.OByte] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int ch = m.code[pc + 1];
+				if (m.source.byteAt(m.ctx.pos) == ch && ch != 0) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.OByte | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (m.source.byteAt(m.ctx.pos) == 0 && !m.eof()) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.RByte] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int ch = m.code[pc + 1];
+				while (m.source.byteAt(m.ctx.pos) == ch) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.RByte | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				while (m.source.byteAt(m.ctx.pos) == 0 && !m.eof()) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.Any] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (!m.eof()) {
+					m.ctx.pos++;
+					return pc + 1;
+				}
+				return m.fail();
+			}
+		};
+		ops[MozSet.NAny] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.eof() ? pc + 1 : m.fail();
+			}
+		};
+		ops[MozSet.Set] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.in(m.code[pc + 1], m.source.byteAt(m.ctx.pos++)) ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.Set | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (m.in(m.code[pc + 1], m.source.byteAt(m.ctx.pos)) && !m.eof()) {
+					m.ctx.pos++;
+					return pc + 2;
+				}
+				return m.fail();
+			}
+		};
+		ops[MozSet.NSet] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return !m.in(m.code[pc + 1], m.source.byteAt(m.ctx.pos)) ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.NSet | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return !m.in(m.code[pc + 1], m.source.byteAt(m.ctx.pos)) && !m.eof() ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.OSet] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (m.in(m.code[pc + 1], m.source.byteAt(m.ctx.pos))) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.OSet | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (m.in(m.code[pc + 1], m.source.byteAt(m.ctx.pos)) && !m.eof()) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.RSet] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int set = m.code[pc + 1];
+				while (m.in(set, m.source.byteAt(m.ctx.pos))) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.RSet | MozIntCode.Binary] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int set = m.code[pc + 1];
+				while (m.in(set, m.source.byteAt(m.ctx.pos)) && !m.eof()) {
+					m.ctx.pos++;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.Str] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				byte[] utf8 = m.c.strs[m.code[pc + 1]];
+				if (m.source.match(m.ctx.pos, utf8)) {
+					m.ctx.pos += utf8.length;
+					return pc + 2;
+				}
+				return m.fail();
+			}
+		};
+		ops[MozSet.NStr] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return !m.source.match(m.ctx.pos, m.c.strs[m.code[pc + 1]]) ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.OStr] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				byte[] utf8 = m.c.strs[m.code[pc + 1]];
+				if (m.source.match(m.ctx.pos, utf8)) {
+					m.ctx.pos += utf8.length;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.RStr] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				byte[] utf8 = m.c.strs[m.code[pc + 1]];
+				while (m.source.match(m.ctx.pos, utf8)) {
+					m.ctx.pos += utf8.length;
+				}
+				return pc + 2;
+			}
+		};
+		ops[MozSet.Keyword] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int len = m.c.tries[m.code[pc + 1]].match(m.source, m.ctx.pos);
+				if (len >= 0) {
+					m.ctx.pos += len;
+					return pc + 2;
+				}
+				return m.fail();
+			}
+		};
+		ops[MozSet.Scan] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.scan(m.c.strs[m.code[pc + 1]], m.c.shifts[m.code[pc + 1]]);
+				return pc + 2;
+			}
+		};
+		ops[MozSet.First] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int[] code = m.code;
+				return code[pc + 2 + m.c.indexes[code[pc + 1] + m.source.byteAt(m.ctx.pos)]];
+			}
+		};
+		ops[MozSet.DFirst] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int[] code = m.code;
+				return code[pc + 2 + m.c.indexes[code[pc + 1] + m.source.byteAt(m.ctx.pos++)]];
+			}
+		};
+
+		/* Tree Construction */
+
+		ops[MozSet.TPush] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int i = m.push(2);
+				m.refs[i] = m.ctx.left;
+				m.values[i + 1] = m.ctx.saveLog();
+				if (i > m.maxRef) {
+					m.maxRef = i;
+				}
+				return pc + 1;
+			}
+		};
+		ops[MozSet.TPop] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.backLog((int) m.values[m.sp--]);
+				m.ctx.left = (Tree<?>) m.refs[m.sp--];
+				return pc + 1;
+			}
+		};
+		ops[MozSet.TLink] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				ParserMachineContext ctx = m.ctx;
+				ctx.backLog((int) m.values[m.sp--]);
+				Tree<?> parent = (Tree<?>) m.refs[m.sp--];
+				ctx.linkTree(parent, m.c.tags[m.code[pc + 1]]);
+				ctx.left = parent;
+				return pc + 2;
+			}
+		};
+		ops[MozSet.TNew] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.beginTree(m.code[pc + 1], m.c.tags[m.code[pc + 2]]);
+				return pc + 3;
+			}
+		};
+		ops[MozSet.TCapture] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int[] code = m.code;
+				m.ctx.endTree(m.c.tags[code[pc + 2]], code[pc + 3] == -1 ? null : m.c.texts[code[pc + 3]], code[pc + 1]);
+				return pc + 4;
+			}
+		};
+		ops[MozSet.TTag] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.tagTree(m.c.tags[m.code[pc + 1]]);
+				return pc + 2;
+			}
+		};
+		ops[MozSet.TReplace] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.valueTree(m.c.texts[m.code[pc + 1]]);
+				return pc + 2;
+			}
+		};
+		ops[MozSet.TLeftFold] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.foldTree(m.code[pc + 1], m.c.tags[m.code[pc + 2]]);
+				return pc + 3;
+			}
+		};
+
+		/* Symbol */
+
+		ops[MozSet.SOpen] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int i = m.push(1);
+				m.values[i] = m.ctx.saveSymbolPoint();
+				return pc + 1;
+			}
+		};
+		ops[MozSet.SClose] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.backSymbolPoint((int) m.values[m.sp--]);
+				return pc + 1;
+			}
+		};
+		ops[MozSet.SMask] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int i = m.push(1);
+				m.values[i] = m.ctx.saveSymbolPoint();
+				m.ctx.addSymbolMask(m.c.tables[m.code[pc + 1]]);
+				return pc + 2;
+			}
+		};
+		ops[MozSet.SDef] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				m.ctx.addSymbol(m.c.tables[m.code[pc + 1]], m.values[m.sp--]);
+				return pc + 2;
+			}
+		};
+		ops[MozSet.SExists] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.ctx.exists(m.c.tables[m.code[pc + 1]]) ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.SIsDef] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.ctx.existsSymbol(m.c.tables[m.code[pc + 1]], m.c.strs[m.code[pc + 2]]) ? pc + 3 : m.fail();
+			}
+		};
+		ops[MozSet.SMatch] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.ctx.matchSymbol(m.c.tables[m.code[pc + 1]]) ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.SIs] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.ctx.equals(m.c.tables[m.code[pc + 1]], m.values[m.sp--]) ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.SIsa] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.ctx.contains(m.c.tables[m.code[pc + 1]], m.values[m.sp--]) ? pc + 2 : m.fail();
+			}
+		};
+		ops[MozSet.SDefNum] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				int[] code = m.code;
+				m.ctx.scanCount(m.values[m.sp--], ((long) code[pc + 1] << 32) | (code[pc + 2] & 0xffffffffL), code[pc + 3]);
+				return pc + 4;
+			}
+		};
+		ops[MozSet.SCount] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.ctx.decCount() ? pc + 2 : m.code[pc + 1];
+			}
+		};
+
+		/* Memoization */
+
+		ops[MozSet.Lookup] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.lookup(pc, false);
+			}
+		};
+		ops[MozSet.TLookup] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.lookup(pc, true);
+			}
+		};
+		ops[MozSet.Memo] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.memo(pc, false);
+			}
+		};
+		ops[MozSet.TMemo] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				return m.memo(pc, true);
+			}
+		};
+		ops[MozSet.MemoFail] = new Op() {
+			@Override
+			int exec(MozIntMachine m, int pc) {
+				if (m.storing(m.code[pc + 1])) {
+					m.ctx.memoFail(m.code[pc + 1]);
+				}
+				return m.fail();
+			}
+		};
+	}
+}
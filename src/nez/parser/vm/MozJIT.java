@@ -0,0 +1,1774 @@
+package nez.parser.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import nez.ast.Symbol;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.lang.Production;
+import nez.parser.io.StringSource;
+import nez.util.Verbose;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * MozJIT translates the Moz86 instruction graph into JVM bytecode with the
+ * ASM library. Each production becomes the static method
+ * <code>long p(ParserMachineContext c, byte[] in, long pos)</code> of a
+ * generated class, which returns the position after the production, or
+ * <code>~pos</code> at the position where it failed. The position is a local
+ * of the method, the input is read from the byte[] of a StringSource, and a
+ * call is a direct static call of the callee, so that the instructions of a
+ * production are neither dispatched nor returned to the interpreter.
+ *
+ * The stack frames of the interpreter become locals: each instruction has a
+ * fixed stack of choice, position, tree and symbol frames, known at compile
+ * time, and the frames at depth d are kept in the locals of depth d. A
+ * failure jumps to the handler of the innermost choice, which rolls back the
+ * position, the AST log and the symbol table as xFail does. Tree
+ * construction, symbol tables and memoization call the context, with its
+ * position set first.
+ *
+ * A production larger than SplitSize bytes of bytecode is split: a region of
+ * it with one entry and one exit, such as a choice, becomes a method of its
+ * own, which runs on the locals of the frames it pushes and is called as a
+ * production is. A production whose stack is not fixed, that uses a binary
+ * instruction, or that cannot be split into methods small enough for HotSpot
+ * to compile is left to the interpreter, through
+ * ParserMachineContext.interpret. Parses with a budget, a tree listener, a
+ * profiler or a source that is not a StringSource are run by the interpreter
+ * too.
+ */
+
+public class MozJIT implements Opcodes {
+	public static int MaxMethodSize = 8000; // HotSpot does not compile larger methods
+	public static int SplitSize = 4000;
+	public static int MaxUnrolledStr = 16;
+
+	private final static String JitPackage = "nez/parser/vm/jit/";
+	private final static String ContextClass = "nez/parser/vm/ParserMachineContext";
+	private final static String ParserContextClass = "nez/parser/ParserContext";
+	private final static String SymbolType = "Lnez/ast/Symbol;";
+	private final static String TreeClass = "nez/ast/Tree";
+	private final static String ProductionDesc = "(L" + ContextClass + ";[BJ)J";
+	private final static int CallSize = 20; // the bytes of a call of a region
+
+	/* locals of a generated method */
+	private final static int C = 0;
+	private final static int IN = 1;
+	private final static int POS = 2;
+	private final static int LEN = 4;
+	private final static int CH = 6;
+	private final static int FRAMES = 7;
+	private final static int FrameSize = 5; // long pos, int log, int symbol, Object tree
+
+	private final MozCode code;
+	private final JitLoader loader = new JitLoader();
+	private final IdentityHashMap<MozInst, Unit> unitMap = new IdentityHashMap<>();
+	private final ArrayList<Unit> units = new ArrayList<>();
+	private MethodHandle start;
+	private int interpreted = 0;
+	private MozInst startEntry;
+
+	public MozJIT(MozCode code) {
+		this.code = code;
+	}
+
+	static class JitLoader extends ClassLoader {
+		final HashMap<String, Object[]> constants = new HashMap<>();
+
+		JitLoader() {
+			super(MozJIT.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return this.defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/* the constants of a generated class, read by its static initializer */
+
+	public static Object[] constants(Class<?> c) {
+		return ((JitLoader) c.getClassLoader()).constants.remove(c.getName());
+	}
+
+	private static class Unit {
+		final String name;
+		final String className;
+		final MozInst entry;
+		boolean logs = false; // may change the AST log or the symbol table
+
+		Unit(String name, String className, MozInst entry) {
+			this.name = name;
+			this.className = className;
+			this.entry = entry;
+		}
+	}
+
+	public final MozJIT compile(Grammar grammar) {
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<MozInst> entries = new ArrayList<>();
+		for (Production p : grammar) {
+			names.add(p.getLocalName());
+			entries.add(code.getProductionCode(p).getCompiled());
+		}
+		return compile(names, entries);
+	}
+
+	/**
+	 * Compiles each production entry, and the start instruction, into a
+	 * class of its own.
+	 */
+
+	final MozJIT compile(List<String> names, List<MozInst> entries) {
+		for (int i = 0; i < entries.size(); i++) {
+			this.unit(names.get(i), skipNop(entries.get(i)));
+		}
+		this.startEntry = skipNop(code.getStartInstruction());
+		this.unit("start", startEntry);
+		/* callees that are not listed as productions */
+		for (int i = 0; i < units.size(); i++) {
+			for (MozInst inst : reachable(units.get(i).entry)) {
+				if (inst instanceof Moz86.Call) {
+					this.unit(((Moz86.Call) inst).getNonTerminalName(), skipNop(inst.next));
+				}
+			}
+		}
+		this.analyzeLogs();
+		int methods = 0;
+		for (Unit u : units) {
+			ClassEmitter ce = new ClassEmitter(u);
+			byte[] b = null;
+			try {
+				b = ce.generate();
+			} catch (UnsupportedException e) {
+				Verbose.println("JIT: %s is interpreted: %s", u.name, e.getMessage());
+			}
+			if (b == null) {
+				ce = new ClassEmitter(u);
+				b = ce.generateStub();
+				this.interpreted++;
+			} else {
+				methods += ce.methods.size();
+			}
+			String name = u.className.replace('/', '.');
+			loader.constants.put(name, ce.consts.toArray());
+			loader.define(name, b);
+		}
+		try {
+			for (Unit u : units) {
+				Class.forName(u.className.replace('/', '.'), true, loader);
+			}
+			Class<?> c = Class.forName(unitMap.get(startEntry).className.replace('/', '.'), true, loader);
+			this.start = MethodHandles.publicLookup().findStatic(c, "p", MethodType.methodType(long.class, ParserMachineContext.class, byte[].class, long.class));
+		} catch (ReflectiveOperationException e) {
+			throw new LinkageError(e.toString());
+		}
+		Verbose.println("JIT: %d productions compiled into %d methods, %d interpreted", units.size() - interpreted, methods, interpreted);
+		return this;
+	}
+
+	/* the productions left to the interpreter */
+
+	final int getInterpreted() {
+		return this.interpreted;
+	}
+
+	private Unit unit(String name, MozInst entry) {
+		Unit u = unitMap.get(entry);
+		if (u == null) {
+			u = new Unit(name, JitPackage + "P" + units.size() + "_" + mangle(name), entry);
+			unitMap.put(entry, u);
+			units.add(u);
+		}
+		return u;
+	}
+
+	private static MozInst skipNop(MozInst inst) {
+		while (inst instanceof Moz86.Nop) {
+			inst = inst.next;
+		}
+		return inst;
+	}
+
+	private static String mangle(String name) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+		}
+		return sb.toString();
+	}
+
+	/* Control flow */
+
+	/* the instructions of the production from entry, up to its Ret */
+
+	private static ArrayList<MozInst> reachable(MozInst entry) {
+		ArrayList<MozInst> list = new ArrayList<>();
+		IdentityHashMap<MozInst, MozInst> seen = new IdentityHashMap<>();
+		ArrayList<MozInst> stack = new ArrayList<>();
+		stack.add(entry);
+		while (stack.size() > 0) {
+			MozInst inst = stack.remove(stack.size() - 1);
+			if (inst == null || seen.containsKey(inst)) {
+				continue;
+			}
+			seen.put(inst, inst);
+			list.add(inst);
+			for (MozInst s : successors(inst)) {
+				stack.add(s);
+			}
+		}
+		return list;
+	}
+
+	private static List<MozInst> successors(MozInst inst) {
+		if (inst instanceof Moz86.Ret || inst instanceof Moz86.Fail || inst instanceof Moz86.MemoFail || inst instanceof Moz86.Exit) {
+			return new ArrayList<>();
+		}
+		if (inst instanceof Moz86.Call) {
+			return Arrays.asList(((Moz86.Call) inst).jump);
+		}
+		if (inst instanceof Moz86.Jump) {
+			return Arrays.asList(((Moz86.Jump) inst).jump);
+		}
+		if (inst instanceof Moz86.Alt) {
+			return Arrays.asList(inst.next, ((Moz86.Alt) inst).jump);
+		}
+		if (inst instanceof Moz86.NDec) {
+			return Arrays.asList(inst.next, ((Moz86.NDec) inst).jump);
+		}
+		if (inst instanceof Moz86.Lookup || inst instanceof Moz86.TLookup) {
+			return Arrays.asList(inst.next, ((Moz86.AbstractMemoizationInstruction) inst).jump);
+		}
+		if (inst instanceof Moz86.Dispatch) {
+			return Arrays.asList(((Moz86.Dispatch) inst).jumpTable);
+		}
+		return Arrays.asList(inst.next);
+	}
+
+	/* instructions that change neither the AST log nor the symbol table */
+
+	private static boolean isPure(MozInst inst) {
+		Class<?> c = inst.getClass();
+		return c == Moz86.Nop.class || c == Moz86.Pos.class || c == Moz86.Back.class || c == Moz86.Move.class || c == Moz86.Jump.class //
+				|| c == Moz86.Call.class || c == Moz86.Ret.class || c == Moz86.Alt.class || c == Moz86.Succ.class || c == Moz86.Fail.class //
+				|| c == Moz86.Step.class || c == Moz86.Guard.class || c == Moz86.Byte.class || c == Moz86.NByte.class || c == Moz86.OByte.class //
+				|| c == Moz86.RByte.class || c == Moz86.Set.class || c == Moz86.NSet.class || c == Moz86.OSet.class || c == Moz86.RSet.class //
+				|| c == Moz86.Str.class || c == Moz86.NStr.class || c == Moz86.OStr.class || c == Moz86.RStr.class || c == Moz86.Scan.class //
+				|| c == Moz86.Keyword.class || c == Moz86.Any.class || c == Moz86.NAny.class || c == Moz86.Dispatch.class || c == Moz86.DDispatch.class //
+				|| c == Moz86.Lookup.class || c == Moz86.Memo.class || c == Moz86.MemoFail.class || c == Moz86.Cov.class;
+	}
+
+	private static boolean isTree(MozInst inst) {
+		Class<?> c = inst.getClass();
+		return c == Moz86.TPush.class || c == Moz86.TPop.class || c == Moz86.TLink.class || c == Moz86.TBegin.class || c == Moz86.TEnd.class //
+				|| c == Moz86.TTag.class || c == Moz86.TReplace.class || c == Moz86.TFold.class || c == Moz86.TEmit.class || c == Moz86.TStart.class //
+				|| c == Moz86.TLookup.class || c == Moz86.TMemo.class;
+	}
+
+	private static boolean isSymbol(MozInst inst) {
+		Class<?> c = inst.getClass();
+		return c == Moz86.SOpen.class || c == Moz86.SClose.class || c == Moz86.SMask.class || c == Moz86.SDef.class || c == Moz86.SExists.class //
+				|| c == Moz86.SIsDef.class || c == Moz86.SMatch.class || c == Moz86.SIs.class || c == Moz86.SIsa.class || c == Moz86.NScan.class //
+				|| c == Moz86.NDec.class;
+	}
+
+	/* a production logs if it or one of its callees has an instruction that logs */
+
+	private void analyzeLogs() {
+		IdentityHashMap<Unit, ArrayList<Unit>> callers = new IdentityHashMap<>();
+		ArrayList<Unit> worklist = new ArrayList<>();
+		for (Unit u : units) {
+			callers.put(u, new ArrayList<Unit>());
+		}
+		for (Unit u : units) {
+			for (MozInst inst : reachable(u.entry)) {
+				if (inst instanceof Moz86.Call) {
+					callers.get(unitMap.get(skipNop(inst.next))).add(u);
+				} else if (!isPure(inst) && !u.logs) {
+					u.logs = true;
+					worklist.add(u);
+				}
+			}
+		}
+		while (worklist.size() > 0) {
+			for (Unit caller : callers.get(worklist.remove(worklist.size() - 1))) {
+				if (!caller.logs) {
+					caller.logs = true;
+					worklist.add(caller);
+				}
+			}
+		}
+	}
+
+	/* Frames */
+
+	private final static int ALT = 0;
+	private final static int POSITION = 1;
+	private final static int TREE = 2;
+	private final static int SYMBOL = 3;
+
+	/* a stack frame; frames are shared, so that equal stacks are identical */
+
+	private static class Frame {
+		final int kind;
+		final MozInst inst;
+		final Frame parent;
+		final int depth;
+		final int local;
+
+		Frame(int kind, MozInst inst, Frame parent) {
+			this.kind = kind;
+			this.inst = inst;
+			this.parent = parent;
+			this.depth = depth(parent) + 1;
+			this.local = FRAMES + (this.depth - 1) * FrameSize;
+		}
+	}
+
+	private static int depth(Frame f) {
+		return f == null ? 0 : f.depth;
+	}
+
+	/* whether f is base or is pushed on base */
+
+	private static boolean within(Frame f, Frame base) {
+		for (int n = depth(f) - depth(base); n > 0; n--) {
+			f = f.parent;
+		}
+		return f == base;
+	}
+
+	@SuppressWarnings("serial")
+	private static class UnsupportedException extends RuntimeException {
+		UnsupportedException(String msg) {
+			super(msg);
+		}
+	}
+
+	/* ASM 4 gives no method size; the size is counted as instructions are visited */
+
+	private static class SizeCounter extends MethodVisitor {
+		int size = 0;
+
+		SizeCounter(MethodVisitor mv) {
+			super(ASM4, mv);
+		}
+
+		private int var(int var) {
+			return var > 255 ? 4 : 2;
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			size += 1;
+			super.visitInsn(opcode);
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			size += opcode == SIPUSH ? 3 : 2;
+			super.visitIntInsn(opcode, operand);
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			size += var(var);
+			super.visitVarInsn(opcode, var);
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			size += 3;
+			super.visitTypeInsn(opcode, type);
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+			size += 3;
+			super.visitFieldInsn(opcode, owner, name, desc);
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+			size += 3;
+			super.visitMethodInsn(opcode, owner, name, desc);
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			size += 3;
+			super.visitJumpInsn(opcode, label);
+		}
+
+		@Override
+		public void visitLdcInsn(Object cst) {
+			size += 3;
+			super.visitLdcInsn(cst);
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			size += 3;
+			super.visitIincInsn(var, increment);
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			size += 16 + 4 * labels.length;
+			super.visitTableSwitchInsn(min, max, dflt, labels);
+		}
+	}
+
+	/*
+	 * A method of a generated class: the production, or a region of it from
+	 * entry to exit, run on the frames of base.
+	 */
+
+	private static class Region {
+		final String name;
+		final MozInst entry;
+		final Frame base;
+		final MozInst exit;
+
+		Region(String name, MozInst entry, Frame base, MozInst exit) {
+			this.name = name;
+			this.entry = entry;
+			this.base = base;
+			this.exit = exit;
+		}
+	}
+
+	/* Code generation */
+
+	private class ClassEmitter {
+		final Unit u;
+		final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+		final HashMap<List<Object>, Frame> frames = new HashMap<>();
+		final IdentityHashMap<MozInst, Frame> shapes = new IdentityHashMap<>();
+		final ArrayList<Region> methods = new ArrayList<>();
+		final IdentityHashMap<MozInst, Region> regions = new IdentityHashMap<>();
+		final IdentityHashMap<MozInst, MozInst> ipdoms = new IdentityHashMap<>();
+		final IdentityHashMap<MozInst, MozInst> exits = new IdentityHashMap<>();
+		final ArrayList<Object> consts = new ArrayList<>();
+		final ArrayList<String> constTypes = new ArrayList<>();
+		final IdentityHashMap<Object, Integer> constMap = new IdentityHashMap<>();
+
+		ClassEmitter(Unit u) {
+			this.u = u;
+		}
+
+		/* returns null if a method is still too large */
+
+		byte[] generate() {
+			this.analyze();
+			Region main = new Region("p", u.entry, null, null);
+			methods.add(main);
+			MethodEmitter dry = new MethodEmitter(main, true);
+			dry.emit();
+			if (dry.mv.size > SplitSize) {
+				this.postDominators();
+				this.split(main, dry.sizes);
+			}
+			this.begin();
+			for (Region r : methods) {
+				MethodEmitter me = new MethodEmitter(r, false);
+				me.emit();
+				if (me.mv.size > MaxMethodSize) {
+					Verbose.println("JIT: %s is interpreted: %s has %d bytes", u.name, r.name, me.mv.size);
+					return null;
+				}
+			}
+			this.end();
+			return cw.toByteArray();
+		}
+
+		/* the stub calls the interpreter on the entry of the production */
+
+		byte[] generateStub() {
+			Region main = new Region("p", u.entry, null, null);
+			methods.add(main);
+			this.begin();
+			new MethodEmitter(main, false).emitStub();
+			this.end();
+			return cw.toByteArray();
+		}
+
+		private void begin() {
+			cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, u.className, null, "java/lang/Object", null);
+		}
+
+		/* the constants are static final fields, set from MozJIT.constants */
+
+		private void end() {
+			MethodVisitor init = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+			init.visitCode();
+			init.visitLdcInsn(Type.getObjectType(u.className));
+			init.visitMethodInsn(INVOKESTATIC, "nez/parser/vm/MozJIT", "constants", "(Ljava/lang/Class;)[Ljava/lang/Object;");
+			for (int i = 0; i < consts.size(); i++) {
+				String type = constTypes.get(i);
+				cw.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "k" + i, type, null, null).visitEnd();
+				init.visitInsn(DUP);
+				pushInt(init, i);
+				init.visitInsn(AALOAD);
+				init.visitTypeInsn(CHECKCAST, type.startsWith("[") ? type : type.substring(1, type.length() - 1));
+				init.visitFieldInsn(PUTSTATIC, u.className, "k" + i, type);
+			}
+			init.visitInsn(POP);
+			init.visitInsn(RETURN);
+			init.visitMaxs(0, 0);
+			init.visitEnd();
+			cw.visitEnd();
+		}
+
+		String constant(Object value, String type) {
+			Integer index = constMap.get(value);
+			if (index == null) {
+				index = consts.size();
+				consts.add(value);
+				constTypes.add(type);
+				constMap.put(value, index);
+			}
+			return "k" + index;
+		}
+
+		/* Stack shapes */
+
+		private Frame push(int kind, MozInst inst, Frame parent) {
+			List<Object> key = Arrays.asList(kind, inst, parent);
+			Frame f = frames.get(key);
+			if (f == null) {
+				f = new Frame(kind, inst, parent);
+				frames.put(key, f);
+			}
+			return f;
+		}
+
+		private Frame pop(int kind, Frame f, MozInst inst) {
+			return top(kind, f, inst).parent;
+		}
+
+		private Frame top(int kind, Frame f, MozInst inst) {
+			if (f == null || f.kind != kind) {
+				throw new UnsupportedException("unbalanced " + inst);
+			}
+			return f;
+		}
+
+		/* the frames of the instructions after inst, but its alternative */
+
+		private Frame after(MozInst inst, Frame f) {
+			Class<?> c = inst.getClass();
+			if (c == Moz86.Alt.class) {
+				return push(ALT, inst, f);
+			}
+			if (c == Moz86.Pos.class) {
+				return push(POSITION, inst, f);
+			}
+			if (c == Moz86.TPush.class) {
+				return push(TREE, inst, f);
+			}
+			if (c == Moz86.SOpen.class || c == Moz86.SMask.class) {
+				return push(SYMBOL, inst, f);
+			}
+			if (c == Moz86.Succ.class || c == Moz86.Memo.class || c == Moz86.TMemo.class) {
+				return pop(ALT, f, inst);
+			}
+			if (c == Moz86.Back.class || c == Moz86.SDef.class || c == Moz86.SIs.class || c == Moz86.SIsa.class || c == Moz86.NScan.class) {
+				return pop(POSITION, f, inst);
+			}
+			if (c == Moz86.TLink.class || c == Moz86.TPop.class) {
+				return pop(TREE, f, inst);
+			}
+			if (c == Moz86.SClose.class) {
+				return pop(SYMBOL, f, inst);
+			}
+			if (c == Moz86.Step.class || c == Moz86.Guard.class) {
+				top(ALT, f, inst);
+			}
+			return f;
+		}
+
+		private void analyze() {
+			ArrayList<MozInst> stack = new ArrayList<>();
+			shapes.put(u.entry, null);
+			stack.add(u.entry);
+			while (stack.size() > 0) {
+				MozInst inst = stack.remove(stack.size() - 1);
+				Frame f = shapes.get(inst);
+				check(inst, f);
+				Frame next = after(inst, f);
+				List<MozInst> succ = successors(inst);
+				for (int i = 0; i < succ.size(); i++) {
+					MozInst s = succ.get(i);
+					/* the alternative of a choice runs under the frames of the choice */
+					Frame sf = (inst instanceof Moz86.Alt && i == 1) ? f : next;
+					if (s instanceof Moz86.Fail) {
+						continue;
+					}
+					if (s == null) {
+						throw new UnsupportedException("null successor of " + inst);
+					}
+					if (shapes.containsKey(s)) {
+						if (shapes.get(s) != sf) {
+							throw new UnsupportedException("inconsistent stack at " + s);
+						}
+						continue;
+					}
+					shapes.put(s, sf);
+					stack.add(s);
+				}
+			}
+		}
+
+		private void check(MozInst inst, Frame f) {
+			if (!isPure(inst) && !isTree(inst) && !isSymbol(inst)) {
+				throw new UnsupportedException(inst.getClass().getSimpleName());
+			}
+			if (inst instanceof Moz86.Ret && f != null) {
+				throw new UnsupportedException("unbalanced " + inst);
+			}
+		}
+
+		/* Splitting */
+
+		/*
+		 * Moves regions out of the production, the inner regions first: a
+		 * region becomes a method once it has SplitSize / 2 bytes, and a
+		 * region, or the production, larger than SplitSize first has the
+		 * largest regions in it moved out until it fits.
+		 */
+
+		private void split(Region main, final IdentityHashMap<MozInst, Integer> sizes) {
+			final IdentityHashMap<MozInst, Integer> rawSizes = new IdentityHashMap<>();
+			ArrayList<MozInst> candidates = new ArrayList<>();
+			for (MozInst x : reachable(main.entry)) {
+				if (x != main.entry && exit(x) != null) {
+					rawSizes.put(x, walk(x, exit(x), sizes, null));
+					candidates.add(x);
+				}
+			}
+			Collections.sort(candidates, (x, y) -> Integer.compare(rawSizes.get(x), rawSizes.get(y)));
+			ArrayList<MozInst> nodes = new ArrayList<>();
+			for (MozInst x : candidates) {
+				nodes.clear();
+				int size = reduce(x, exit(x), sizes, nodes);
+				if (size >= SplitSize / 2) {
+					Region r = new Region("r" + methods.size(), x, shapes.get(x), exit(x));
+					regions.put(x, r);
+					methods.add(r);
+				}
+			}
+			reduce(main.entry, null, sizes, nodes);
+		}
+
+		/* moves the largest regions out of the code from entry to exit until it fits */
+
+		private int reduce(MozInst entry, MozInst exit, IdentityHashMap<MozInst, Integer> sizes, ArrayList<MozInst> nodes) {
+			nodes.clear();
+			int size = walk(entry, exit, sizes, nodes);
+			while (size > SplitSize) {
+				MozInst best = null;
+				int bestSize = 0;
+				boolean bestFits = false;
+				for (MozInst x : nodes) {
+					if (x == entry || regions.containsKey(x) || exit(x) == null) {
+						continue;
+					}
+					int s = walk(x, exit(x), sizes, null);
+					boolean fits = s <= SplitSize;
+					if (s + CallSize < size && (best == null || (fits && !bestFits) || (fits == bestFits && s > bestSize))) {
+						best = x;
+						bestSize = s;
+						bestFits = fits;
+					}
+				}
+				/* small regions are left in a method HotSpot still compiles */
+				if (best == null || (bestSize < SplitSize / 8 && size < MaxMethodSize - SplitSize / 4)) {
+					break;
+				}
+				Region r = new Region("r" + methods.size(), best, shapes.get(best), exit(best));
+				regions.put(best, r);
+				methods.add(r);
+				nodes.clear();
+				size = walk(entry, exit, sizes, nodes);
+			}
+			return size;
+		}
+
+		/* the size of the code from entry to exit, where a region is a call */
+
+		private int walk(MozInst entry, MozInst exit, IdentityHashMap<MozInst, Integer> sizes, ArrayList<MozInst> nodes) {
+			int size = 0;
+			IdentityHashMap<MozInst, MozInst> seen = new IdentityHashMap<>();
+			ArrayList<MozInst> stack = new ArrayList<>();
+			stack.add(entry);
+			while (stack.size() > 0) {
+				MozInst inst = stack.remove(stack.size() - 1);
+				if (inst == exit || inst instanceof Moz86.Fail || seen.containsKey(inst)) {
+					continue;
+				}
+				seen.put(inst, inst);
+				if (nodes != null) {
+					nodes.add(inst);
+				}
+				Region r = inst == entry ? null : regions.get(inst);
+				if (r != null) {
+					size += CallSize;
+					stack.add(r.exit);
+					continue;
+				}
+				Integer s = sizes.get(inst);
+				size += s == null ? 0 : s;
+				stack.addAll(successors(inst));
+			}
+			return size;
+		}
+
+		/*
+		 * The exit of the region from x: the nearest postdominator of x on
+		 * the frames of x, if the instructions between them neither return
+		 * nor touch the frames of x; or null.
+		 */
+
+		private MozInst exit(MozInst x) {
+			if (exits.containsKey(x)) {
+				return exits.get(x);
+			}
+			MozInst exit = null;
+			Frame base = shapes.get(x);
+			for (MozInst y = ipdoms.get(x); y != null && within(shapes.get(y), base); y = ipdoms.get(y)) {
+				if (shapes.get(y) == base) {
+					exit = isRegion(x, y, base) ? y : null;
+					break;
+				}
+			}
+			exits.put(x, exit);
+			return exit;
+		}
+
+		private boolean isRegion(MozInst x, MozInst y, Frame base) {
+			IdentityHashMap<MozInst, MozInst> seen = new IdentityHashMap<>();
+			ArrayList<MozInst> stack = new ArrayList<>();
+			stack.add(x);
+			while (stack.size() > 0) {
+				MozInst inst = stack.remove(stack.size() - 1);
+				if (inst == y || inst instanceof Moz86.Fail || seen.containsKey(inst)) {
+					continue;
+				}
+				seen.put(inst, inst);
+				Frame f = shapes.get(inst);
+				if (inst instanceof Moz86.Ret || inst instanceof Moz86.Exit || !within(f, base)) {
+					return false;
+				}
+				if (f == base && (inst instanceof Moz86.Step || inst instanceof Moz86.Guard || depth(after(inst, f)) < depth(base))) {
+					return false;
+				}
+				stack.addAll(successors(inst));
+			}
+			return true;
+		}
+
+		/*
+		 * The immediate postdominators, which are the dominators of the
+		 * reversed graph (Cooper, Harvey and Kennedy). A failure is no edge:
+		 * it goes to the alternative of a choice, which is a successor of the
+		 * choice already. The step of a repetition goes to the alternative
+		 * rather than back, so that the body of a repetition ends at its
+		 * step. An instruction that leads to a failure alone, as the body of
+		 * a not-predicate, is postdominated on its way to the failure, and no
+		 * path to it counts for the instructions that may succeed.
+		 */
+
+		private void postDominators() {
+			ArrayList<MozInst> nodes = reachable(u.entry);
+			int n = nodes.size();
+			int exit = n; // after each Ret
+			int failure = n + 1; // after each failure of an instruction that leads to failures only
+			int root = n + 2;
+			IdentityHashMap<MozInst, Integer> index = new IdentityHashMap<>();
+			for (int i = 0; i < n; i++) {
+				index.put(nodes.get(i), i);
+			}
+			ArrayList<ArrayList<Integer>> targets = new ArrayList<>();
+			ArrayList<ArrayList<Integer>> preds = new ArrayList<>();
+			boolean[] fails = new boolean[n];
+			for (int i = 0; i < n + 3; i++) {
+				targets.add(new ArrayList<Integer>());
+				preds.add(new ArrayList<Integer>());
+			}
+			for (int i = 0; i < n; i++) {
+				MozInst inst = nodes.get(i);
+				List<MozInst> succ = successors(inst);
+				if (inst instanceof Moz86.Ret) {
+					targets.get(i).add(exit);
+				} else if (inst instanceof Moz86.Step || inst instanceof Moz86.Guard) {
+					/* a repetition is left by a failure, to the alternative of its choice */
+					succ = Arrays.asList(((Moz86.Alt) shapes.get(inst).inst).jump);
+				}
+				fails[i] = !(inst instanceof Moz86.Ret) && succ.isEmpty();
+				for (MozInst t : succ) {
+					if (t instanceof Moz86.Fail) {
+						fails[i] = true;
+					} else if (!targets.get(i).contains(index.get(t))) {
+						targets.get(i).add(index.get(t));
+					}
+				}
+			}
+			/* the instructions that may succeed */
+			boolean[] succeeds = new boolean[n + 1];
+			ArrayList<Integer> worklist = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				for (int t : targets.get(i)) {
+					preds.get(t).add(i);
+				}
+			}
+			succeeds[exit] = true;
+			worklist.add(exit);
+			while (worklist.size() > 0) {
+				for (int i : preds.get(worklist.remove(worklist.size() - 1))) {
+					if (!succeeds[i]) {
+						succeeds[i] = true;
+						worklist.add(i);
+					}
+				}
+			}
+			int[][] succ = new int[n + 3][];
+			for (int i = 0; i < n + 3; i++) {
+				preds.get(i).clear();
+			}
+			for (int i = 0; i < n + 2; i++) {
+				ArrayList<Integer> s = new ArrayList<>();
+				if (i >= n) {
+					s.add(root);
+				} else {
+					for (int t : targets.get(i)) {
+						if (!succeeds[i] || succeeds[t]) {
+							s.add(t);
+						}
+					}
+					if (!succeeds[i] && fails[i]) {
+						s.add(failure);
+					}
+				}
+				succ[i] = new int[s.size()];
+				for (int j = 0; j < s.size(); j++) {
+					succ[i][j] = s.get(j);
+					preds.get(s.get(j)).add(i);
+				}
+			}
+			succ[root] = new int[0];
+			/* the postorder of the reversed graph, from the root */
+			int[] order = new int[n + 3];
+			int[] postorder = new int[n + 3];
+			int count = 0;
+			int[] stack = new int[n + 3];
+			int[] next = new int[n + 3];
+			boolean[] visited = new boolean[n + 3];
+			int sp = 0;
+			stack[sp++] = root;
+			visited[root] = true;
+			while (sp > 0) {
+				int v = stack[sp - 1];
+				if (next[v] < preds.get(v).size()) {
+					int w = preds.get(v).get(next[v]++);
+					if (!visited[w]) {
+						visited[w] = true;
+						stack[sp++] = w;
+					}
+				} else {
+					sp--;
+					order[v] = count;
+					postorder[count++] = v;
+				}
+			}
+			int[] idom = new int[n + 3];
+			Arrays.fill(idom, -1);
+			idom[root] = root;
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int k = count - 2; k >= 0; k--) {
+					int b = postorder[k];
+					int d = -1;
+					for (int s : succ[b]) {
+						if (idom[s] != -1) {
+							d = d == -1 ? s : intersect(s, d, idom, order);
+						}
+					}
+					if (d != idom[b]) {
+						idom[b] = d;
+						changed = true;
+					}
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				if (idom[i] >= 0 && idom[i] < n) {
+					ipdoms.put(nodes.get(i), nodes.get(idom[i]));
+				}
+			}
+		}
+
+		private int intersect(int a, int b, int[] idom, int[] order) {
+			while (a != b) {
+				while (order[a] < order[b]) {
+					a = idom[a];
+				}
+				while (order[b] < order[a]) {
+					b = idom[b];
+				}
+			}
+			return a;
+		}
+
+		/* Methods */
+
+		private class MethodEmitter {
+			final Region r;
+			final boolean dry; // counts the size of each instruction
+			final SizeCounter mv;
+			final IdentityHashMap<MozInst, Label> labels = new IdentityHashMap<>();
+			final IdentityHashMap<MozInst, MozInst> emitted = new IdentityHashMap<>();
+			final IdentityHashMap<MozInst, Integer> sizes = new IdentityHashMap<>();
+			final ArrayList<Frame> handlers = new ArrayList<>();
+			final IdentityHashMap<Frame, Label> handlerLabels = new IdentityHashMap<>();
+			final IdentityHashMap<Frame, Label> negatedLabels = new IdentityHashMap<>();
+			final Label failed = new Label(); // returns ~pos
+			final Label negatedFailed = new Label(); // returns pos, which is ~fpos
+
+			MethodEmitter(Region r, boolean dry) {
+				this.r = r;
+				this.dry = dry;
+				this.mv = new SizeCounter(dry ? null : cw.visitMethod(ACC_PUBLIC | ACC_STATIC, r.name, ProductionDesc, null, null));
+			}
+
+			void emit() {
+				this.begin();
+				this.emitBody();
+				this.end();
+			}
+
+			void emitStub() {
+				this.begin();
+				sync();
+				mv.visitVarInsn(ALOAD, C);
+				getConst(u.entry, "Lnez/parser/vm/MozInst;");
+				invoke("interpret", "(Lnez/parser/vm/MozInst;)Z");
+				reload();
+				mv.visitJumpInsn(IFEQ, failed);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitInsn(LRETURN);
+				this.end();
+			}
+
+			private void begin() {
+				mv.visitCode();
+				mv.visitVarInsn(ALOAD, IN);
+				mv.visitInsn(ARRAYLENGTH);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(ISUB);
+				mv.visitInsn(I2L);
+				mv.visitVarInsn(LSTORE, LEN);
+			}
+
+			private void end() {
+				for (int i = 0; i < handlers.size(); i++) {
+					int size = mv.size;
+					emitHandler(handlers.get(i));
+					count(handlers.get(i).inst, size);
+				}
+				mv.visitLabel(negatedFailed);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitInsn(LRETURN);
+				mv.visitLabel(failed);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitLdcInsn(-1L);
+				mv.visitInsn(LXOR);
+				mv.visitInsn(LRETURN);
+				mv.visitMaxs(0, 0);
+				mv.visitEnd();
+			}
+
+			/* adds the code emitted since size to the size of inst */
+
+			private void count(MozInst inst, int size) {
+				if (dry) {
+					Integer s = sizes.get(inst);
+					sizes.put(inst, (s == null ? 0 : s) + mv.size - size);
+				}
+			}
+
+			/* Labels */
+
+			private Label label(MozInst inst) {
+				Label l = labels.get(inst);
+				if (l == null) {
+					l = new Label();
+					labels.put(inst, l);
+				}
+				return l;
+			}
+
+			/* the innermost choice of f in this method, or null */
+
+			private Frame choice(Frame f) {
+				while (f != r.base && f.kind != ALT) {
+					f = f.parent;
+				}
+				return f == r.base ? null : f;
+			}
+
+			/* where a failure under f goes */
+
+			private Label fail(Frame f) {
+				Frame alt = choice(f);
+				if (alt == null) {
+					return failed;
+				}
+				Label l = handlerLabels.get(alt);
+				if (l == null) {
+					l = new Label();
+					handlerLabels.put(alt, l);
+					handlers.add(alt);
+				}
+				return l;
+			}
+
+			/* where a failure under f goes when pos holds ~fpos */
+
+			private Label negatedFail(Frame f) {
+				Frame alt = choice(f);
+				if (alt == null) {
+					return negatedFailed;
+				}
+				fail(alt);
+				Label l = negatedLabels.get(alt);
+				if (l == null) {
+					l = new Label();
+					negatedLabels.put(alt, l);
+				}
+				return l;
+			}
+
+			/* the label of target, an instruction run under f */
+
+			private Label target(MozInst target, Frame f) {
+				return target instanceof Moz86.Fail ? fail(f) : label(target);
+			}
+
+			/* Emission */
+
+			private void emitBody() {
+				ArrayList<MozInst> pending = new ArrayList<>();
+				pending.add(r.entry);
+				while (pending.size() > 0) {
+					MozInst inst = pending.remove(pending.size() - 1);
+					while (inst != null && !emitted.containsKey(inst)) {
+						emitted.put(inst, inst);
+						int size = mv.size;
+						mv.visitLabel(label(inst));
+						Frame f = shapes.get(inst);
+						Region callee = inst == r.entry ? null : regions.get(inst);
+						MozInst next;
+						List<MozInst> succ;
+						if (inst == r.exit) {
+							mv.visitVarInsn(LLOAD, POS);
+							mv.visitInsn(LRETURN);
+							next = null;
+							succ = new ArrayList<>();
+						} else if (callee != null) {
+							call(u.className, callee.name, f);
+							next = callee.exit;
+							succ = Arrays.asList(next);
+						} else {
+							next = emit(inst, f);
+							succ = successors(inst);
+						}
+						for (MozInst s : succ) {
+							if (s != next && !(s instanceof Moz86.Fail) && !emitted.containsKey(s)) {
+								pending.add(s);
+							}
+						}
+						if (next instanceof Moz86.Fail) {
+							mv.visitJumpInsn(GOTO, fail(after(inst, f)));
+							next = null;
+						} else if (next != null && emitted.containsKey(next)) {
+							mv.visitJumpInsn(GOTO, label(next));
+						}
+						count(inst, size);
+						inst = next;
+					}
+				}
+			}
+
+			private void emitHandler(Frame alt) {
+				int local = alt.local;
+				if (negatedLabels.containsKey(alt)) {
+					mv.visitLabel(negatedLabels.get(alt));
+					negate();
+				}
+				mv.visitLabel(handlerLabels.get(alt));
+				Label same = new Label();
+				mv.visitVarInsn(LLOAD, local);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitInsn(LCMP);
+				mv.visitJumpInsn(IFGE, same);
+				mv.visitVarInsn(ALOAD, C);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitVarInsn(LLOAD, local);
+				invoke("backtrack", "(JJ)V");
+				mv.visitVarInsn(LLOAD, local);
+				mv.visitVarInsn(LSTORE, POS);
+				mv.visitLabel(same);
+				if (u.logs) {
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitVarInsn(ILOAD, local + 2);
+					invoke("backLog", "(I)V");
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitVarInsn(ILOAD, local + 3);
+					invoke("backSymbolPoint", "(I)V");
+				}
+				MozInst jump = ((Moz86.Alt) alt.inst).jump;
+				mv.visitJumpInsn(GOTO, target(jump, alt.parent));
+			}
+
+			/* emits inst, and returns the instruction that falls through, or null */
+
+			private MozInst emit(MozInst inst, Frame f) {
+				Class<?> c = inst.getClass();
+				if (c == Moz86.Nop.class || c == Moz86.TEmit.class || c == Moz86.TStart.class) {
+					return inst.next;
+				}
+				if (c == Moz86.Byte.class) {
+					loadByte();
+					pushInt(mv, (byte) ((Moz86.Byte) inst).byteChar);
+					move(1);
+					mv.visitJumpInsn(IF_ICMPNE, fail(f));
+					return inst.next;
+				}
+				if (c == Moz86.NByte.class) {
+					loadByte();
+					pushInt(mv, (byte) ((Moz86.NByte) inst).byteChar);
+					mv.visitJumpInsn(IF_ICMPEQ, fail(f));
+					return inst.next;
+				}
+				if (c == Moz86.OByte.class) {
+					int byteChar = ((Moz86.OByte) inst).byteChar;
+					if (byteChar != 0) {
+						Label skip = new Label();
+						loadByte();
+						pushInt(mv, (byte) byteChar);
+						mv.visitJumpInsn(IF_ICMPNE, skip);
+						move(1);
+						mv.visitLabel(skip);
+					}
+					return inst.next;
+				}
+				if (c == Moz86.RByte.class) {
+					Label loop = new Label();
+					Label end = new Label();
+					mv.visitLabel(loop);
+					loadByte();
+					pushInt(mv, (byte) ((Moz86.RByte) inst).byteChar);
+					mv.visitJumpInsn(IF_ICMPNE, end);
+					move(1);
+					mv.visitJumpInsn(GOTO, loop);
+					mv.visitLabel(end);
+					return inst.next;
+				}
+				if (c == Moz86.Set.class) {
+					loadSet(((Moz86.Set) inst).byteSet);
+					move(1);
+					mv.visitJumpInsn(IFEQ, fail(f));
+					return inst.next;
+				}
+				if (c == Moz86.NSet.class) {
+					loadSet(((Moz86.NSet) inst).byteSet);
+					mv.visitJumpInsn(IFNE, fail(f));
+					return inst.next;
+				}
+				if (c == Moz86.OSet.class) {
+					Label skip = new Label();
+					loadSet(((Moz86.OSet) inst).byteSet);
+					mv.visitJumpInsn(IFEQ, skip);
+					move(1);
+					mv.visitLabel(skip);
+					return inst.next;
+				}
+				if (c == Moz86.RSet.class) {
+					Label loop = new Label();
+					Label end = new Label();
+					mv.visitLabel(loop);
+					loadSet(((Moz86.RSet) inst).byteSet);
+					mv.visitJumpInsn(IFEQ, end);
+					move(1);
+					mv.visitJumpInsn(GOTO, loop);
+					mv.visitLabel(end);
+					return inst.next;
+				}
+				if (c == Moz86.Str.class) {
+					byte[] utf8 = ((Moz86.Str) inst).utf8;
+					matchStr(utf8, fail(f));
+					move(utf8.length);
+					return inst.next;
+				}
+				if (c == Moz86.NStr.class) {
+					Label ok = new Label();
+					matchStr(((Moz86.NStr) inst).utf8, ok);
+					mv.visitJumpInsn(GOTO, fail(f));
+					mv.visitLabel(ok);
+					return inst.next;
+				}
+				if (c == Moz86.OStr.class) {
+					byte[] utf8 = ((Moz86.OStr) inst).utf8;
+					Label skip = new Label();
+					matchStr(utf8, skip);
+					move(utf8.length);
+					mv.visitLabel(skip);
+					return inst.next;
+				}
+				if (c == Moz86.RStr.class) {
+					byte[] utf8 = ((Moz86.RStr) inst).utf8;
+					Label loop = new Label();
+					Label end = new Label();
+					mv.visitLabel(loop);
+					matchStr(utf8, end);
+					move(utf8.length);
+					mv.visitJumpInsn(GOTO, loop);
+					mv.visitLabel(end);
+					return inst.next;
+				}
+				if (c == Moz86.Scan.class) {
+					sync();
+					mv.visitVarInsn(ALOAD, C);
+					getConst(((Moz86.Scan) inst).utf8, "[B");
+					getConst(((Moz86.Scan) inst).shifts, "[I");
+					invoke("scan", "([B[I)V");
+					reload();
+					return inst.next;
+				}
+				if (c == Moz86.Keyword.class) {
+					sync();
+					mv.visitVarInsn(ALOAD, C);
+					getConst(((Moz86.Keyword) inst).trie, "Lnez/parser/vm/KeywordTrie;");
+					invoke("match", "(Lnez/parser/vm/KeywordTrie;)Z");
+					mv.visitJumpInsn(IFEQ, fail(f));
+					reload();
+					return inst.next;
+				}
+				if (c == Moz86.Any.class) {
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitVarInsn(LLOAD, LEN);
+					mv.visitInsn(LCMP);
+					mv.visitJumpInsn(IFGE, fail(f));
+					move(1);
+					return inst.next;
+				}
+				if (c == Moz86.NAny.class) {
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitVarInsn(LLOAD, LEN);
+					mv.visitInsn(LCMP);
+					mv.visitJumpInsn(IFLT, fail(f));
+					return inst.next;
+				}
+				if (c == Moz86.Move.class) {
+					move(((Moz86.Move) inst).shift);
+					return inst.next;
+				}
+				if (c == Moz86.Dispatch.class || c == Moz86.DDispatch.class) {
+					emitDispatch(((Moz86.Dispatch) inst).jumpTable, c == Moz86.DDispatch.class, f);
+					return null;
+				}
+				if (c == Moz86.Jump.class) {
+					return ((Moz86.Jump) inst).jump;
+				}
+				if (c == Moz86.Alt.class) {
+					save(after(inst, f).local);
+					return inst.next;
+				}
+				if (c == Moz86.Step.class || c == Moz86.Guard.class) {
+					mv.visitVarInsn(LLOAD, f.local);
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitInsn(LCMP);
+					mv.visitJumpInsn(IFEQ, fail(f));
+					save(f.local);
+					return inst.next;
+				}
+				if (c == Moz86.Succ.class) {
+					return inst.next;
+				}
+				if (c == Moz86.Call.class) {
+					call(unitMap.get(skipNop(inst.next)).className, "p", f);
+					return ((Moz86.Call) inst).jump;
+				}
+				if (c == Moz86.Ret.class) {
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitInsn(LRETURN);
+					return null;
+				}
+				if (c == Moz86.Pos.class) {
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitVarInsn(LSTORE, after(inst, f).local);
+					return inst.next;
+				}
+				if (c == Moz86.Back.class) {
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitVarInsn(LLOAD, f.local);
+					invoke("backtrack", "(JJ)V");
+					mv.visitVarInsn(LLOAD, f.local);
+					mv.visitVarInsn(LSTORE, POS);
+					return inst.next;
+				}
+				if (c == Moz86.Cov.class) {
+					Moz86.Cov cov = (Moz86.Cov) inst;
+					getConst(cov.prof, "Lnez/parser/CoverageProfiler;");
+					pushInt(mv, cov.id);
+					pushInt(mv, cov.start ? 1 : 0);
+					mv.visitMethodInsn(INVOKEVIRTUAL, "nez/parser/CoverageProfiler", "countCoverage", "(IZ)V");
+					return inst.next;
+				}
+				if (inst instanceof Moz86.AbstractMemoizationInstruction) {
+					return emitMemo((Moz86.AbstractMemoizationInstruction) inst, f);
+				}
+				if (isTree(inst)) {
+					return emitTree(inst, f);
+				}
+				return emitSymbol(inst, f);
+			}
+
+			/* a switch on the index of the target of the byte, in the order of the targets */
+
+			private void emitDispatch(MozInst[] jumpTable, boolean consume, Frame f) {
+				ArrayList<Label> targets = new ArrayList<>();
+				byte[] index = new byte[256];
+				for (int ch = 0; ch < 256; ch++) {
+					Label l = target(jumpTable[ch], f);
+					int i = targets.indexOf(l);
+					if (i == -1) {
+						i = targets.size();
+						targets.add(l);
+					}
+					index[ch] = (byte) i;
+				}
+				if (targets.size() > 1) {
+					getConst(index, "[B");
+					loadByte();
+					pushInt(mv, 0xff);
+					mv.visitInsn(IAND);
+					mv.visitInsn(BALOAD);
+				}
+				if (consume) {
+					move(1);
+				}
+				if (targets.size() > 1) {
+					Label[] table = targets.toArray(new Label[targets.size()]);
+					mv.visitTableSwitchInsn(0, table.length - 1, table[0], table);
+				} else {
+					mv.visitJumpInsn(GOTO, targets.get(0));
+				}
+			}
+
+			private MozInst emitMemo(Moz86.AbstractMemoizationInstruction inst, Frame f) {
+				Class<?> c = inst.getClass();
+				if (c == Moz86.Lookup.class || c == Moz86.TLookup.class) {
+					if (inst.adaptive) {
+						mv.visitVarInsn(ALOAD, C);
+						pushInt(mv, inst.uid);
+						invoke("bypassMemo", "(I)Z");
+						mv.visitJumpInsn(IFNE, target(inst.next, f));
+					}
+					sync();
+					mv.visitVarInsn(ALOAD, C);
+					pushInt(mv, inst.uid);
+					invoke(c == Moz86.Lookup.class ? "lookupMemo" : "lookupTreeMemo", "(I)I");
+					mv.visitVarInsn(ISTORE, CH);
+					reload();
+					if (inst.adaptive) {
+						Label found = new Label();
+						Label trial = new Label();
+						mv.visitVarInsn(ALOAD, C);
+						pushInt(mv, inst.uid);
+						mv.visitVarInsn(ILOAD, CH);
+						mv.visitJumpInsn(IFNE, found);
+						mv.visitInsn(ICONST_0);
+						mv.visitJumpInsn(GOTO, trial);
+						mv.visitLabel(found);
+						mv.visitInsn(ICONST_1);
+						mv.visitLabel(trial);
+						invoke("trialMemo", "(IZ)V");
+					}
+					mv.visitVarInsn(ILOAD, CH);
+					mv.visitJumpInsn(IFEQ, target(inst.next, f));
+					mv.visitVarInsn(ILOAD, CH);
+					mv.visitInsn(ICONST_1);
+					mv.visitJumpInsn(IF_ICMPEQ, target(inst.jump, f));
+					mv.visitJumpInsn(GOTO, fail(f));
+					return null;
+				}
+				Label skip = new Label();
+				if (inst.adaptive) {
+					mv.visitVarInsn(ALOAD, C);
+					pushInt(mv, inst.uid);
+					invoke("isMemoBypassed", "(I)Z");
+					mv.visitJumpInsn(IFNE, skip);
+				}
+				sync();
+				mv.visitVarInsn(ALOAD, C);
+				pushInt(mv, inst.uid);
+				if (c == Moz86.MemoFail.class) {
+					invoke("memoFail", "(I)V");
+					mv.visitLabel(skip);
+					mv.visitJumpInsn(GOTO, fail(f));
+					return null;
+				}
+				mv.visitVarInsn(LLOAD, f.local);
+				invoke(c == Moz86.Memo.class ? "memoSucc" : "memoTreeSucc", "(IJ)V");
+				mv.visitLabel(skip);
+				return inst.next;
+			}
+
+			private MozInst emitTree(MozInst inst, Frame f) {
+				Class<?> c = inst.getClass();
+				if (c == Moz86.TPush.class) {
+					int local = after(inst, f).local;
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitFieldInsn(GETFIELD, ParserContextClass, "left", "L" + TreeClass + ";");
+					mv.visitVarInsn(ASTORE, local + 4);
+					mv.visitVarInsn(ALOAD, C);
+					invoke("saveLog", "()I");
+					mv.visitVarInsn(ISTORE, local + 2);
+					return inst.next;
+				}
+				if (c == Moz86.TLink.class || c == Moz86.TPop.class) {
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitVarInsn(ILOAD, f.local + 2);
+					invoke("backLog", "(I)V");
+					if (c == Moz86.TLink.class) {
+						mv.visitVarInsn(ALOAD, C);
+						mv.visitVarInsn(ALOAD, f.local + 4);
+						mv.visitTypeInsn(CHECKCAST, TreeClass);
+						getSymbol(((Moz86.TLink) inst).label);
+						invoke("linkTree", "(L" + TreeClass + ";" + SymbolType + ")V");
+					}
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitVarInsn(ALOAD, f.local + 4);
+					mv.visitTypeInsn(CHECKCAST, TreeClass);
+					mv.visitFieldInsn(PUTFIELD, ParserContextClass, "left", "L" + TreeClass + ";");
+					return inst.next;
+				}
+				sync();
+				mv.visitVarInsn(ALOAD, C);
+				if (c == Moz86.TBegin.class) {
+					Moz86.TBegin t = (Moz86.TBegin) inst;
+					pushInt(mv, t.shift);
+					getSymbol(t.tag);
+					invoke("beginTree", "(I" + SymbolType + ")V");
+				} else if (c == Moz86.TEnd.class) {
+					Moz86.TEnd t = (Moz86.TEnd) inst;
+					getSymbol(t.tag);
+					pushString(t.value);
+					pushInt(mv, t.shift);
+					invoke("endTree", "(" + SymbolType + "Ljava/lang/String;I)V");
+				} else if (c == Moz86.TTag.class) {
+					getSymbol(((Moz86.TTag) inst).tag);
+					invoke("tagTree", "(" + SymbolType + ")V");
+				} else if (c == Moz86.TReplace.class) {
+					pushString(((Moz86.TReplace) inst).value);
+					invoke("valueTree", "(Ljava/lang/String;)V");
+				} else { // TFold
+					Moz86.TFold t = (Moz86.TFold) inst;
+					pushInt(mv, t.shift);
+					getSymbol(t.label);
+					invoke("foldTree", "(I" + SymbolType + ")V");
+				}
+				return inst.next;
+			}
+
+			private MozInst emitSymbol(MozInst inst, Frame f) {
+				Class<?> c = inst.getClass();
+				if (c == Moz86.SOpen.class || c == Moz86.SMask.class) {
+					int local = after(inst, f).local;
+					mv.visitVarInsn(ALOAD, C);
+					invoke("saveSymbolPoint", "()I");
+					mv.visitVarInsn(ISTORE, local + 3);
+					if (c == Moz86.SMask.class) {
+						mv.visitVarInsn(ALOAD, C);
+						getSymbol(((Moz86.SMask) inst).table);
+						invoke("addSymbolMask", "(" + SymbolType + ")V");
+					}
+					return inst.next;
+				}
+				if (c == Moz86.SClose.class) {
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitVarInsn(ILOAD, f.local + 3);
+					invoke("backSymbolPoint", "(I)V");
+					return inst.next;
+				}
+				if (c == Moz86.NDec.class) {
+					mv.visitVarInsn(ALOAD, C);
+					invoke("decCount", "()Z");
+					mv.visitJumpInsn(IFEQ, target(((Moz86.NDec) inst).jump, f));
+					return inst.next;
+				}
+				if (c == Moz86.NScan.class) {
+					Moz86.NScan n = (Moz86.NScan) inst;
+					sync();
+					mv.visitVarInsn(ALOAD, C);
+					mv.visitVarInsn(LLOAD, f.local);
+					mv.visitLdcInsn(n.mask);
+					pushInt(mv, n.shift);
+					invoke("scanCount", "(JJI)V");
+					return inst.next;
+				}
+				sync();
+				mv.visitVarInsn(ALOAD, C);
+				getSymbol(((Moz86.AbstractTableInstruction) inst).table);
+				if (c == Moz86.SDef.class) {
+					mv.visitVarInsn(LLOAD, f.local);
+					invoke("addSymbol", "(" + SymbolType + "J)V");
+					return inst.next;
+				}
+				if (c == Moz86.SExists.class) {
+					invoke("exists", "(" + SymbolType + ")Z");
+				} else if (c == Moz86.SIsDef.class) {
+					getConst(((Moz86.SIsDef) inst).utf8, "[B");
+					invoke("existsSymbol", "(" + SymbolType + "[B)Z");
+				} else if (c == Moz86.SMatch.class) {
+					invoke("matchSymbol", "(" + SymbolType + ")Z");
+					mv.visitJumpInsn(IFEQ, fail(f));
+					reload();
+					return inst.next;
+				} else if (c == Moz86.SIs.class) {
+					mv.visitVarInsn(LLOAD, f.local);
+					invoke("equals", "(" + SymbolType + "J)Z");
+				} else { // SIsa
+					mv.visitVarInsn(LLOAD, f.local);
+					invoke("contains", "(" + SymbolType + "J)Z");
+				}
+				mv.visitJumpInsn(IFEQ, fail(f));
+				return inst.next;
+			}
+
+			/* Helpers */
+
+			private void invoke(String name, String desc) {
+				mv.visitMethodInsn(INVOKEVIRTUAL, ContextClass, name, desc);
+			}
+
+			/* pos = name(c, in, pos), or a failure when it returns ~fpos */
+
+			private void call(String className, String name, Frame f) {
+				mv.visitVarInsn(ALOAD, C);
+				mv.visitVarInsn(ALOAD, IN);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitMethodInsn(INVOKESTATIC, className, name, ProductionDesc);
+				mv.visitInsn(DUP2);
+				mv.visitVarInsn(LSTORE, POS);
+				mv.visitInsn(LCONST_0);
+				mv.visitInsn(LCMP);
+				mv.visitJumpInsn(IFLT, negatedFail(f));
+			}
+
+			/* c.pos = pos, before the context reads it */
+
+			private void sync() {
+				mv.visitVarInsn(ALOAD, C);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitFieldInsn(PUTFIELD, ParserContextClass, "pos", "J");
+			}
+
+			/* pos = c.pos, after the context moves it */
+
+			private void reload() {
+				mv.visitVarInsn(ALOAD, C);
+				mv.visitFieldInsn(GETFIELD, ParserContextClass, "pos", "J");
+				mv.visitVarInsn(LSTORE, POS);
+			}
+
+			private void negate() {
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitLdcInsn(-1L);
+				mv.visitInsn(LXOR);
+				mv.visitVarInsn(LSTORE, POS);
+			}
+
+			private void move(int shift) {
+				mv.visitVarInsn(LLOAD, POS);
+				if (shift == 1) {
+					mv.visitInsn(LCONST_1);
+				} else {
+					mv.visitLdcInsn((long) shift);
+				}
+				mv.visitInsn(LADD);
+				mv.visitVarInsn(LSTORE, POS);
+			}
+
+			/* the position, log point and symbol point of a choice */
+
+			private void save(int local) {
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitVarInsn(LSTORE, local);
+				if (u.logs) {
+					mv.visitVarInsn(ALOAD, C);
+					invoke("saveLog", "()I");
+					mv.visitVarInsn(ISTORE, local + 2);
+					mv.visitVarInsn(ALOAD, C);
+					invoke("saveSymbolPoint", "()I");
+					mv.visitVarInsn(ISTORE, local + 3);
+				}
+			}
+
+			/* in[pos], as a signed byte */
+
+			private void loadByte() {
+				mv.visitVarInsn(ALOAD, IN);
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitInsn(L2I);
+				mv.visitInsn(BALOAD);
+			}
+
+			private void loadSet(boolean[] byteSet) {
+				getConst(byteSet, "[Z");
+				loadByte();
+				pushInt(mv, 0xff);
+				mv.visitInsn(IAND);
+				mv.visitInsn(BALOAD);
+			}
+
+			/* goes to mismatch unless utf8 is at pos; pos is not moved */
+
+			private void matchStr(byte[] utf8, Label mismatch) {
+				if (utf8.length > MaxUnrolledStr) {
+					mv.visitVarInsn(ALOAD, IN);
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitVarInsn(LLOAD, LEN);
+					getConst(utf8, "[B");
+					mv.visitMethodInsn(INVOKESTATIC, "nez/parser/vm/MozJIT", "match", "([BJJ[B)Z");
+					mv.visitJumpInsn(IFEQ, mismatch);
+					return;
+				}
+				mv.visitVarInsn(LLOAD, POS);
+				mv.visitLdcInsn((long) utf8.length);
+				mv.visitInsn(LADD);
+				mv.visitVarInsn(LLOAD, LEN);
+				mv.visitInsn(LCMP);
+				mv.visitJumpInsn(IFGT, mismatch);
+				for (int i = 0; i < utf8.length; i++) {
+					mv.visitVarInsn(ALOAD, IN);
+					mv.visitVarInsn(LLOAD, POS);
+					mv.visitInsn(L2I);
+					if (i > 0) {
+						pushInt(mv, i);
+						mv.visitInsn(IADD);
+					}
+					mv.visitInsn(BALOAD);
+					pushInt(mv, utf8[i]);
+					mv.visitJumpInsn(IF_ICMPNE, mismatch);
+				}
+			}
+
+			private void getConst(Object value, String type) {
+				mv.visitFieldInsn(GETSTATIC, u.className, dry ? "k" : constant(value, type), type);
+			}
+
+			private void getSymbol(Symbol symbol) {
+				if (symbol == null) {
+					mv.visitInsn(ACONST_NULL);
+				} else {
+					getConst(symbol, SymbolType);
+				}
+			}
+
+			private void pushString(String value) {
+				if (value == null) {
+					mv.visitInsn(ACONST_NULL);
+				} else {
+					mv.visitLdcInsn(value);
+				}
+			}
+		}
+	}
+
+	private static void pushInt(MethodVisitor mv, int n) {
+		if (n >= -1 && n <= 5) {
+			mv.visitInsn(ICONST_0 + n);
+		} else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, n);
+		} else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, n);
+		} else {
+			mv.visitLdcInsn(n);
+		}
+	}
+
+	/* the matching of strings longer than MaxUnrolledStr */
+
+	public static boolean match(byte[] in, long pos, long len, byte[] utf8) {
+		if (pos + utf8.length > len) {
+			return false;
+		}
+		for (int i = 0; i < utf8.length; i++) {
+			if (in[(int) pos + i] != utf8[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Execution */
+
+	/* the parses the generated code can run */
+
+	final boolean accepts(ParserMachineContext ctx) {
+		return ctx.getClass() == ParserMachineContext.class && ctx.getBudget() == null && ctx.getTreeListener() == null && ctx.source() instanceof StringSource;
+	}
+
+	/**
+	 * Runs the start production. A StackOverflowError rolls back the parse,
+	 * which is run again by the interpreter, whose stack is on the heap.
+	 */
+
+	final boolean exec(ParserMachineContext ctx) {
+		byte[] in = ((StringSource) ctx.source()).inputs;
+		long pos = ctx.getPosition();
+		int log = ctx.saveLog();
+		int symbol = ctx.saveSymbolPoint();
+		Tree<?> left = ctx.left;
+		long r;
+		try {
+			r = (long) this.start.invokeExact(ctx, in, pos);
+		} catch (StackOverflowError e) {
+			ctx.setPosition(pos);
+			ctx.backLog(log);
+			ctx.backSymbolPoint(symbol);
+			ctx.left = left;
+			return ctx.interpret(code.getStartInstruction());
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		if (r >= 0) {
+			ctx.setPosition(r);
+			return true;
+		}
+		ctx.backtrack(~r, pos);
+		return false;
+	}
+
+}
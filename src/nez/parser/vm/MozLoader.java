@@ -0,0 +1,426 @@
+package nez.parser.vm;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import nez.ast.Symbol;
+import nez.parser.MemoPoint;
+import nez.parser.ParserStrategy;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * MozLoader rebuilds the Moz86 instructions from the bytecode written by
+ * MozWriter. Instructions are created first, and their jumps are linked once
+ * every instruction exists.
+ */
+
+final class MozLoader {
+	private final ByteReader r;
+	private final ParserStrategy strategy;
+	private final MemoPoint[] memoPoints;
+	private String[] names;
+	private boolean[][] sets;
+	private byte[][] strs;
+	private Symbol[] tags;
+	private Symbol[] tables;
+
+	private MozInst[] insts;
+	private int[] nexts;
+	private int[] jumps;
+	private int[][] jumpTables;
+
+	MozLoader(byte[] bytecode, ParserStrategy strategy, MemoPoint[] memoPoints) {
+		this.r = new ByteReader(bytecode);
+		this.strategy = strategy;
+		this.memoPoints = memoPoints;
+	}
+
+	MozCode load(boolean recognitionMode) {
+		MozWriter.readMagic(r);
+		int instSize = r.read_u16();
+		int memoSize = r.read_u16();
+		if (memoSize != memoPoints.length) {
+			throw new IllegalArgumentException("memo points: " + memoPoints.length + " != " + memoSize);
+		}
+		r.read_u16(); // jumpTableSize
+		names = new String[r.read_u16()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = StringUtils.newString(readUtf8());
+		}
+		sets = new boolean[r.read_u16()][];
+		for (int i = 0; i < sets.length; i++) {
+			sets[i] = readSet();
+		}
+		strs = new byte[r.read_u16()][];
+		for (int i = 0; i < strs.length; i++) {
+			strs[i] = readUtf8();
+		}
+		tags = readSymbols();
+		tables = readSymbols();
+		insts = new MozInst[instSize];
+		nexts = new int[instSize];
+		jumps = new int[instSize];
+		jumpTables = new int[instSize][];
+		for (int id = 0; id < instSize; id++) {
+			nexts[id] = -1;
+			jumps[id] = -1;
+			insts[id] = decode(id);
+		}
+		MozCode code = new MozCode(recognitionMode, memoPoints);
+		for (int id = 0; id < instSize; id++) {
+			link(id);
+			code.codeList().add(insts[id]);
+			insts[id].id = id;
+		}
+		if (strategy.IntCode) {
+			code.loadIntCode(strategy);
+		} else if (strategy.JIT && !strategy.Moz) {
+			compileJIT(code);
+		}
+		return code;
+	}
+
+	/* productions are recovered from the callee entries of Call */
+
+	private void compileJIT(MozCode code) {
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<MozInst> entries = new ArrayList<>();
+		IdentityHashMap<MozInst, MozInst> seen = new IdentityHashMap<>();
+		names.add("start");
+		entries.add(code.getStartInstruction());
+		for (MozInst inst : insts) {
+			if (inst instanceof Moz86.Call && !seen.containsKey(inst.next)) {
+				seen.put(inst.next, inst);
+				names.add(((Moz86.Call) inst).getNonTerminalName());
+				entries.add(inst.next);
+			}
+		}
+		try {
+			code.setJIT(new MozJIT(code).compile(names, entries));
+		} catch (LinkageError e) {
+			/* ASM is not available; keep interpreting the instructions */
+			Verbose.traceException(e);
+		}
+	}
+
+	private byte[] readUtf8() {
+		byte[] b = new byte[r.read_u16()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) r.read_u8();
+		}
+		r.read_u8(); // 0
+		return b;
+	}
+
+	private boolean[] readSet() {
+		boolean[] byteMap = new boolean[256];
+		for (int offset = 0; offset < 256; offset += 32) {
+			int n = r.read_u32();
+			for (int i = 0; i < 32; i++) {
+				byteMap[offset + i] = (n & (1 << i)) != 0;
+			}
+		}
+		return byteMap;
+	}
+
+	private Symbol[] readSymbols() {
+		Symbol[] symbols = new Symbol[r.read_u16()];
+		for (int i = 0; i < symbols.length; i++) {
+			Symbol s = Symbol.unique(StringUtils.newString(readUtf8()));
+			symbols[i] = s == Symbol.NullSymbol ? null : s;
+		}
+		return symbols;
+	}
+
+	private MemoPoint readMemoPoint() {
+		r.read_b(); // state
+		return memoPoints[r.read_u32()];
+	}
+
+	private MozInst decode(int id) {
+		int opcode = r.read_u8();
+		boolean jumpNext = (opcode & 128) != 0;
+		boolean binary = strategy.BinaryGrammar;
+		MozInst inst;
+		opcode &= 127;
+		switch (opcode) {
+		case MozSet.Label:
+			inst = new Moz86.Nop(names[r.read_u16()], null);
+			break;
+		case MozSet.Exit:
+			inst = new Moz86.Exit(r.read_b());
+			break;
+		case MozSet.Cov:
+			inst = new Moz86.Cov(r.read_u16(), null);
+			r.read_b();
+			break;
+		case MozSet.Pos:
+			inst = new Moz86.Pos(null);
+			break;
+		case MozSet.Back:
+			inst = new Moz86.Back(null);
+			break;
+		case MozSet.Consume:
+			inst = new Moz86.Move(r.read_i8(), null);
+			break;
+		case MozSet.Jump:
+			inst = new Moz86.Jump(null);
+			jumps[id] = r.read_u24();
+			break;
+		case MozSet.Call:
+			inst = new Moz86.Call(names[peekName()], null, null);
+			jumps[id] = r.read_u24();
+			r.read_u16(); // name
+			break;
+		case MozSet.Ret:
+			inst = new Moz86.Ret();
+			break;
+		case MozSet.Alt:
+			inst = new Moz86.Alt(null, null);
+			jumps[id] = r.read_u24();
+			break;
+		case MozSet.Succ:
+			inst = new Moz86.Succ(null);
+			break;
+		case MozSet.Fail:
+			inst = new Moz86.Fail();
+			break;
+		case MozSet.Skip:
+			inst = new Moz86.Step();
+			break;
+		case MozSet.Byte: {
+			int ch = r.read_u8();
+			inst = binary && ch == 0 ? new Moz86.BinaryByte(null) : new Moz86.Byte(ch, null);
+			break;
+		}
+		case MozSet.NByte: {
+			int ch = r.read_u8();
+			inst = binary && ch != 0 ? new Moz86.BinaryNByte(ch, null) : new Moz86.NByte(ch, null);
+			break;
+		}
+		case MozSet.OByte: {
+			int ch = r.read_u8();
+			inst = binary && ch == 0 ? new Moz86.BinaryOByte(null) : new Moz86.OByte(ch, null);
+			break;
+		}
+		case MozSet.RByte: {
+			int ch = r.read_u8();
+			inst = binary && ch == 0 ? new Moz86.BinaryRByte(null) : new Moz86.RByte(ch, null);
+			break;
+		}
+		case MozSet.Any:
+			inst = new Moz86.Any(null);
+			break;
+		case MozSet.NAny:
+			inst = new Moz86.NAny(null, null);
+			break;
+		case MozSet.Set: {
+			boolean[] byteMap = sets[r.read_u16()];
+			inst = binary && byteMap[0] ? new Moz86.BinarySet(byteMap, null) : new Moz86.Set(byteMap, null);
+			break;
+		}
+		case MozSet.NSet: {
+			boolean[] byteMap = sets[r.read_u16()];
+			inst = binary && !byteMap[0] ? new Moz86.BinaryNSet(byteMap, null) : new Moz86.NSet(byteMap, null);
+			break;
+		}
+		case MozSet.OSet: {
+			boolean[] byteMap = sets[r.read_u16()];
+			inst = binary && byteMap[0] ? new Moz86.BinaryOSet(byteMap, null) : new Moz86.OSet(byteMap, null);
+			break;
+		}
+		case MozSet.RSet: {
+			boolean[] byteMap = sets[r.read_u16()];
+			inst = binary && byteMap[0] ? new Moz86.BinaryRSet(byteMap, null) : new Moz86.RSet(byteMap, null);
+			break;
+		}
+		case MozSet.Str:
+			inst = new Moz86.Str(strs[r.read_u16()], null);
+			break;
+		case MozSet.NStr:
+			inst = new Moz86.NStr(strs[r.read_u16()], null);
+			break;
+		case MozSet.OStr:
+			inst = new Moz86.OStr(strs[r.read_u16()], null);
+			break;
+		case MozSet.RStr:
+			inst = new Moz86.RStr(strs[r.read_u16()], null);
+			break;
+		case MozSet.Scan:
+			inst = new Moz86.Scan(strs[r.read_u16()], null);
+			break;
+		case MozSet.Keyword: {
+			byte[][] keywords = new byte[r.read_u16()][];
+			for (int i = 0; i < keywords.length; i++) {
+				keywords[i] = strs[r.read_u16()];
+			}
+			inst = new Moz86.Keyword(null, keywords, null);
+			break;
+		}
+		case MozSet.First:
+		case MozSet.DFirst: {
+			inst = opcode == MozSet.First ? new Moz86.Dispatch(null, null) : new Moz86.DDispatch(null, null);
+			int[] table = new int[257];
+			for (int ch = 0; ch < table.length; ch++) {
+				table[ch] = r.read_u24();
+			}
+			jumpTables[id] = table;
+			break;
+		}
+		case MozSet.TPush:
+			inst = new Moz86.TPush(null, null);
+			break;
+		case MozSet.TPop:
+			inst = new Moz86.TPop(null, null);
+			break;
+		case MozSet.TNew: {
+			int shift = r.read_i8();
+			inst = new Moz86.TBegin(shift, tags[r.read_u16()], null);
+			break;
+		}
+		case MozSet.TCapture: {
+			int shift = r.read_i8();
+			Symbol tag = tags[r.read_u16()];
+			String value = r.read_b() ? StringUtils.newString(strs[r.read_u16()]) : null;
+			inst = new Moz86.TEnd(tag, value, shift, null);
+			break;
+		}
+		case MozSet.TTag:
+			inst = new Moz86.TTag(tags[r.read_u16()], null);
+			break;
+		case MozSet.TReplace:
+			inst = new Moz86.TReplace(StringUtils.newString(strs[r.read_u16()]), null);
+			break;
+		case MozSet.TLink:
+			inst = new Moz86.TLink(tags[r.read_u16()], null);
+			break;
+		case MozSet.TLeftFold: {
+			int shift = r.read_i8();
+			inst = new Moz86.TFold(tags[r.read_u16()], shift, null);
+			break;
+		}
+		case MozSet.TStart:
+			inst = new Moz86.TStart(null, null);
+			break;
+		case MozSet.TCommit:
+			inst = new Moz86.TEmit(tags[r.read_u16()], null);
+			break;
+		case MozSet.SOpen:
+			inst = new Moz86.SOpen(null, null);
+			break;
+		case MozSet.SClose:
+			inst = new Moz86.SClose(null, null);
+			break;
+		case MozSet.SMask:
+			inst = new Moz86.SMask(tables[r.read_u16()], null);
+			break;
+		case MozSet.SDef:
+			inst = new Moz86.SDef(tables[r.read_u16()], null);
+			break;
+		case MozSet.SExists:
+			inst = new Moz86.SExists(tables[r.read_u16()], null);
+			break;
+		case MozSet.SIsDef: {
+			Symbol table = tables[r.read_u16()];
+			inst = new Moz86.SIsDef(table, strs[r.read_u16()], null);
+			break;
+		}
+		case MozSet.SMatch:
+			inst = new Moz86.SMatch(tables[r.read_u16()], null);
+			break;
+		case MozSet.SIs:
+			inst = new Moz86.SIs(tables[r.read_u16()], null);
+			break;
+		case MozSet.SIsa:
+			inst = new Moz86.SIsa(tables[r.read_u16()], null);
+			break;
+		case MozSet.SDefNum: {
+			long mask = ((long) r.read_u32() << 32) | (r.read_u32() & 0xffffffffL);
+			inst = new Moz86.NScan(mask, r.read_i8(), null);
+			break;
+		}
+		case MozSet.SCount:
+			inst = new Moz86.NDec(null, null);
+			jumps[id] = r.read_u24();
+			break;
+		case MozSet.Lookup:
+			inst = new Moz86.Lookup(null, readMemoPoint(), null, null);
+			jumps[id] = r.read_u24();
+			break;
+		case MozSet.Memo:
+			inst = new Moz86.Memo(null, readMemoPoint(), null);
+			break;
+		case MozSet.MemoFail:
+			inst = new Moz86.MemoFail(null, readMemoPoint());
+			break;
+		case MozSet.TLookup: {
+			MemoPoint m = readMemoPoint();
+			jumps[id] = r.read_u24();
+			inst = new Moz86.TLookup(m, tags[r.read_u16()], null, null);
+			break;
+		}
+		case MozSet.TMemo:
+			inst = new Moz86.TMemo(null, readMemoPoint(), null);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown opcode " + opcode + " at " + id);
+		}
+		if (jumpNext) {
+			nexts[id] = r.read_u24();
+		} else if (!isTerminal(opcode) && id + 1 < insts.length) {
+			nexts[id] = id + 1;
+		}
+		return inst;
+	}
+
+	private int peekName() {
+		int pos = r.pos;
+		r.read_u24(); // jump
+		int name = r.read_u16();
+		r.pos = pos;
+		return name;
+	}
+
+	private static boolean isTerminal(int opcode) {
+		switch (opcode) {
+		case MozSet.Exit:
+		case MozSet.Ret:
+		case MozSet.Fail:
+		case MozSet.MemoFail:
+		case MozSet.Jump:
+		case MozSet.First:
+		case MozSet.DFirst:
+			return true;
+		}
+		return false;
+	}
+
+	private void link(int id) {
+		MozInst inst = insts[id];
+		if (nexts[id] != -1) {
+			inst.next = insts[nexts[id]];
+		}
+		if (jumps[id] != -1) {
+			MozInst jump = Moz86.joinPoint(insts[jumps[id]]);
+			if (inst instanceof Moz86.Jump) {
+				((Moz86.Jump) inst).jump = jump;
+			} else if (inst instanceof Moz86.Call) {
+				((Moz86.Call) inst).jump = jump;
+				Moz86.joinPoint(inst.next);
+			} else if (inst instanceof Moz86.Alt) {
+				((Moz86.Alt) inst).jump = jump;
+			} else if (inst instanceof Moz86.NDec) {
+				((Moz86.NDec) inst).jump = jump;
+			} else {
+				((Moz86.AbstractMemoizationInstruction) inst).jump = jump;
+			}
+		}
+		if (jumpTables[id] != null) {
+			Moz86.Dispatch dispatch = (Moz86.Dispatch) inst;
+			for (int ch = 0; ch < 257; ch++) {
+				dispatch.setJumpTable(ch, insts[jumpTables[id][ch]]);
+			}
+		}
+	}
+}
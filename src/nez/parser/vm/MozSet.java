@@ -67,6 +67,9 @@ public class MozSet {
 	public final static byte DFirst = 55; // Dfa
 	public final static byte Cov = 56;
 	public final static byte Covx = 57;
+	public final static byte TLink = 58;
+	public final static byte Scan = 59; // skip to a string
+	public final static byte Keyword = 60; // match one of strings
 
 	public final static byte Label = 127; // 7-bit
 
@@ -128,6 +131,10 @@ public class MozSet {
 			return "rstr";
 		case RSet:
 			return "rset";
+		case Scan:
+			return "scan";
+		case Keyword:
+			return "keyword";
 
 		case Consume:
 			return "consume";
@@ -145,6 +152,8 @@ public class MozSet {
 			return "tpush";
 		case TPop:
 			return "tpop";
+		case TLink:
+			return "tlink";
 		case TLeftFold:
 			return "tswap";
 		case TNew:
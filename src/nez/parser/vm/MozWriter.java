@@ -20,6 +20,7 @@ import nez.parser.vm.Moz86.Exit;
 import nez.parser.vm.Moz86.Fail;
 import nez.parser.vm.Moz86.Guard;
 import nez.parser.vm.Moz86.Jump;
+import nez.parser.vm.Moz86.Keyword;
 import nez.parser.vm.Moz86.Lookup;
 import nez.parser.vm.Moz86.Memo;
 import nez.parser.vm.Moz86.MemoFail;
@@ -48,6 +49,7 @@ import nez.parser.vm.Moz86.SIsa;
 import nez.parser.vm.Moz86.SMask;
 import nez.parser.vm.Moz86.SMatch;
 import nez.parser.vm.Moz86.SOpen;
+import nez.parser.vm.Moz86.Scan;
 import nez.parser.vm.Moz86.Set;
 import nez.parser.vm.Moz86.Step;
 import nez.parser.vm.Moz86.Str;
@@ -69,6 +71,19 @@ import nez.util.Verbose;
 
 public class MozWriter extends InstructionVisitor {
 
+	/* the last byte is the format version, raised whenever an encoding changes */
+	final static byte[] Magic = { 'N', 'E', 'Z', '1' };
+
+	static void readMagic(ByteReader r) {
+		if (r.read_u8() != Magic[0] || r.read_u8() != Magic[1] || r.read_u8() != Magic[2]) {
+			throw new IllegalArgumentException("not a moz bytecode");
+		}
+		int version = r.read_u8();
+		if (version != Magic[3]) {
+			throw new IllegalArgumentException("moz bytecode version " + (char) version + " is not " + (char) Magic[3]);
+		}
+	}
+
 	class SetEntry {
 		int id;
 		boolean[] data;
@@ -319,12 +334,20 @@ public class MozWriter extends InstructionVisitor {
 	}
 
 	public void writeTo(String fileName) {
+		byte[] code = this.toByteArray();
+		try {
+			OutputStream out = new FileOutputStream(fileName);
+			out.write(code);
+			out.close();
+		} catch (IOException e) {
+			Verbose.traceException(e);
+		}
+	}
+
+	public byte[] toByteArray() {
 		byte[] body = stream.toByteArray();
 		stream = new ByteArrayOutputStream();
-		stream.write('N');
-		stream.write('E');
-		stream.write('Z');
-		stream.write('0');
+		stream.write(Magic, 0, Magic.length);
 
 		write_u16(instSize);
 		write_u16(memoSize);
@@ -357,13 +380,9 @@ public class MozWriter extends InstructionVisitor {
 		}
 
 		byte[] code = stream.toByteArray();
-		try {
-			OutputStream out = new FileOutputStream(fileName);
-			out.write(code);
-			out.close();
-		} catch (IOException e) {
-			Verbose.traceException(e);
-		}
+		stream = new ByteArrayOutputStream();
+		stream.write(body, 0, body.length);
+		return code;
 	}
 
 	private void encode(MozInst inst) {
@@ -512,6 +531,19 @@ public class MozWriter extends InstructionVisitor {
 		this.encodeBset(inst.byteSet);
 	}
 
+	@Override
+	public void visitScan(Scan inst) {
+		this.encodeBstr(inst.utf8);
+	}
+
+	@Override
+	public void visitKeyword(Keyword inst) {
+		this.write_u16(inst.trie.size());
+		for (byte[] utf8 : inst.trie.keywords) {
+			this.encodeBstr(utf8);
+		}
+	}
+
 	@Override
 	public void visitDispatch(Dispatch inst) {
 		this.encodeJumpTable();
@@ -539,11 +571,17 @@ public class MozWriter extends InstructionVisitor {
 	@Override
 	public void visitTBegin(TBegin inst) {
 		this.encodeShift(inst.shift);
+		this.encodeLabel(inst.tag);
 	}
 
 	@Override
 	public void visitTEnd(TEnd inst) {
 		this.encodeShift(inst.shift);
+		this.encodeLabel(inst.tag);
+		this.write_b(inst.value != null);
+		if (inst.value != null) {
+			this.encodeBstr(StringUtils.toUtf8(inst.value));
+		}
 	}
 
 	@Override
@@ -553,7 +591,7 @@ public class MozWriter extends InstructionVisitor {
 
 	@Override
 	public void visitTReplace(TReplace inst) {
-		this.encodeBstr(inst.value.getBytes());
+		this.encodeBstr(StringUtils.toUtf8(inst.value));
 	}
 
 	@Override
@@ -622,14 +660,14 @@ public class MozWriter extends InstructionVisitor {
 
 	@Override
 	public void visitNScan(NScan inst) {
-		// TODO Auto-generated method stub
-
+		this.write_u32((int) (inst.mask >>> 32));
+		this.write_u32((int) inst.mask);
+		this.encodeShift(inst.shift);
 	}
 
 	@Override
 	public void visitNDec(NDec inst) {
-		// TODO Auto-generated method stub
-
+		this.encodeJump(inst.jump);
 	}
 
 	@Override
@@ -1,5 +1,9 @@
 package nez.parser.vm;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+import nez.ast.Symbol;
 import nez.lang.Expression;
 import nez.lang.Expressions;
 import nez.lang.FunctionName;
@@ -11,6 +15,7 @@ import nez.lang.Typestate;
 import nez.parser.MemoPoint;
 import nez.parser.ParserCode.ProductionCode;
 import nez.parser.ParserCompiler;
+import nez.parser.ParserOptimizer;
 import nez.parser.ParserStrategy;
 import nez.util.UList;
 import nez.util.Verbose;
@@ -36,11 +41,25 @@ public class ParserMachineCompiler implements ParserCompiler {
 		}
 		code.initCoverage(strategy);
 		new CompilerVisitor(code, grammar).compile();
+		if (strategy.IntCode) {
+			code.loadIntCode(strategy);
+		} else if (strategy.JIT && !strategy.Moz) {
+			compileJIT(code, grammar);
+		}
 		long t2 = System.nanoTime();
 		Verbose.printElapsedTime("CompilingTime", t, t2);
 		return code;
 	}
 
+	private void compileJIT(MozCode code, Grammar grammar) {
+		try {
+			code.setJIT(new MozJIT(code).compile(grammar));
+		} catch (LinkageError e) {
+			/* ASM is not available; keep interpreting the instructions */
+			Verbose.traceException(e);
+		}
+	}
+
 	class CompilerVisitor extends Expression.Visitor {
 
 		final MozCode code;
@@ -69,6 +88,12 @@ public class ParserMachineCompiler implements ParserCompiler {
 
 		private Production encodingProduction;
 
+		/*
+		 * tags of EndTree, matched with BeginTree or FoldTree as sequences are
+		 * compiled backwards
+		 */
+		private final ArrayList<Symbol> endTags = new ArrayList<Symbol>();
+
 		protected final Production getEncodingProduction() {
 			return this.encodingProduction;
 		}
@@ -76,6 +101,7 @@ public class ParserMachineCompiler implements ParserCompiler {
 		protected void visitProduction(UList<MozInst> codeList, Production p, MozInst next) {
 			ProductionCode<MozInst> f = code.getProductionCode(p);
 			encodingProduction = p;
+			endTags.clear();
 			if (strategy.Moz) {
 				// next = Coverage.visitExitCoverage(p, next);
 				next = compile(p.getExpression(), next, null/* failjump */);
@@ -216,8 +242,59 @@ public class ParserMachineCompiler implements ParserCompiler {
 					return new Moz86.OStr(((Nez.MultiByte) inner).byteSeq, (MozInst) next);
 				}
 			}
-			MozInst pop = new Moz86.Succ(p, (MozInst) next);
-			return new Moz86.Alt(p, (MozInst) next, compile(p.get(0), pop, next));
+			return new Moz86.Alt(p, (MozInst) next, compileAlternative(p.get(0), p, (MozInst) next));
+		}
+
+		/*
+		 * Compiles an alternative of a choice or an option, popping its catch
+		 * frame as soon as the rest of the alternative cannot fail. Backtracking
+		 * is cut earlier; the frame no longer pins the AST log either.
+		 */
+
+		private MozInst compileAlternative(Expression e, Expression p, MozInst next) {
+			ArrayList<Expression> l = new ArrayList<>();
+			flattenSequence(e, l);
+			int cut = l.size();
+			while (cut > 1 && isAlwaysSucceeded(l.get(cut - 1))) {
+				cut--;
+			}
+			Object inst = next;
+			for (int i = l.size() - 1; i >= cut; i--) {
+				inst = compile(l.get(i), inst);
+			}
+			inst = new Moz86.Succ(p, (MozInst) inst);
+			for (int i = cut - 1; i >= 0; i--) {
+				inst = compile(l.get(i), inst);
+			}
+			return (MozInst) inst;
+		}
+
+		private void flattenSequence(Expression e, ArrayList<Expression> l) {
+			if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+				for (Expression sub : e) {
+					flattenSequence(sub, l);
+				}
+				return;
+			}
+			l.add(e);
+		}
+
+		private boolean isAlwaysSucceeded(Expression e) {
+			if (e instanceof Nez.ZeroMore || e instanceof Nez.Option || e instanceof Nez.Empty || e instanceof Nez.Tag || e instanceof Nez.Replace) {
+				return true;
+			}
+			if (e instanceof Nez.LinkTree) {
+				return isAlwaysSucceeded(e.get(0));
+			}
+			if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+				for (Expression sub : e) {
+					if (!isAlwaysSucceeded(sub)) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
 		}
 
 		@Override
@@ -248,6 +325,12 @@ public class ParserMachineCompiler implements ParserCompiler {
 				if (inner instanceof Nez.MultiByte) {
 					return new Moz86.RStr(((Nez.MultiByte) inner).byteSeq, (MozInst) next);
 				}
+				if (ParserOptimizer.isScanUntil(inner)) {
+					Expression text = getInnerExpression(inner.get(0));
+					if (text instanceof Nez.MultiByte) {
+						return new Moz86.Scan(((Nez.MultiByte) text).byteSeq, (MozInst) next);
+					}
+				}
 			}
 			MozInst skip = new Moz86.Step((Expression) p);
 			MozInst start = compile(((Expression) p).get(0), skip, next/* FIXME */);
@@ -314,9 +397,31 @@ public class ParserMachineCompiler implements ParserCompiler {
 			if (p.predicted != null) {
 				return visitPredictedChoice(p, p.predicted, next);
 			}
+			if (strategy.Okeyword && ParserOptimizer.isKeywordSet(p)) {
+				byte[][] keywords = new byte[p.size()][];
+				for (int i = 0; i < p.size(); i++) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					appendBytes(p.get(i), out);
+					keywords[i] = out.toByteArray();
+				}
+				return new Moz86.Keyword(p, keywords, (MozInst) next);
+			}
 			return visitUnoptimizedChoice(p, next);
 		}
 
+		private void appendBytes(Expression e, ByteArrayOutputStream out) {
+			if (e instanceof Nez.Byte) {
+				out.write(((Nez.Byte) e).byteChar);
+			} else if (e instanceof Nez.MultiByte) {
+				byte[] b = ((Nez.MultiByte) e).byteSeq;
+				out.write(b, 0, b.length);
+			} else {
+				for (Expression sub : e) { // Pair or Sequence
+					appendBytes(sub, out);
+				}
+			}
+		}
+
 		private final MozInst visitPredictedChoice(Nez.Choice choice, Nez.ChoicePrediction p, Object next) {
 			Moz86.Dispatch dispatch = new Moz86.Dispatch(choice, commonFailure);
 			MozInst[] compiled = new MozInst[choice.size()];
@@ -347,7 +452,7 @@ public class ParserMachineCompiler implements ParserCompiler {
 			Object nextChoice = compile(p.get(p.size() - 1), next);
 			for (int i = p.size() - 2; i >= 0; i--) {
 				Expression e = p.get(i);
-				nextChoice = new Moz86.Alt(e, (MozInst) nextChoice, compile(e, new Moz86.Succ(e, (MozInst) next), nextChoice));
+				nextChoice = new Moz86.Alt(e, (MozInst) nextChoice, compileAlternative(e, e, (MozInst) next));
 			}
 			return (MozInst) nextChoice;
 		}
@@ -355,7 +460,8 @@ public class ParserMachineCompiler implements ParserCompiler {
 		@Override
 		public MozInst visitBeginTree(Nez.BeginTree p, Object next) {
 			if (strategy.TreeConstruction) {
-				return new Moz86.TBegin(p, (MozInst) next);
+				Symbol tag = endTags.isEmpty() ? null : endTags.remove(endTags.size() - 1);
+				return new Moz86.TBegin(p, tag, (MozInst) next);
 			}
 			return (MozInst) next;
 		}
@@ -363,6 +469,9 @@ public class ParserMachineCompiler implements ParserCompiler {
 		@Override
 		public MozInst visitFoldTree(Nez.FoldTree p, Object next) {
 			if (strategy.TreeConstruction) {
+				if (!endTags.isEmpty()) {
+					endTags.remove(endTags.size() - 1); // a folded node is never streamed early
+				}
 				return new Moz86.TFold(p, (MozInst) next);
 			}
 			return (MozInst) next;
@@ -371,6 +480,7 @@ public class ParserMachineCompiler implements ParserCompiler {
 		@Override
 		public MozInst visitEndTree(Nez.EndTree p, Object next) {
 			if (strategy.TreeConstruction) {
+				endTags.add(p.tag);
 				return new Moz86.TEnd(p, (MozInst) next);
 			}
 			return (MozInst) next;
@@ -1,9 +1,13 @@
 package nez.parser.vm;
 
+import java.util.Arrays;
+
 import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
 import nez.parser.ParserContext;
+import nez.parser.TerminationException;
+import nez.parser.io.StringSource;
 
 public class ParserMachineContext extends ParserContext {
 
@@ -14,7 +18,7 @@ public class ParserMachineContext extends ParserContext {
 	public ParserMachineContext(Source source, Tree<?> proto) {
 		super(source);
 		if (proto != null) {
-			this.left = proto;
+			this.left = proto.newPrototype(source);
 		}
 		initVM();
 	}
@@ -43,26 +47,90 @@ public class ParserMachineContext extends ParserContext {
 		return false;
 	}
 
+	/* moves to the next occurrence of utf8, or to the end of the input */
+
+	public final void scan(byte[] utf8, int[] shifts) {
+		long length = this.source.length();
+		long end = length - utf8.length;
+		int last = utf8.length - 1;
+		if (this.source instanceof StringSource) {
+			byte[] inputs = ((StringSource) this.source).inputs;
+			for (int i = (int) this.pos; i <= end; i += shifts[inputs[i + last] & 0xff]) {
+				if (inputs[i + last] == utf8[last] && equals(inputs, i, utf8, last)) {
+					this.pos = i;
+					return;
+				}
+			}
+		} else {
+			for (long i = this.pos; i <= end; i += shifts[this.source.byteAt(i + last)]) {
+				if (this.source.byteAt(i + last) == (utf8[last] & 0xff) && this.source.match(i, utf8)) {
+					this.pos = i;
+					return;
+				}
+			}
+		}
+		if (this.pos < length) {
+			this.pos = length;
+		}
+	}
+
+	/* moves over the keyword of trie that matches */
+
+	public final boolean match(KeywordTrie trie) {
+		int len = trie.match(this.source, this.pos);
+		if (len >= 0) {
+			this.move(len);
+			return true;
+		}
+		return false;
+	}
+
+	private static boolean equals(byte[] inputs, int pos, byte[] utf8, int len) {
+		for (int i = 0; i < len; i++) {
+			if (inputs[pos + i] != utf8[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	@Override
-	public final byte[] subByte(int start, int end) {
+	public final byte[] subByte(long start, long end) {
 		return source.subByte(start, end);
 	}
 
 	@Override
-	public final byte byteAt(int pos) {
+	public final byte byteAt(long pos) {
 		return (byte) source.byteAt(pos);
 	}
 
-	private int head_pos = 0;
+	private long head_pos = 0;
+	private long[] distances = null;
 
 	@Override
-	public final void back(int pos) {
+	public final void back(long pos) {
 		if (head_pos < this.pos) {
 			this.head_pos = this.pos;
 		}
+		if (this.distances != null) {
+			this.distances[64 - Long.numberOfLeadingZeros(this.pos - pos)]++;
+		}
 		this.pos = pos;
 	}
 
+	/* rolls back from a failure at fpos, as back does from this.pos */
+
+	public final void backtrack(long fpos, long pos) {
+		this.pos = fpos;
+		this.back(pos);
+	}
+
+	/* counts the backtrack distances by powers of two, into 65 buckets */
+
+	public final void setBacktrackDistances(long[] distances) {
+		this.distances = distances;
+	}
+
 	public final long getPosition() {
 		return this.pos;
 	}
@@ -71,177 +139,314 @@ public class ParserMachineContext extends ParserContext {
 		return head_pos;
 	}
 
+	@Override
+	protected final long getHeadPosition() {
+		return head_pos > pos ? head_pos : pos;
+	}
+
+	@Override
+	protected final void extendHeadPosition(long pos) {
+		if (head_pos < pos) {
+			this.head_pos = pos;
+		}
+	}
+
 	public final void setPosition(long pos) {
-		this.pos = (int) pos;
+		this.pos = pos;
 	}
 
-	// ----------------------------------------------------------------------
+	final Source source() {
+		return this.source;
+	}
+
+	/* the machine that runs code on this context, with its stack */
+
+	private MozIntMachine intMachine = null;
+
+	final MozIntMachine getIntMachine(MozIntCode code) {
+		if (this.intMachine == null || this.intMachine.c != code) {
+			this.intMachine = new MozIntMachine(code, this);
+		}
+		return this.intMachine;
+	}
 
-	public static class StackData {
-		public Object ref;
-		public int value;
+	public final void reset(Source source, Tree<?> proto) {
+		super.reset(source, proto);
+		this.head_pos = 0;
+		initVM();
+	}
+
+	@Override
+	protected final void release() {
+		super.release();
+		Arrays.fill(this.refs, 4, this.maxStackTop + 1, null);
+		Arrays.fill(this.names, 4, this.maxStackTop + 1, null);
+		this.maxStackTop = 3;
 	}
 
+	// ----------------------------------------------------------------------
+
+	/*
+	 * The stack is kept in parallel arrays. A slot that holds a log point
+	 * has LogPoint as its ref, and the log point in the upper half of its
+	 * value; a catch frame keeps the symbol point in the lower half.
+	 */
+
+	private final static Object LogPoint = new Object();
 	private static int StackSize = 64;
-	private StackData[] stacks = null;
+	private Object[] refs = null;
+	private long[] values;
+	private String[] names; // of Call frames, with a budget
 	private int usedStackTop;
+	private int maxStackTop = 3; // the highest slot used since the last release
 	private int catchStackTop;
 
 	public final void initVM() {
-		this.stacks = new StackData[StackSize];
-		for (int i = 0; i < StackSize; i++) {
-			this.stacks[i] = new StackData();
-		}
-		this.stacks[0].ref = null;
-		this.stacks[0].value = 0;
-		this.stacks[1].ref = new Moz86.Exit(false);
-		this.stacks[1].value = pos;
-		this.stacks[2].ref = this.saveLog();
-		this.stacks[2].value = this.saveSymbolPoint();
-		this.stacks[3].ref = new Moz86.Exit(true);
-		this.stacks[3].value = 0;
+		if (this.refs == null) {
+			this.refs = new Object[StackSize];
+			this.values = new long[StackSize];
+			this.names = new String[StackSize];
+			this.refs[1] = new Moz86.Exit(false);
+			this.refs[3] = new Moz86.Exit(true);
+		}
+		this.refs[0] = null;
+		this.values[0] = 0;
+		this.values[1] = pos;
+		this.refs[2] = LogPoint;
+		this.values[2] = logPoint(this.saveLog(), this.saveSymbolPoint());
+		this.values[3] = 0;
 		this.catchStackTop = 0;
 		this.usedStackTop = 3;
 	}
 
-	public final StackData getUsedStackTop() {
-		return stacks[usedStackTop];
+	protected final int getStackTop() {
+		return usedStackTop;
 	}
 
-	public final StackData newUnusedStack() {
-		usedStackTop++;
-		if (stacks.length == usedStackTop) {
-			StackData[] newstack = new StackData[stacks.length * 2];
-			System.arraycopy(stacks, 0, newstack, 0, stacks.length);
-			for (int i = this.stacks.length; i < newstack.length; i++) {
-				newstack[i] = new StackData();
+	private int push(int n) {
+		int top = usedStackTop + n;
+		if (top > maxStackTop) {
+			if (top >= refs.length) {
+				int size = Math.max(refs.length * 2, top + 1);
+				this.refs = Arrays.copyOf(refs, size);
+				this.values = Arrays.copyOf(values, size);
+				this.names = Arrays.copyOf(names, size);
 			}
-			stacks = newstack;
+			this.maxStackTop = top;
 		}
-		return stacks[usedStackTop];
+		this.usedStackTop = top;
+		return top;
+	}
+
+	private static long logPoint(int logPoint, int symbolPoint) {
+		return ((long) logPoint << 32) | symbolPoint;
+	}
+
+	private int getLogPoint(int slot) {
+		return (int) (values[slot] >>> 32);
+	}
+
+	private void setLogPoint(int slot, int logPoint) {
+		values[slot] = logPoint(logPoint, (int) values[slot]);
 	}
 
-	public final StackData popStack() {
-		StackData s = stacks[this.usedStackTop];
-		usedStackTop--;
-		// assert(this.catchStackTop <= this.usedStackTop);
-		return s;
+	// Budget
+
+	/* the productions called, from the outermost; kept only with a budget */
+
+	public final String[] getProductionStack() {
+		if (this.intMachine != null) {
+			return this.intMachine.getProductionStack();
+		}
+		int n = 0;
+		String[] stack = new String[usedStackTop];
+		for (int i = 4; i <= usedStackTop; i++) {
+			if (refs[i] instanceof MozInst && names[i] != null) {
+				stack[n++] = names[i];
+			}
+		}
+		return Arrays.copyOf(stack, n);
 	}
 
 	// Instruction
 
 	public final void xPos() {
-		StackData s = this.newUnusedStack();
-		s.value = this.pos;
+		int i = push(1);
+		refs[i] = null;
+		values[i] = this.pos;
 	}
 
-	public final int xPPos() {
-		StackData s = this.popStack();
-		return s.value;
+	public final long xPPos() {
+		return values[usedStackTop--];
 	}
 
 	public final void xBack() {
-		StackData s = this.popStack();
-		this.back(s.value);
+		this.back(values[usedStackTop--]);
 	}
 
-	public final void xCall(String name, MozInst jump) {
-		StackData s = this.newUnusedStack();
-		s.ref = jump;
+	public void xCall(String name, MozInst jump) {
+		int i = push(1);
+		refs[i] = jump;
+		if (this.budget != null) {
+			names[i] = name;
+			this.budget.step();
+		}
 	}
 
-	public final MozInst xRet() {
-		StackData s = this.popStack();
-		return (MozInst) s.ref;
+	public MozInst xRet() {
+		return (MozInst) refs[usedStackTop--];
 	}
 
 	public final void xAlt(MozInst failjump/* op.failjump */) {
-		StackData s0 = newUnusedStack();
-		StackData s1 = newUnusedStack();
-		StackData s2 = newUnusedStack();
-		s0.value = catchStackTop;
-		catchStackTop = usedStackTop - 2;
-		s1.ref = failjump;
-		s1.value = this.pos;
-		s2.ref = this.saveLog();
-		s2.value = this.saveSymbolPoint();
+		int i = push(3) - 2;
+		refs[i] = null;
+		values[i] = catchStackTop;
+		catchStackTop = i;
+		refs[i + 1] = failjump;
+		values[i + 1] = this.pos;
+		refs[i + 2] = LogPoint;
+		values[i + 2] = logPoint(this.saveLog(), this.saveSymbolPoint());
+		if (this.budget != null) {
+			names[i + 1] = null;
+			this.budget.step();
+		}
 	}
 
 	public final void xSucc() {
-		StackData s0 = stacks[catchStackTop];
-		// StackData s1 = stacks[catchStackTop + 1];
 		usedStackTop = catchStackTop - 1;
-		catchStackTop = s0.value;
+		catchStackTop = (int) values[catchStackTop];
 	}
 
-	public final int xSuccPos() {
-		StackData s0 = stacks[catchStackTop];
-		StackData s1 = stacks[catchStackTop + 1];
-		usedStackTop = catchStackTop - 1;
-		catchStackTop = s0.value;
-		return s1.value;
+	public final long xSuccPos() {
+		int c = catchStackTop;
+		usedStackTop = c - 1;
+		catchStackTop = (int) values[c];
+		return values[c + 1];
 	}
 
-	public final MozInst xFail() {
-		StackData s0 = stacks[catchStackTop];
-		StackData s1 = stacks[catchStackTop + 1];
-		StackData s2 = stacks[catchStackTop + 2];
-		usedStackTop = catchStackTop - 1;
-		catchStackTop = s0.value;
-		if (s1.value < this.pos) {
-			// if (this.lprof != null) {
-			// this.lprof.statBacktrack(s1.value, this.pos);
-			// }
-			this.back(s1.value);
+	public MozInst xFail() {
+		int c = catchStackTop;
+		usedStackTop = c - 1;
+		catchStackTop = (int) values[c];
+		long ppos = values[c + 1];
+		if (ppos < this.pos) {
+			if (this.budget != null) {
+				this.budget.backtrack();
+			}
+			this.back(ppos);
 		}
-		this.backLog(s2.ref);
-		this.backSymbolPoint(s2.value);
-		assert (s1.ref != null);
-		return (MozInst) s1.ref;
+		long point = values[c + 2];
+		this.backLog((int) (point >>> 32));
+		this.backSymbolPoint((int) point);
+		assert (refs[c + 1] != null);
+		return (MozInst) refs[c + 1];
 	}
 
 	public final MozInst xStep(MozInst next) {
-		StackData s1 = stacks[catchStackTop + 1];
-		if (s1.value == this.pos) {
+		int c = catchStackTop;
+		if (values[c + 1] == this.pos) {
 			return xFail();
 		}
-		s1.value = this.pos;
-		StackData s2 = stacks[catchStackTop + 2];
-		s2.ref = this.saveLog();
-		s2.value = this.saveSymbolPoint();
+		values[c + 1] = this.pos;
+		values[c + 2] = logPoint(this.saveLog(), this.saveSymbolPoint());
+		if (this.isStreamPending()) {
+			this.xStream();
+		}
 		return next;
 	}
 
+	private final static Moz86.Exit FailExit = new Moz86.Exit(false);
+	private final static Moz86.Exit SuccExit = new Moz86.Exit(true);
+
+	/**
+	 * Runs the instructions from entry up to their Ret, above the current
+	 * stack, and returns whether they succeeded. MozJIT calls it for the
+	 * productions it does not compile.
+	 */
+
+	public final boolean interpret(MozInst entry) {
+		int top = this.usedStackTop;
+		int catchTop = this.catchStackTop;
+		this.xAlt(FailExit);
+		this.xCall(null, SuccExit);
+		MozInst cur = entry;
+		try {
+			while (true) {
+				cur = cur.exec(this);
+			}
+		} catch (TerminationException e) {
+			this.usedStackTop = top;
+			this.catchStackTop = catchTop;
+			return e.status;
+		}
+	}
+
 	public final void xTPush() {
-		StackData s = this.newUnusedStack();
-		s.ref = this.left;
-		s = this.newUnusedStack();
-		s.ref = this.saveLog();
+		int i = push(2) - 1;
+		refs[i] = this.left;
+		refs[i + 1] = LogPoint;
+		values[i + 1] = logPoint(this.saveLog(), 0);
 	}
 
 	public final void xTLink(Symbol label) {
-		StackData s = this.popStack();
-		this.backLog(s.ref);
-		s = this.popStack();
-		this.linkTree((Tree<?>) s.ref, label);
-		this.left = (Tree<?>) s.ref;
+		int i = usedStackTop - 1;
+		usedStackTop = i - 1;
+		this.backLog(getLogPoint(i + 1));
+		Tree<?> parent = (Tree<?>) refs[i];
+		this.linkTree(parent, label);
+		this.left = parent;
+		if (this.isStreamPending()) {
+			this.xStream();
+		}
+	}
+
+	/*
+	 * Frames hold log points in push order; the lowest one is the commit
+	 * point. A memo frame only records the failure and fails again, so it
+	 * needs to roll back no further than the commit point. The log points
+	 * from the commit point on are lowered by the entries streamed out.
+	 */
+
+	private void xStream() {
+		int commit = this.saveLog();
+		int top = usedStackTop;
+		for (int i = 4; i <= usedStackTop; i++) {
+			if (refs[i] == LogPoint && !(refs[i - 1] instanceof Moz86.MemoFail)) {
+				commit = getLogPoint(i);
+				top = i;
+				break;
+			}
+		}
+		for (int i = 4; i < top; i++) {
+			if (refs[i] instanceof Moz86.MemoFail) {
+				setLogPoint(i + 1, commit);
+			}
+		}
+		int removed = this.streamTree(commit);
+		if (removed > 0) {
+			for (int i = 4; i <= usedStackTop; i++) {
+				if (refs[i] == LogPoint && getLogPoint(i) >= commit) {
+					setLogPoint(i, getLogPoint(i) - removed);
+				}
+			}
+		}
 	}
 
 	public final void xTPop() {
-		StackData s = this.popStack();
-		this.backLog(s.ref);
-		s = this.popStack();
-		this.left = (Tree<?>) s.ref;
+		int i = usedStackTop - 1;
+		usedStackTop = i - 1;
+		this.backLog(getLogPoint(i + 1));
+		this.left = (Tree<?>) refs[i];
 	}
 
 	public final void xSOpen() {
-		StackData s = this.newUnusedStack();
-		s.value = this.saveSymbolPoint();
+		int i = push(1);
+		refs[i] = null;
+		values[i] = this.saveSymbolPoint();
 	}
 
 	public final void xSClose() {
-		StackData s = this.popStack();
-		this.backSymbolPoint(s.value);
+		this.backSymbolPoint((int) values[usedStackTop--]);
 	}
 
 }
@@ -1,12 +1,411 @@
 package nez.parser.vm;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
 import nez.ast.Source;
+import nez.ast.Symbol;
 import nez.ast.Tree;
+import nez.parser.MemoPoint;
+import nez.util.StringUtils;
+
+/**
+ * ParserMachineProfiler is the parser context of ParserStrategy.Profiling.
+ * It follows Call and Ret with a shadow stack of productions, and charges
+ * time, backtracking, memoization and trees to the production on its top.
+ * A failure unwinds the frames above the choice point it returns to. The
+ * counts of each parse are added to the Profile of the strategy.
+ */
 
 public class ParserMachineProfiler extends ParserMachineContext {
+	private final String[] memoLabels;
+	private final Stat[] memoStats;
+	private Profile profile = new Profile();
+	private Frame[] frames = new Frame[64];
+	private int top = 0;
 
-	public ParserMachineProfiler(Source source, Tree<?> proto) {
+	public ParserMachineProfiler(Source source, Tree<?> proto, MemoPoint[] memoPoints) {
 		super(source, proto);
+		this.memoLabels = new String[memoPoints.length];
+		for (int i = 0; i < memoPoints.length; i++) {
+			this.memoLabels[i] = memoPoints[i].label;
+		}
+		this.memoStats = new Stat[memoPoints.length];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new Frame();
+		}
+		this.clear();
+	}
+
+	/*
+	 * The class is loaded only if profiling, so that the calls of other
+	 * contexts to the methods it overrides stay monomorphic.
+	 */
+
+	public final static ParserMachineContext newContext(Source source, Tree<?> proto, MemoPoint[] memoPoints) {
+		return new ParserMachineProfiler(source, proto, memoPoints);
+	}
+
+	private static class Frame {
+		CallNode node;
+		long start;
+		long children;
+		int stackTop;
+	}
+
+	/* starts the counts of a parse on a reused context */
+
+	public void begin() {
+		this.clear();
+	}
+
+	private void clear() {
+		this.profile = new Profile();
+		this.top = 0;
+		this.frames[0].node = this.profile.root;
+		this.frames[0].children = 0;
+		this.frames[0].stackTop = -1;
+		for (int i = 0; i < memoStats.length; i++) {
+			memoStats[i] = null;
+		}
+	}
+
+	/* adds the counts of the parse to the shared profile */
+
+	public void flush(Profile shared) {
+		this.unwind(-1, false);
+		if (shared != null) {
+			shared.add(this.profile);
+		}
+		this.clear();
+	}
+
+	/* the production on the top of the shadow stack */
+
+	protected final String getProductionName() {
+		return frames[top].node.stat.name;
+	}
+
+	@Override
+	public void xCall(String name, MozInst jump) {
+		super.xCall(name, jump);
+		CallNode parent = frames[top].node;
+		if (++top == frames.length) {
+			Frame[] newframes = new Frame[frames.length * 2];
+			System.arraycopy(frames, 0, newframes, 0, frames.length);
+			for (int i = frames.length; i < newframes.length; i++) {
+				newframes[i] = new Frame();
+			}
+			frames = newframes;
+		}
+		Frame f = frames[top];
+		f.node = parent.child(name, profile);
+		f.node.stat.invocations++;
+		f.node.stat.active++;
+		f.stackTop = this.getStackTop();
+		f.children = 0;
+		f.start = System.nanoTime();
+	}
+
+	@Override
+	public MozInst xRet() {
+		MozInst next = super.xRet();
+		this.unwind(this.getStackTop(), true);
+		return next;
+	}
+
+	@Override
+	public MozInst xFail() {
+		long fpos = this.pos;
+		MozInst next = super.xFail();
+		this.unwind(this.getStackTop(), false);
+		if (fpos > this.pos) {
+			Stat s = frames[top].node.stat;
+			s.backtracks++;
+			s.rereadBytes += fpos - this.pos;
+		}
+		return next;
+	}
+
+	/* pops the frames whose Call is above the stack top */
+
+	private void unwind(int stackTop, boolean succ) {
+		if (top > 0 && frames[top].stackTop > stackTop) {
+			long t = System.nanoTime();
+			do {
+				Frame f = frames[top--];
+				long inclusive = t - f.start;
+				long self = inclusive - f.children;
+				Stat s = f.node.stat;
+				f.node.count++;
+				f.node.selfNanos += self;
+				s.selfNanos += self;
+				if (--s.active == 0) {
+					s.inclusiveNanos += inclusive; // the outermost of recursive calls
+				}
+				if (!succ) {
+					s.failures++;
+				}
+				frames[top].children += inclusive;
+			} while (top > 0 && frames[top].stackTop > stackTop);
+		}
+	}
+
+	private Stat memoStat(int memoPoint) {
+		Stat s = memoStats[memoPoint];
+		if (s == null) {
+			s = profile.stat(memoLabels[memoPoint]);
+			memoStats[memoPoint] = s;
+		}
+		return s;
+	}
+
+	private int lookup(int memoPoint, int result) {
+		Stat s = memoStat(memoPoint);
+		s.memoLookups++;
+		if (result != NotFound) {
+			s.memoHits++;
+		}
+		return result;
+	}
+
+	private void store(int memoPoint, long ppos) {
+		Stat s = memoStat(memoPoint);
+		s.memoStores++;
+		if (this.isMemoEvicted(memoPoint, ppos)) {
+			s.memoEvictions++;
+		}
+	}
+
+	@Override
+	public int lookupMemo(int memoPoint) {
+		return lookup(memoPoint, super.lookupMemo(memoPoint));
+	}
+
+	@Override
+	public int lookupTreeMemo(int memoPoint) {
+		return lookup(memoPoint, super.lookupTreeMemo(memoPoint));
+	}
+
+	@Override
+	public void memoSucc(int memoPoint, long ppos) {
+		store(memoPoint, ppos);
+		super.memoSucc(memoPoint, ppos);
+	}
+
+	@Override
+	public void memoTreeSucc(int memoPoint, long ppos) {
+		store(memoPoint, ppos);
+		super.memoTreeSucc(memoPoint, ppos);
+	}
+
+	@Override
+	public void memoFail(int memoPoint) {
+		store(memoPoint, this.pos);
+		super.memoFail(memoPoint);
+	}
+
+	@Override
+	public Tree<?> newTree(Symbol tag, long start, long end, int n, String value) {
+		frames[top].node.stat.trees++;
+		return super.newTree(tag, start, end, n, value);
+	}
+
+	/* Profile */
+
+	public final static class Stat {
+		public final String name;
+		public long invocations;
+		public long failures;
+		public long inclusiveNanos;
+		public long selfNanos;
+		public long backtracks;
+		public long rereadBytes;
+		public long memoLookups;
+		public long memoHits;
+		public long memoStores;
+		public long memoEvictions;
+		public long trees;
+		int active;
+
+		Stat(String name) {
+			this.name = name;
+		}
+
+		void add(Stat s) {
+			invocations += s.invocations;
+			failures += s.failures;
+			inclusiveNanos += s.inclusiveNanos;
+			selfNanos += s.selfNanos;
+			backtracks += s.backtracks;
+			rereadBytes += s.rereadBytes;
+			memoLookups += s.memoLookups;
+			memoHits += s.memoHits;
+			memoStores += s.memoStores;
+			memoEvictions += s.memoEvictions;
+			trees += s.trees;
+		}
+	}
+
+	static final class CallNode {
+		final String name;
+		final Stat stat;
+		LinkedHashMap<String, CallNode> children = null;
+		long count;
+		long selfNanos;
+
+		CallNode(String name, Stat stat) {
+			this.name = name;
+			this.stat = stat;
+		}
+
+		CallNode child(String name, Profile profile) {
+			if (children == null) {
+				children = new LinkedHashMap<>();
+			}
+			CallNode n = children.get(name);
+			if (n == null) {
+				n = new CallNode(name, profile.stat(name));
+				children.put(name, n);
+			}
+			return n;
+		}
 	}
 
+	/**
+	 * Profile is the sum of the counts of parses, by production and by call
+	 * path. It is shared by the threads of a parser.
+	 */
+
+	public final static class Profile {
+		private final LinkedHashMap<String, Stat> stats = new LinkedHashMap<>();
+		private final CallNode root = new CallNode("", stat("(top)"));
+
+		Stat stat(String name) {
+			Stat s = stats.get(name);
+			if (s == null) {
+				s = new Stat(name);
+				stats.put(name, s);
+			}
+			return s;
+		}
+
+		synchronized void add(Profile p) {
+			for (Stat s : p.stats.values()) {
+				stat(s.name).add(s);
+			}
+			add(this.root, p.root);
+		}
+
+		private void add(CallNode n, CallNode p) {
+			n.count += p.count;
+			n.selfNanos += p.selfNanos;
+			if (p.children != null) {
+				for (CallNode c : p.children.values()) {
+					add(n.child(c.name, this), c);
+				}
+			}
+		}
+
+		/* productions by self time, from the largest */
+
+		public synchronized List<Stat> getStats() {
+			ArrayList<Stat> l = new ArrayList<>();
+			for (Stat s : stats.values()) {
+				if (s.invocations > 0 || s.backtracks > 0 || s.memoLookups > 0 || s.trees > 0) {
+					l.add(s);
+				}
+			}
+			Collections.sort(l, (s1, s2) -> Long.compare(s2.selfNanos, s1.selfNanos));
+			return l;
+		}
+
+		/**
+		 * Returns the call paths in the folded stack format of flame graphs,
+		 * one path and its self time in nanoseconds per line.
+		 */
+
+		public synchronized String formatFolded() {
+			StringBuilder sb = new StringBuilder();
+			if (root.children != null) {
+				for (CallNode c : root.children.values()) {
+					formatFolded(sb, "", c);
+				}
+			}
+			return sb.toString();
+		}
+
+		private void formatFolded(StringBuilder sb, String path, CallNode n) {
+			path = path.length() == 0 ? n.name : path + ";" + n.name;
+			if (n.selfNanos > 0) {
+				sb.append(path);
+				sb.append(" ");
+				sb.append(n.selfNanos);
+				sb.append("\n");
+			}
+			if (n.children != null) {
+				for (CallNode c : n.children.values()) {
+					formatFolded(sb, path, c);
+				}
+			}
+		}
+
+		public synchronized String formatJSON() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"productions\":[");
+			String delim = "";
+			for (Stat s : getStats()) {
+				sb.append(delim);
+				sb.append("\n{\"name\":");
+				sb.append(StringUtils.quoteString('"', s.name, '"'));
+				sb.append(",\"invocations\":" + s.invocations);
+				sb.append(",\"failures\":" + s.failures);
+				sb.append(",\"inclusive_ns\":" + s.inclusiveNanos);
+				sb.append(",\"self_ns\":" + s.selfNanos);
+				sb.append(",\"backtracks\":" + s.backtracks);
+				sb.append(",\"reread_bytes\":" + s.rereadBytes);
+				sb.append(",\"memo_lookups\":" + s.memoLookups);
+				sb.append(",\"memo_hits\":" + s.memoHits);
+				sb.append(",\"memo_stores\":" + s.memoStores);
+				sb.append(",\"memo_evictions\":" + s.memoEvictions);
+				sb.append(",\"trees\":" + s.trees);
+				sb.append("}");
+				delim = ",";
+			}
+			sb.append("\n],\"calls\":");
+			formatJSON(sb, root);
+			sb.append("}\n");
+			return sb.toString();
+		}
+
+		private void formatJSON(StringBuilder sb, CallNode n) {
+			sb.append("{\"name\":");
+			sb.append(StringUtils.quoteString('"', n.name, '"'));
+			sb.append(",\"count\":" + n.count);
+			sb.append(",\"self_ns\":" + n.selfNanos);
+			if (n.children != null) {
+				sb.append(",\"children\":[");
+				String delim = "";
+				for (CallNode c : n.children.values()) {
+					sb.append(delim);
+					formatJSON(sb, c);
+					delim = ",";
+				}
+				sb.append("]");
+			}
+			sb.append("}");
+		}
+
+		/* the table goes to out, not stdout, so as not to mix with parse output */
+
+		public synchronized void dump(PrintStream out) {
+			out.println(String.format("%-32s %10s %8s %10s %10s %8s %10s %8s %8s %8s", "production", "calls", "failed", "incl[ms]", "self[ms]", "backtr", "reread", "lookups", "hits", "trees"));
+			for (Stat s : getStats()) {
+				out.println(String.format("%-32s %10d %8d %10.3f %10.3f %8d %10d %8d %8d %8d", s.name, s.invocations, s.failures, s.inclusiveNanos / 1000000.0, s.selfNanos / 1000000.0, s.backtracks, s.rereadBytes, s.memoLookups, s.memoHits, s.trees));
+			}
+		}
+	}
 }
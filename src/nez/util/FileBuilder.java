@@ -32,6 +32,16 @@ public class FileBuilder {
 		}
 	}
 
+	private FileBuilder(OutputStream out) {
+		this.out = out;
+	}
+
+	/* a builder that writes to out; new FileBuilder(null) writes to stdout */
+
+	public static FileBuilder of(OutputStream out) {
+		return new FileBuilder(out);
+	}
+
 	public final void write(String text) {
 		try {
 			if (out == null) {
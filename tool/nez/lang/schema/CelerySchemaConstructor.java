@@ -15,7 +15,7 @@ public class CelerySchemaConstructor extends SchemaConstructor {
 	}
 
 	public Schema toSchema(Tree<?> node) {
-		return find(node.getTag().toString()).accept(node);
+		return find(node.getTag()).accept(node);
 	}
 
 	public void setStructName(String structName) {
@@ -15,7 +15,7 @@ public class DTDSchemaConstructor extends SchemaConstructor {
 	}
 
 	public Schema toSchema(Tree<?> node) {
-		return find(node.getTag().toString()).accept(node);
+		return find(node.getTag()).accept(node);
 	}
 
 	public final void setElementName(String elementName) {
@@ -12,7 +12,7 @@ public abstract class SchemaConstructor extends GrammarVisitorMap<SchemaTransduc
 	}
 
 	public Schema newSchema(Tree<?> node) {
-		return this.find(key(node)).accept(node);
+		return this.find(node.getTag()).accept(node);
 	}
 
 }
@@ -0,0 +1,39 @@
+package nez.main;
+
+import java.io.IOException;
+
+import nez.ast.Source;
+import nez.parser.Parser;
+import nez.parser.ParserResult;
+
+/**
+ * Cbacktrack parses a corpus with BacktrackProfiling, and reports the
+ * inputs that backtrack the most and the productions whose choices cause
+ * it.
+ */
+
+public class Cbacktrack extends Command {
+	private final static int TopRanks = 20;
+
+	@Override
+	public void exec() throws IOException {
+		checkInputSource();
+		strategy.BacktrackProfiling = true;
+		Parser parser = newCachedParser();
+		if (this.jobs > 1) {
+			this.parseAll(parser, false, new ParserResult.Handler() {
+				@Override
+				public void handle(ParserResult result) {
+					result.showErrors();
+				}
+			});
+		}
+		while (hasInputSource()) {
+			Source input = nextInputSource();
+			if (parser.parse(input) == null) {
+				parser.showErrors();
+			}
+		}
+		strategy.getBacktrackReport().dump(TopRanks);
+	}
+}
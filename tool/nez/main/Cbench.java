@@ -1,20 +1,31 @@
 package nez.main;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.ast.Tree;
 import nez.parser.Parser;
+import nez.parser.ParserResult;
 import nez.util.ConsoleUtils;
 import nez.util.FileBuilder;
+import nez.util.UList;
 
 public class Cbench extends Command {
+	private final static int MaxWarmup = 20;
+
 	@Override
 	public void exec() throws IOException {
 		checkInputSource();
 		Parser parser = newParser();
 		parser.setDisabledUnconsumed(true);
 		parser.compile();
+		if (this.jobs > 1) {
+			this.execParallel(parser);
+			return;
+		}
 		long len = 0;
 		double total = 0.0;
 		while (hasInputSource()) {
@@ -23,6 +34,7 @@ public class Cbench extends Command {
 			double dsum = 0.0;
 			double prev = 10000.0;
 			boolean JIT = true;
+			int warmup = 0;
 			for (int c = 0; c < 5; c++) {
 				long t1 = System.nanoTime();
 				Tree<?> node = parser.parse(input);
@@ -34,7 +46,7 @@ public class Cbench extends Command {
 				double d = (t2 - t1) / 1000000.0;
 				ConsoleUtils.print("%.2f ", d);
 				if (JIT) {
-					if ((prev - d) > 0.0) {
+					if ((prev - d) > 0.0 && warmup++ < MaxWarmup) {
 						prev = d;
 						c--;
 						continue;
@@ -48,6 +60,80 @@ public class Cbench extends Command {
 			total += dsum;
 		}
 		double s = (total / 1000);
-		ConsoleUtils.println("Throughput %.2f [B/s] %.2f [KiB/s] %.2f [MiB/s]", (len / s), (len / 1024 / s), (len / 1024 / 1024 / s));
+		ConsoleUtils.println("Throughput %.2f [B/s] %.2f [KiB/s] %.2f [MiB/s]", (len / s), (len / 1024.0 / s), (len / 1024.0 / 1024.0 / s));
+	}
+
+	private void execParallel(Parser parser) throws IOException {
+		final UList<Source> inputs = new UList<Source>(new Source[16]);
+		long size = 0;
+		while (hasInputSource()) {
+			Source input = nextInputSource();
+			inputs.add(input);
+			size += input.length();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(this.jobs);
+		String failed = null;
+		try {
+			ConsoleUtils.print("%d files on %d threads: ", inputs.size(), this.jobs);
+			long len = 0;
+			double total = 0.0;
+			int rounds = 0;
+			double prev = 10000.0;
+			boolean JIT = true;
+			int warmup = 0;
+			for (int c = 0; c < 5; c++) {
+				long t1 = System.nanoTime();
+				try {
+					parser.parseAll(inputs, executor, false, new CommonTree(), FailFast);
+				} catch (Failed e) {
+					failed = e.getMessage();
+					break;
+				}
+				long t2 = System.nanoTime();
+				double d = (t2 - t1) / 1000000.0;
+				ConsoleUtils.print("%.2f ", d);
+				if (JIT) {
+					if ((prev - d) > 0.0 && warmup++ < MaxWarmup) {
+						prev = d;
+						c--;
+						continue;
+					}
+					JIT = false;
+				}
+				len += size;
+				total += d;
+				rounds++;
+			}
+			if (rounds > 0) {
+				ConsoleUtils.println("(ave) %.2f [ms]", total / rounds);
+				double s = (total / 1000);
+				ConsoleUtils.println("Throughput %.2f [B/s] %.2f [KiB/s] %.2f [MiB/s]", (len / s), (len / 1024.0 / s), (len / 1024.0 / 1024.0 / s));
+			} else {
+				ConsoleUtils.println("");
+			}
+		} finally {
+			executor.shutdown();
+		}
+		if (failed != null) {
+			ConsoleUtils.exit(1, "failed: " + failed);
+		}
+	}
+
+	/* the first failed input stops the round; parseAll cancels the rest */
+
+	@SuppressWarnings("serial")
+	private static class Failed extends RuntimeException {
+		Failed(String input) {
+			super(input, null, false, false);
+		}
 	}
+
+	private final static ParserResult.Handler FailFast = new ParserResult.Handler() {
+		@Override
+		public void handle(ParserResult result) {
+			if (result.showErrors()) {
+				throw new Failed(result.getSource().getResourceName());
+			}
+		}
+	};
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import nez.ast.Source;
 import nez.parser.Parser;
+import nez.parser.ParserResult;
 import nez.util.ConsoleUtils;
 import nez.util.StringUtils;
 import nez.util.UList;
@@ -13,7 +14,14 @@ public class Cmatch extends Command {
 	@Override
 	public void exec() throws IOException {
 		strategy.TreeConstruction = false;
-		Parser parser = newParser();
+		if (this.remote) {
+			int failed = Cserver.request(this, "match");
+			if (failed > 0) {
+				ConsoleUtils.exit(1, "failed: " + failed + " inputs");
+			}
+			return;
+		}
+		Parser parser = newCachedParser();
 
 		UList<String> failedInputs = new UList<String>(new String[4]);
 
@@ -21,6 +29,16 @@ public class Cmatch extends Command {
 		long consumed = 0;
 		long time = 0;
 
+		if (this.jobs > 1) {
+			MatchCounter counter = new MatchCounter();
+			long t = System.nanoTime();
+			this.parseAll(parser, false, counter);
+			time = System.nanoTime() - t;
+			totalCount = counter.totalCount;
+			failureCount = counter.failedInputs.size();
+			consumed = counter.consumed;
+			failedInputs = counter.failedInputs;
+		}
 		while (hasInputSource()) {
 			Source file = nextInputSource();
 			totalCount++;
@@ -42,7 +60,23 @@ public class Cmatch extends Command {
 					+ StringUtils.formatParcentage(totalCount - (unconsumedCount + failureCount), totalCount) + "% passed.");
 		}
 		if (failedInputs.size() > 0) {
+			this.writeProfile();
 			ConsoleUtils.exit(1, "failed: " + failedInputs);
 		}
 	}
+
+	private static class MatchCounter implements ParserResult.Handler {
+		UList<String> failedInputs = new UList<String>(new String[4]);
+		int totalCount = 0;
+		long consumed = 0;
+
+		@Override
+		public void handle(ParserResult result) {
+			totalCount++;
+			if (result.showErrors()) {
+				failedInputs.add(result.getSource().getResourceName());
+			}
+			consumed += result.getSource().length();
+		}
+	}
 }
\ No newline at end of file
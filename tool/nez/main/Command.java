@@ -1,6 +1,10 @@
 package nez.main;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import nez.ParserGenerator;
 import nez.Version;
@@ -8,8 +12,11 @@ import nez.ast.Source;
 import nez.lang.Grammar;
 import nez.lang.ast.NezGrammarCombinator;
 import nez.parser.Parser;
+import nez.parser.ParserCache;
+import nez.parser.ParserResult;
 import nez.parser.ParserStrategy;
 import nez.parser.io.CommonSource;
+import nez.parser.vm.ParserMachineProfiler;
 import nez.tool.ast.TreeJSONWriter;
 import nez.tool.ast.TreeWriter;
 import nez.tool.ast.TreeXMLWriter;
@@ -34,6 +41,7 @@ public abstract class Command {
 				Verbose.println("strategy: %s", com.strategy);
 			}
 			com.exec();
+			com.writeProfile();
 		} catch (IOException e) {
 			ConsoleUtils.println(e);
 			Verbose.traceException(e);
@@ -49,6 +57,7 @@ public abstract class Command {
 			}
 			Command cmd = (Command) Class.forName(className).newInstance();
 			cmd.parseCommandOption(args);
+			cmd.checkIntCode();
 			return cmd;
 		} catch (Exception e) {
 			// Verbose.traceException(e);
@@ -57,6 +66,16 @@ public abstract class Command {
 		return null;
 	}
 
+	private void checkIntCode() {
+		String option = this.strategy.getIntCodeConflict();
+		if (option == null && this.strategy.IntCode && this.streaming) {
+			option = "--stream";
+		}
+		if (option != null) {
+			ConsoleUtils.exit(1, "+IntCode cannot run with " + option);
+		}
+	}
+
 	public void exec() throws IOException {
 		System.out.println(strategy);
 	}
@@ -72,6 +91,13 @@ public abstract class Command {
 	protected UList<String> inputFiles = new UList<String>(new String[4]);
 	protected String outputFormat = null;
 	protected String outputDirectory = null;
+	protected int jobs = 1;
+	protected boolean streaming = false;
+	protected boolean caching = true;
+	protected boolean remote = false;
+	protected int port = Cserver.DefaultPort;
+	protected String profileFile = null;
+	protected UList<String> strategyOptions = new UList<String>(new String[4]);
 
 	private void parseCommandOption(String[] args) {
 		for (int index = 1; index < args.length; index++) {
@@ -115,16 +141,54 @@ public abstract class Command {
 					index++;
 					continue;
 				}
+				if (as.equals("--profile")) {
+					strategy.Profiling = true;
+					profileFile = args[index + 1];
+					index++;
+					continue;
+				}
+				if (as.equals("--port")) {
+					try {
+						port = Integer.parseInt(args[index + 1]);
+					} catch (NumberFormatException e) {
+						showUsage("illegal port: " + args[index + 1]);
+					}
+					index++;
+					continue;
+				}
+				if (as.equals("-j") || as.equals("--jobs")) {
+					try {
+						jobs = Math.max(1, Integer.parseInt(args[index + 1]));
+					} catch (NumberFormatException e) {
+						showUsage("illegal number of jobs: " + args[index + 1]);
+					}
+					index++;
+					continue;
+				}
 			}
 			if (as.equals("--verbose")) {
 				Verbose.enabled = true;
 				continue;
 			}
+			if (as.equals("--stream")) {
+				streaming = true;
+				continue;
+			}
+			if (as.equals("--no-cache")) {
+				caching = false;
+				continue;
+			}
+			if (as.equals("--remote")) {
+				remote = true;
+				continue;
+			}
 			if (!strategy.setOption(as)) {
 				if (as.equals("-") && as.length() > 1) {
 					showUsage("undefined option: " + as);
 				}
 				this.inputFiles.add(as);
+			} else {
+				this.strategyOptions.add(as);
 			}
 		}
 	}
@@ -145,6 +209,12 @@ public abstract class Command {
 		// ConsoleUtils.println("  -a <file>      Specify a Nez auxiliary grammar files");
 		ConsoleUtils.println("  -s | --start <NAME>        Specify a starting production");
 		ConsoleUtils.println("  -d | --dir <dirname>       Specify an output dir");
+		ConsoleUtils.println("  -j | --jobs <N>            Parse inputs on N threads");
+		ConsoleUtils.println("  --stream                   Write trees while parsing");
+		ConsoleUtils.println("  --no-cache                 Compile the grammar without the code cache");
+		ConsoleUtils.println("  --profile <file>           Write a production profile (.json or folded stacks)");
+		ConsoleUtils.println("  --remote                   Parse on a running nez server");
+		ConsoleUtils.println("  --port <N>                 Specify the port of nez server");
 		ConsoleUtils.println("Example:");
 		ConsoleUtils.println("  nez parse -g js.nez jquery.js --format json");
 		ConsoleUtils.println("  nez match -g js.nez *.js");
@@ -160,6 +230,10 @@ public abstract class Command {
 		ConsoleUtils.println("  peg        translate a grammar into PEG specified with --format");
 		ConsoleUtils.println("  compile    compile a grammar into Nez bytecode .moz");
 		ConsoleUtils.println("  bench      perform benchmark tests");
+		ConsoleUtils.println("  backtrack  rank the productions that backtrack on inputs");
+		ConsoleUtils.println("  server     keep parsers hot for --remote (server stats|stop)");
+		ConsoleUtils.println("             requests need the token in ~/.nez/server-PORT.token; whoever");
+		ConsoleUtils.println("             can read it can make the server read your files");
 		ConsoleUtils.println("  example    display examples in a grammar");
 		ConsoleUtils.println("  test       perform grammar tests");
 		ConsoleUtils.exit(0, msg);
@@ -181,6 +255,15 @@ public abstract class Command {
 		return this.strategy.newParser(newGrammar());
 	}
 
+	/* compiled code is cached in ~/.nez/cache (or -Dnez.cache=dir) */
+
+	public final Parser newCachedParser() throws IOException {
+		if (grammarFile == null || !caching) {
+			return newParser();
+		}
+		return new ParserGenerator().newParser(new ParserCache(), this.strategy, grammarFile, this.grammarFiles.compactArray());
+	}
+
 	public final Parser getNezParser() {
 		Grammar grammar = new Grammar("nez");
 		Parser parser = new NezGrammarCombinator().load(grammar, "File").newParser(ParserStrategy.newSafeStrategy());
@@ -213,6 +296,56 @@ public abstract class Command {
 		return CommonSource.newStringSource(""); // empty input
 	}
 
+	public final Iterable<Source> inputSources() {
+		return new Iterable<Source>() {
+			@Override
+			public Iterator<Source> iterator() {
+				return new Iterator<Source>() {
+					@Override
+					public boolean hasNext() {
+						return hasInputSource();
+					}
+
+					@Override
+					public Source next() {
+						try {
+							return nextInputSource();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				};
+			}
+		};
+	}
+
+	protected final void parseAll(Parser parser, boolean ordered, ParserResult.Handler handler) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(this.jobs);
+		try {
+			parser.parseAll(this.inputSources(), executor, ordered, parser.getParserStrategy().newTree(), handler);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/* +Profiling prints the profile to stderr; --profile writes it to the file */
+
+	protected final void writeProfile() {
+		ParserMachineProfiler.Profile profile = strategy.getMachineProfile();
+		if (profile == null) {
+			return;
+		}
+		if (profileFile == null) {
+			profile.dump(System.err);
+			return;
+		}
+		FileBuilder fb = new FileBuilder(profileFile);
+		fb.write(profileFile.endsWith(".json") ? profile.formatJSON() : profile.formatFolded());
+		fb.close();
+	}
+
 	public final String getOutputFileName(Source input, String ext) {
 		if (outputDirectory != null) {
 			return FileBuilder.toFileName(input.getResourceName(), outputDirectory, ext);
@@ -5,17 +5,51 @@ import java.io.IOException;
 import nez.ast.Source;
 import nez.ast.Tree;
 import nez.parser.Parser;
+import nez.parser.ParserResult;
 import nez.tool.ast.TreeWriter;
 
 public class Cparse extends Command {
 	@Override
 	public void exec() throws IOException {
 		checkInputSource();
-		Parser parser = newParser();
-		TreeWriter tw = this.getTreeWriter("ast xml json");
+		if (this.remote) {
+			Cserver.request(this, "parse");
+			return;
+		}
+		Parser parser = newCachedParser();
+		final TreeWriter tw = this.getTreeWriter("ast xml json");
+		if (this.streaming) {
+			while (hasInputSource()) {
+				Source input = nextInputSource();
+				if (this.outputDirectory != null) {
+					tw.init(getOutputFileName(input, tw.getFileExtension()));
+				}
+				tw.setSource(input);
+				if (!parser.parse(input, tw)) {
+					parser.showErrors();
+				}
+			}
+			return;
+		}
+		if (this.jobs > 1) {
+			this.parseAll(parser, true, new ParserResult.Handler() {
+				@Override
+				public void handle(ParserResult result) {
+					if (!result.isSucceeded()) {
+						result.showErrors();
+						return;
+					}
+					if (outputDirectory != null) {
+						tw.init(getOutputFileName(result.getSource(), tw.getFileExtension()));
+					}
+					tw.writeTree(result.getTree());
+				}
+			});
+			return;
+		}
 		while (hasInputSource()) {
 			Source input = nextInputSource();
-			Tree<?> node = parser.parse(input);
+			Tree<?> node = parser.parse(input, parser.getParserStrategy().newTree());
 			if (node == null) {
 				parser.showErrors();
 				continue;
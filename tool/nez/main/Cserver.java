@@ -0,0 +1,459 @@
+package nez.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.ast.SourceError;
+import nez.parser.Parser;
+import nez.parser.ParserCache;
+import nez.parser.ParserResult;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+import nez.tool.ast.TreeJSONWriter;
+import nez.tool.ast.TreeWriter;
+import nez.tool.ast.TreeXMLWriter;
+import nez.util.ConsoleUtils;
+import nez.util.FileBuilder;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * Cserver keeps compiled parsers hot, so that parse and match with --remote
+ * skip the JVM startup and the grammar compilation. It listens on the
+ * loopback address only. A request and its response are written with
+ * DataOutputStream:
+ *
+ * <pre>
+ * request  = token command grammar format options inputs
+ * response = (status output errors)* -1
+ * </pre>
+ *
+ * The token is a random number that the server writes at startup in
+ * ~/.nez/server-PORT.token (or -Dnez.server=dir), readable by its user
+ * only; a request without it, including stats and stop, is refused. The
+ * server reads the grammar and input files named in a request with the
+ * rights of its user, so anyone who can read the token file can make it
+ * read those files.
+ *
+ * A parser is looked up by the ParserCache key of the grammar text, so that
+ * an edited grammar is compiled again.
+ */
+
+public class Cserver extends Command {
+	public final static int DefaultPort = 7438;
+	public final static String DefaultDirectory = System.getProperty("user.home") + File.separator + ".nez";
+
+	private final ConcurrentHashMap<String, Entry> parsers = new ConcurrentHashMap<>();
+	private ServerSocket server;
+	private byte[] token;
+
+	@Override
+	public void exec() throws IOException {
+		if (inputFiles.size() > 0) {
+			String req = inputFiles.ArrayValues[0];
+			if (req.equals("stats") || req.equals("stop")) {
+				request(this, req);
+				return;
+			}
+			showUsage("undefined server request: " + req);
+		}
+		serve();
+	}
+
+	/* the file of the token of the server on the port */
+
+	static File tokenFile(int port) {
+		return new File(System.getProperty("nez.server", DefaultDirectory), "server-" + port + ".token");
+	}
+
+	private static String newToken() {
+		byte[] b = new byte[32];
+		new SecureRandom().nextBytes(b);
+		StringBuilder sb = new StringBuilder();
+		for (byte c : b) {
+			sb.append(String.format("%02x", c & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/* writes the token in a new file that only the user can read */
+
+	private static void writeToken(File file, String token) throws IOException {
+		Path path = file.toPath();
+		Files.createDirectories(path.getParent());
+		Files.deleteIfExists(path);
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		Files.write(path, StringUtils.toUtf8(token));
+	}
+
+	static String readToken(int port) throws IOException {
+		return StringUtils.newString(Files.readAllBytes(tokenFile(port).toPath())).trim();
+	}
+
+	private void serve() throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		File tokenFile = tokenFile(server.getLocalPort());
+		String t = newToken();
+		writeToken(tokenFile, t);
+		this.token = StringUtils.toUtf8(t);
+		ConsoleUtils.println("nez server listening on " + server.getLocalSocketAddress() + " (token in " + tokenFile + ")");
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			while (true) {
+				final Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketException e) {
+					break; // closed by stop
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handle(socket);
+						} catch (IOException e) {
+							Verbose.traceException(e);
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			tokenFile.delete();
+		}
+	}
+
+	private void handle(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (!MessageDigest.isEqual(this.token, StringUtils.toUtf8(in.readUTF()))) {
+			writeResponse(out, 1, new byte[0], StringUtils.toUtf8("bad token\n"));
+			out.writeInt(-1);
+			out.flush();
+			return;
+		}
+		String command = in.readUTF();
+		switch (command) {
+		case "stats":
+			writeResponse(out, 0, StringUtils.toUtf8(stats()), new byte[0]);
+			break;
+		case "stop":
+			writeResponse(out, 0, new byte[0], new byte[0]);
+			out.writeInt(-1);
+			out.flush();
+			server.close();
+			return;
+		case "parse":
+		case "match":
+			parse(command.equals("parse"), in, out);
+			break;
+		default:
+			writeResponse(out, 1, new byte[0], StringUtils.toUtf8("undefined request: " + command));
+		}
+		out.writeInt(-1);
+		out.flush();
+	}
+
+	private void parse(boolean treeConstruction, DataInputStream in, DataOutputStream out) throws IOException {
+		String grammarFile = in.readUTF();
+		String[] auxFiles = new String[in.readInt()];
+		for (int i = 0; i < auxFiles.length; i++) {
+			auxFiles[i] = in.readUTF();
+		}
+		String format = in.readUTF();
+		String[] options = new String[in.readInt()];
+		ParserStrategy strategy = new ParserStrategy();
+		for (int i = 0; i < options.length; i++) {
+			options[i] = in.readUTF();
+			strategy.setOption(options[i]);
+		}
+		strategy.TreeConstruction = treeConstruction;
+		int size = in.readInt();
+		Entry entry;
+		try {
+			entry = getEntry(strategy, grammarFile, auxFiles, options);
+		} catch (IOException | RuntimeException e) {
+			for (int i = 0; i < size; i++) {
+				readInput(in);
+			}
+			writeResponse(out, 1, new byte[0], StringUtils.toUtf8(grammarFile + ": " + e + "\n"));
+			return;
+		}
+		for (int i = 0; i < size; i++) {
+			Source input;
+			try {
+				input = readInput(in);
+			} catch (IOException e) {
+				writeResponse(out, 1, new byte[0], StringUtils.toUtf8(e.toString() + "\n"));
+				continue;
+			}
+			long t1 = System.nanoTime();
+			ParserResult r = entry.parser.parseResult(input, new CommonTree());
+			long t2 = System.nanoTime();
+			entry.record(input.length(), t2 - t1, r.isSucceeded());
+			byte[] output = new byte[0];
+			StringBuilder sb = new StringBuilder();
+			try {
+				if (r.isSucceeded() && treeConstruction) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					TreeWriter tw = newTreeWriter(format);
+					tw.init(bytes);
+					tw.writeTree(r.getTree());
+					output = bytes.toByteArray();
+				}
+				for (SourceError e : r.getErrors()) {
+					sb.append(e.toString());
+					sb.append("\n");
+				}
+			} catch (RuntimeException e) {
+				/* a failure of one input does not drop the connection */
+				Verbose.traceException(e);
+				sb.append(input.getResourceName() + ": " + e + "\n");
+			}
+			writeResponse(out, r.isSucceeded() ? 0 : 1, output, StringUtils.toUtf8(sb.toString()));
+		}
+	}
+
+	private Source readInput(DataInputStream in) throws IOException {
+		if (in.readBoolean()) {
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			return CommonSource.newStringSource(StringUtils.newString(text));
+		}
+		return CommonSource.newFileSource(in.readUTF());
+	}
+
+	private static void writeResponse(DataOutputStream out, int status, byte[] output, byte[] errors) throws IOException {
+		out.writeInt(status);
+		out.writeInt(output.length);
+		out.write(output);
+		out.writeInt(errors.length);
+		out.write(errors);
+	}
+
+	private final static TreeWriter newTreeWriter(String format) {
+		switch (format) {
+		case "xml":
+			return new TreeXMLWriter();
+		case "json":
+			return new TreeJSONWriter();
+		}
+		return new TreeWriter();
+	}
+
+	private Entry getEntry(ParserStrategy strategy, String grammarFile, String[] auxFiles, String[] options) throws IOException {
+		ParserGenerator pg = new ParserGenerator();
+		String key = pg.newKey(strategy, grammarFile, auxFiles);
+		Entry entry = parsers.get(key);
+		if (entry == null) {
+			Parser parser = pg.newParser(new ParserCache(), strategy, grammarFile, auxFiles);
+			parser.compile();
+			StringBuilder name = new StringBuilder(new File(grammarFile).getName());
+			for (String option : options) {
+				name.append(" ");
+				name.append(option);
+			}
+			if (!strategy.TreeConstruction) {
+				name.append(" (match)");
+			}
+			Entry e = new Entry(name.toString(), parser);
+			entry = parsers.putIfAbsent(key, e);
+			if (entry == null) {
+				entry = e;
+			}
+		}
+		return entry;
+	}
+
+	/* Stats */
+
+	private String stats() {
+		ArrayList<Entry> entries = new ArrayList<>(parsers.values());
+		Collections.sort(entries, (e1, e2) -> e1.name.compareTo(e2.name));
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-40s %8s %8s %10s %10s %10s %10s %10s %8s\n", "grammar", "inputs", "failed", "MiB", "mean[ms]", "p50[ms]", "p99[ms]", "max[ms]", "window"));
+		for (Entry e : entries) {
+			e.format(sb);
+		}
+		return sb.toString();
+	}
+
+	private final static class Entry {
+		final String name;
+		final Parser parser;
+		/* latency histogram in microseconds, by powers of two */
+		private final long[] histogram = new long[40];
+		private long count;
+		private long failed;
+		private long bytes;
+		private long totalNanos;
+		private long maxNanos;
+
+		Entry(String name, Parser parser) {
+			this.name = name;
+			this.parser = parser;
+		}
+
+		synchronized void record(long length, long nanos, boolean succeeded) {
+			count++;
+			if (!succeeded) {
+				failed++;
+			}
+			bytes += length;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			histogram[64 - Long.numberOfLeadingZeros(nanos / 1000)]++;
+		}
+
+		/* returns the upper bound of the bucket of the given rank */
+		private double percentile(double p) {
+			long rank = (long) Math.ceil(count * p);
+			long n = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				n += histogram[i];
+				if (n >= rank) {
+					return Math.min((1L << i) / 1000.0, maxNanos / 1000000.0);
+				}
+			}
+			return maxNanos / 1000000.0;
+		}
+
+		synchronized void format(StringBuilder sb) {
+			double mean = count == 0 ? 0 : totalNanos / 1000000.0 / count;
+			sb.append(String.format("%-40s %8d %8d %10.2f %10.3f %10.3f %10.3f %10.3f %8d\n", name, count, failed, bytes / 1048576.0, mean, percentile(0.5), percentile(0.99), maxNanos / 1000000.0, parser.getSlidingWindow()));
+		}
+	}
+
+	/* Client */
+
+	/**
+	 * Sends the command to the server on com.port and writes the responses
+	 * as the local command would. Returns the number of failed inputs.
+	 */
+
+	static int request(Command com, String command) throws IOException {
+		String token;
+		Socket socket;
+		try {
+			token = readToken(com.port);
+			socket = new Socket(InetAddress.getLoopbackAddress(), com.port);
+		} catch (IOException e) {
+			ConsoleUtils.exit(1, "no nez server on port " + com.port + ": " + e.getMessage());
+			return 0;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out.writeUTF(token);
+			out.writeUTF(command);
+			ArrayList<String> names = new ArrayList<>();
+			if (command.equals("parse") || command.equals("match")) {
+				if (com.grammarFile == null) {
+					ConsoleUtils.exit(1, "no grammar specified");
+				}
+				out.writeUTF(toServerPath(com.grammarFile));
+				out.writeInt(com.grammarFiles.size());
+				for (String f : com.grammarFiles) {
+					out.writeUTF(toServerPath(f));
+				}
+				out.writeUTF(com.outputFormat == null ? "ast" : com.outputFormat);
+				out.writeInt(com.strategyOptions.size());
+				for (String s : com.strategyOptions) {
+					out.writeUTF(s);
+				}
+				out.writeInt(com.inputFiles.size() + (com.inputText != null ? 1 : 0));
+				if (com.inputText != null) {
+					byte[] text = StringUtils.toUtf8(com.inputText);
+					out.writeBoolean(true);
+					out.writeInt(text.length);
+					out.write(text);
+					names.add(null);
+				}
+				for (String f : com.inputFiles) {
+					out.writeBoolean(false);
+					out.writeUTF(new File(f).getAbsolutePath());
+					names.add(f);
+				}
+			}
+			out.flush();
+			int failed = 0;
+			String ext = com.outputFormat == null ? "ast" : com.outputFormat;
+			for (int i = 0;; i++) {
+				int status = in.readInt();
+				if (status < 0) {
+					break;
+				}
+				byte[] output = new byte[in.readInt()];
+				in.readFully(output);
+				byte[] errors = new byte[in.readInt()];
+				in.readFully(errors);
+				if (status != 0) {
+					failed++;
+				}
+				if (errors.length > 0) {
+					ConsoleUtils.print(StringUtils.newString(errors));
+				}
+				if (output.length > 0) {
+					String name = i < names.size() ? names.get(i) : null;
+					if (com.outputDirectory != null && name != null) {
+						String path = FileBuilder.toFileName(name, com.outputDirectory, ext);
+						try (OutputStream fout = new FileOutputStream(path)) {
+							fout.write(output);
+						}
+						Verbose.println("generating: " + path);
+					} else {
+						System.out.write(output);
+						System.out.flush();
+					}
+				}
+			}
+			return failed;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/* the server may run in another directory */
+
+	private static String toServerPath(String path) {
+		File f = new File(path);
+		return f.isFile() ? f.getAbsolutePath() : path;
+	}
+}
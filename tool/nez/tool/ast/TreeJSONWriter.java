@@ -1,5 +1,8 @@
 package nez.tool.ast;
 
+import java.util.ArrayList;
+
+import nez.ast.Symbol;
 import nez.ast.Tree;
 import nez.util.StringUtils;
 
@@ -15,23 +18,25 @@ public class TreeJSONWriter extends TreeWriter {
 		file.writeNewLine();
 	}
 
+	private String toData(String text) {
+		try {
+			Double v = Double.parseDouble(text);
+			return v.toString();
+		} catch (NumberFormatException e) {
+		}
+		try {
+			Long v = Long.parseLong(text);
+			return v.toString();
+		} catch (NumberFormatException e) {
+		}
+		return StringUtils.quoteString('"', text, '"');
+	}
+
 	private void writeJSON(Tree<?> node) {
 		if (node.size() == 0) {
 			String text = node.toText();
 			if (dataOption) {
-				try {
-					Double v = Double.parseDouble(text);
-					file.write(v.toString());
-					return;
-				} catch (NumberFormatException e) {
-				}
-				try {
-					Long v = Long.parseLong(text);
-					file.write(v.toString());
-					return;
-				} catch (NumberFormatException e) {
-				}
-				file.write(StringUtils.quoteString('"', text, '"'));
+				file.write(toData(text));
 			} else {
 				file.write("{");
 				file.write("\"type\":");
@@ -76,4 +81,117 @@ public class TreeJSONWriter extends TreeWriter {
 		file.write("]");
 	}
 
+	/*
+	 * Streaming; as in writeJSON, a node is written as an object only if all
+	 * its children are labeled. Labeled children are buffered until an
+	 * unlabeled child or the end of the node decides the mode.
+	 */
+
+	private static final int ArrayMode = 1;
+
+	private static class JSONNode extends Node {
+		ArrayList<Symbol> labels = new ArrayList<Symbol>();
+		ArrayList<String> members = new ArrayList<String>();
+		StringBuilder buffer = null;
+
+		JSONNode(String tag, Symbol label) {
+			super(tag, label);
+		}
+	}
+
+	@Override
+	protected Node newNode(String tag, Symbol label) {
+		return new JSONNode(tag, label);
+	}
+
+	private void out(String text) {
+		for (int i = this.stack.size() - 1; i >= 0; i--) {
+			JSONNode node = (JSONNode) this.stack.get(i);
+			if (node.buffer != null) {
+				node.buffer.append(text);
+				return;
+			}
+		}
+		file.write(text);
+	}
+
+	private void writeData(long pos, int len, Object value, String tag) {
+		String text = toText(pos, len, value);
+		if (dataOption) {
+			out(toData(text));
+			return;
+		}
+		out("{\"type\":");
+		out(StringUtils.quoteString('"', tag, '"'));
+		out(",\"pos\":" + pos);
+		out(",\"line\":" + source.linenum(pos));
+		out(",\"column\":" + source.column(pos));
+		out(",\"text\":");
+		out(StringUtils.quoteString('"', text, '"'));
+		out("}");
+	}
+
+	@Override
+	public void label(Symbol label) {
+		JSONNode parent = (JSONNode) this.parent();
+		if (parent.buffer != null) {
+			parent.members.add(parent.buffer.toString());
+			parent.buffer = null;
+		}
+		if (parent.mode == ArrayMode) {
+			if (parent.size > 0) {
+				out(",");
+			}
+		} else if (label == null) {
+			parent.mode = ArrayMode;
+			out("[");
+			for (String member : parent.members) {
+				out(member);
+				out(",");
+			}
+			parent.labels = null;
+			parent.members = null;
+		} else {
+			parent.labels.add(label);
+			parent.buffer = new StringBuilder();
+		}
+		this.label = label;
+	}
+
+	@Override
+	public void startNode(Symbol tag, long pos) {
+		this.push(tag);
+	}
+
+	@Override
+	public void endNode(Symbol tag, long pos, int len, Object value) {
+		JSONNode node = (JSONNode) this.pop();
+		if (node.size == 0) {
+			writeData(pos, len, value, node.tag);
+		} else if (node.mode == ArrayMode) {
+			out("]");
+		} else {
+			node.members.add(node.buffer.toString());
+			out("{");
+			if (!dataOption) {
+				out("\"type\":");
+				out(StringUtils.quoteString('"', node.tag, '"'));
+				out(",");
+			}
+			for (int i = 0; i < node.members.size(); i++) {
+				if (i > 0) {
+					out(",");
+				}
+				out(StringUtils.quoteString('"', node.labels.get(i).toString(), '"'));
+				out(":");
+				out(node.members.get(i));
+			}
+			out("}");
+		}
+		if (this.stack.isEmpty()) {
+			file.writeNewLine();
+			file.flush();
+		}
+	}
+
 }
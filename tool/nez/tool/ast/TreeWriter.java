@@ -1,11 +1,16 @@
 package nez.tool.ast;
 
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
+import nez.ast.TreeListener;
 import nez.util.FileBuilder;
 import nez.util.StringUtils;
 
-public class TreeWriter {
+public class TreeWriter implements TreeListener {
 	protected FileBuilder file = new FileBuilder();
 	protected boolean dataOption = false;
 
@@ -14,6 +19,11 @@ public class TreeWriter {
 		file = new FileBuilder(path);
 	}
 
+	public void init(OutputStream out) {
+		file.close();
+		file = FileBuilder.of(out);
+	}
+
 	public void setDataOption(boolean dataOption) {
 		this.dataOption = dataOption;
 	}
@@ -51,6 +61,102 @@ public class TreeWriter {
 		return "ast";
 	}
 
+	/* Streaming */
+
+	/**
+	 * A TreeWriter can be passed to Parser.parse(Source, TreeListener) to
+	 * write the tree while parsing. The output is the same as writeTree.
+	 */
+
+	protected static class Node {
+		public final String tag;
+		public final Symbol label;
+		public int size = 0;
+		public int mode = 0;
+		public boolean opened = false;
+
+		public Node(String tag, Symbol label) {
+			this.tag = tag;
+			this.label = label;
+		}
+	}
+
+	protected Source source = null;
+	protected final ArrayList<Node> stack = new ArrayList<Node>();
+	protected Symbol label = null;
+
+	public void setSource(Source source) {
+		this.source = source;
+		this.stack.clear();
+		this.label = null;
+	}
+
+	protected Node newNode(String tag, Symbol label) {
+		return new Node(tag, label);
+	}
+
+	protected final Node parent() {
+		return this.stack.isEmpty() ? null : this.stack.get(this.stack.size() - 1);
+	}
+
+	protected final Node push(Symbol tag) {
+		Node parent = this.parent();
+		if (parent != null) {
+			parent.size++;
+		}
+		Node node = newNode((tag == null ? Symbol.treeTag : tag).toString(), this.label);
+		this.stack.add(node);
+		this.label = null;
+		return node;
+	}
+
+	protected final Node pop() {
+		return this.stack.remove(this.stack.size() - 1);
+	}
+
+	protected final String toText(long pos, int len, Object value) {
+		if (value != null && !(value instanceof Tree<?>)) {
+			return value.toString();
+		}
+		return Tree.toText(this.source, pos, len);
+	}
+
+	@Override
+	public void label(Symbol label) {
+		this.label = label;
+	}
+
+	@Override
+	public void startNode(Symbol tag, long pos) {
+		Node parent = this.parent();
+		if (parent != null && !parent.opened) {
+			file.incIndent();
+			parent.opened = true;
+		}
+		Node node = this.push(tag);
+		if (node.label == null) {
+			file.writeIndent("#" + node.tag + "[");
+		} else {
+			file.writeIndent("$" + node.label + " #" + node.tag + "[");
+		}
+	}
+
+	@Override
+	public void endNode(Symbol tag, long pos, int len, Object value) {
+		Node node = this.pop();
+		if (node.size == 0) {
+			file.write(StringUtils.quoteString('\'', toText(pos, len, value), '\''));
+			file.write("]");
+		} else {
+			file.decIndent();
+			file.writeIndent("]");
+		}
+		if (this.stack.isEmpty()) {
+			file.writeNewLine();
+			file.flush();
+		}
+	}
+
 	// public void writeTag(Tree<?> node) {
 	// TreeMap<String, Integer> m = new TreeMap<String, Integer>();
 	// this.countTag(node, m);
@@ -61,4 +61,74 @@ public class TreeXMLWriter extends TreeWriter {
 		file.writeIndent("</" + tag + ">");
 	}
 
+	/* Streaming; attributes are written while the start tag is still open */
+
+	private static final int Attribute = 1;
+	private static final int Skipped = 2;
+
+	@Override
+	public void startNode(Symbol tag, long pos) {
+		Node parent = this.parent();
+		if (parent != null && parent.mode != 0) {
+			this.push(tag).mode = Skipped;
+			return;
+		}
+		Node node = this.push(tag);
+		if (parent != null && !parent.opened && node.tag.startsWith("@")) {
+			node.mode = Attribute;
+			return;
+		}
+		if (parent != null && !parent.opened) {
+			file.write(">");
+			file.incIndent();
+			parent.opened = true;
+		}
+		file.writeIndent("<" + node.tag);
+		if (node.label != null) {
+			file.write(" label=\"" + node.label + "\"");
+		}
+	}
+
+	@Override
+	public void endNode(Symbol tag, long pos, int len, Object value) {
+		Node node = this.pop();
+		if (node.mode == Skipped) {
+			return;
+		}
+		if (node.mode == Attribute) {
+			file.write(" ");
+			file.write(node.tag.substring(1));
+			file.write("=");
+			file.write(StringUtils.quoteString('"', toText(pos, len, value), '"'));
+			return;
+		}
+		if (node.size == 0) {
+			String s = toText(pos, len, value);
+			if (s.equals("")) {
+				file.write("/>");
+			} else {
+				if (!this.dataOption) {
+					file.write(" pos=\"" + pos + "\"");
+					file.write(" line=\"" + source.linenum(pos) + "\"");
+					file.write(" column=\"" + source.column(pos) + "\"");
+				}
+				file.write(">");
+				file.write(s);
+				file.write("</" + node.tag + ">");
+			}
+		} else {
+			if (!node.opened) {
+				file.write(">");
+				file.incIndent();
+			}
+			file.decIndent();
+			file.writeIndent("</" + node.tag + ">");
+		}
+		if (this.stack.isEmpty()) {
+			file.writeNewLine();
+			file.flush();
+		}
+	}
+
 }
+
@@ -0,0 +1,150 @@
+package nez.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class ColumnarTreeTest {
+
+	static final String Json = "{\"id\": 12, \"name\": \"nez\", \"tags\": [1, 2.5, true, null, {\"a\": []}], \"ok\": false}";
+	static final String Xml = "<?xml version=\"1.0\"?>\n<a x=\"1\"><b>text</b><c y=\"2\"/><!-- c --></a>\n";
+	static final String Java = "package a.b;\nimport java.util.*;\npublic class A<T> extends B implements C {\n" //
+			+ "\tprivate int[] x = {1, 2, 3};\n\tpublic String toString() {\n" //
+			+ "\t\tfor (int i = 0; i < x.length; i++) { if (x[i] > 1) return \"\" + (x[i] << 2); }\n" //
+			+ "\t\treturn (String) null;\n\t}\n}\n";
+
+	private static void assertSameTree(Tree<?> expected, Tree<?> tree) {
+		assertEquals(expected.getTag(), tree.getTag());
+		assertEquals(expected.getSourcePosition(), tree.getSourcePosition());
+		assertEquals(expected.getLength(), tree.getLength());
+		assertEquals(expected.toText(), tree.toText());
+		assertEquals(expected.size(), tree.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Symbol label = expected.getLabel(i);
+			assertEquals(label, tree.getLabel(i));
+			assertSameTree(expected.get(i), tree.get(i));
+			if (label != null) {
+				assertEquals(expected.indexOf(label), tree.indexOf(label));
+				assertEquals(expected.get(label).toText(), tree.get(label).toText());
+			}
+		}
+	}
+
+	/* the events of a tree, as a string */
+
+	static class Events implements TreeListener {
+		final StringBuilder sb = new StringBuilder();
+
+		@Override
+		public void startNode(Symbol tag, long pos) {
+			sb.append("{#").append(tag).append(' ').append(pos);
+		}
+
+		@Override
+		public void label(Symbol label) {
+			sb.append(" $").append(label);
+		}
+
+		@Override
+		public void endNode(Symbol tag, long pos, int len, Object value) {
+			sb.append(' ').append(len).append(' ').append(value).append('}');
+		}
+	}
+
+	private static void assertColumnar(String file, String input) throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar(file);
+		for (String options : new String[] { "", "+IntCode", "+Moz" }) {
+			Parser parser = new ParserStrategy(options).newParser(g);
+			Tree<?> expected = parser.parse(CommonSource.newStringSource(input), new CommonTree());
+			assertNotNull(expected);
+			ColumnarTree proto = new ColumnarTree();
+			for (int i = 0; i < 2; i++) {
+				Tree<?> tree = parser.parse(CommonSource.newStringSource(input), proto);
+				assertTrue(tree instanceof ColumnarTree);
+				assertEquals(options, expected.toString(), tree.toString());
+				assertSameTree(expected, tree);
+				Events e1 = new Events();
+				Events e2 = new Events();
+				TreeUtils.sendTree(e1, expected);
+				((ColumnarTree) tree).sendTree(e2);
+				assertEquals(e1.sb.toString(), e2.sb.toString());
+			}
+		}
+	}
+
+	@Test
+	public void testJson() throws IOException {
+		assertColumnar("json.nez", Json);
+	}
+
+	@Test
+	public void testXml() throws IOException {
+		assertColumnar("xml.nez", Xml);
+	}
+
+	@Test
+	public void testJava() throws IOException {
+		assertColumnar("java.nez", Java);
+	}
+
+	@Test
+	public void testDup() throws IOException {
+		Parser parser = new ParserGenerator().newParser("json.nez");
+		Tree<?> tree = parser.parse(CommonSource.newStringSource(Json), new ColumnarTree());
+		assertSameTree(tree, tree.dup());
+		assertSame(((ColumnarTree) tree).getTable(), ((ColumnarTree) tree.get(0)).getTable());
+	}
+
+	@Test
+	public void testStrategy() {
+		assertTrue(new ParserStrategy("+Columnar").newTree() instanceof ColumnarTree);
+		assertTrue(new ParserStrategy("").newTree() instanceof CommonTree);
+	}
+
+	/* the same edits through the generic setters */
+
+	private static <E extends Tree<E>> String edit(E root) {
+		Symbol key = Symbol.unique("key");
+		Symbol value = Symbol.unique("value");
+		E m0 = root.get(0);
+		E m2 = root.get(2);
+		m0.set(value, m2.get(value).get(4)); // a subtree from elsewhere
+		m2.set(0, m0.get(key).dup());
+		m2.get(value).set(1, null);
+		m2.get(value).set(3, Symbol.unique("last"), root.get(3).get(key));
+		root.get(1).rename(key, Symbol.unique("name"));
+		root.get(1).rename(Symbol.unique("Member"), Symbol.unique("Pair"));
+		root.set(Symbol.unique("_"), m2); // the first child labeled $_
+		return root.toString();
+	}
+
+	@Test
+	public void testSetters() throws IOException {
+		Parser parser = new ParserGenerator().newParser("json.nez");
+		CommonTree expected = (CommonTree) parser.parse(CommonSource.newStringSource(Json), new CommonTree());
+		ColumnarTree tree = (ColumnarTree) parser.parse(CommonSource.newStringSource(Json), new ColumnarTree());
+		String edited = edit(expected);
+		assertEquals(edited, edit(tree));
+		assertEquals(edited, tree.toString());
+		assertTrue(tree.get(1).has(Symbol.unique("name")));
+		assertEquals("Pair", tree.get(1).getTag().getSymbol());
+		assertEquals(null, tree.get(2).get(Symbol.unique("value")).get(1));
+		try {
+			tree.set(4, null);
+			fail("set past the children");
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package nez.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import nez.ParserGenerator;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+import nez.parser.io.StringSource;
+
+import org.junit.Test;
+
+public class TokenTextTest {
+
+	/* Tree.toText of the baseline: a round trip through String */
+
+	private static String baseline(Source source, long pos, int length) {
+		String s = source.subString(pos, pos + length);
+		byte[] tmp = source.subByte(pos, pos + length);
+		if (Arrays.equals(tmp, s.getBytes(StandardCharsets.UTF_8))) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("0x");
+		for (byte c : tmp) {
+			sb.append(String.format("%02x", c & 0xff));
+		}
+		return sb.toString();
+	}
+
+	private static void assertText(byte[] bytes) {
+		Source source = new StringSource("bytes", 1, bytes, false);
+		assertEquals(baseline(source, 0, bytes.length), Tree.toText(source, 0, bytes.length));
+	}
+
+	private static byte[] bytes(int... b) {
+		byte[] bytes = new byte[b.length];
+		for (int i = 0; i < b.length; i++) {
+			bytes[i] = (byte) b[i];
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testUtf8() {
+		for (String s : new String[] { "", "abc", "\u00e9t\u00e9", "\u65e5\u672c\u8a9e", "\ud83d\ude00 x", "\u0000", "\uffff" }) {
+			assertText(s.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void testMalformed() {
+		assertText(bytes(0xc0, 0xaf)); // overlong
+		assertText(bytes(0xe0, 0x80, 0xaf)); // overlong
+		assertText(bytes(0xf0, 0x80, 0x80, 0xaf)); // overlong
+		assertText(bytes(0xed, 0xa0, 0x80)); // surrogate
+		assertText(bytes(0xf4, 0x90, 0x80, 0x80)); // beyond U+10FFFF
+		assertText(bytes(0xe6, 0x97)); // truncated
+		assertText(bytes(0x61, 0x80)); // stray trail
+		assertText(bytes(0xff));
+	}
+
+	@Test
+	public void testRandomBytes() {
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			byte[] b = new byte[random.nextInt(8)];
+			for (int j = 0; j < b.length; j++) {
+				b[j] = (byte) (random.nextBoolean() ? 0x80 + random.nextInt(0x80) : random.nextInt(0x80));
+			}
+			assertText(b);
+		}
+	}
+
+	@Test
+	public void testLongText() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 400; i++) {
+			sb.append("\u00e9a\u65e5");
+		}
+		assertText(sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testTokenTable() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("id").append(i).append(' ');
+		}
+		sb.append("\u00e9t\u00e9 \u00e9t\u00e9 ");
+		byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+		CommonSource source = new StringSource("tokens", 1, bytes, false);
+		TokenTable tokens = new TokenTable();
+		source.setTokenTable(tokens);
+		String[] first = new String[1000];
+		for (int round = 0; round < 2; round++) {
+			int pos = 0;
+			for (int i = 0; i < 1000; i++) {
+				int length = ("id" + i).length();
+				String t = Tree.toText(source, pos, length);
+				assertEquals("id" + i, t);
+				if (round == 0) {
+					first[i] = t;
+				} else {
+					assertSame(first[i], t);
+				}
+				pos += length + 1;
+			}
+			assertSame(Tree.toText(source, pos, 5), Tree.toText(source, pos + 6, 5));
+			assertEquals("\u00e9t\u00e9", Tree.toText(source, pos, 5));
+		}
+		assertEquals(1001, tokens.size());
+		assertTrue(tokens.getHits() > 1000);
+		CommonSource binary = new StringSource("binary", 1, bytes(0xff, 0x20, 0xff), false);
+		binary.setTokenTable(new TokenTable());
+		assertEquals("0xff", Tree.toText(binary, 0, 1));
+		assertEquals("0xff", Tree.toText(binary, 2, 1));
+	}
+
+	/* the trees of one source read from several threads share its table */
+
+	@Test
+	public void testSharedTable() throws Exception {
+		final int n = 4999; // a prime, which rehashes the table several times
+		StringBuilder sb = new StringBuilder();
+		final int[] positions = new int[n];
+		for (int i = 0; i < n; i++) {
+			positions[i] = sb.length();
+			sb.append("id").append(i).append(' ');
+		}
+		for (int round = 0; round < 4; round++) {
+			final CommonSource source = new StringSource("tokens", 1, sb.toString().getBytes(StandardCharsets.UTF_8), false);
+			source.setTokenTable(new TokenTable());
+			final String[][] texts = new String[4][n];
+			Thread[] threads = new Thread[texts.length];
+			for (int t = 0; t < threads.length; t++) {
+				final String[] mine = texts[t];
+				final int step = 2 * t + 1; // each thread visits every token in its own order
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						for (int j = 0, i = 0; j < n; j++, i = (i + step) % n) {
+							mine[i] = Tree.toText(source, positions[i], ("id" + i).length());
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			for (int i = 0; i < n; i++) {
+				assertEquals("id" + i, texts[0][i]);
+				for (int t = 1; t < texts.length; t++) {
+					assertSame(texts[0][i], texts[t][i]);
+				}
+			}
+			assertEquals(n, source.getTokenTable().size());
+		}
+	}
+
+	@Test
+	public void testInternTokens() throws IOException {
+		String input = "{\"name\": \"nez\", \"list\": [{\"name\": \"a\"}, {\"name\": \"b\"}], \"long\": \"" + new String(new char[40]).replace('\0', 'x') + "\"}";
+		Parser plain = new ParserGenerator().newParser("json.nez");
+		Parser interned = new ParserGenerator().newParser("json.nez", new ParserStrategy("+InternTokens"));
+		Tree<?> expected = plain.parse(input);
+		Tree<?> tree = interned.parse(input);
+		assertEquals(expected.toString(), tree.toString());
+		List<String> names = new ArrayList<String>();
+		collect(tree, "name", names);
+		assertEquals(3, names.size());
+		assertSame(names.get(0), names.get(1));
+		assertSame(names.get(0), names.get(2));
+	}
+
+	private static void collect(Tree<?> node, String text, List<String> texts) {
+		if (node.size() == 0) {
+			String t = node.toText();
+			if (t.equals(text)) {
+				texts.add(t);
+			}
+		}
+		for (Tree<?> sub : node) {
+			collect(sub, text, texts);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package nez.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class InputGeneratorTest {
+
+	/* the benchmarks measure nothing if a generated input does not parse */
+
+	private static String parse(String grammar, String options, String text) throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar(grammar + ".nez");
+		Parser parser = new ParserStrategy(options).newParser(g);
+		parser.setDisabledUnconsumed(true);
+		Source input = CommonSource.newStringSource(text);
+		Tree<?> tree = parser.parse(input);
+		assertNotNull(grammar + " " + options, tree);
+		assertFalse(grammar + " " + options, parser.hasErrors());
+		return tree.toString();
+	}
+
+	private static void assertParsed(String grammar, String text) throws IOException {
+		String expected = parse(grammar, "+Moz", text);
+		assertEquals(expected, parse(grammar, "", text));
+		assertEquals(expected, parse(grammar, "+IntCode", text));
+	}
+
+	@Test
+	public void testGenerate() throws IOException {
+		for (String grammar : new String[] { "json", "xml", "csv", "js", "java" }) {
+			String text = InputGenerator.generate(grammar, 4096);
+			assertFalse(text.length() < 4096);
+			assertParsed(grammar, text);
+		}
+	}
+
+	@Test
+	public void testGenerateKeywords() throws IOException {
+		for (String grammar : new String[] { "js", "java" }) {
+			assertParsed(grammar, InputGenerator.generateKeywords(grammar, 4096));
+		}
+	}
+
+	/* ParserBenchmark times match() without tree construction */
+
+	@Test
+	public void testMatch() throws IOException {
+		for (String grammar : new String[] { "json", "xml", "csv", "js", "java" }) {
+			Grammar g = new ParserGenerator().loadGrammar(grammar + ".nez");
+			String text = InputGenerator.generate(grammar, 4096);
+			for (String options : new String[] { "", "+JIT", "+IntCode", "+Moz", "-TreeConstruction", "-TreeConstruction +JIT", "-TreeConstruction +IntCode", "-TreeConstruction +Moz" }) {
+				Parser parser = new ParserStrategy(options).newParser(g);
+				parser.setDisabledUnconsumed(true);
+				assertTrue(grammar + " " + options, parser.match(CommonSource.newStringSource(text)));
+				assertFalse(grammar + " " + options, parser.hasErrors());
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownGrammar() {
+		InputGenerator.generate("math", 4096);
+	}
+}
@@ -0,0 +1,129 @@
+package nez.lang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.LabelLayout;
+import nez.ast.Symbol;
+import nez.ast.Tree;
+import nez.ast.TreeVisitorMap;
+import nez.parser.Parser;
+import nez.parser.ParserCache;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class TreeLayoutTest {
+	static final String AB = "File = { $a(X) $b(Y) #Pair }\nX = { 'x' #X }\nY = { 'y' #Y }\n";
+	static final String BA = "File = { $b(Y) $a(X) #Pair }\nX = { 'x' #X }\nY = { 'y' #Y }\n";
+
+	static final Symbol Pair = Symbol.unique("Pair");
+	static final Symbol A = Symbol.unique("a");
+	static final Symbol B = Symbol.unique("b");
+
+	private static Parser newParser(String grammar) throws IOException {
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(grammar), "nez");
+		return ParserStrategy.newDefaultStrategy().newParser(g);
+	}
+
+	/* the labels are looked up as the baseline did, by scanning */
+
+	private static int scan(Tree<?> node, Symbol label) {
+		for (int i = 0; i < node.size(); i++) {
+			if (node.getLabel(i) == label) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void assertLabels(Tree<?> node) {
+		assertEquals(scan(node, A), node.indexOf(A));
+		assertEquals(scan(node, B), node.indexOf(B));
+		assertEquals("x", node.get(A).toText());
+		assertEquals("y", node.get(B).toText());
+	}
+
+	@Test
+	public void testLayoutOfEachGrammar() throws IOException {
+		Parser ab = newParser(AB);
+		Parser ba = newParser(BA);
+		LabelLayout abLayout = ab.getParserCode().getLayout();
+		LabelLayout baLayout = ba.getParserCode().getLayout();
+		assertEquals(0, abLayout.slot(Pair, A));
+		assertEquals(1, abLayout.slot(Pair, B));
+		assertEquals(1, baLayout.slot(Pair, A));
+		assertEquals(0, baLayout.slot(Pair, B));
+		Tree<?> t1 = ab.parse("xy");
+		Tree<?> t2 = ba.parse("yx");
+		assertSame(abLayout, t1.getLayout());
+		assertSame(baLayout, t2.getLayout());
+		assertLabels(t1);
+		assertLabels(t2);
+		assertLabels(t1.dup());
+	}
+
+	@Test
+	public void testUnevenSlot() {
+		LabelLayout layout = new LabelLayout();
+		layout.setSlot(Pair, A, 0);
+		layout.setSlot(Pair, A, 0);
+		assertEquals(0, layout.slot(Pair, A));
+		assertEquals(1, layout.size());
+		layout.setSlot(Pair, A, 1);
+		assertEquals(-1, layout.slot(Pair, A));
+		assertEquals(0, layout.size());
+	}
+
+	@Test
+	public void testCachedLayout() throws IOException {
+		File dir = Files.createTempDirectory("nez-cache").toFile();
+		try {
+			ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+			ParserCache cache = new ParserCache(dir.getPath());
+			String key = ParserCache.newKey(strategy, BA);
+			cache.store(key, newParser(BA));
+			Parser cached = cache.load(key, strategy);
+			assertNotNull(cached);
+			LabelLayout layout = cached.getParserCode().getLayout();
+			assertEquals(1, layout.slot(Pair, A));
+			assertEquals(0, layout.slot(Pair, B));
+			Tree<?> t = cached.parse(CommonSource.newStringSource("yx"), new CommonTree());
+			assertSame(layout, t.getLayout());
+			assertLabels(t);
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	static class Visitors extends TreeVisitorMap<String> {
+		Visitors() {
+			this.defaultAcceptor = "default";
+			this.visitors = new java.util.HashMap<>();
+		}
+
+		String visitor(Symbol tag) {
+			return find(tag);
+		}
+	}
+
+	@Test
+	public void testVisitorAddedAfterFind() {
+		Visitors v = new Visitors();
+		assertEquals("default", v.visitor(Pair));
+		v.add("Pair", "pair");
+		assertEquals("pair", v.visitor(Pair));
+		assertEquals("default", v.visitor(A));
+	}
+}
@@ -0,0 +1,211 @@
+package nez.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+import nez.parser.Parser;
+import nez.tool.ast.TreeJSONWriter;
+import nez.util.StringUtils;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CserverTest {
+
+	static final String Json = "{\"id\": 12, \"name\": \"nez\", \"tags\": [1, 2.5, true, null, {\"a\": []}], \"ok\": false}";
+
+	private static File cacheDir;
+	private static File serverDir;
+	private static Cserver server;
+	private static Thread serverThread;
+
+	@BeforeClass
+	public static void start() throws Exception {
+		cacheDir = Files.createTempDirectory("nez-cache").toFile();
+		System.setProperty("nez.cache", cacheDir.getPath());
+		serverDir = Files.createTempDirectory("nez-server").toFile();
+		System.setProperty("nez.server", serverDir.getPath());
+		server = new Cserver();
+		try (ServerSocket s = new ServerSocket(0)) {
+			server.port = s.getLocalPort();
+		}
+		serverThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.exec();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		serverThread.start();
+		for (int i = 0; i < 100 && !Cserver.tokenFile(server.port).exists(); i++) {
+			Thread.sleep(50);
+		}
+	}
+
+	@AfterClass
+	public static void stop() throws Exception {
+		assertEquals(1, request("stop", null, null).size());
+		serverThread.join(10000);
+		assertFalse(serverThread.isAlive());
+		assertFalse(Cserver.tokenFile(server.port).exists());
+		for (File dir : new File[] { cacheDir, serverDir }) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		System.clearProperty("nez.cache");
+		System.clearProperty("nez.server");
+	}
+
+	static class Response {
+		int status;
+		String output;
+		String errors;
+	}
+
+	/* writes a request as Cserver.request does, with the inputs as text */
+
+	private static List<Response> request(String command, String grammar, String format, String... inputs) throws IOException {
+		return requestWith(Cserver.readToken(server.port), command, grammar, format, inputs);
+	}
+
+	private static List<Response> requestWith(String token, String command, String grammar, String format, String... inputs) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out.writeUTF(token);
+			out.writeUTF(command);
+			if (grammar != null) {
+				out.writeUTF(grammar);
+				out.writeInt(0);
+				out.writeUTF(format);
+				out.writeInt(0);
+				out.writeInt(inputs.length);
+				for (String input : inputs) {
+					byte[] text = StringUtils.toUtf8(input);
+					out.writeBoolean(true);
+					out.writeInt(text.length);
+					out.write(text);
+				}
+			}
+			out.flush();
+			List<Response> responses = new ArrayList<Response>();
+			for (int status = in.readInt(); status >= 0; status = in.readInt()) {
+				Response r = new Response();
+				r.status = status;
+				byte[] output = new byte[in.readInt()];
+				in.readFully(output);
+				r.output = StringUtils.newString(output);
+				byte[] errors = new byte[in.readInt()];
+				in.readFully(errors);
+				r.errors = StringUtils.newString(errors);
+				responses.add(r);
+			}
+			return responses;
+		}
+	}
+
+	@Test
+	public void testParse() throws IOException {
+		Parser parser = new ParserGenerator().newParser("json.nez");
+		Tree<?> node = parser.parse(Json);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TreeJSONWriter tw = new TreeJSONWriter();
+		tw.init(bytes);
+		tw.writeTree(node);
+		String expected = bytes.toString("UTF-8");
+		for (int i = 0; i < 2; i++) { // the second request uses the parser kept by the server
+			List<Response> responses = request("parse", "json.nez", "json", Json, "{\"id\": }", Json);
+			assertEquals(3, responses.size());
+			assertEquals(0, responses.get(0).status);
+			assertEquals(expected, responses.get(0).output);
+			assertEquals(1, responses.get(1).status);
+			assertEquals("", responses.get(1).output);
+			assertTrue(responses.get(1).errors.contains("syntax error"));
+			assertEquals(0, responses.get(2).status);
+			assertEquals(expected, responses.get(2).output);
+		}
+	}
+
+	@Test
+	public void testMatch() throws IOException {
+		List<Response> responses = request("match", "json.nez", "ast", Json, "[1, ]");
+		assertEquals(2, responses.size());
+		assertEquals(0, responses.get(0).status);
+		assertEquals("", responses.get(0).output);
+		assertEquals(1, responses.get(1).status);
+	}
+
+	@Test
+	public void testUnknownGrammar() throws IOException {
+		List<Response> responses = request("parse", "no-such-grammar.nez", "ast", Json, Json);
+		assertEquals(1, responses.size());
+		assertEquals(1, responses.get(0).status);
+		assertTrue(responses.get(0).errors.startsWith("no-such-grammar.nez"));
+		assertEquals(0, request("parse", "json.nez", "ast", Json).get(0).status);
+	}
+
+	@Test
+	public void testStats() throws IOException {
+		request("parse", "json.nez", "ast", Json);
+		List<Response> responses = request("stats", null, null);
+		assertEquals(1, responses.size());
+		assertTrue(responses.get(0).output.contains("json.nez"));
+	}
+
+	@Test
+	public void testUndefinedRequest() throws IOException {
+		List<Response> responses = request("reparse", null, null);
+		assertEquals(1, responses.size());
+		assertEquals(1, responses.get(0).status);
+	}
+
+	/* a request without the token is refused, and stop does not stop */
+
+	@Test
+	public void testBadToken() throws IOException {
+		String token = Cserver.readToken(server.port);
+		assertEquals(64, token.length());
+		for (String command : new String[] { "stop", "stats", "parse" }) {
+			List<Response> responses = requestWith(token.substring(1) + "0", command, command.equals("parse") ? "json.nez" : null, "ast", Json);
+			assertEquals(1, responses.size());
+			assertEquals(1, responses.get(0).status);
+			assertEquals("bad token\n", responses.get(0).errors);
+			assertEquals("", responses.get(0).output);
+		}
+		assertEquals(1, requestWith("", "stats", null, null).get(0).status);
+		assertEquals(0, request("stats", null, null).get(0).status);
+	}
+
+	@Test
+	public void testTokenFile() throws IOException {
+		Path path = Cserver.tokenFile(server.port).toPath();
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(path));
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+import nez.parser.vm.ParserMachineContext;
+
+import org.junit.Test;
+
+public class AdaptiveMemoTest {
+
+	static final String Json = "{\"id\": 12, \"name\": \"nez\", \"tags\": [1, 2.5, true, null, {\"a\": []}], \"ok\": false}";
+
+	private static Parser newParser(String file, String options) throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar(file);
+		return new ParserStrategy(options).newParser(g);
+	}
+
+	private static String input(int n) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < n; i++) {
+			sb.append(i == 0 ? "" : ", ").append(Json);
+		}
+		return sb.append("]").toString();
+	}
+
+	private static void assertSameTree(String options) throws IOException {
+		String input = input(200);
+		Tree<?> expected = newParser("json.nez", "").parse(input);
+		assertNotNull(expected);
+		Parser parser = newParser("json.nez", options);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(expected.toString(), parser.parse(input).toString());
+		}
+	}
+
+	@Test
+	public void testSameTree() throws IOException {
+		assertSameTree("+AdaptiveMemo");
+	}
+
+	@Test
+	public void testSameTreeIntCode() throws IOException {
+		assertSameTree("+AdaptiveMemo +IntCode");
+	}
+
+	@Test
+	public void testConcurrentParses() throws Exception {
+		final String input = input(100);
+		final String expected = newParser("json.nez", "").parse(input).toString();
+		final Parser parser = newParser("json.nez", "+AdaptiveMemo");
+		final List<String> errors = new ArrayList<>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 20; i++) {
+						Tree<?> tree = parser.parse(input);
+						if (tree == null || !expected.equals(tree.toString())) {
+							synchronized (errors) {
+								errors.add(getName() + " #" + i);
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	/* the trials of one context are not seen by another */
+
+	@Test
+	public void testBypassPerContext() throws IOException {
+		Parser parser = newParser("json.nez", "+AdaptiveMemo");
+		ParserMachineContext c1 = parser.newParserMachineContext(CommonSource.newStringSource(Json), null);
+		ParserMachineContext c2 = parser.newParserMachineContext(CommonSource.newStringSource(Json), null);
+		for (int i = 0; i < 256; i++) {
+			c1.trialMemo(0, false);
+		}
+		assertTrue(c1.isMemoBypassed(0));
+		assertTrue(c1.bypassMemo(0));
+		assertFalse(c2.isMemoBypassed(0));
+		assertFalse(c2.bypassMemo(0));
+		for (int i = 1; i < 256 * 16; i++) {
+			c1.bypassMemo(0);
+		}
+		assertFalse(c1.isMemoBypassed(0));
+	}
+}
@@ -0,0 +1,154 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.ast.Symbol;
+import nez.ast.Tree;
+import nez.ast.TreeListener;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+import nez.parser.vm.ParserMachineContext;
+
+import org.junit.Test;
+
+public class ContextPoolTest {
+
+	private final static String Grammar = "File = { ($(List))* #File }\nList = { ($(X))* (';' #Semi / '.' #Dot) } ' '*\nX = { [a-z] #X } ' '*\n";
+
+	private static Parser newParser(String grammar) throws IOException {
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(grammar), "nez");
+		return ParserStrategy.newDefaultStrategy().newParser(g);
+	}
+
+	private static String repeat(String s, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static void assertCollected(WeakReference<?> ref) {
+		for (int i = 0; i < 10 && ref.get() != null; i++) {
+			System.gc();
+		}
+		assertNull(ref.get());
+	}
+
+	private static WeakReference<Source> parse(Parser parser, String input) {
+		Source s = CommonSource.newStringSource(input);
+		parser.parse(s, new CommonTree());
+		return new WeakReference<Source>(s);
+	}
+
+	@Test
+	public void testReleaseSource() throws IOException {
+		Parser parser = newParser(Grammar);
+		assertCollected(parse(parser, repeat(repeat("a b c ", 30) + ". ", 100)));
+		assertCollected(parse(parser, repeat("a b c ", 30) + "?"));
+	}
+
+	@Test
+	public void testReuseContext() throws IOException {
+		Parser parser = newParser(Grammar);
+		String large = repeat(repeat("a b c ", 30) + ". ", 100);
+		String small = "a b ; c .";
+		Tree<?> expected = parser.parse(CommonSource.newStringSource(small), new CommonTree());
+		parser.parse(CommonSource.newStringSource(large), new CommonTree());
+		Tree<?> tree = parser.parse(CommonSource.newStringSource(small), new CommonTree());
+		assertEquals(expected.toString(), tree.toString());
+		assertTrue(parser.match(large));
+	}
+
+	private static void addNodes(Tree<?> node, List<WeakReference<Tree<?>>> refs) {
+		refs.add(new WeakReference<Tree<?>>(node));
+		for (Tree<?> sub : node) {
+			addNodes(sub, refs);
+		}
+	}
+
+	@Test
+	public void testReleaseTrees() throws IOException {
+		Parser parser = newParser(Grammar);
+		Tree<?> tree = parser.parse(CommonSource.newStringSource(repeat(repeat("a b c ", 30) + ". ", 100)), new CommonTree());
+		List<WeakReference<Tree<?>>> refs = new ArrayList<>();
+		addNodes(tree, refs);
+		tree = null;
+		for (WeakReference<Tree<?>> ref : refs) {
+			assertCollected(ref);
+		}
+	}
+
+	/* a parse started from a listener of a parse runs on a context of its own */
+
+	@Test
+	public void testNestedParse() throws IOException {
+		final Parser parser = newParser(Grammar);
+		final String inner = "a b ; c .";
+		final String outer = repeat("a b c . ", 20);
+		final Tree<?> expected = parser.parse(CommonSource.newStringSource(outer), new CommonTree());
+		final Tree<?> expectedInner = parser.parse(CommonSource.newStringSource(inner), new CommonTree());
+		final List<String> inners = new ArrayList<>();
+		final StringBuilder events = new StringBuilder();
+		assertTrue(parser.parse(CommonSource.newStringSource(outer), new TreeListener() {
+			@Override
+			public void startNode(Symbol tag, long pos) {
+				events.append('{').append(tag).append('@').append(pos);
+				if (inners.size() < 3) {
+					inners.add(parser.parse(CommonSource.newStringSource(inner), new CommonTree()).toString());
+				}
+			}
+
+			@Override
+			public void label(Symbol label) {
+			}
+
+			@Override
+			public void endNode(Symbol tag, long pos, int len, Object value) {
+				events.append('}').append(pos).append('+').append(len);
+			}
+		}));
+		assertEquals(3, inners.size());
+		for (String t : inners) {
+			assertEquals(expectedInner.toString(), t);
+		}
+		StringBuilder expectedEvents = new StringBuilder();
+		appendEvents(expected, expectedEvents);
+		assertEquals(expectedEvents.toString(), events.toString());
+		assertEquals(expected.toString(), parser.parse(CommonSource.newStringSource(outer), new CommonTree()).toString());
+	}
+
+	private static void appendEvents(Tree<?> node, StringBuilder sb) {
+		sb.append('{').append(node.getTag()).append('@').append(node.getSourcePosition());
+		for (Tree<?> sub : node) {
+			appendEvents(sub, sb);
+		}
+		sb.append('}').append(node.getSourcePosition()).append('+').append(node.getLength());
+	}
+
+	@Test
+	public void testNewContextIsNotPooled() throws IOException {
+		Parser parser = newParser(Grammar);
+		Source s = CommonSource.newStringSource("a b .");
+		ParserMachineContext c1 = parser.newParserMachineContext(s, new CommonTree());
+		ParserMachineContext c2 = parser.newParserMachineContext(s, new CommonTree());
+		assertNotSame(c1, c2);
+		Tree<?> tree = parser.parse(CommonSource.newStringSource("a b ; c ."), new CommonTree());
+		assertEquals(2, tree.size());
+		assertEquals(0, c1.getPosition());
+		assertNotNull(parser.getParserCode().exec(c1));
+		assertEquals(s.length(), c1.getPosition());
+	}
+}
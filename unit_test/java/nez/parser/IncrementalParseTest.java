@@ -0,0 +1,133 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+public class IncrementalParseTest {
+
+	static final String Json = "{\"id\": 12, \"name\": \"nez\", \"tags\": [1, 2.5, true, null, {\"a\": []}], \"ok\": false}";
+
+	private static Parser newParser(String file) throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar(file);
+		return ParserStrategy.newDefaultStrategy().newParser(g);
+	}
+
+	private static String list(int n) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < n; i++) {
+			sb.append(i == 0 ? "\n" : ",\n").append(Json);
+		}
+		return sb.append("\n]").toString();
+	}
+
+	/* the tags, positions and texts of the whole tree */
+
+	private static void assertSameTree(Tree<?> expected, Tree<?> tree) {
+		assertEquals(expected.getTag(), tree.getTag());
+		assertEquals(expected.getSourcePosition(), tree.getSourcePosition());
+		assertEquals(expected.getLength(), tree.getLength());
+		assertEquals(expected.toText(), tree.toText());
+		assertEquals(expected.size(), tree.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getLabel(i), tree.getLabel(i));
+			assertSameTree(expected.get(i), tree.get(i));
+		}
+	}
+
+	private static ParserSnapshot edit(Parser parser, ParserSnapshot prev, StringBuilder text, int offset, int deleted, String inserted) {
+		text.replace(offset, offset + deleted, inserted);
+		ParserSnapshot next = parser.reparse(prev, offset, deleted, StringUtils.toUtf8(inserted));
+		assertEquals(text.toString(), next.getSource().subString(0, next.getSource().length()));
+		return next;
+	}
+
+	@Test
+	public void testEdits() throws IOException {
+		Parser parser = newParser("json.nez");
+		StringBuilder text = new StringBuilder(list(50));
+		ParserSnapshot r = parser.parseIncremental(CommonSource.newStringSource(text.toString()));
+		assertNotNull(r.getTree());
+		Random random = new Random(1);
+		for (int i = 0; i < 30; i++) { // number edits, more than MaxGenerations
+			int offset = text.indexOf("12", random.nextInt(text.length() - 2));
+			if (offset < 0) {
+				offset = text.indexOf("12");
+			}
+			r = edit(parser, r, text, offset, 2, String.valueOf(random.nextInt(100000)));
+			assertTrue(r.memo.CountUsed > 0);
+			assertSameTree(parser.parse(text.toString()), r.getTree());
+		}
+	}
+
+	@Test
+	public void testInsertAndDelete() throws IOException {
+		Parser parser = newParser("json.nez");
+		StringBuilder text = new StringBuilder(list(10));
+		ParserSnapshot r = parser.parseIncremental(CommonSource.newStringSource(text.toString()));
+		r = edit(parser, r, text, 1, 0, "\n" + Json + ",");
+		assertSameTree(parser.parse(text.toString()), r.getTree());
+		r = edit(parser, r, text, text.length() - 4 - Json.length(), Json.length() + 2, "");
+		assertSameTree(parser.parse(text.toString()), r.getTree());
+		r = edit(parser, r, text, 0, text.length(), "[]");
+		assertSameTree(parser.parse(text.toString()), r.getTree());
+	}
+
+	@Test
+	public void testSyntaxError() throws IOException {
+		Parser parser = newParser("json.nez");
+		StringBuilder text = new StringBuilder(list(10));
+		ParserSnapshot r = parser.parseIncremental(CommonSource.newStringSource(text.toString()));
+		int offset = text.indexOf("true");
+		r = edit(parser, r, text, offset, 4, "tru");
+		assertNull(r.getTree());
+		assertTrue(r.hasErrors());
+		r = edit(parser, r, text, offset, 3, "false");
+		assertSameTree(parser.parse(text.toString()), r.getTree());
+	}
+
+	/* nested pairs of lists, so that a value is depth lists deep in 2^depth values */
+
+	private static String tree(int depth) {
+		return depth == 0 ? "12" : "[" + tree(depth - 1) + ", " + tree(depth - 1) + "]";
+	}
+
+	/* the memo entries used and stored by a one-byte edit in the middle */
+
+	private static int[] editWork(Parser parser, int depth) {
+		StringBuilder text = new StringBuilder(tree(depth));
+		ParserSnapshot r = parser.parseIncremental(CommonSource.newStringSource(text.toString()));
+		r = edit(parser, r, text, text.indexOf("12", text.length() / 2), 1, "3");
+		assertSameTree(parser.parse(text.toString()), r.getTree());
+		return new int[] { r.memo.CountUsed, r.memo.CountStored };
+	}
+
+	@Test
+	public void testEditWork() throws IOException {
+		Parser parser = newParser("json.nez");
+		int[] small = editWork(parser, 8);
+		int[] large = editWork(parser, 12); // 16 times the text
+		assertTrue(small[0] > 0);
+		assertTrue(large[0] + " used against " + small[0], large[0] <= 2 * small[0]);
+		assertTrue(large[1] + " stored against " + small[1], large[1] <= 2 * small[1]);
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfBounds() throws IOException {
+		Parser parser = newParser("json.nez");
+		ParserSnapshot r = parser.parseIncremental(CommonSource.newStringSource(Json));
+		parser.reparse(r, Json.length() - 1, 2, new byte[0]);
+	}
+}
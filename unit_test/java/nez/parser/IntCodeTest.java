@@ -0,0 +1,107 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Symbol;
+import nez.ast.Tree;
+import nez.ast.TreeListener;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class IntCodeTest {
+
+	static final String Json = "{\"id\": 12, \"name\": \"nez\", \"tags\": [1, 2.5, true, null, {\"a\": []}], \"ok\": false}";
+	static final String Xml = "<?xml version=\"1.0\"?>\n<a x=\"1\"><b>text</b><c y=\"2\"/><!-- c --></a>\n";
+	static final String Java = "package a.b;\nimport java.util.*;\npublic class A<T> extends B implements C {\n" //
+			+ "\tprivate int[] x = {1, 2, 3};\n\t@Override\n\tpublic String toString() {\n" //
+			+ "\t\tfor (int i = 0; i < x.length; i++) { if (x[i] > 1) return \"\" + (x[i] << 2); }\n" //
+			+ "\t\ttry { return null; } catch (Exception e) { throw new RuntimeException(e); }\n\t}\n}\n";
+
+	private static Parser newParser(String file, String options) throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar(file);
+		return new ParserStrategy(options).newParser(g);
+	}
+
+	private static void assertSameTree(String file, String input) throws IOException {
+		Tree<?> expected = newParser(file, "-IntCode").parse(input);
+		assertNotNull(expected);
+		Parser parser = newParser(file, "+IntCode");
+		for (int i = 0; i < 2; i++) {
+			Tree<?> tree = parser.parse(input);
+			assertNotNull(tree);
+			assertEquals(expected.toString(), tree.toString());
+		}
+	}
+
+	@Test
+	public void testJson() throws IOException {
+		assertSameTree("json.nez", Json);
+	}
+
+	@Test
+	public void testXml() throws IOException {
+		assertSameTree("xml.nez", Xml);
+	}
+
+	@Test
+	public void testJava() throws IOException {
+		assertSameTree("java.nez", Java);
+	}
+
+	@Test
+	public void testSyntaxError() throws IOException {
+		Parser parser = newParser("json.nez", "+IntCode");
+		assertNull(parser.parse("{\"id\": }"));
+		assertNotNull(parser.parse(Json));
+	}
+
+	@Test
+	public void testBudget() throws IOException {
+		Parser parser = newParser("java.nez", "+IntCode");
+		try {
+			parser.parse(CommonSource.newStringSource(Java), new CommonTree(), new ParserBudget(100, 0, 0));
+			fail("no budget exception");
+		} catch (ParserBudgetException e) {
+			assertEquals(ParserBudget.Limit.Steps, e.getLimit());
+			assertTrue(e.getProductionStack().length > 0);
+		}
+		assertNotNull(parser.parse(CommonSource.newStringSource(Java), new CommonTree(), new ParserBudget()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProfiling() throws IOException {
+		newParser("json.nez", "+IntCode +Profiling").parse(Json);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCoverage() throws IOException {
+		newParser("json.nez", "+IntCode +Coverage").parse(Json);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testStreaming() throws IOException {
+		newParser("json.nez", "+IntCode").parse(CommonSource.newStringSource(Json), new TreeListener() {
+			@Override
+			public void startNode(Symbol tag, long pos) {
+			}
+
+			@Override
+			public void label(Symbol label) {
+			}
+
+			@Override
+			public void endNode(Symbol tag, long pos, int len, Object value) {
+			}
+		});
+	}
+}
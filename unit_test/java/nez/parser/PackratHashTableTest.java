@@ -0,0 +1,188 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+
+import org.junit.Test;
+
+public class PackratHashTableTest {
+
+	static final String Java = "package a.b;\nimport java.util.*;\npublic class A<T> extends B implements C {\n" //
+			+ "\tprivate int[] x = {1, 2, 3};\n\tpublic String toString() {\n" //
+			+ "\t\tfor (int i = 0; i < x.length; i++) { if (x[i] > 1) return \"\" + (x[i] << 2); }\n" //
+			+ "\t\treturn (String) null;\n\t}\n}\n";
+
+	/* the table is checked against a HashMap, through several rehashes */
+
+	private static void assertSameAsMap(boolean offHeap) {
+		PackratHashTable table = new PackratHashTable(10, 0, offHeap);
+		Map<List<Long>, int[]> expected = new HashMap<List<Long>, int[]>();
+		Random random = new Random(offHeap ? 2 : 1);
+		for (int i = 0; i < 20000; i++) {
+			long key = table.key(random.nextInt(5000), random.nextInt(10));
+			int[] v = { random.nextInt(1000), random.nextInt(3), random.nextInt(3) };
+			table.put(key, v[0], v[1], v[2], v);
+			expected.put(Arrays.asList(key, (long) v[2]), v);
+		}
+		assertEquals(expected.size(), table.size());
+		for (Map.Entry<List<Long>, int[]> e : expected.entrySet()) {
+			int[] v = e.getValue();
+			int slot = table.find(e.getKey().get(0), v[2]);
+			assertTrue(slot != -1);
+			assertTrue(table.find(e.getKey().get(0)) != -1);
+			assertEquals(v[0], table.consumed(slot));
+			assertEquals(v[1], table.result(slot));
+			assertEquals(v[2], table.stateValue(slot));
+			assertSame(v, table.tree(slot));
+		}
+		long first = expected.keySet().iterator().next().get(0);
+		assertEquals(-1, table.find(table.key(5000, 0)));
+		assertEquals(-1, table.find(first, 3));
+		table.releaseTrees();
+		assertEquals(expected.size(), table.size());
+		assertNull(table.tree(table.find(first)));
+		table.clear();
+		assertEquals(0, table.size());
+		assertEquals(-1, table.find(first));
+	}
+
+	@Test
+	public void testHeap() {
+		assertSameAsMap(false);
+	}
+
+	@Test
+	public void testOffHeap() {
+		assertSameAsMap(true);
+	}
+
+	/* entries behind the window are dropped as the front advances */
+
+	@Test
+	public void testWindow() {
+		PackratHashTable table = new PackratHashTable(4, 100, false);
+		int dead = 0;
+		for (long pos = 0; pos < 100000; pos++) {
+			table.put(table.key(pos, 1), 1, ParserContext.SuccFound, 0, new Object());
+			dead = Math.max(dead, table.size() - 100);
+		}
+		assertEquals(1 << 10, table.capacity()); // never grows
+		assertTrue(dead < 1 << 10);
+		for (long pos = 100000 - 100; pos < 100000; pos++) {
+			assertTrue(table.find(table.key(pos, 1)) != -1);
+		}
+		assertEquals(100000, table.size() + table.CountEvicted);
+		int trees = 0;
+		for (long pos = 0; pos < 100000; pos++) {
+			int slot = table.find(table.key(pos, 1));
+			if (slot != -1) {
+				assertTrue(pos >= 100000 - 100 - (1 << 10));
+				assertNotNull(table.tree(slot));
+				trees++;
+			}
+		}
+		assertEquals(table.size(), trees);
+	}
+
+	/* removals keep every other key reachable */
+
+	@Test
+	public void testRemovals() {
+		PackratHashTable table = new PackratHashTable(16, 300, false);
+		Random random = new Random(3);
+		long front = 0;
+		Map<Long, Long> stored = new HashMap<Long, Long>();
+		for (int i = 0; i < 50000; i++) {
+			front += random.nextInt(3);
+			long pos = Math.max(0, front - random.nextInt(400));
+			long key = table.key(pos, random.nextInt(16));
+			table.put(key, i, ParserContext.SuccFound, 0, null);
+			stored.put(key, pos);
+			long min = Math.max(front, pos) - 300;
+			if (i % 1000 == 999) {
+				for (Map.Entry<Long, Long> e : stored.entrySet()) {
+					if (e.getValue() >= min) {
+						assertTrue(table.find(e.getKey()) != -1);
+					}
+				}
+			}
+		}
+	}
+
+	/* the direct pages of a growing table are reused */
+
+	@Test
+	public void testOffHeapPages() {
+		PackratHashTable table = new PackratHashTable(4, 0, true);
+		for (int round = 0; round < 3; round++) {
+			table.clear();
+			for (long pos = 0; pos < 200000; pos++) {
+				table.put(table.key(pos, 1), 1, ParserContext.SuccFound, 0, null);
+			}
+		}
+		int pages = table.capacity() >> 10;
+		assertTrue(table.CountPages + " pages for " + pages, table.CountPages < 2 * pages);
+	}
+
+	@Test
+	public void testStates() {
+		PackratHashTable table = new PackratHashTable(4, 0, false);
+		table.setMemo(10, 2, false, "a", 5, 1);
+		table.setMemo(10, 2, false, "b", 3, 2);
+		assertEquals(2, table.size());
+		assertEquals("a", table.getStateMemo(10, 2, 1).result);
+		assertEquals("b", table.getStateMemo(10, 2, 2).result);
+		assertNotNull(table.getMemo(10, 2));
+		assertNull(table.getStateMemo(10, 2, 3));
+		assertEquals(1, table.CountInvalidated);
+		table.setMemo(10, 2, false, "c", 3, 2);
+		assertEquals(2, table.size());
+		assertEquals("c", table.getStateMemo(10, 2, 2).result);
+	}
+
+	@Test
+	public void testMemoEntry() {
+		PackratHashTable table = new PackratHashTable(4, 0, false);
+		table.setMemo(10, 2, false, "tree", 5, 7);
+		table.setMemo(12, 2, true, null, 0, 7);
+		MemoEntry m = table.getMemo(10, 2);
+		assertNotNull(m);
+		assertEquals(false, m.failed);
+		assertEquals(5, m.consumed);
+		assertEquals("tree", m.result);
+		assertEquals(true, table.getMemo(12, 2).failed);
+		assertNull(table.getMemo(10, 3));
+		assertNotNull(table.getStateMemo(10, 2, 7));
+		assertNull(table.getStateMemo(10, 2, 8));
+	}
+
+	/* full packrat parsing gives the trees of the default sliding window */
+
+	@Test
+	public void testSameTree() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("java.nez");
+		Tree<?> expected = ParserStrategy.newDefaultStrategy().newParser(g).parse(Java);
+		assertNotNull(expected);
+		String[] options = { "SlidingWindow=-2", "SlidingWindow=-2 PackratWindow=16", "SlidingWindow=-2 +OffHeapMemo", "SlidingWindow=-2 +IntCode", "SlidingWindow=-2 +Moz" };
+		for (String option : options) {
+			Parser parser = new ParserStrategy(option).newParser(g);
+			for (int i = 0; i < 2; i++) {
+				assertEquals(option, expected.toString(), parser.parse(Java).toString());
+			}
+		}
+	}
+}
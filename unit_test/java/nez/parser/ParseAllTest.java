@@ -0,0 +1,118 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class ParseAllTest {
+
+	private static Parser newParser() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("json.nez");
+		return ParserStrategy.newDefaultStrategy().newParser(g);
+	}
+
+	private static List<Source> inputs(int n) {
+		List<Source> inputs = new ArrayList<Source>();
+		for (int i = 0; i < n; i++) {
+			inputs.add(CommonSource.newStringSource("input" + i, 1, i % 7 == 3 ? "[" + i + ", ]" : "[" + i + ", {\"n\": " + i + "}]"));
+		}
+		return inputs;
+	}
+
+	@Test
+	public void testOrdered() throws IOException {
+		Parser parser = newParser();
+		Parser expected = newParser();
+		List<Source> inputs = inputs(600);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<ParserResult> results = parser.parseAll(inputs, executor);
+			assertEquals(inputs.size(), results.size());
+			for (int i = 0; i < inputs.size(); i++) {
+				ParserResult r = results.get(i);
+				assertEquals(inputs.get(i), r.getSource());
+				assertEquals(i % 7 != 3, r.isSucceeded());
+				if (r.isSucceeded()) {
+					assertEquals(expected.parse(inputs.get(i)).toString(), r.getTree().toString());
+				}
+			}
+			assertFalse(parser.hasErrors());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testUnordered() throws IOException {
+		Parser parser = newParser();
+		List<Source> inputs = inputs(600);
+		final Set<Source> handled = new HashSet<Source>();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			parser.parseAll(inputs, executor, false, new CommonTree(), new ParserResult.Handler() {
+				@Override
+				public void handle(ParserResult result) {
+					assertTrue(handled.add(result.getSource()));
+				}
+			});
+			assertEquals(new HashSet<Source>(inputs), handled);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/* runs the first task at once and keeps the others waiting */
+
+	static class HoldingExecutor implements Executor {
+		final List<Future<?>> held = new ArrayList<Future<?>>();
+
+		@Override
+		public void execute(Runnable task) {
+			if (held.isEmpty()) {
+				task.run();
+			}
+			held.add((Future<?>) task);
+		}
+	}
+
+	@Test
+	public void testCancelOnFailure() throws IOException {
+		HoldingExecutor executor = new HoldingExecutor();
+		try {
+			newParser().parseAll(inputs(5), executor, true, new CommonTree(), new ParserResult.Handler() {
+				@Override
+				public void handle(ParserResult result) {
+					throw new IllegalStateException(result.getSource().getResourceName());
+				}
+			});
+			fail("the handler did not throw");
+		} catch (IllegalStateException e) {
+			assertEquals("input0", e.getMessage());
+		}
+		assertEquals(5, executor.held.size());
+		assertTrue(executor.held.get(0).isDone());
+		assertFalse(executor.held.get(0).isCancelled());
+		for (int i = 1; i < 5; i++) {
+			assertTrue(executor.held.get(i).isCancelled());
+		}
+	}
+}
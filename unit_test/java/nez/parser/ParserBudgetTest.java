@@ -0,0 +1,212 @@
+package nez.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class ParserBudgetTest {
+	static final String Grammar = "File = { (Item)* #File }\nItem = { [a-z]+ #Item } ' '*\n";
+
+	/* Item tries a statement before a word; each word takes a step and a backtrack */
+
+	static final String Backtracking = "File = { ($(Item))* #File }\nItem = { [a-z]+ ';' #Stmt } / { [a-z]+ #Item } ' '*\n";
+
+	/* Inner is inside Outer; without inlining, each has its frame */
+
+	static final String Nested = "File = { ($(Outer))* #File }\nOuter = { '(' $(Inner) ')' #Outer }\nInner = { [a-z]+ #Inner }\n";
+
+	static final String Symbols = "File = { (<symbol W> ' ')* #File }\nW = [a-z]+\n";
+
+	private static Grammar newGrammar(String text) throws IOException {
+		return new ParserGenerator().newGrammar(CommonSource.newStringSource(text), "nez");
+	}
+
+	private static Parser newParser() throws IOException {
+		return ParserStrategy.newDefaultStrategy().newParser(newGrammar(Grammar));
+	}
+
+	private static Parser newParser(String grammar) throws IOException {
+		return ParserStrategy.newDefaultStrategy().newParser(newGrammar(grammar));
+	}
+
+	private static String words(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.append("abc ");
+		}
+		return sb.toString();
+	}
+
+	private static ParserBudgetException exhaust(Parser parser, String input, ParserBudget budget) {
+		try {
+			parser.parse(CommonSource.newStringSource(input), new CommonTree(), budget);
+		} catch (ParserBudgetException e) {
+			return e;
+		}
+		fail("no budget exception");
+		return null;
+	}
+
+	@Test
+	public void testNullBudgetWithProfiler() throws IOException {
+		Parser parser = newParser();
+		parser.setProfiler(new ParserProfiler(null));
+		Tree<?> node = parser.parse(CommonSource.newStringSource("ab cd ef"), new CommonTree(), null);
+		assertNotNull(node);
+		assertEquals(3, node.size());
+	}
+
+	@Test
+	public void testSteps() throws IOException {
+		Parser parser = newParser(Backtracking);
+		String input = words(1000);
+		ParserBudget budget = new ParserBudget(100, 0, 0);
+		ParserBudgetException e = exhaust(parser, input, budget);
+		assertEquals(ParserBudget.Limit.Steps, e.getLimit());
+		assertTrue(e.getMessage(), e.getMessage().endsWith("steps budget exceeded"));
+		assertEquals(101, budget.getSteps());
+		assertEquals(4 * 99, e.getPosition()); // at the choice of the 100th word
+		assertEquals(0, e.getProductionStack().length); // Item is inlined
+		assertNotNull(parser.parse(CommonSource.newStringSource(input), new CommonTree(), new ParserBudget(1000000, 0, 0)));
+	}
+
+	@Test
+	public void testBacktracks() throws IOException {
+		Parser parser = newParser(Backtracking);
+		String input = words(10000);
+		ParserBudget budget = new ParserBudget(0, 100, 0);
+		ParserBudgetException e = exhaust(parser, input, budget);
+		assertEquals(ParserBudget.Limit.Backtracks, e.getLimit());
+		assertTrue(budget.getBacktracks() > 100);
+		assertTrue(e.getPosition() < input.length());
+		// the limit is checked every 1024 steps
+		assertTrue(budget.getSteps() % 1024 == 0);
+		ParserBudget unlimited = new ParserBudget();
+		assertNotNull(parser.parse(CommonSource.newStringSource(input), new CommonTree(), unlimited));
+		assertEquals(10000 + 2, unlimited.getBacktracks()); // and both alternatives at the end
+	}
+
+	@Test
+	public void testTime() throws IOException {
+		Parser parser = newParser(Backtracking);
+		String input = words(1 << 20);
+		ParserBudgetException e = exhaust(parser, input, new ParserBudget(0, 0, 1));
+		assertEquals(ParserBudget.Limit.Time, e.getLimit());
+		assertTrue(e.getPosition() < input.length());
+	}
+
+	/* a budget cancelled from another thread stops the parse at its next check */
+
+	@Test
+	public void testCancelled() throws Exception {
+		Parser parser = newParser(Backtracking);
+		final ParserBudget budget = new ParserBudget();
+		Thread canceller = new Thread() {
+			@Override
+			public void run() {
+				budget.cancel();
+			}
+		};
+		canceller.start();
+		canceller.join();
+		ParserBudgetException e = exhaust(parser, words(2000), budget);
+		assertEquals(ParserBudget.Limit.Cancelled, e.getLimit());
+		assertTrue(e.getMessage(), e.getMessage().contains("cancelled"));
+		assertEquals(1024, budget.getSteps());
+	}
+
+	/* the third tree is built at the end of the second Inner, inside Outer */
+
+	@Test
+	public void testProductionStack() throws IOException {
+		Parser parser = new ParserStrategy("-Oinline").newParser(newGrammar(Nested));
+		ParserBudgetException e = exhaust(parser, "(abc)(de)", new ParserBudget(0, 0, 0, 0, 2, 0));
+		assertEquals(ParserBudget.Limit.Trees, e.getLimit());
+		assertArrayEquals(new String[] { "Outer", "Inner" }, e.getProductionStack());
+		assertEquals(8, e.getPosition());
+		assertTrue(e.getMessage(), e.getMessage().endsWith("trees budget exceeded in Outer > Inner"));
+	}
+
+	/* the pooled context of the thread parses again as if new */
+
+	@Test
+	public void testPooledContext() throws IOException {
+		Grammar g = newGrammar(Backtracking);
+		String input = words(5000) + "x;";
+		String expected = ParserStrategy.newDefaultStrategy().newParser(g).parse(input).toString();
+		Parser parser = ParserStrategy.newDefaultStrategy().newParser(g);
+		// out of steps, backtracks and trees
+		for (ParserBudget budget : new ParserBudget[] { new ParserBudget(100, 0, 0), new ParserBudget(0, 10, 0), new ParserBudget(0, 0, 0, 0, 10, 0) }) {
+			exhaust(parser, input, budget);
+			assertEquals(expected, parser.parse(input).toString());
+			ParserBudget unlimited = new ParserBudget();
+			assertEquals(expected, parser.parse(CommonSource.newStringSource(input), new CommonTree(), unlimited).toString());
+			assertEquals(5000 + 2, unlimited.getBacktracks());
+			assertEquals(5000 + 2, unlimited.getTrees());
+		}
+	}
+
+	@Test
+	public void testTrees() throws IOException {
+		Parser parser = newParser();
+		ParserBudget budget = new ParserBudget(0, 0, 0, 0, 100, 0);
+		ParserBudgetException e = exhaust(parser, words(1000), budget);
+		assertEquals(ParserBudget.Limit.Trees, e.getLimit());
+		assertEquals(101, budget.getTrees());
+		ParserBudget enough = new ParserBudget(0, 0, 0, 0, 1001, 0);
+		assertEquals(1000, parser.parse(CommonSource.newStringSource(words(1000)), new CommonTree(), enough).size());
+		assertEquals(1001, enough.getTrees());
+		Parser limited = new ParserStrategy("TreeLimit=100").newParser(newGrammar(Grammar));
+		assertEquals(null, limited.parse(words(1000)));
+	}
+
+	@Test
+	public void testSymbols() throws IOException {
+		Parser parser = newParser(Symbols);
+		ParserBudget budget = new ParserBudget(0, 0, 0, 0, 0, 3);
+		ParserBudgetException e = exhaust(parser, "ab cd ef gh ij ", budget);
+		assertEquals(ParserBudget.Limit.Symbols, e.getLimit());
+		assertEquals(3, budget.getPeakSymbols());
+		assertEquals(11, e.getPosition()); // the end of the fourth symbol
+		ParserBudget unlimited = new ParserBudget();
+		assertNotNull(parser.parse(CommonSource.newStringSource("ab cd ef gh ij "), new CommonTree(), unlimited));
+		assertEquals(5, unlimited.getPeakSymbols());
+	}
+
+	/* a packrat table over the entry limit drops the entries, not the result */
+
+	@Test
+	public void testMemoEntries() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("json.nez");
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < 1000; i++) {
+			sb.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append(", \"tags\": [\"a\", 1.5, true, null]}");
+		}
+		String input = sb.append("]").toString();
+		Parser parser = new ParserStrategy("SlidingWindow=-2").newParser(g);
+		ParserBudget unlimited = new ParserBudget();
+		String expected = parser.parse(CommonSource.newStringSource(input), new CommonTree(), unlimited).toString();
+		assertTrue(unlimited.getMemoEntries() > 1000);
+		assertEquals(0, unlimited.getDroppedMemoEntries());
+		ParserProfiler prof = new ParserProfiler(null);
+		parser.setProfiler(prof);
+		ParserBudget budget = new ParserBudget(0, 0, 0, 1000, 0, 0);
+		assertEquals(expected, parser.parse(CommonSource.newStringSource(input), new CommonTree(), budget).toString());
+		assertEquals(1000, budget.getMemoEntries());
+		assertTrue(budget.getDroppedMemoEntries() > 0);
+		String record = prof.formatCommaSeparateValue();
+		assertTrue(record, record.contains(",B.DroppedMemoEntries:," + budget.getDroppedMemoEntries() + ","));
+	}
+}
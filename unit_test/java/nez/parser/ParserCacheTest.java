@@ -0,0 +1,138 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParserCacheTest {
+
+	static final String Json = "{\"id\": 12, \"name\": \"nez\", \"tags\": [1, 2.5, true, null, {\"a\": []}], \"ok\": false}";
+	static final String Xml = "<?xml version=\"1.0\"?>\n<a x=\"1\"><b>text</b><c y=\"2\"/><!-- c --></a>\n";
+	static final String Java = "package a.b;\npublic class A<T> extends B {\n\tint[] x = {1, 2};\n\tString f(int i) { return \"\" + (x[i] << 2); }\n}\n";
+
+	private File dir;
+	private ParserCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("nez-cache").toFile();
+		this.cache = new ParserCache(this.dir.getPath());
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : this.dir.listFiles()) {
+			f.delete();
+		}
+		this.dir.delete();
+	}
+
+	private File cached(String key) {
+		return new File(this.dir, key + ".moz");
+	}
+
+	private void assertCachedParser(String file, String options, String input) throws IOException {
+		ParserGenerator pg = new ParserGenerator();
+		ParserStrategy strategy = new ParserStrategy(options);
+		Tree<?> expected = strategy.newParser(pg.loadGrammar(file)).parse(input);
+		assertNotNull(expected);
+		String key = pg.newKey(strategy, file);
+		assertNull(this.cache.load(key, strategy));
+		Parser compiled = pg.newParser(this.cache, strategy, file);
+		assertTrue(cached(key).isFile());
+		assertEquals(expected.toString(), compiled.parse(input).toString());
+		Parser loaded = this.cache.load(key, strategy);
+		assertNotNull(loaded);
+		assertEquals(compiled.getParserCode().getMemoPointSize(), loaded.getParserCode().getMemoPointSize());
+		assertEquals(expected.toString(), loaded.parse(input).toString());
+		assertEquals(expected.toString(), pg.newParser(this.cache, strategy, file).parse(input).toString());
+	}
+
+	@Test
+	public void testJson() throws IOException {
+		assertCachedParser("json.nez", "", Json);
+	}
+
+	@Test
+	public void testXml() throws IOException {
+		assertCachedParser("xml.nez", "", Xml);
+	}
+
+	@Test
+	public void testJava() throws IOException {
+		assertCachedParser("java.nez", "", Java);
+	}
+
+	@Test
+	public void testIntCode() throws IOException {
+		assertCachedParser("json.nez", "+IntCode +AdaptiveMemo", Json);
+	}
+
+	@Test
+	public void testJIT() throws IOException {
+		assertCachedParser("java.nez", "+JIT", Java);
+	}
+
+	@Test
+	public void testKey() throws IOException {
+		ParserGenerator pg = new ParserGenerator();
+		ParserStrategy strategy = new ParserStrategy("");
+		String key = pg.newKey(strategy, "json.nez");
+		assertEquals(key, pg.newKey(new ParserStrategy(""), "json.nez"));
+		assertFalse(key.equals(pg.newKey(new ParserStrategy("+IntCode"), "json.nez")));
+		assertFalse(key.equals(pg.newKey(strategy, "xml.nez")));
+		assertFalse(ParserCache.newKey(strategy, "nez", "A = 'a'").equals(ParserCache.newKey(strategy, "nez", "A = 'b'")));
+	}
+
+	/* a broken file is compiled again and replaced */
+
+	@Test
+	public void testTruncatedFile() throws IOException {
+		ParserGenerator pg = new ParserGenerator();
+		ParserStrategy strategy = new ParserStrategy("");
+		String key = pg.newKey(strategy, "json.nez");
+		pg.newParser(this.cache, strategy, "json.nez");
+		long length = cached(key).length();
+		try (RandomAccessFile f = new RandomAccessFile(cached(key), "rw")) {
+			f.setLength(length / 2);
+		}
+		assertNull(this.cache.load(key, strategy));
+		String expected = strategy.newParser(pg.loadGrammar("json.nez")).parse(Json).toString();
+		assertEquals(expected, pg.newParser(this.cache, strategy, "json.nez").parse(Json).toString());
+		assertEquals(length, cached(key).length());
+		assertNotNull(this.cache.load(key, strategy));
+	}
+
+	@Test
+	public void testOtherKey() throws IOException {
+		ParserGenerator pg = new ParserGenerator();
+		ParserStrategy strategy = new ParserStrategy("");
+		String key = pg.newKey(strategy, "json.nez");
+		pg.newParser(this.cache, strategy, "json.nez");
+		String other = pg.newKey(strategy, "xml.nez");
+		assertTrue(cached(key).renameTo(cached(other)));
+		assertNull(this.cache.load(other, strategy));
+	}
+
+	@Test
+	public void testCoverage() throws IOException {
+		ParserStrategy strategy = new ParserStrategy("+Coverage");
+		assertFalse(ParserCache.isCacheable(strategy));
+		assertNotNull(new ParserGenerator().newParser(this.cache, strategy, "json.nez"));
+		assertEquals(0, this.dir.listFiles().length);
+	}
+}
@@ -0,0 +1,77 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class PrimitiveMemoTest {
+
+	static final String Json = "{\"id\": 12, \"name\": \"nez\", \"tags\": [1, 2.5, true, null, {\"a\": []}], \"ok\": false}";
+	static final String Java = "package a.b;\nimport java.util.*;\npublic class A<T> extends B implements C {\n" //
+			+ "\tprivate int[] x = {1, 2, 3};\n\tpublic String toString() {\n" //
+			+ "\t\tfor (int i = 0; i < x.length; i++) { if (x[i] > 1) return \"\" + (x[i] << 2); }\n" //
+			+ "\t\treturn (String) null;\n\t}\n}\n";
+	/* a memo entry is reused only under the same symbol table */
+	static final String Stateful = "File = { ($(Item))* #File }\nItem = { <symbol W> ' ' $(V) #Item } ' '* / { <is W> #Same } ' '*\nW = [a-z]+\nV = { [0-9]+ #Value }\n";
+
+	private static Parser newParser(Grammar g, String options) {
+		return new ParserStrategy(options).newParser(g);
+	}
+
+	private static void assertSameTree(Grammar g, String input) {
+		Tree<?> expected = newParser(g, "").parse(input);
+		assertNotNull(expected);
+		for (String options : new String[] { "+PrimitiveMemo", "+PrimitiveMemo +IntCode", "+PrimitiveMemo SlidingWindow=4" }) {
+			Parser parser = newParser(g, options);
+			for (int i = 0; i < 3; i++) { // the table of the pooled context is reused
+				assertEquals(options, expected.toString(), parser.parse(input).toString());
+			}
+		}
+	}
+
+	@Test
+	public void testJson() throws IOException {
+		assertSameTree(new ParserGenerator().loadGrammar("json.nez"), Json);
+	}
+
+	@Test
+	public void testJava() throws IOException {
+		assertSameTree(new ParserGenerator().loadGrammar("java.nez"), Java);
+	}
+
+	@Test
+	public void testStateful() throws IOException {
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(Stateful), "nez");
+		assertEquals(2, newParser(g, "").parse("ab 12 ab cd 34 cd").toString().split("#Same").length - 1);
+		assertSameTree(g, "ab 12 ab cd 34 cd");
+	}
+
+	/* a table over the memo budget is cut down, not grown */
+
+	@Test
+	public void testMemoBudget() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("java.nez");
+		String expected = newParser(g, "").parse(Java).toString();
+		Parser parser = newParser(g, "+PrimitiveMemo");
+		ParserBudget budget = new ParserBudget(0, 0, 0, 100, 0, 0);
+		Tree<?> tree = parser.parse(CommonSource.newStringSource(Java), new CommonTree(), budget);
+		assertEquals(expected, tree.toString());
+	}
+
+	@Test
+	public void testSyntaxError() throws IOException {
+		Parser parser = newParser(new ParserGenerator().loadGrammar("json.nez"), "+PrimitiveMemo");
+		assertNull(parser.parse("{\"id\": }"));
+		assertNotNull(parser.parse(Json));
+	}
+}
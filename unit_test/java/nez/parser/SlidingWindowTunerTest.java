@@ -0,0 +1,65 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+
+import org.junit.Test;
+
+public class SlidingWindowTunerTest {
+
+	/* distances of 2^i, n times */
+
+	private static long[] distances(int i, long n) {
+		long[] d = new long[65];
+		d[i] = n;
+		return d;
+	}
+
+	@Test
+	public void testBounds() {
+		assertEquals(SlidingWindowTuner.MinWindow, new SlidingWindowTuner(1).getWindow());
+		assertEquals(SlidingWindowTuner.MaxWindow, new SlidingWindowTuner(1 << 20).getWindow());
+		SlidingWindowTuner tuner = new SlidingWindowTuner(64);
+		tuner.update(distances(40, 1000), 0, 0);
+		assertEquals(SlidingWindowTuner.MaxWindow, tuner.getWindow());
+	}
+
+	@Test
+	public void testFollowsDistances() {
+		SlidingWindowTuner tuner = new SlidingWindowTuner(64);
+		tuner.update(distances(8, 1000), 0, 0);
+		assertEquals(256, tuner.getWindow());
+		tuner.update(distances(2, 1000000), 0, 0);
+		assertEquals(128, tuner.getWindow()); // halves at most
+		tuner.update(distances(2, 1000000), 0, 0);
+		assertEquals(64, tuner.getWindow());
+	}
+
+	@Test
+	public void testGrowsOnCollisions() {
+		SlidingWindowTuner tuner = new SlidingWindowTuner(64);
+		tuner.update(distances(6, 1000), 1000, 10);
+		assertEquals(64, tuner.getWindow());
+		tuner.update(distances(6, 1000), 1000, 500);
+		assertEquals(128, tuner.getWindow());
+	}
+
+	@Test
+	public void testSameTree() throws IOException {
+		String input = "{\"a\": [1, 2, {\"b\": null}], \"c\": \"d\"}";
+		Grammar g = new ParserGenerator().loadGrammar("json.nez");
+		String expected = ParserStrategy.newDefaultStrategy().newParser(g).parse(input).toString();
+		Parser parser = new ParserStrategy("+AdaptiveWindow").newParser(g);
+		for (int i = 0; i < 5; i++) {
+			Tree<?> tree = parser.parse(input);
+			assertNotNull(tree);
+			assertEquals(expected, tree.toString());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.Symbol;
+import nez.ast.Tree;
+import nez.ast.TreeListener;
+import nez.ast.TreeUtils;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class StreamTreeTest {
+
+	static class EventWriter implements TreeListener {
+		final StringBuilder sb = new StringBuilder();
+
+		@Override
+		public void startNode(Symbol tag, long pos) {
+			sb.append("{#").append(tag).append('@').append(pos).append(' ');
+		}
+
+		@Override
+		public void label(Symbol label) {
+			sb.append('$').append(label).append(' ');
+		}
+
+		@Override
+		public void endNode(Symbol tag, long pos, int len, Object value) {
+			sb.append('#').append(tag).append('@').append(pos).append('+').append(len).append("} ");
+		}
+	}
+
+	private static Parser newParser(String grammar) throws IOException {
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(grammar), "nez");
+		return ParserStrategy.newDefaultStrategy().newParser(g);
+	}
+
+	private static void assertSameEvents(String grammar, String input) throws IOException {
+		Parser parser = newParser(grammar);
+		Tree<?> tree = parser.parse(CommonSource.newStringSource(input));
+		EventWriter expected = new EventWriter();
+		TreeUtils.sendTree(expected, tree);
+		EventWriter streamed = new EventWriter();
+		assertTrue(parser.parse(CommonSource.newStringSource(input), streamed));
+		assertEquals(expected.sb.toString(), streamed.sb.toString());
+	}
+
+	private static String repeat(String s, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testStaticTag() throws IOException {
+		String grammar = "File = { ($(X))* '.' #File }\nX = { [a-z] #X } ' '*\n";
+		assertSameEvents(grammar, repeat("a b c ", 100) + ".");
+	}
+
+	@Test
+	public void testLateTag() throws IOException {
+		String grammar = "File = { ($(X))* (';' #Semi / '.' #Dot) }\nX = { [a-z] #X } ' '*\n";
+		assertSameEvents(grammar, repeat("a b c ", 100) + ".");
+		assertSameEvents(grammar, repeat("a b c ", 100) + ";");
+	}
+
+	@Test
+	public void testNestedLateTag() throws IOException {
+		String grammar = "File = { ($(List))* #File }\nList = { ($(X))* (';' #Semi / '.' #Dot) } ' '*\nX = { [a-z] #X } ' '*\n";
+		assertSameEvents(grammar, repeat(repeat("a b c ", 30) + ". ", 10));
+	}
+
+	@Test
+	public void testLeftFold() throws IOException {
+		String grammar = "File = { ($(X) ' '*)* '.' #File }\nX = { [a-z] #X } ({$ '+' #Plus })*\n";
+		assertSameEvents(grammar, repeat("a+ b ", 200) + ".");
+		assertSameEvents(grammar, repeat("a+++ b+ ", 100) + ".");
+	}
+}
@@ -0,0 +1,76 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class TreeLogTest {
+
+	/* the first choice builds a tree and fails after it */
+	static final String Backtrack = "File = { ($(Item) ' '*)* #File }\nItem = { 'a' $(X) #Ab } 'b' / { 'a' $(X) #Ac } 'c' / { 'a' $(X) #A }\nX = { [0-9]* #X }\n";
+
+	private static String repeat(String s, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	/* the arrays grow past their initial sizes; the classic machine is the reference */
+
+	private static void assertSameTree(Grammar g, String... inputs) {
+		Parser moz = new ParserStrategy("+Moz").newParser(g);
+		Parser moz86 = new ParserStrategy("").newParser(g);
+		Parser intCode = new ParserStrategy("+IntCode").newParser(g);
+		for (String input : inputs) {
+			Tree<?> expected = moz.parse(input);
+			assertNotNull(expected);
+			assertEquals(expected.toString(), moz86.parse(input).toString());
+			assertEquals(expected.toString(), intCode.parse(input).toString());
+		}
+	}
+
+	@Test
+	public void testDeep() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("json.nez");
+		assertSameTree(g, repeat("[", 300) + "1" + repeat("]", 300), repeat("{\"a\": ", 200) + "[]" + repeat("}", 200), "[1]");
+	}
+
+	@Test
+	public void testWide() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("json.nez");
+		assertSameTree(g, "[" + repeat("{\"a\": 1, \"b\": [true, null]}, ", 2000) + "0]", "[1]");
+	}
+
+	@Test
+	public void testBacktrack() throws IOException {
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(Backtrack), "nez");
+		String tree = new ParserStrategy("").newParser(g).parse("a1b a2c a3").toString();
+		assertEquals(tree, 1, tree.split("#Ab").length - 1);
+		assertEquals(tree, 1, tree.split("#Ac").length - 1);
+		assertSameTree(g, "a1b a2c a3", repeat("a12c a3 a45b ", 500));
+	}
+
+	/* a pooled context starts clean after a deep parse and after an error */
+
+	@Test
+	public void testReuse() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("json.nez");
+		Parser parser = new ParserStrategy("").newParser(g);
+		String expected = parser.parse("[1, {\"a\": 2}]").toString();
+		assertNotNull(parser.parse(repeat("[", 300) + "1" + repeat("]", 300)));
+		assertEquals(expected, parser.parse("[1, {\"a\": 2}]").toString());
+		assertNull(parser.parse(repeat("[", 300) + "1" + repeat("]", 299)));
+		assertEquals(expected, parser.parse("[1, {\"a\": 2}]").toString());
+	}
+}
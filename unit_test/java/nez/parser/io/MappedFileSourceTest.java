@@ -0,0 +1,167 @@
+package nez.parser.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserBudget;
+import nez.parser.ParserBudgetException;
+import nez.parser.ParserStrategy;
+import nez.util.StringUtils;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MappedFileSourceTest {
+	static final String Mark = "<<nez-mark-0123>>";
+	static final long MarkPos = (1L << 31) + 4095; // past 2^31, near a segment end
+	static final long FileLength = MarkPos + Mark.length() + 8;
+
+	static File file;
+
+	/* a sparse file of zeros, with the mark past offset 2^31 */
+
+	@BeforeClass
+	public static void createFile() throws IOException {
+		file = File.createTempFile("nez", ".bin");
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try {
+			f.setLength(FileLength);
+			f.seek(MarkPos);
+			f.write(StringUtils.toUtf8(Mark + "\n"));
+		} finally {
+			f.close();
+		}
+	}
+
+	@AfterClass
+	public static void deleteFile() {
+		file.delete();
+	}
+
+	private static Parser newParser(String grammar) throws IOException {
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(grammar), "nez");
+		return ParserStrategy.newDefaultStrategy().newParser(g);
+	}
+
+	@Test
+	public void testBytes() throws IOException {
+		MappedFileSource s = new MappedFileSource(file.getPath());
+		assertEquals(FileLength, s.length());
+		assertEquals(0, s.byteAt(MarkPos - 1));
+		assertEquals('<', s.byteAt(MarkPos));
+		assertTrue(s.match(MarkPos, StringUtils.toUtf8(Mark)));
+		assertEquals(Mark, s.subString(MarkPos, MarkPos + Mark.length()));
+		assertEquals(2, s.linenum(FileLength));
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+		File empty = File.createTempFile("nez", ".txt");
+		try {
+			MappedFileSource s = new MappedFileSource(empty.getPath());
+			assertEquals(0, s.length());
+			assertTrue(s.eof(0));
+			assertEquals(0, s.byteAt(0));
+			assertTrue(s.match(0, new byte[0]));
+			assertFalse(s.match(0, StringUtils.toUtf8("a")));
+			assertEquals("", s.subString(0, 0));
+			assertEquals(1, s.linenum(0));
+		} finally {
+			empty.delete();
+		}
+	}
+
+	/* one source read by several threads, as with parseAll */
+
+	@Test
+	public void testSharedLines() throws Exception {
+		final int lineLength = 100;
+		final int lines = 40000; // 4 MB, over 60 line blocks
+		File text = File.createTempFile("nez", ".txt");
+		try {
+			byte[] line = new byte[lineLength];
+			Arrays.fill(line, (byte) 'x');
+			line[lineLength - 1] = '\n';
+			FileOutputStream out = new FileOutputStream(text);
+			try {
+				for (int i = 0; i < lines; i++) {
+					out.write(line);
+				}
+			} finally {
+				out.close();
+			}
+			for (int round = 0; round < 4; round++) {
+				final MappedFileSource s = new MappedFileSource(text.getPath());
+				final List<String> errors = new ArrayList<String>();
+				Thread[] threads = new Thread[4];
+				for (int t = 0; t < threads.length; t++) {
+					final int seed = t;
+					threads[t] = new Thread() {
+						@Override
+						public void run() {
+							for (int i = 0; i < 200; i++) {
+								long pos = ((i * 7919L + seed * 104729L) * lineLength + i) % s.length();
+								long expected = pos / lineLength + 1;
+								if (s.linenum(pos) != expected) {
+									synchronized (errors) {
+										errors.add(pos + ": " + s.linenum(pos) + " != " + expected);
+									}
+								}
+							}
+						}
+					};
+					threads[t].start();
+				}
+				for (Thread t : threads) {
+					t.join();
+				}
+				assertTrue(errors.toString(), errors.isEmpty());
+			}
+		} finally {
+			text.delete();
+		}
+	}
+
+	@Test
+	public void testPositionPast2GiB() throws IOException {
+		Parser parser = newParser("File = (!'" + Mark + "' .)* { '" + Mark + "' #Mark } .*\n");
+		Tree<?> node = parser.parse(new MappedFileSource(file.getPath()));
+		assertNotNull(node);
+		assertEquals("Mark", node.getTag().getSymbol());
+		assertEquals(MarkPos, node.getSourcePosition());
+		assertEquals(Mark.length(), node.getLength());
+		assertEquals(Mark, node.toText());
+	}
+
+	@Test
+	public void testLengthOver2GiB() throws IOException {
+		Parser parser = newParser("File = { (!'" + Mark + "' .)* '" + Mark + "' #Head } .*\n");
+		assertNull(parser.parse(new MappedFileSource(file.getPath())));
+		assertTrue(parser.hasErrors());
+		try {
+			parser.parse(new MappedFileSource(file.getPath()), new CommonTree(), new ParserBudget());
+			fail("a node over 2 GiB is not to be truncated");
+		} catch (ParserBudgetException e) {
+			assertEquals(ParserBudget.Limit.Length, e.getLimit());
+			assertEquals(MarkPos + Mark.length(), e.getPosition());
+		}
+	}
+}
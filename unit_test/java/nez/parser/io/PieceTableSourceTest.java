@@ -0,0 +1,79 @@
+package nez.parser.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import nez.ast.Source;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+public class PieceTableSourceTest {
+
+	private static void assertSource(String expected, Source s) {
+		byte[] bytes = StringUtils.toUtf8(expected);
+		assertEquals(bytes.length, s.length());
+		for (int i = 0; i < bytes.length; i++) {
+			assertEquals(bytes[i] & 0xff, s.byteAt(i));
+		}
+		assertEquals(0, s.byteAt(bytes.length));
+		assertTrue(s.eof(bytes.length));
+		assertFalse(bytes.length > 0 && s.eof(bytes.length - 1));
+		assertEquals(expected, s.subString(0, s.length()));
+		Source whole = CommonSource.newStringSource(expected);
+		for (int i = 0; i <= bytes.length; i += 7) {
+			assertEquals(whole.linenum(i), s.linenum(i));
+			int end = Math.min(bytes.length, i + 11);
+			assertArrayEquals(whole.subByte(i, end), s.subByte(i, end));
+			assertTrue(s.match(i, whole.subByte(i, end)));
+		}
+	}
+
+	@Test
+	public void testEdits() {
+		StringBuilder text = new StringBuilder("line 1\nline 2\nline 3\n");
+		Source s = CommonSource.newStringSource(text.toString());
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			int offset = random.nextInt(text.length() + 1);
+			int deleted = random.nextInt(Math.min(8, text.length() - offset) + 1);
+			String inserted = random.nextInt(4) == 0 ? "" : "ab\n".substring(random.nextInt(3));
+			text.replace(offset, offset + deleted, inserted);
+			s = PieceTableSource.edit(s, offset, deleted, StringUtils.toUtf8(inserted));
+			assertSource(text.toString(), s);
+		}
+		assertTrue(((PieceTableSource) s).size() <= 2 * 200 + 1);
+	}
+
+	@Test
+	public void testEmpty() {
+		Source s = PieceTableSource.edit(CommonSource.newStringSource("abc"), 0, 3, new byte[0]);
+		assertSource("", s);
+		assertEquals(0, ((PieceTableSource) s).size());
+		s = PieceTableSource.edit(s, 0, 0, StringUtils.toUtf8("x\ny"));
+		assertSource("x\ny", s);
+		s = PieceTableSource.edit(s, 3, 0, StringUtils.toUtf8("z"));
+		assertSource("x\nyz", s);
+	}
+
+	/* an edit copies the pieces, not the text */
+
+	@Test
+	public void testSharedText() {
+		StringSource base = new StringSource(new String(new char[1 << 20]).replace('\0', 'a'));
+		Source s = PieceTableSource.edit(base, 1000, 1, StringUtils.toUtf8("b"));
+		assertEquals(3, ((PieceTableSource) s).size());
+		assertEquals('b', s.byteAt(1000));
+		assertEquals('a', s.byteAt(1001));
+		assertEquals("(string)", s.getResourceName());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfBounds() {
+		PieceTableSource.edit(CommonSource.newStringSource("abc"), 2, 2, new byte[0]);
+	}
+}
@@ -0,0 +1,123 @@
+package nez.parser.vm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserResult;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class BacktrackProfilerTest {
+
+	/* Long reads a whole line of letters before it fails; a line of digits, one byte */
+
+	static final String Grammar = "File = { ($(Line))* #File }\nLine = Long / Short\nLong = { [a-z]* ';' #Long }\nShort = { [a-z0-9]* '.' #Short }\n";
+
+	static final int LongStart = 800;
+	static final int LongLength = 1000;
+
+	private static Grammar newGrammar() throws IOException {
+		return new ParserGenerator().newGrammar(CommonSource.newStringSource(Grammar), "nez");
+	}
+
+	/* short lines of digits, with one long line of letters at LongStart */
+
+	private static String newInput(int shortLines) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < LongStart) {
+			sb.append("12.");
+		}
+		sb.setLength(LongStart - 1);
+		sb.append('.');
+		for (int i = 0; i < LongLength; i++) {
+			sb.append('x');
+		}
+		sb.append('.');
+		for (int i = 0; i < shortLines; i++) {
+			sb.append("12.");
+		}
+		return sb.toString();
+	}
+
+	/* without inlining, so that the choices are named after Line */
+
+	private static Parser newParser(Grammar g) {
+		return new ParserStrategy("+BacktrackProfiling -Oinline").newParser(g);
+	}
+
+	private static BacktrackProfiler.Report report(Parser parser) {
+		return parser.getParserStrategy().getBacktrackReport();
+	}
+
+	@Test
+	public void testWorstRegion() throws IOException {
+		Parser parser = newParser(newGrammar());
+		String text = newInput(200);
+		assertNotNull(parser.parse(text));
+		List<BacktrackProfiler.Input> inputs = report(parser).getInputs();
+		assertEquals(1, inputs.size());
+		BacktrackProfiler.Input in = inputs.get(0);
+		assertEquals(text.length(), in.length);
+		assertEquals(BacktrackProfiler.WorstRegions, in.regions.size());
+		for (BacktrackProfiler.Region r : in.regions) {
+			assertTrue("region " + r.pos, LongStart <= r.pos && r.pos + (1 << BacktrackProfiler.RegionShift) <= LongStart + LongLength);
+			assertEquals(1 << BacktrackProfiler.RegionShift, r.reread);
+			assertTrue(r.choice, r.choice.startsWith("Line L"));
+		}
+		assertEquals(1, in.maxCount);
+		assertTrue(LongStart <= in.maxPos && in.maxPos < LongStart + LongLength);
+		long reread = 0;
+		for (long[] c : report(parser).getChoices().values()) {
+			reread += c[1];
+		}
+		assertEquals(in.reread, reread);
+		assertTrue(reread > LongLength);
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		Grammar g = newGrammar();
+		List<Source> inputs = new ArrayList<Source>();
+		for (int i = 0; i < 16; i++) {
+			inputs.add(CommonSource.newStringSource(newInput(i * 10)));
+		}
+		Parser serial = newParser(g);
+		for (Source input : inputs) {
+			assertNotNull(serial.parse(input));
+		}
+		Parser parallel = newParser(g);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			parallel.parseAll(inputs, executor, false, serial.getParserStrategy().newTree(), new ParserResult.Handler() {
+				@Override
+				public void handle(ParserResult result) {
+					assertNotNull(result.getTree());
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+		Map<String, long[]> expected = report(serial).getChoices();
+		Map<String, long[]> choices = report(parallel).getChoices();
+		assertEquals(expected.keySet(), choices.keySet());
+		for (String name : expected.keySet()) {
+			assertArrayEquals(name, expected.get(name), choices.get(name));
+		}
+		assertEquals(inputs.size(), report(parallel).getInputs().size());
+	}
+}
@@ -0,0 +1,120 @@
+package nez.parser.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+public class KeywordTrieTest {
+
+	static final String Java = "package a.b;\nimport java.util.*;\npublic abstract class A<T> extends B implements C {\n" //
+			+ "\tprivate static final int[] x = {1, 2, 3};\n\tprotected synchronized String f() throws Exception {\n" //
+			+ "\t\tfor (int i = 0; i < x.length; i++) { if (x[i] instanceof Object) continue; else break; }\n" //
+			+ "\t\twhile (true) { try { return this.toString(); } finally { } }\n\t}\n}\n";
+
+	/* the literals tried one after another, as the ordered choice does */
+
+	private static int choice(byte[][] keywords, Source s, long pos) {
+		for (byte[] k : keywords) {
+			if (pos + k.length <= s.length() && s.match(pos, k)) {
+				return k.length;
+			}
+		}
+		return -1;
+	}
+
+	private static String randomText(Random random, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append("abc\u00e9".charAt(random.nextInt(4)));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testOrderedChoice() {
+		Random random = new Random(1);
+		for (int n = 0; n < 500; n++) {
+			byte[][] keywords = new byte[4 + random.nextInt(12)][];
+			for (int i = 0; i < keywords.length; i++) {
+				keywords[i] = StringUtils.toUtf8(randomText(random, 1 + random.nextInt(4)));
+			}
+			KeywordTrie trie = new KeywordTrie(keywords);
+			Source s = CommonSource.newStringSource(randomText(random, 30));
+			for (long pos = 0; pos <= s.length(); pos++) {
+				assertEquals(choice(keywords, s, pos), trie.match(s, pos));
+			}
+		}
+	}
+
+	@Test
+	public void testPrefix() {
+		byte[][] keywords = { StringUtils.toUtf8("in"), StringUtils.toUtf8("int"), StringUtils.toUtf8("if"), StringUtils.toUtf8("instanceof") };
+		KeywordTrie trie = new KeywordTrie(keywords);
+		assertEquals(2, trie.match(CommonSource.newStringSource("instanceof"), 0)); // "in" comes first
+		assertEquals(2, trie.match(CommonSource.newStringSource("if"), 0));
+		assertEquals(-1, trie.match(CommonSource.newStringSource("i"), 0));
+		byte[][] reversed = { keywords[3], keywords[1], keywords[0], keywords[2] };
+		trie = new KeywordTrie(reversed);
+		assertEquals(10, trie.match(CommonSource.newStringSource("instanceof"), 0));
+		assertEquals(3, trie.match(CommonSource.newStringSource("int x"), 0));
+		assertEquals(2, trie.match(CommonSource.newStringSource("inx"), 0));
+	}
+
+	private static void assertSameTree(Grammar g, String... inputs) {
+		Parser expected = new ParserStrategy("").newParser(g);
+		for (String options : new String[] { "+Okeyword", "+Okeyword +IntCode", "+Okeyword +Moz", "+Okeyword +JIT" }) {
+			Parser parser = new ParserStrategy(options).newParser(g);
+			for (String input : inputs) {
+				assertEquals(options + " " + input, String.valueOf(expected.parse(input)), String.valueOf(parser.parse(input)));
+			}
+		}
+	}
+
+	private static boolean hasKeyword(MozInst inst, Set<MozInst> visited) {
+		if (inst == null || !visited.add(inst)) {
+			return false;
+		}
+		if (inst instanceof Moz86.Keyword) {
+			return true;
+		}
+		if (inst instanceof Moz86.Dispatch) {
+			for (MozInst t : ((Moz86.Dispatch) inst).jumpTable) {
+				if (hasKeyword(t, visited)) {
+					return true;
+				}
+			}
+		}
+		return hasKeyword(inst.next, visited) || hasKeyword(inst.branch(), visited);
+	}
+
+	@Test
+	public void testGrammar() throws IOException {
+		String text = "File = { ($(W) ' '*)* #File }\nW = { ('in' / 'int' / 'if' / 'instanceof' / 'do' / 'double') #K } / { [a-z]+ #Id }\n";
+		Grammar g = new ParserGenerator().newGrammar(CommonSource.newStringSource(text), "nez");
+		MozCode code = (MozCode) new ParserStrategy("+Okeyword").newParser(g).getParserCode();
+		assertTrue(hasKeyword(code.getStartInstruction(), new HashSet<MozInst>()));
+		assertSameTree(g, "int instanceof if do double x", "intx doublex", "");
+	}
+
+	@Test
+	public void testJava() throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar("java.nez");
+		assertNotNull(new ParserStrategy("+Okeyword").newParser(g).parse(Java));
+		assertSameTree(g, Java);
+	}
+}
@@ -0,0 +1,67 @@
+package nez.parser.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.Tree;
+import nez.bench.InputGenerator;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class MozJITTest {
+
+	private static final String[] Grammars = { "json", "xml", "csv", "js", "java" };
+
+	private static Parser newParser(Grammar g, String options) {
+		Parser parser = new ParserStrategy(options).newParser(g);
+		parser.setDisabledUnconsumed(true);
+		return parser;
+	}
+
+	/* the compiled productions build the trees the interpreter builds */
+
+	private static void assertSame(String grammar, String options) throws IOException {
+		Grammar g = new ParserGenerator().loadGrammar(grammar + ".nez");
+		String text = InputGenerator.generate(grammar, 8192);
+		String bad = text.substring(0, text.length() / 2) + "\u0001" + text.substring(text.length() / 2);
+		Parser expected = newParser(g, options);
+		Parser parser = newParser(g, options + " +JIT");
+		for (String t : new String[] { text, bad, "" }) {
+			Tree<?> tree = parser.parse(CommonSource.newStringSource(t));
+			assertEquals(grammar + " " + options, String.valueOf(expected.parse(CommonSource.newStringSource(t))), String.valueOf(tree));
+		}
+		MozJIT jit = ((MozCode) parser.getParserCode()).getJIT();
+		assertNotNull(grammar, jit);
+		assertEquals(grammar, 0, jit.getInterpreted());
+	}
+
+	@Test
+	public void testGrammars() throws IOException {
+		for (String grammar : Grammars) {
+			assertSame(grammar, "");
+			assertSame(grammar, "-PackratParsing");
+		}
+	}
+
+	/* the productions are split into many small methods */
+
+	@Test
+	public void testSplit() throws IOException {
+		int size = MozJIT.SplitSize;
+		MozJIT.SplitSize = 256;
+		try {
+			for (String grammar : new String[] { "json", "xml", "js" }) {
+				assertSame(grammar, "");
+			}
+		} finally {
+			MozJIT.SplitSize = size;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package nez.parser.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserResult;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class ParserMachineProfilerTest {
+
+	/*
+	 * Word is memoized (it is called three times); a line of digits fails
+	 * Word once by a call and twice by a memo hit, before Num.
+	 */
+
+	static final String Grammar = "File = { ($(Line))* #File }\nLine = Word ';' / Word '.' / Word '!' / Num\nWord = { [a-z]+ #Word }\nNum = { [0-9]+ '.' #Num }\n";
+
+	private static Grammar newGrammar() throws IOException {
+		return new ParserGenerator().newGrammar(CommonSource.newStringSource(Grammar), "nez");
+	}
+
+	/* without inlining, so that each production has its frame */
+
+	private static Parser newParser(Grammar g) {
+		return new ParserStrategy("+Profiling -Oinline").newParser(g);
+	}
+
+	private static String newInput(int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.append("ab.12.cd;ef!");
+		}
+		return sb.toString();
+	}
+
+	private static Map<String, ParserMachineProfiler.Stat> stats(Parser parser) {
+		Map<String, ParserMachineProfiler.Stat> stats = new HashMap<String, ParserMachineProfiler.Stat>();
+		for (ParserMachineProfiler.Stat s : parser.getParserStrategy().getMachineProfile().getStats()) {
+			stats.put(s.name, s);
+		}
+		return stats;
+	}
+
+	/* the counts of a stat, without the times */
+
+	private static String counts(ParserMachineProfiler.Stat s) {
+		return s.invocations + " " + s.failures + " " + s.backtracks + " " + s.rereadBytes + " " + s.memoLookups + " " + s.memoHits + " " + s.memoStores + " " + s.trees;
+	}
+
+	private static Set<String> paths(String folded) {
+		Set<String> paths = new HashSet<String>();
+		for (String line : folded.split("\n")) {
+			paths.add(line.substring(0, line.lastIndexOf(' ')));
+		}
+		return paths;
+	}
+
+	@Test
+	public void testCounts() throws IOException {
+		Parser parser = newParser(newGrammar());
+		int n = 10;
+		assertNotNull(parser.parse(newInput(n)));
+		Map<String, ParserMachineProfiler.Stat> stats = stats(parser);
+		// a line of letters calls Word once, or twice or three times through a hit
+		ParserMachineProfiler.Stat word = stats.get("Word");
+		assertEquals(9 * n + 3, word.invocations);
+		assertEquals(3 * n + 3, word.failures);
+		assertEquals(word.invocations, word.memoLookups);
+		assertEquals(5 * n + 2, word.memoHits);
+		assertEquals(3 * n, word.trees);
+		ParserMachineProfiler.Stat num = stats.get("Num");
+		assertEquals(n + 1, num.invocations);
+		assertEquals(1, num.failures);
+		ParserMachineProfiler.Stat line = stats.get("Line");
+		assertEquals(4 * n + 1, line.invocations);
+		assertEquals(1, line.failures);
+		// the frames of failed calls are popped, so Line has all the time of its callees
+		long self = 0;
+		for (ParserMachineProfiler.Stat s : stats.values()) {
+			assertTrue(s.name, s.selfNanos >= 0);
+			assertTrue(s.name, s.selfNanos <= s.inclusiveNanos || s.name.equals("(top)"));
+			self += s.selfNanos;
+		}
+		assertEquals(line.inclusiveNanos, self);
+		assertTrue(line.inclusiveNanos > word.inclusiveNanos + num.inclusiveNanos);
+	}
+
+	@Test
+	public void testFormats() throws IOException {
+		Parser parser = newParser(newGrammar());
+		assertNotNull(parser.parse(newInput(10)));
+		ParserMachineProfiler.Profile profile = parser.getParserStrategy().getMachineProfile();
+		String folded = profile.formatFolded();
+		Set<String> expected = new HashSet<String>();
+		expected.add("Line");
+		expected.add("Line;Word");
+		expected.add("Line;Num");
+		assertEquals(expected, paths(folded));
+		long sum = 0;
+		for (String l : folded.split("\n")) {
+			assertTrue(l, l.matches("[^ ]+ [0-9]+"));
+			sum += Long.parseLong(l.substring(l.lastIndexOf(' ') + 1));
+		}
+		assertEquals(stats(parser).get("Line").inclusiveNanos, sum);
+		String json = profile.formatJSON();
+		Parser jsonParser = new ParserGenerator().newParser("json.nez");
+		assertNotNull(json, jsonParser.parse(json));
+		assertTrue(json, json.contains("{\"name\":\"Word\",\"invocations\":93,\"failures\":33,"));
+		assertTrue(json, json.contains("\"memo_lookups\":93,\"memo_hits\":52,"));
+		assertTrue(json, json.contains("{\"name\":\"Word\",\"count\":93,"));
+		assertTrue(json, json.contains("{\"name\":\"Num\",\"count\":11,"));
+	}
+
+	/* parses on several threads add up to the counts of serial parses */
+
+	@Test
+	public void testParallel() throws Exception {
+		Grammar g = newGrammar();
+		List<Source> inputs = new ArrayList<Source>();
+		for (int i = 0; i < 32; i++) {
+			inputs.add(CommonSource.newStringSource(newInput(i + 1)));
+		}
+		Parser serial = newParser(g);
+		for (Source input : inputs) {
+			assertNotNull(serial.parse(input));
+		}
+		Parser parallel = newParser(g);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			parallel.parseAll(inputs, executor, false, serial.getParserStrategy().newTree(), new ParserResult.Handler() {
+				@Override
+				public void handle(ParserResult result) {
+					assertNotNull(result.getTree());
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+		Map<String, ParserMachineProfiler.Stat> expected = stats(serial);
+		Map<String, ParserMachineProfiler.Stat> stats = stats(parallel);
+		assertEquals(expected.keySet(), stats.keySet());
+		for (String name : expected.keySet()) {
+			assertEquals(name, counts(expected.get(name)), counts(stats.get(name)));
+		}
+		assertEquals(paths(serial.getParserStrategy().getMachineProfile().formatFolded()), paths(parallel.getParserStrategy().getMachineProfile().formatFolded()));
+		String json = parallel.getParserStrategy().getMachineProfile().formatJSON();
+		assertTrue(json, json.contains("{\"name\":\"Word\",\"count\":" + expected.get("Word").invocations + ","));
+	}
+}
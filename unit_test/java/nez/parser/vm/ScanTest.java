@@ -0,0 +1,117 @@
+package nez.parser.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+import nez.util.StringUtils;
+
+import org.junit.Test;
+
+public class ScanTest {
+
+	static final String[] Texts = { "*/", "ab", "aab", "abab", "-->", "a", "\u00e9\u00e9" };
+
+	/* the body is scanned; Loop is the same language, written so that it is not */
+
+	private static Grammar newGrammar(String text, boolean scan) throws IOException {
+		String lit = "'" + text + "'";
+		String body = scan ? "(!" + lit + " .)*" : "Loop";
+		String g = "File = { $(Body) (" + lit + " / !.) $(Rest) #File }\nBody = { " + body + " #Body }\nRest = { .* #Rest }\nLoop = !" + lit + " . Loop / ''\n";
+		return new ParserGenerator().newGrammar(CommonSource.newStringSource(g), "nez");
+	}
+
+	private static boolean hasScan(Parser parser) {
+		Set<MozInst> visited = new HashSet<MozInst>();
+		return hasScan(((MozCode) parser.getParserCode()).getStartInstruction(), visited);
+	}
+
+	private static boolean hasScan(MozInst inst, Set<MozInst> visited) {
+		if (inst == null || !visited.add(inst)) {
+			return false;
+		}
+		if (inst instanceof Moz86.Scan) {
+			return true;
+		}
+		if (inst instanceof Moz86.Dispatch) {
+			for (MozInst t : ((Moz86.Dispatch) inst).jumpTable) {
+				if (hasScan(t, visited)) {
+					return true;
+				}
+			}
+		}
+		return hasScan(inst.next, visited) || hasScan(inst.branch(), visited);
+	}
+
+	private static String randomText(Random random, int length) {
+		char[] alphabet = { 'a', 'b', '*', '/', '-', '>', 'x', '\u00e9' };
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append(alphabet[random.nextInt(alphabet.length)]);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testCompiled() throws IOException {
+		assertTrue(hasScan(new ParserStrategy("").newParser(newGrammar("*/", true))));
+		assertFalse(hasScan(new ParserStrategy("").newParser(newGrammar("*/", false))));
+	}
+
+	@Test
+	public void testRandom() throws IOException {
+		Random random = new Random(1);
+		for (String text : Texts) {
+			Grammar scan = newGrammar(text, true);
+			Parser expected = new ParserStrategy("").newParser(newGrammar(text, false));
+			Parser[] parsers = { new ParserStrategy("").newParser(scan), new ParserStrategy("+IntCode").newParser(scan), new ParserStrategy("+Moz").newParser(scan), new ParserStrategy("+JIT").newParser(scan) };
+			for (int i = 0; i < 300; i++) {
+				String input = randomText(random, random.nextInt(40));
+				Tree<?> t = expected.parse(input);
+				for (Parser p : parsers) {
+					assertEquals(text + " in " + input, t.toString(), p.parse(input).toString());
+				}
+			}
+		}
+	}
+
+	/* a source that is not a StringSource is scanned through byteAt */
+
+	@Test
+	public void testFileSource() throws IOException {
+		File f = File.createTempFile("scan", ".txt");
+		try {
+			Random random = new Random(2);
+			for (String text : Texts) {
+				Parser expected = new ParserStrategy("").newParser(newGrammar(text, false));
+				Parser parser = new ParserStrategy("").newParser(newGrammar(text, true));
+				for (int i = 0; i < 50; i++) {
+					String input = randomText(random, random.nextInt(40));
+					try (FileOutputStream out = new FileOutputStream(f)) {
+						out.write(StringUtils.toUtf8(input));
+					}
+					Source s = CommonSource.newFileSource(f.getPath());
+					assertFalse(s instanceof nez.parser.io.StringSource);
+					assertEquals(expected.parse(input).toString(), parser.parse(s, new CommonTree()).toString());
+				}
+			}
+		} finally {
+			f.delete();
+		}
+	}
+}
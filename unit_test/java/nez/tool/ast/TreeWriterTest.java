@@ -0,0 +1,67 @@
+package nez.tool.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.parser.Parser;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class TreeWriterTest {
+
+	private final static String JSON = "{\"a\": [1, 2.5, \"x\", true, null], \"b\": {\"c\": \"d\"}, \"e\": []}\n";
+	private final static String XML = "<?xml version=\"1.0\"?>\n<a x=\"1\" y=\"2\">\n <b>text</b>\n <c/>\n <d><e>1</e><e>2</e><!-- c --><![CDATA[x]]></d>\n</a>\n";
+	private final static String JAVA = "package p;\nimport java.util.List;\npublic class A<T> extends B implements C {\n  private int x = 1 + 2 * 3;\n  public List<T> f(int a, String... b) {\n    if (a > 0) { return null; } else { x++; }\n    for (int i = 0; i < a; i++) g(i, \"s\");\n    return new java.util.ArrayList<T>();\n  }\n}\n";
+
+	private static String write(TreeWriter tw, Tree<?> node) throws UnsupportedEncodingException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tw.init(out);
+		tw.writeTree(node);
+		return out.toString("UTF-8");
+	}
+
+	private static String stream(TreeWriter tw, Parser parser, Source input) throws UnsupportedEncodingException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tw.init(out);
+		tw.setSource(input);
+		assertTrue(parser.parse(input, tw));
+		return out.toString("UTF-8");
+	}
+
+	private static void assertSameOutput(String grammar, String text) throws IOException {
+		Parser parser = new ParserGenerator().newParser(grammar);
+		Tree<?> node = parser.parse(CommonSource.newStringSource(text), parser.getParserStrategy().newTree());
+		assertNotNull(node);
+		TreeWriter[] writers = { new TreeWriter(), new TreeXMLWriter(), new TreeJSONWriter(), new TreeJSONWriter() };
+		writers[3].setDataOption(true);
+		for (TreeWriter tw : writers) {
+			String expected = write(tw, node);
+			String streamed = stream(tw, parser, CommonSource.newStringSource(text));
+			assertEquals(tw.getClass().getSimpleName(), expected, streamed);
+		}
+	}
+
+	@Test
+	public void testJSON() throws IOException {
+		assertSameOutput("json.nez", JSON);
+	}
+
+	@Test
+	public void testXML() throws IOException {
+		assertSameOutput("xml.nez", XML);
+	}
+
+	@Test
+	public void testJava() throws IOException {
+		assertSameOutput("java.nez", JAVA);
+	}
+}